@@ -0,0 +1,271 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import ch.integon.wso2.am.mediator.wsdl.model.ValidationMode;
+
+/**
+ * Tracks the recent validation cost per API and degrades the validation mode
+ * step by step ({@code FULL -> STRUCTURAL -> SAMPLED}) when the configured
+ * latency or CPU budget is exceeded. Once the projected cost of the next more
+ * expensive mode drops below the recovery threshold the mode is raised again,
+ * one step at a time.
+ * <p>
+ * Cost is tracked per mode as an exponentially weighted moving average of the
+ * wall-clock latency and the thread CPU time spent per message, together with
+ * the lowest average seen in the mode as its unloaded baseline. A degraded
+ * mode is cheap by design, so its own cost says little about the cost of the
+ * mode above it: the recovery decision instead scales the baseline of the mode
+ * above by the current load factor, i.e. the current cost of the active mode
+ * relative to its own baseline. Mode changes are rate limited by a cooldown so
+ * the controller cannot oscillate faster than that. Every change is logged and
+ * counted in {@link ValidationMetrics}.
+ */
+public class AdaptiveValidationController
+{
+	private static final Log logger = LogFactory.getLog(AdaptiveValidationController.class);
+
+	/** weight of the latest sample in the moving averages */
+	private static final double SMOOTHING = 0.2;
+
+	private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+	private final ConcurrentHashMap<String, ApiState> states = new ConcurrentHashMap<>();
+
+	private volatile long latencyBudgetNanos = 0;
+	private volatile long cpuBudgetNanos = 0;
+	private volatile long cooldownNanos = 10_000_000_000L;
+	private volatile double recoveryRatio = 0.5;
+	private volatile int sampleRate = 10;
+
+	/**
+	 * @param latencyBudgetMillis average validation latency allowed per message,
+	 *                            0 disables the latency budget
+	 */
+	public void setLatencyBudgetMillis(long latencyBudgetMillis)
+	{
+		this.latencyBudgetNanos = latencyBudgetMillis * 1_000_000L;
+	}
+
+	/**
+	 * @param cpuBudgetMillis average CPU time allowed per message, 0 disables the
+	 *                        CPU budget
+	 */
+	public void setCpuBudgetMillis(long cpuBudgetMillis)
+	{
+		this.cpuBudgetNanos = cpuBudgetMillis * 1_000_000L;
+	}
+
+	/**
+	 * @param cooldownMillis minimum time between two mode changes of an API
+	 */
+	public void setCooldownMillis(long cooldownMillis)
+	{
+		this.cooldownNanos = cooldownMillis * 1_000_000L;
+	}
+
+	/**
+	 * @param recoveryRatio fraction of the budget the projected cost of the next
+	 *                      more expensive mode has to drop below before the mode
+	 *                      is raised again
+	 */
+	public void setRecoveryRatio(double recoveryRatio)
+	{
+		this.recoveryRatio = recoveryRatio;
+	}
+
+	/**
+	 * @param sampleRate in sampled mode, one of this many messages is fully
+	 *                   validated
+	 */
+	public void setSampleRate(int sampleRate)
+	{
+		this.sampleRate = Math.max(1, sampleRate);
+	}
+
+	/**
+	 * Returns the validation mode currently in effect for the given API.
+	 *
+	 * @param apiUUID API identifier
+	 * @return current validation mode
+	 */
+	public ValidationMode currentMode(String apiUUID)
+	{
+		ApiState state = states.get(apiUUID);
+		return state == null ? ValidationMode.FULL : state.mode;
+	}
+
+	/**
+	 * In sampled mode decides whether the current message is selected for full
+	 * validation.
+	 *
+	 * @param apiUUID API identifier
+	 * @return true for one of every {@code sampleRate} messages
+	 */
+	public boolean sample(String apiUUID)
+	{
+		return getState(apiUUID).sampleCounter.getAndIncrement() % sampleRate == 0;
+	}
+
+	/**
+	 * @return the CPU time consumed by the current thread in nanoseconds, or 0
+	 *         if CPU time measurement is not supported by the JVM
+	 */
+	public long currentThreadCpuTime()
+	{
+		if (cpuBudgetNanos <= 0 || !threadBean.isCurrentThreadCpuTimeSupported())
+		{
+			return 0;
+		}
+		return threadBean.getCurrentThreadCpuTime();
+	}
+
+	/**
+	 * Records the cost of one validated message and adjusts the mode of the API
+	 * if the budget was exceeded or the load dropped.
+	 *
+	 * @param apiUUID      API identifier
+	 * @param mode         mode of the controller the message was validated in
+	 * @param latencyNanos wall-clock time spent validating the message
+	 * @param cpuNanos     CPU time spent validating the message
+	 */
+	public void record(String apiUUID, ValidationMode mode, long latencyNanos, long cpuNanos)
+	{
+		ApiState state = getState(apiUUID);
+		ValidationMode previous;
+		ValidationMode next;
+		synchronized (state)
+		{
+			state.latency.add(mode, latencyNanos);
+			state.cpu.add(mode, cpuNanos);
+
+			long now = System.nanoTime();
+			if (now - state.lastChange < cooldownNanos || mode != state.mode)
+			{
+				return;
+			}
+
+			previous = state.mode;
+			if (state.latency.exceeds(previous, latencyBudgetNanos) || state.cpu.exceeds(previous, cpuBudgetNanos))
+			{
+				next = previous.degrade();
+			} else if (previous.recover() != previous
+					&& state.latency.allowsRecovery(previous, previous.recover(), latencyBudgetNanos * recoveryRatio)
+					&& state.cpu.allowsRecovery(previous, previous.recover(), cpuBudgetNanos * recoveryRatio))
+			{
+				next = previous.recover();
+			} else
+			{
+				next = previous;
+			}
+			if (next == previous)
+			{
+				return;
+			}
+			// the cost of the entered mode is measured afresh, its baseline is kept
+			state.latency.restart(next);
+			state.cpu.restart(next);
+			state.mode = next;
+			state.lastChange = now;
+		}
+
+		logger.warn("Validation mode for API " + apiUUID + " changed from " + previous + " to " + next
+				+ " (avg latency " + state.latency.microsOf(previous) + "us, avg cpu " + state.cpu.microsOf(previous)
+				+ "us)");
+		ValidationMetrics metrics = ValidationMetrics.getInstance();
+		metrics.increment(apiUUID + ".mode.changes");
+		metrics.increment(apiUUID + ".mode." + next.name().toLowerCase() + ".entered");
+		metrics.setGauge(apiUUID + ".mode", next.ordinal());
+	}
+
+	private ApiState getState(String apiUUID)
+	{
+		return states.computeIfAbsent(apiUUID, k -> new ApiState());
+	}
+
+	/**
+	 * Mutable per-API controller state, guarded by its own monitor.
+	 */
+	private static final class ApiState
+	{
+		private volatile ValidationMode mode = ValidationMode.FULL;
+		private final AtomicLong sampleCounter = new AtomicLong();
+		private final ModeCosts latency = new ModeCosts();
+		private final ModeCosts cpu = new ModeCosts();
+		private long lastChange = System.nanoTime();
+	}
+
+	/**
+	 * Moving average and baseline of one cost measure per mode, guarded by the
+	 * monitor of the {@link ApiState}.
+	 */
+	private static final class ModeCosts
+	{
+		private final double[] averages = new double[ValidationMode.values().length];
+		private final double[] baselines = new double[ValidationMode.values().length];
+
+		ModeCosts()
+		{
+			Arrays.fill(averages, -1);
+			Arrays.fill(baselines, -1);
+		}
+
+		void add(ValidationMode mode, long nanos)
+		{
+			int i = mode.ordinal();
+			averages[i] = averages[i] < 0 ? nanos : averages[i] + SMOOTHING * (nanos - averages[i]);
+			if (baselines[i] < 0 || averages[i] < baselines[i])
+			{
+				baselines[i] = averages[i];
+			}
+		}
+
+		void restart(ValidationMode mode)
+		{
+			averages[mode.ordinal()] = -1;
+		}
+
+		/**
+		 * @return true if the average cost of the mode exceeds the budget
+		 */
+		boolean exceeds(ValidationMode mode, long budgetNanos)
+		{
+			return budgetNanos > 0 && averages[mode.ordinal()] > budgetNanos;
+		}
+
+		/**
+		 * Projects the cost of the more expensive mode from its baseline and the
+		 * load factor of the active mode.
+		 *
+		 * @return true if the projected cost stays below the threshold; a mode
+		 *         without baseline is tried
+		 */
+		boolean allowsRecovery(ValidationMode active, ValidationMode higher, double thresholdNanos)
+		{
+			if (thresholdNanos <= 0)
+			{
+				return true;
+			}
+			double baseline = baselines[higher.ordinal()];
+			if (baseline < 0)
+			{
+				return true;
+			}
+			double activeBaseline = baselines[active.ordinal()];
+			double loadFactor = activeBaseline > 0 ? Math.max(1, averages[active.ordinal()] / activeBaseline) : 1;
+			return baseline * loadFactor < thresholdNanos;
+		}
+
+		long microsOf(ValidationMode mode)
+		{
+			return (long) Math.max(0, averages[mode.ordinal()]) / 1_000;
+		}
+	}
+}
@@ -0,0 +1,448 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.OMXMLBuilderFactory;
+import org.apache.cxf.service.model.ServiceInfo;
+import org.codehaus.stax2.validation.XMLValidationProblem;
+import org.codehaus.stax2.validation.XMLValidationSchema;
+
+import ch.integon.wso2.am.mediator.wsdl.model.ApiContract;
+import ch.integon.wso2.am.mediator.wsdl.model.ApiRuntimeModel;
+import ch.integon.wso2.am.mediator.wsdl.model.RuntimeOperation;
+import ch.integon.wso2.am.mediator.wsdl.model.SOAPServiceOperation;
+
+/**
+ * Validates captured request and response payloads offline against a
+ * contract, e.g. before a new contract revision is rolled out.
+ * <p>
+ * The contract is loaded like on the gateway, with the
+ * {@link WSDLExtractor}, the {@link WSDLServiceBuilder} and the
+ * {@link SchemaCompiler}, and the payloads are decided like on the gateway:
+ * each payload is matched to its operation through the {@link ApiRuntimeModel}
+ * of the contract, by the WS-Addressing action of the envelope, if any, and the
+ * body element, and validated with the {@link SOAPValidator}. SOAP faults are
+ * not validated, as on the gateway. The payload files are validated in
+ * parallel on all cores; the schema of an operation is compiled once, when its
+ * first payload is found.
+ * <p>
+ * The report lists the valid, invalid and unreadable payloads per operation,
+ * the most frequent problem types of each operation with an example file, and
+ * the throughput.
+ * <p>
+ * Usage:
+ * {@code BatchValidator [--threads=n] [--top=n] <wsdl-or-zip> <payload-dir-or-zip>...}
+ * where a payload file contains either a SOAP envelope or the payload element.
+ * The exit code is 0 if all payloads are valid, 1 otherwise.
+ */
+public class BatchValidator
+{
+	private static final String SOAP11_NS = "http://schemas.xmlsoap.org/soap/envelope/";
+	private static final String SOAP12_NS = "http://www.w3.org/2003/05/soap-envelope";
+	private static final List<QName> WSA_ACTIONS = List.of(
+			new QName("http://www.w3.org/2005/08/addressing", "Action"),
+			new QName("http://schemas.xmlsoap.org/ws/2004/08/addressing", "Action"));
+	private static final String CONTRACT_FINGERPRINT = "batch";
+	private static final String UNMATCHED = "<unmatched>";
+	private static final String UNREADABLE = "<unreadable>";
+	private static final String FAULT = "<fault>";
+
+	private final ApiContract contract;
+	private final ApiRuntimeModel model;
+	private final SOAPValidator soapValidator = new SOAPValidator();
+	private final Map<String, CompletableFuture<Target>> targets = new ConcurrentHashMap<>();
+	private final Map<String, Statistics> statistics = new ConcurrentHashMap<>();
+	private final LongAdder payloads = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+
+	/**
+	 * @param services services of the contract
+	 */
+	public BatchValidator(List<ServiceInfo> services)
+	{
+		services.forEach(service -> service.setProperty(ApiContract.FINGERPRINT_PROPERTY, CONTRACT_FINGERPRINT));
+		this.contract = new ApiContract(0, Map.of(CONTRACT_FINGERPRINT, services));
+		this.model = ApiRuntimeModel.build(contract);
+	}
+
+	/**
+	 * Validates all payload files of the given directories (recursively) and
+	 * ZIP archives.
+	 *
+	 * @param sources payload directories, archives or single payload files
+	 * @param threads number of validation threads
+	 * @throws IOException          if a source cannot be listed
+	 * @throws InterruptedException if interrupted while waiting for the
+	 *                              validations
+	 */
+	public void run(List<Path> sources, int threads) throws IOException, InterruptedException
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(threads,
+				Thread.ofPlatform().name("batch-validator-", 0).daemon(true).factory());
+		// bounds the payloads waiting for a thread, so large archives are not queued at once
+		Semaphore pending = new Semaphore(threads * 4);
+		try
+		{
+			for (Path source : sources)
+			{
+				if (Files.isDirectory(source))
+				{
+					try (Stream<Path> files = Files.walk(source))
+					{
+						for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator)
+						{
+							submit(executor, pending, file.toString(), Files.size(file),
+									() -> Files.newInputStream(file));
+						}
+					}
+				} else if (source.getFileName().toString().toLowerCase().endsWith(".zip"))
+				{
+					submitArchive(executor, pending, source);
+				} else
+				{
+					submit(executor, pending, source.toString(), Files.size(source),
+							() -> Files.newInputStream(source));
+				}
+			}
+		} finally
+		{
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	private void submitArchive(ExecutorService executor, Semaphore pending, Path archive)
+			throws IOException, InterruptedException
+	{
+		ZipFile zipFile = new ZipFile(archive.toFile());
+		List<CompletableFuture<Void>> validations = new ArrayList<>();
+		for (Enumeration<? extends ZipEntry> entries = zipFile.entries(); entries.hasMoreElements();)
+		{
+			ZipEntry entry = entries.nextElement();
+			if (!entry.isDirectory())
+			{
+				validations.add(submit(executor, pending, archive + "!" + entry.getName(),
+						Math.max(entry.getSize(), 0), () -> zipFile.getInputStream(entry)));
+			}
+		}
+		// the archive is closed once all of its entries are validated
+		CompletableFuture.allOf(validations.toArray(new CompletableFuture<?>[0])).whenComplete((result, e) ->
+		{
+			try
+			{
+				zipFile.close();
+			} catch (IOException ignored)
+			{
+				// read only
+			}
+		});
+	}
+
+	private CompletableFuture<Void> submit(ExecutorService executor, Semaphore pending, String name, long size,
+			PayloadSource source) throws InterruptedException
+	{
+		pending.acquire();
+		return CompletableFuture.runAsync(() ->
+		{
+			try
+			{
+				validate(name, source);
+				payloads.increment();
+				bytes.add(size);
+			} finally
+			{
+				pending.release();
+			}
+		}, executor);
+	}
+
+	/**
+	 * Validates one payload file and records the outcome.
+	 */
+	private void validate(String name, PayloadSource source)
+	{
+		String operation = UNREADABLE;
+		try (InputStream in = source.open())
+		{
+			OMElement payload = OMXMLBuilderFactory.createOMBuilder(in).getDocumentElement();
+			String soapAction = null;
+			String envelopeNS = payload.getNamespace() == null ? null : payload.getNamespace().getNamespaceURI();
+			if ("Envelope".equals(payload.getLocalName()) && (SOAP11_NS.equals(envelopeNS) || SOAP12_NS.equals(envelopeNS)))
+			{
+				soapAction = getAction(payload.getFirstChildWithName(new QName(envelopeNS, "Header")));
+				OMElement body = payload.getFirstChildWithName(new QName(envelopeNS, "Body"));
+				payload = body == null ? null : body.getFirstElement();
+				if (payload == null)
+				{
+					throw new XMLStreamException("SOAP body element not found");
+				}
+				if (new QName(envelopeNS, "Fault").equals(payload.getQName()))
+				{
+					// faults pass the gateway unvalidated
+					statistics(FAULT).valid.increment();
+					return;
+				}
+			}
+
+			operation = UNMATCHED;
+			RuntimeOperation runtimeOperation = model.match(soapAction, payload.getQName());
+			if (runtimeOperation == null)
+			{
+				statistics(operation).failed("no matching service operation found", name);
+				return;
+			}
+			Target target = getTarget(runtimeOperation);
+			operation = target.operation;
+			if (target.schema == null)
+			{
+				statistics(operation).failed(target.error, name);
+				return;
+			}
+			List<XMLValidationProblem> problems = soapValidator.validate(target.schema, payload);
+			if (problems.isEmpty())
+			{
+				statistics(operation).valid.increment();
+			} else
+			{
+				statistics(operation).invalid(problems, name);
+			}
+		} catch (IOException | XMLStreamException | RuntimeException e)
+		{
+			statistics(operation).failed(
+					ValidationProblemLogger.signature(e.getMessage() != null ? e.getMessage() : e.toString()), name);
+		}
+	}
+
+	/**
+	 * @return the WS-Addressing action of a SOAP header, null if there is none
+	 */
+	private static String getAction(OMElement header)
+	{
+		if (header != null)
+		{
+			for (QName actionName : WSA_ACTIONS)
+			{
+				OMElement action = header.getFirstChildWithName(actionName);
+				if (action != null)
+				{
+					return action.getText().trim();
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the compiled schema of an operation; compiled once, by the first
+	 *         thread asking for it
+	 */
+	private Target getTarget(RuntimeOperation runtimeOperation)
+	{
+		CompletableFuture<Target> target = targets.get(runtimeOperation.getKey());
+		if (target == null)
+		{
+			CompletableFuture<Target> created = new CompletableFuture<>();
+			target = targets.putIfAbsent(runtimeOperation.getKey(), created);
+			if (target == null)
+			{
+				target = created;
+				created.complete(resolveTarget(runtimeOperation));
+			}
+		}
+		return target.join();
+	}
+
+	private Target resolveTarget(RuntimeOperation runtimeOperation)
+	{
+		String operation = runtimeOperation.getOperationName().getLocalPart();
+		try
+		{
+			SOAPServiceOperation serviceOperation = contract.findOperation(runtimeOperation);
+			return new Target(operation, new SchemaCompiler().compileSchema(serviceOperation), null);
+		} catch (Exception e)
+		{
+			return new Target(operation, null, "schema compilation failed: " + e.getMessage());
+		}
+	}
+
+	private Statistics statistics(String operation)
+	{
+		return statistics.computeIfAbsent(operation, k -> new Statistics());
+	}
+
+	/**
+	 * Prints the summary of the validated payloads.
+	 *
+	 * @param elapsedNanos time taken by the validation
+	 * @param threads      number of validation threads used
+	 * @param top          number of problem types listed per operation
+	 */
+	public void printReport(long elapsedNanos, int threads, int top)
+	{
+		System.out.println(String.format("%-40s %10s %10s %10s", "operation", "valid", "invalid", "unreadable"));
+		statistics.entrySet().stream().sorted(Map.Entry.comparingByKey()).forEach(entry ->
+		{
+			Statistics operation = entry.getValue();
+			System.out.println(String.format("%-40s %10d %10d %10d", entry.getKey(), operation.valid.sum(),
+					operation.invalid.sum(), operation.failed.sum()));
+			operation.problems.entrySet().stream()
+					.sorted((a, b) -> Long.compare(b.getValue().count.sum(), a.getValue().count.sum())).limit(top)
+					.forEach(problem -> System.out.println(String.format("    %8d x %s (e.g. %s)",
+							problem.getValue().count.sum(), problem.getKey(), problem.getValue().example)));
+		});
+
+		double seconds = Math.max(elapsedNanos, 1) / 1e9;
+		long count = payloads.sum();
+		System.out.println(String.format("%d payload(s), %.1f MB in %.1f s on %d thread(s): %.0f payloads/s, %.1f MB/s",
+				count, bytes.sum() / 1e6, seconds, threads, count / seconds, bytes.sum() / 1e6 / seconds));
+	}
+
+	/**
+	 * @return true if all validated payloads were valid
+	 */
+	public boolean allValid()
+	{
+		return statistics.values().stream().allMatch(s -> s.invalid.sum() == 0 && s.failed.sum() == 0);
+	}
+
+	/**
+	 * Command line entry point, see the class description.
+	 *
+	 * @param args command line arguments
+	 * @throws Exception if the contract or the payloads cannot be read
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		int threads = Runtime.getRuntime().availableProcessors();
+		int top = 10;
+		List<String> files = new ArrayList<>();
+		for (String arg : args)
+		{
+			if (arg.startsWith("--threads="))
+			{
+				threads = Integer.parseInt(arg.substring("--threads=".length()));
+			} else if (arg.startsWith("--top="))
+			{
+				top = Integer.parseInt(arg.substring("--top=".length()));
+			} else
+			{
+				files.add(arg);
+			}
+		}
+		if (files.size() < 2 || threads < 1)
+		{
+			System.err.println("Usage: BatchValidator [--threads=n] [--top=n] <wsdl-or-zip> <payload-dir-or-zip>...");
+			System.exit(2);
+		}
+
+		List<ServiceInfo> services = new WSDLServiceBuilder()
+				.buildServices(new WSDLExtractor().getWSDLFromFile(Path.of(files.get(0))));
+		if (services == null || services.isEmpty())
+		{
+			throw new IllegalArgumentException("no service found in " + files.get(0));
+		}
+
+		List<Path> sources = new ArrayList<>();
+		for (String file : files.subList(1, files.size()))
+		{
+			sources.add(Path.of(file));
+		}
+		BatchValidator validator = new BatchValidator(services);
+		long start = System.nanoTime();
+		validator.run(sources, threads);
+		validator.printReport(System.nanoTime() - start, threads, top);
+		System.exit(validator.allValid() ? 0 : 1);
+	}
+
+	/**
+	 * Opens the content of a payload file.
+	 */
+	private interface PayloadSource
+	{
+		InputStream open() throws IOException;
+	}
+
+	/**
+	 * Operation and compiled schema of a matched operation; the schema is null
+	 * if it cannot be compiled.
+	 */
+	private static final class Target
+	{
+		private final String operation;
+		private final XMLValidationSchema schema;
+		private final String error;
+
+		Target(String operation, XMLValidationSchema schema, String error)
+		{
+			this.operation = operation;
+			this.schema = schema;
+			this.error = error;
+		}
+	}
+
+	/**
+	 * Outcomes of the payloads of one operation.
+	 */
+	private static final class Statistics
+	{
+		private final LongAdder valid = new LongAdder();
+		private final LongAdder invalid = new LongAdder();
+		private final LongAdder failed = new LongAdder();
+		private final Map<String, Problem> problems = new ConcurrentHashMap<>();
+
+		void invalid(List<XMLValidationProblem> payloadProblems, String file)
+		{
+			invalid.increment();
+			for (XMLValidationProblem problem : payloadProblems)
+			{
+				problem(ValidationProblemLogger.signature(problem), file);
+			}
+		}
+
+		void failed(String error, String file)
+		{
+			failed.increment();
+			problem(error, file);
+		}
+
+		private void problem(String signature, String file)
+		{
+			problems.computeIfAbsent(signature, k -> new Problem(file)).count.increment();
+		}
+	}
+
+	/**
+	 * Occurrences of one problem type, with the first file it was found in.
+	 */
+	private static final class Problem
+	{
+		private final LongAdder count = new LongAdder();
+		private final String example;
+
+		Problem(String example)
+		{
+			this.example = example;
+		}
+	}
+}
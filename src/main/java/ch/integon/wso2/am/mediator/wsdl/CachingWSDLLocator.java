@@ -0,0 +1,101 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.util.Map;
+
+import javax.wsdl.xml.WSDLLocator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.xml.sax.InputSource;
+
+/**
+ * WSDL locator reading documents through a cache shared by all WSDLs parsed
+ * together, so that XSDs imported by several WSDLs of an archive are read only
+ * once. The cache is thread-safe; a locator is used by one parse only.
+ */
+class CachingWSDLLocator implements WSDLLocator
+{
+	private static final Log logger = LogFactory.getLog(CachingWSDLLocator.class);
+
+	private final String baseURI;
+	private final Map<String, byte[]> documentCache;
+	private String latestImportURI;
+
+	/**
+	 * @param baseURI       URI of the WSDL to parse
+	 * @param documentCache shared, thread-safe cache of document contents by URI
+	 */
+	CachingWSDLLocator(String baseURI, Map<String, byte[]> documentCache)
+	{
+		this.baseURI = baseURI;
+		this.documentCache = documentCache;
+	}
+
+	@Override
+	public InputSource getBaseInputSource()
+	{
+		return getInputSource(baseURI);
+	}
+
+	@Override
+	public InputSource getImportInputSource(String parentLocation, String importLocation)
+	{
+		latestImportURI = parentLocation == null ? importLocation
+				: URI.create(parentLocation).resolve(importLocation).toString();
+		return getInputSource(latestImportURI);
+	}
+
+	@Override
+	public String getBaseURI()
+	{
+		return baseURI;
+	}
+
+	@Override
+	public String getLatestImportURI()
+	{
+		return latestImportURI;
+	}
+
+	@Override
+	public void close()
+	{
+		// documents are read completely, nothing to close
+	}
+
+	/**
+	 * @return the document as input source, or null if it cannot be read
+	 */
+	private InputSource getInputSource(String uri)
+	{
+		byte[] content;
+		try
+		{
+			content = documentCache.computeIfAbsent(uri, CachingWSDLLocator::read);
+		} catch (UncheckedIOException e)
+		{
+			logger.error("Unable to read " + uri + " - " + e.getCause().getMessage());
+			return null;
+		}
+		InputSource inputSource = new InputSource(new ByteArrayInputStream(content));
+		inputSource.setSystemId(uri);
+		return inputSource;
+	}
+
+	private static byte[] read(String uri)
+	{
+		logger.debug("Reading document " + uri);
+		try (InputStream in = URI.create(uri).toURL().openStream())
+		{
+			return in.readAllBytes();
+		} catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import java.util.List;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.axiom.om.OMElement;
+import org.codehaus.stax2.validation.XMLValidationProblem;
+
+import ch.integon.wso2.am.mediator.wsdl.model.ResourceLimits;
+import ch.integon.wso2.am.mediator.wsdl.model.SOAPServiceOperation;
+import ch.integon.wso2.am.mediator.wsdl.model.SOAPValidationException;
+
+/**
+ * Validation engine using the validator compiled from the schemas of the
+ * operation (see {@link CompiledValidatorBuilder}). Payloads the compiled
+ * validator cannot decide are validated with MSV.
+ */
+public class CompiledValidationEngine implements ValidationEngine
+{
+	static final String NAME = "compiled";
+
+	private final MsvValidationEngine fallbackEngine = new MsvValidationEngine();
+	private final SOAPValidator soapValidator = new SOAPValidator();
+
+	@Override
+	public String getName()
+	{
+		return NAME;
+	}
+
+	@Override
+	public PreparedSchema prepare(SOAPServiceOperation serviceOperation) throws SOAPValidationException
+	{
+		PreparedSchema fallback = fallbackEngine.prepare(serviceOperation);
+		CompiledValidator compiledValidator = new CompiledValidatorBuilder().build(serviceOperation);
+		if (compiledValidator == null)
+		{
+			return fallback;
+		}
+		return new PreparedSchema()
+		{
+			@Override
+			public List<XMLValidationProblem> validate(OMElement payload) throws XMLStreamException
+			{
+				return validate(payload, ResourceLimits.NONE);
+			}
+
+			@Override
+			public List<XMLValidationProblem> validate(OMElement payload, ResourceLimits limits)
+					throws XMLStreamException
+			{
+				// enforced in the validation pass of both validators
+				List<XMLValidationProblem> problems = soapValidator.validate(compiledValidator, payload, limits);
+				return problems != null ? problems : fallback.validate(payload, limits);
+			}
+		};
+	}
+}
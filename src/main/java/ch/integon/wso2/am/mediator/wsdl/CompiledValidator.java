@@ -0,0 +1,345 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.codehaus.stax2.validation.XMLValidationProblem;
+
+/**
+ * Specialized validator for the payload elements of one operation, compiled
+ * from the schema by {@link CompiledValidatorBuilder}.
+ * <p>
+ * Content models are compiled into deterministic automata over the child
+ * element names and simple types into precompiled value checks, so
+ * validation is a single pass over the StAX events with table lookups instead
+ * of the general grammar walk of the schema validator.
+ * <p>
+ * Constructs the builder cannot reproduce exactly are not compiled; payloads
+ * that use them at runtime ({@code xsi:type}, {@code xsi:nil}, root elements
+ * that were not compiled) are not decided and have to be validated with the
+ * compiled schema instead. Instances are immutable and thread-safe.
+ */
+public final class CompiledValidator
+{
+	private final Map<QName, ElementDeclaration> roots;
+
+	CompiledValidator(Map<QName, ElementDeclaration> roots)
+	{
+		this.roots = Map.copyOf(roots);
+	}
+
+	/**
+	 * @return the payload elements this validator decides
+	 */
+	public Set<QName> getRootElements()
+	{
+		return roots.keySet();
+	}
+
+	/**
+	 * Validates the element the reader is positioned on (or the first element
+	 * after the start of the document), including all of its content.
+	 *
+	 * @param reader reader providing the payload
+	 * @return the validation problems found, empty if valid, or null if the
+	 *         payload cannot be decided by this validator
+	 * @throws XMLStreamException if the payload cannot be read
+	 */
+	public List<XMLValidationProblem> validate(XMLStreamReader reader) throws XMLStreamException
+	{
+		return validate(reader, null);
+	}
+
+	/**
+	 * Validates the element the reader is positioned on within resource limits.
+	 *
+	 * @param reader       reader providing the payload
+	 * @param limitChecker checker of the resource limits of the payload, null for
+	 *                     none
+	 * @return the validation problems found, empty if valid, or null if the
+	 *         payload cannot be decided by this validator
+	 * @throws XMLStreamException if the payload cannot be read or exceeds a
+	 *                            resource limit
+	 */
+	List<XMLValidationProblem> validate(XMLStreamReader reader, ResourceLimitChecker limitChecker)
+			throws XMLStreamException
+	{
+		if (reader.getEventType() != XMLStreamConstants.START_ELEMENT)
+		{
+			reader.nextTag();
+		}
+		ElementDeclaration root = roots.get(reader.getName());
+		if (root == null)
+		{
+			return null;
+		}
+
+		List<XMLValidationProblem> problems = new ArrayList<>();
+		Deque<Frame> stack = new ArrayDeque<>();
+		ElementDeclaration declaration = root;
+		while (true)
+		{
+			int event = reader.getEventType();
+			if (limitChecker != null)
+			{
+				limitChecker.event(reader, event);
+			}
+			if (event == XMLStreamConstants.START_ELEMENT)
+			{
+				Frame parent = stack.peek();
+				if (parent != null)
+				{
+					declaration = parent.child(reader, problems);
+				}
+				if (declaration == null)
+				{
+					skipElement(reader);
+					if (limitChecker != null)
+					{
+						limitChecker.endElement();
+					}
+				} else
+				{
+					if (!checkAttributes(reader, declaration.type, problems))
+					{
+						return null;
+					}
+					stack.push(new Frame(declaration));
+				}
+			} else if (event == XMLStreamConstants.END_ELEMENT)
+			{
+				stack.pop().end(reader, problems);
+			} else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+					|| event == XMLStreamConstants.SPACE)
+			{
+				stack.peek().text(reader, problems);
+			}
+
+			if (stack.isEmpty())
+			{
+				return problems;
+			}
+			reader.next();
+		}
+	}
+
+	/**
+	 * Checks the attributes of the current element.
+	 *
+	 * @return false if the element uses a schema instance attribute and cannot
+	 *         be decided
+	 */
+	private static boolean checkAttributes(XMLStreamReader reader, TypeDeclaration type, List<XMLValidationProblem> problems)
+	{
+		int required = 0;
+		for (int i = 0; i < reader.getAttributeCount(); i++)
+		{
+			String namespace = reader.getAttributeNamespace(i);
+			if (XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI.equals(namespace))
+			{
+				return false;
+			}
+			QName name = new QName(namespace == null ? "" : namespace, reader.getAttributeLocalName(i));
+			AttributeDeclaration attribute = type.attributes.get(name);
+			if (attribute == null)
+			{
+				problems.add(problem(reader, "attribute ", name, " is not allowed on element ", reader.getName()));
+				continue;
+			}
+			if (attribute.required)
+			{
+				required++;
+			}
+			String message = attribute.type.check(reader.getAttributeValue(i));
+			if (message == null && attribute.fixedValue != null
+					&& !attribute.fixedValue.equals(SimpleTypeChecker.normalize(reader.getAttributeValue(i),
+							SimpleTypeChecker.WhiteSpace.COLLAPSE)))
+			{
+				message = "attribute " + name + " must have the fixed value '" + attribute.fixedValue + "'";
+			}
+			if (message != null)
+			{
+				problems.add(problem(reader, message));
+			}
+		}
+		if (required < type.requiredAttributeCount)
+		{
+			problems.add(problem(reader, "required attribute missing on element ", reader.getName()));
+		}
+		return true;
+	}
+
+	private static void skipElement(XMLStreamReader reader) throws XMLStreamException
+	{
+		int depth = 1;
+		while (depth > 0)
+		{
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT)
+			{
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT)
+			{
+				depth--;
+			}
+		}
+	}
+
+	private static XMLValidationProblem problem(XMLStreamReader reader, Object... messageParts)
+	{
+		return new LazyValidationProblem(reader.getLocation(), messageParts);
+	}
+
+	/**
+	 * Validation state of one open element.
+	 */
+	private static final class Frame
+	{
+		private final ElementDeclaration declaration;
+		private int state;
+		private StringBuilder text;
+		private boolean textReported;
+
+		Frame(ElementDeclaration declaration)
+		{
+			this.declaration = declaration;
+		}
+
+		/**
+		 * Moves the content model to the child element the reader is positioned
+		 * on.
+		 *
+		 * @return the declaration of the child, or null if it is not allowed
+		 */
+		ElementDeclaration child(XMLStreamReader reader, List<XMLValidationProblem> problems)
+		{
+			ContentModel content = declaration.type.content;
+			if (content == null)
+			{
+				problems.add(problem(reader, "element ", reader.getName(), " is not allowed in element ",
+						declaration.name, " with simple content"));
+				return null;
+			}
+			Integer symbol = content.symbols.get(reader.getName());
+			int next = symbol == null || state < 0 ? -1 : content.transitions[state][symbol];
+			if (next < 0)
+			{
+				problems.add(problem(reader, "element ", reader.getName(), " is not allowed here in element ",
+						declaration.name));
+				state = -1;
+				return null;
+			}
+			ElementDeclaration child = content.declarations[state][symbol];
+			state = next;
+			return child;
+		}
+
+		void text(XMLStreamReader reader, List<XMLValidationProblem> problems)
+		{
+			if (declaration.type.simpleType != null)
+			{
+				if (text == null)
+				{
+					text = new StringBuilder();
+				}
+				text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+			} else if (!reader.isWhiteSpace() && !textReported)
+			{
+				problems.add(problem(reader, "text is not allowed in element ", declaration.name));
+				textReported = true;
+			}
+		}
+
+		void end(XMLStreamReader reader, List<XMLValidationProblem> problems)
+		{
+			TypeDeclaration type = declaration.type;
+			if (type.simpleType != null)
+			{
+				String message = type.simpleType.check(text == null ? "" : text.toString());
+				if (message != null)
+				{
+					problems.add(problem(reader, "element ", declaration.name, ": ", message));
+				}
+			} else if (state >= 0 && !type.content.accepting[state])
+			{
+				problems.add(problem(reader, "content of element ", declaration.name, " is incomplete"));
+			}
+		}
+	}
+
+	/**
+	 * Declaration of an element: its name and type.
+	 */
+	static final class ElementDeclaration
+	{
+		final QName name;
+		final TypeDeclaration type;
+
+		ElementDeclaration(QName name, TypeDeclaration type)
+		{
+			this.name = name;
+			this.type = type;
+		}
+	}
+
+	/**
+	 * Compiled type: either a simple type (for simple content) or a content
+	 * model, plus the allowed attributes. Filled in by the builder after
+	 * creation, so that recursive types can refer to themselves.
+	 */
+	static final class TypeDeclaration
+	{
+		SimpleTypeChecker simpleType;
+		ContentModel content;
+		Map<QName, AttributeDeclaration> attributes = Map.of();
+		int requiredAttributeCount;
+	}
+
+	/**
+	 * Declaration of an attribute.
+	 */
+	static final class AttributeDeclaration
+	{
+		final SimpleTypeChecker type;
+		final boolean required;
+		final String fixedValue;
+
+		AttributeDeclaration(SimpleTypeChecker type, boolean required, String fixedValue)
+		{
+			this.type = type;
+			this.required = required;
+			this.fixedValue = fixedValue;
+		}
+	}
+
+	/**
+	 * Deterministic automaton over the child element names of a complex type.
+	 * State 0 is the initial state.
+	 */
+	static final class ContentModel
+	{
+		final Map<QName, Integer> symbols;
+		final int[][] transitions;
+		final ElementDeclaration[][] declarations;
+		final boolean[] accepting;
+
+		ContentModel(Map<QName, Integer> symbols, int[][] transitions, ElementDeclaration[][] declarations,
+				boolean[] accepting)
+		{
+			this.symbols = symbols;
+			this.transitions = transitions;
+			this.declarations = declarations;
+			this.accepting = accepting;
+		}
+	}
+}
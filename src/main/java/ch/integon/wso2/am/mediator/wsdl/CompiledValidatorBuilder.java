@@ -0,0 +1,890 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.cxf.common.xmlschema.SchemaCollection;
+import org.apache.cxf.service.model.BindingFaultInfo;
+import org.apache.cxf.service.model.BindingMessageInfo;
+import org.apache.cxf.service.model.BindingOperationInfo;
+import org.apache.cxf.service.model.MessagePartInfo;
+import org.apache.ws.commons.schema.XmlSchema;
+import org.apache.ws.commons.schema.XmlSchemaAttribute;
+import org.apache.ws.commons.schema.XmlSchemaAttributeOrGroupRef;
+import org.apache.ws.commons.schema.XmlSchemaChoice;
+import org.apache.ws.commons.schema.XmlSchemaChoiceMember;
+import org.apache.ws.commons.schema.XmlSchemaComplexType;
+import org.apache.ws.commons.schema.XmlSchemaElement;
+import org.apache.ws.commons.schema.XmlSchemaEnumerationFacet;
+import org.apache.ws.commons.schema.XmlSchemaFacet;
+import org.apache.ws.commons.schema.XmlSchemaFractionDigitsFacet;
+import org.apache.ws.commons.schema.XmlSchemaGroup;
+import org.apache.ws.commons.schema.XmlSchemaGroupRef;
+import org.apache.ws.commons.schema.XmlSchemaLengthFacet;
+import org.apache.ws.commons.schema.XmlSchemaMaxExclusiveFacet;
+import org.apache.ws.commons.schema.XmlSchemaMaxInclusiveFacet;
+import org.apache.ws.commons.schema.XmlSchemaMaxLengthFacet;
+import org.apache.ws.commons.schema.XmlSchemaMinExclusiveFacet;
+import org.apache.ws.commons.schema.XmlSchemaMinInclusiveFacet;
+import org.apache.ws.commons.schema.XmlSchemaMinLengthFacet;
+import org.apache.ws.commons.schema.XmlSchemaParticle;
+import org.apache.ws.commons.schema.XmlSchemaPatternFacet;
+import org.apache.ws.commons.schema.XmlSchemaSequence;
+import org.apache.ws.commons.schema.XmlSchemaSequenceMember;
+import org.apache.ws.commons.schema.XmlSchemaSimpleContent;
+import org.apache.ws.commons.schema.XmlSchemaSimpleContentExtension;
+import org.apache.ws.commons.schema.XmlSchemaSimpleType;
+import org.apache.ws.commons.schema.XmlSchemaSimpleTypeRestriction;
+import org.apache.ws.commons.schema.XmlSchemaTotalDigitsFacet;
+import org.apache.ws.commons.schema.XmlSchemaType;
+import org.apache.ws.commons.schema.XmlSchemaUse;
+import org.apache.ws.commons.schema.XmlSchemaWhiteSpaceFacet;
+
+import ch.integon.wso2.am.mediator.wsdl.CompiledValidator.AttributeDeclaration;
+import ch.integon.wso2.am.mediator.wsdl.CompiledValidator.ContentModel;
+import ch.integon.wso2.am.mediator.wsdl.CompiledValidator.ElementDeclaration;
+import ch.integon.wso2.am.mediator.wsdl.CompiledValidator.TypeDeclaration;
+import ch.integon.wso2.am.mediator.wsdl.SimpleTypeChecker.Primitive;
+import ch.integon.wso2.am.mediator.wsdl.SimpleTypeChecker.WhiteSpace;
+import ch.integon.wso2.am.mediator.wsdl.model.SOAPServiceOperation;
+
+/**
+ * Compiles the payload elements of a service operation into a
+ * {@link CompiledValidator}.
+ * <p>
+ * Supported are sequences, choices and group references of elements with
+ * occurrence bounds, attributes, simple content extensions and simple types
+ * restricting the common built-in types with their facets. Payload elements
+ * using anything else (wildcards, {@code xs:all}, mixed content, complex type
+ * derivation, substitution groups, identity constraints, lists and unions,
+ * fixed element values, or patterns with XSD-only syntax) are not compiled and
+ * stay with the schema validator.
+ */
+public class CompiledValidatorBuilder
+{
+	private static final Log logger = LogFactory.getLog(CompiledValidatorBuilder.class);
+
+	/** bounded occurrences are unrolled; larger bounds are not compiled */
+	private static final long MAX_UNROLLED_OCCURS = 64;
+	private static final int MAX_STATES = 4096;
+
+	private SchemaCollection schemas;
+	private Set<QName> substitutionHeads;
+	private final Map<XmlSchemaType, TypeDeclaration> types = new IdentityHashMap<>();
+	/** types of the payload element being compiled, kept only if it compiles */
+	private final Map<XmlSchemaType, TypeDeclaration> pendingTypes = new IdentityHashMap<>();
+	private final Map<XmlSchemaSimpleType, SimpleTypeChecker> simpleTypes = new IdentityHashMap<>();
+
+	/**
+	 * Compiles all payload elements of the operation that can be compiled.
+	 *
+	 * @param serviceOperation service and operation to compile
+	 * @return the compiled validator, or null if no payload element could be
+	 *         compiled
+	 */
+	public CompiledValidator build(SOAPServiceOperation serviceOperation)
+	{
+		schemas = serviceOperation.getService().getXmlSchemaCollection();
+		substitutionHeads = findSubstitutionHeads(schemas);
+		BindingOperationInfo operation = serviceOperation.getOperation();
+
+		List<MessagePartInfo> parts = new ArrayList<>();
+		addParts(parts, operation.getInput());
+		addParts(parts, operation.getOutput());
+		if (operation.getFaults() != null)
+		{
+			for (BindingFaultInfo fault : operation.getFaults())
+			{
+				parts.addAll(fault.getFaultInfo().getMessageParts());
+			}
+		}
+
+		Map<QName, ElementDeclaration> roots = new HashMap<>();
+		for (MessagePartInfo part : parts)
+		{
+			QName elementName = part.getElementQName();
+			XmlSchemaElement element = elementName == null ? null : schemas.getElementByQName(elementName);
+			if (element == null)
+			{
+				continue;
+			}
+			try
+			{
+				roots.put(elementName, buildElement(element));
+				types.putAll(pendingTypes);
+				logger.debug("Compiled validator built for " + elementName);
+			} catch (UnsupportedSchemaException e)
+			{
+				logger.debug("Element " + elementName + " not compiled: " + e.getMessage());
+			} finally
+			{
+				// types of a failed element may refer to half-built declarations
+				pendingTypes.clear();
+			}
+		}
+		return roots.isEmpty() ? null : new CompiledValidator(roots);
+	}
+
+	private void addParts(List<MessagePartInfo> parts, BindingMessageInfo message)
+	{
+		if (message != null)
+		{
+			parts.addAll(message.getMessageParts());
+		}
+	}
+
+	/**
+	 * Compiles an element declaration (local, global or reference).
+	 */
+	private ElementDeclaration buildElement(XmlSchemaElement element) throws UnsupportedSchemaException
+	{
+		QName name = element.isRef() ? element.getRef().getTargetQName() : element.getWireName();
+		XmlSchemaElement declaration = element.isRef() ? element.getRef().getTarget() : element;
+		if (name == null || declaration == null)
+		{
+			throw new UnsupportedSchemaException("unresolved element reference");
+		}
+		if (declaration.isAbstract() || substitutionHeads.contains(name))
+		{
+			throw new UnsupportedSchemaException("substitution group " + name);
+		}
+		if (declaration.getFixedValue() != null)
+		{
+			throw new UnsupportedSchemaException("fixed value of element " + name);
+		}
+		if (declaration.getConstraints() != null && !declaration.getConstraints().isEmpty())
+		{
+			throw new UnsupportedSchemaException("identity constraint of element " + name);
+		}
+
+		XmlSchemaType type = declaration.getSchemaType();
+		if (type == null && declaration.getSchemaTypeName() != null)
+		{
+			if (XMLConstants.W3C_XML_SCHEMA_NS_URI.equals(declaration.getSchemaTypeName().getNamespaceURI()))
+			{
+				TypeDeclaration builtinType = new TypeDeclaration();
+				builtinType.simpleType = builtin(declaration.getSchemaTypeName().getLocalPart()).build();
+				return new ElementDeclaration(name, builtinType);
+			}
+			type = schemas.getTypeByQName(declaration.getSchemaTypeName());
+		}
+		if (type == null)
+		{
+			throw new UnsupportedSchemaException("element " + name + " of type anyType");
+		}
+		return new ElementDeclaration(name, buildType(type));
+	}
+
+	/**
+	 * Compiles a type; types are shared so that recursive types terminate. New
+	 * types are registered as pending until their payload element compiled.
+	 */
+	private TypeDeclaration buildType(XmlSchemaType type) throws UnsupportedSchemaException
+	{
+		TypeDeclaration declaration = types.get(type);
+		if (declaration == null)
+		{
+			declaration = pendingTypes.get(type);
+		}
+		if (declaration != null)
+		{
+			return declaration;
+		}
+		declaration = new TypeDeclaration();
+		pendingTypes.put(type, declaration);
+		if (type instanceof XmlSchemaSimpleType)
+		{
+			declaration.simpleType = simpleType((XmlSchemaSimpleType) type);
+		} else if (type instanceof XmlSchemaComplexType)
+		{
+			buildComplexType((XmlSchemaComplexType) type, declaration);
+		} else
+		{
+			throw new UnsupportedSchemaException("type " + type.getQName());
+		}
+		return declaration;
+	}
+
+	private void buildComplexType(XmlSchemaComplexType type, TypeDeclaration declaration)
+			throws UnsupportedSchemaException
+	{
+		if (type.isMixed() || type.isAbstract() || type.getAnyAttribute() != null)
+		{
+			throw new UnsupportedSchemaException("mixed, abstract or open type " + type.getQName());
+		}
+
+		if (type.getContentModel() != null)
+		{
+			if (!(type.getContentModel() instanceof XmlSchemaSimpleContent)
+					|| !(type.getContentModel().getContent() instanceof XmlSchemaSimpleContentExtension))
+			{
+				throw new UnsupportedSchemaException("derived type " + type.getQName());
+			}
+			XmlSchemaSimpleContentExtension extension = (XmlSchemaSimpleContentExtension) type.getContentModel()
+					.getContent();
+			declaration.simpleType = simpleType(extension.getBaseTypeName()).build();
+			buildAttributes(extension.getAttributes(), declaration);
+			return;
+		}
+
+		buildAttributes(type.getAttributes(), declaration);
+		declaration.content = buildContentModel(type.getParticle());
+	}
+
+	private void buildAttributes(List<XmlSchemaAttributeOrGroupRef> attributes, TypeDeclaration declaration)
+			throws UnsupportedSchemaException
+	{
+		Map<QName, AttributeDeclaration> declarations = new HashMap<>();
+		int required = 0;
+		for (XmlSchemaAttributeOrGroupRef member : attributes == null ? List.<XmlSchemaAttributeOrGroupRef>of() : attributes)
+		{
+			if (!(member instanceof XmlSchemaAttribute))
+			{
+				throw new UnsupportedSchemaException("attribute group reference");
+			}
+			XmlSchemaAttribute attribute = (XmlSchemaAttribute) member;
+			XmlSchemaAttribute target = attribute.isRef() ? attribute.getRef().getTarget() : attribute;
+			if (target == null)
+			{
+				throw new UnsupportedSchemaException("unresolved attribute reference");
+			}
+			if (attribute.getUse() == XmlSchemaUse.PROHIBITED)
+			{
+				continue;
+			}
+
+			SimpleTypeChecker type;
+			if (target.getSchemaType() != null)
+			{
+				type = simpleType(target.getSchemaType());
+			} else if (target.getSchemaTypeName() != null)
+			{
+				type = simpleType(target.getSchemaTypeName()).build();
+			} else
+			{
+				type = builtin("anySimpleType").build();
+			}
+
+			String fixedValue = attribute.getFixedValue() != null ? attribute.getFixedValue() : target.getFixedValue();
+			boolean isRequired = attribute.getUse() == XmlSchemaUse.REQUIRED;
+			QName name = attribute.isRef() ? attribute.getRef().getTargetQName() : attribute.getWireName();
+			declarations.put(name, new AttributeDeclaration(type, isRequired,
+					fixedValue == null ? null : SimpleTypeChecker.normalize(fixedValue, WhiteSpace.COLLAPSE)));
+			if (isRequired)
+			{
+				required++;
+			}
+		}
+		declaration.attributes = Map.copyOf(declarations);
+		declaration.requiredAttributeCount = required;
+	}
+
+	/**
+	 * Resolves a simple type by name (built-in or declared).
+	 */
+	private SimpleTypeChecker.Builder simpleType(QName typeName) throws UnsupportedSchemaException
+	{
+		if (typeName == null)
+		{
+			throw new UnsupportedSchemaException("missing base type");
+		}
+		if (XMLConstants.W3C_XML_SCHEMA_NS_URI.equals(typeName.getNamespaceURI()))
+		{
+			return builtin(typeName.getLocalPart());
+		}
+		XmlSchemaType type = schemas.getTypeByQName(typeName);
+		if (!(type instanceof XmlSchemaSimpleType))
+		{
+			throw new UnsupportedSchemaException("complex base type " + typeName);
+		}
+		return simpleTypeBuilder((XmlSchemaSimpleType) type);
+	}
+
+	private SimpleTypeChecker simpleType(XmlSchemaSimpleType type) throws UnsupportedSchemaException
+	{
+		SimpleTypeChecker checker = simpleTypes.get(type);
+		if (checker == null)
+		{
+			checker = simpleTypeBuilder(type).build();
+			simpleTypes.put(type, checker);
+		}
+		return checker;
+	}
+
+	/**
+	 * Collects the base type and facets of a simple type restriction chain.
+	 */
+	private SimpleTypeChecker.Builder simpleTypeBuilder(XmlSchemaSimpleType type) throws UnsupportedSchemaException
+	{
+		if (type.getQName() != null && XMLConstants.W3C_XML_SCHEMA_NS_URI.equals(type.getQName().getNamespaceURI()))
+		{
+			return builtin(type.getQName().getLocalPart());
+		}
+		if (!(type.getContent() instanceof XmlSchemaSimpleTypeRestriction))
+		{
+			throw new UnsupportedSchemaException("list or union type " + type.getQName());
+		}
+		XmlSchemaSimpleTypeRestriction restriction = (XmlSchemaSimpleTypeRestriction) type.getContent();
+		SimpleTypeChecker.Builder builder = restriction.getBaseType() != null
+				? simpleTypeBuilder(restriction.getBaseType())
+				: simpleType(restriction.getBaseTypeName());
+		applyFacets(builder, restriction.getFacets());
+		return builder;
+	}
+
+	private void applyFacets(SimpleTypeChecker.Builder builder, List<XmlSchemaFacet> facets)
+			throws UnsupportedSchemaException
+	{
+		Primitive primitive = builder.getPrimitive();
+		boolean numeric = primitive == Primitive.DECIMAL || primitive == Primitive.INTEGER;
+		boolean measurable = primitive == Primitive.STRING || primitive == Primitive.ANY_URI
+				|| primitive == Primitive.BASE64 || primitive == Primitive.HEX;
+		Set<String> enumeration = new LinkedHashSet<>();
+		List<Pattern> patterns = new ArrayList<>();
+
+		// whitespace first, it applies to the other facet values
+		for (XmlSchemaFacet facet : facets == null ? List.<XmlSchemaFacet>of() : facets)
+		{
+			if (facet instanceof XmlSchemaWhiteSpaceFacet)
+			{
+				builder.whiteSpace(WhiteSpace.valueOf(facet.getValue().toString().trim().toUpperCase()));
+			}
+		}
+		for (XmlSchemaFacet facet : facets == null ? List.<XmlSchemaFacet>of() : facets)
+		{
+			String value = facet.getValue() == null ? "" : facet.getValue().toString().trim();
+			if (facet instanceof XmlSchemaWhiteSpaceFacet)
+			{
+				continue;
+			} else if (facet instanceof XmlSchemaEnumerationFacet)
+			{
+				enumeration.add(facet.getValue() == null ? "" : facet.getValue().toString());
+			} else if (facet instanceof XmlSchemaPatternFacet)
+			{
+				patterns.add(toJavaPattern(facet.getValue().toString()));
+			} else if (numeric && facet instanceof XmlSchemaMinInclusiveFacet)
+			{
+				builder.minInclusive(decimal(value));
+			} else if (numeric && facet instanceof XmlSchemaMaxInclusiveFacet)
+			{
+				builder.maxInclusive(decimal(value));
+			} else if (numeric && facet instanceof XmlSchemaMinExclusiveFacet)
+			{
+				builder.minExclusive(decimal(value));
+			} else if (numeric && facet instanceof XmlSchemaMaxExclusiveFacet)
+			{
+				builder.maxExclusive(decimal(value));
+			} else if (numeric && facet instanceof XmlSchemaTotalDigitsFacet)
+			{
+				builder.totalDigits(Integer.parseInt(value));
+			} else if (numeric && facet instanceof XmlSchemaFractionDigitsFacet)
+			{
+				builder.fractionDigits(Integer.parseInt(value));
+			} else if (measurable && facet instanceof XmlSchemaLengthFacet)
+			{
+				builder.minLength(Integer.parseInt(value)).maxLength(Integer.parseInt(value));
+			} else if (measurable && facet instanceof XmlSchemaMinLengthFacet)
+			{
+				builder.minLength(Integer.parseInt(value));
+			} else if (measurable && facet instanceof XmlSchemaMaxLengthFacet)
+			{
+				builder.maxLength(Integer.parseInt(value));
+			} else
+			{
+				throw new UnsupportedSchemaException("facet " + facet.getClass().getSimpleName() + " on " + primitive);
+			}
+		}
+		if (!enumeration.isEmpty())
+		{
+			builder.enumeration(enumeration);
+		}
+		if (!patterns.isEmpty())
+		{
+			builder.patterns(patterns);
+		}
+	}
+
+	private static BigDecimal decimal(String value) throws UnsupportedSchemaException
+	{
+		try
+		{
+			return new BigDecimal(value.startsWith("+") ? value.substring(1) : value);
+		} catch (NumberFormatException e)
+		{
+			throw new UnsupportedSchemaException("facet value " + value);
+		}
+	}
+
+	/**
+	 * Translates an XSD regular expression into an equivalent Java pattern.
+	 * XSD patterns are implicitly anchored, have no anchors ({@code ^} and
+	 * {@code $} are literals) and their {@code .} excludes only line feed and
+	 * carriage return.
+	 */
+	static Pattern toJavaPattern(String xsdPattern) throws UnsupportedSchemaException
+	{
+		StringBuilder java = new StringBuilder(xsdPattern.length() + 16);
+		int classDepth = 0;
+		for (int i = 0; i < xsdPattern.length(); i++)
+		{
+			char c = xsdPattern.charAt(i);
+			if (c == '\\' && i + 1 < xsdPattern.length())
+			{
+				char escaped = xsdPattern.charAt(i + 1);
+				if ("iIcC".indexOf(escaped) >= 0 || ((escaped == 'p' || escaped == 'P')
+						&& xsdPattern.startsWith("{Is", i + 2)))
+				{
+					throw new UnsupportedSchemaException("pattern " + xsdPattern);
+				}
+				java.append(c).append(escaped);
+				i++;
+			} else if (c == '[')
+			{
+				if (classDepth > 0 && i > 0 && xsdPattern.charAt(i - 1) == '-')
+				{
+					// character class subtraction
+					throw new UnsupportedSchemaException("pattern " + xsdPattern);
+				}
+				classDepth++;
+				java.append(c);
+			} else if (c == ']' && classDepth > 0)
+			{
+				classDepth--;
+				java.append(c);
+			} else if (classDepth == 0 && (c == '^' || c == '$'))
+			{
+				java.append('\\').append(c);
+			} else if (classDepth == 0 && c == '.')
+			{
+				java.append("[^\\n\\r]");
+			} else if (classDepth > 0 && c == '&')
+			{
+				// '&&' is an intersection in Java classes
+				java.append("\\&");
+			} else
+			{
+				java.append(c);
+			}
+		}
+		try
+		{
+			return Pattern.compile(java.toString());
+		} catch (PatternSyntaxException e)
+		{
+			throw new UnsupportedSchemaException("pattern " + xsdPattern);
+		}
+	}
+
+	/**
+	 * @return the checker builder of a supported built-in simple type
+	 */
+	private static SimpleTypeChecker.Builder builtin(String localName) throws UnsupportedSchemaException
+	{
+		switch (localName)
+		{
+		case "string":
+			return new SimpleTypeChecker.Builder(localName, Primitive.STRING, WhiteSpace.PRESERVE);
+		case "normalizedString":
+			return new SimpleTypeChecker.Builder(localName, Primitive.STRING, WhiteSpace.REPLACE);
+		case "token":
+			return new SimpleTypeChecker.Builder(localName, Primitive.STRING, WhiteSpace.COLLAPSE);
+		case "language":
+			return new SimpleTypeChecker.Builder(localName, Primitive.STRING, WhiteSpace.COLLAPSE)
+					.patterns(List.of(Pattern.compile("[a-zA-Z]{1,8}(-[a-zA-Z0-9]{1,8})*")));
+		case "anySimpleType":
+			return new SimpleTypeChecker.Builder(localName, Primitive.ANY, WhiteSpace.PRESERVE);
+		case "anyURI":
+			return new SimpleTypeChecker.Builder(localName, Primitive.ANY_URI, WhiteSpace.COLLAPSE);
+		case "boolean":
+			return new SimpleTypeChecker.Builder(localName, Primitive.BOOLEAN, WhiteSpace.COLLAPSE);
+		case "decimal":
+			return new SimpleTypeChecker.Builder(localName, Primitive.DECIMAL, WhiteSpace.COLLAPSE);
+		case "float":
+			return new SimpleTypeChecker.Builder(localName, Primitive.FLOAT, WhiteSpace.COLLAPSE);
+		case "double":
+			return new SimpleTypeChecker.Builder(localName, Primitive.DOUBLE, WhiteSpace.COLLAPSE);
+		case "dateTime":
+			return new SimpleTypeChecker.Builder(localName, Primitive.DATE_TIME, WhiteSpace.COLLAPSE);
+		case "date":
+			return new SimpleTypeChecker.Builder(localName, Primitive.DATE, WhiteSpace.COLLAPSE);
+		case "time":
+			return new SimpleTypeChecker.Builder(localName, Primitive.TIME, WhiteSpace.COLLAPSE);
+		case "duration":
+			return new SimpleTypeChecker.Builder(localName, Primitive.DURATION, WhiteSpace.COLLAPSE);
+		case "base64Binary":
+			return new SimpleTypeChecker.Builder(localName, Primitive.BASE64, WhiteSpace.COLLAPSE);
+		case "hexBinary":
+			return new SimpleTypeChecker.Builder(localName, Primitive.HEX, WhiteSpace.COLLAPSE);
+		case "integer":
+			return integer(localName, null, null);
+		case "nonPositiveInteger":
+			return integer(localName, null, "0");
+		case "negativeInteger":
+			return integer(localName, null, "-1");
+		case "long":
+			return integer(localName, "-9223372036854775808", "9223372036854775807");
+		case "int":
+			return integer(localName, "-2147483648", "2147483647");
+		case "short":
+			return integer(localName, "-32768", "32767");
+		case "byte":
+			return integer(localName, "-128", "127");
+		case "nonNegativeInteger":
+			return integer(localName, "0", null);
+		case "unsignedLong":
+			return integer(localName, "0", "18446744073709551615");
+		case "unsignedInt":
+			return integer(localName, "0", "4294967295");
+		case "unsignedShort":
+			return integer(localName, "0", "65535");
+		case "unsignedByte":
+			return integer(localName, "0", "255");
+		case "positiveInteger":
+			return integer(localName, "1", null);
+		default:
+			throw new UnsupportedSchemaException("built-in type " + localName);
+		}
+	}
+
+	private static SimpleTypeChecker.Builder integer(String localName, String min, String max)
+	{
+		SimpleTypeChecker.Builder builder = new SimpleTypeChecker.Builder(localName, Primitive.INTEGER,
+				WhiteSpace.COLLAPSE);
+		if (min != null)
+		{
+			builder.minInclusive(new BigDecimal(min));
+		}
+		if (max != null)
+		{
+			builder.maxInclusive(new BigDecimal(max));
+		}
+		return builder;
+	}
+
+	/**
+	 * Compiles the particle of a complex type into a deterministic automaton:
+	 * a Thompson automaton is built first and then determinized by subset
+	 * construction.
+	 */
+	private ContentModel buildContentModel(XmlSchemaParticle particle) throws UnsupportedSchemaException
+	{
+		Automaton automaton = new Automaton();
+		int[] fragment = particle == null ? automaton.empty() : automaton.particle(particle);
+
+		Map<BitSet, Integer> stateNumbers = new LinkedHashMap<>();
+		List<BitSet> states = new ArrayList<>();
+		Map<QName, Integer> symbols = new LinkedHashMap<>();
+		List<Map<Integer, Integer>> transitions = new ArrayList<>();
+		List<Map<Integer, ElementDeclaration>> declarations = new ArrayList<>();
+
+		BitSet initial = automaton.closure(Set.of(fragment[0]));
+		stateNumbers.put(initial, 0);
+		states.add(initial);
+		for (int index = 0; index < states.size(); index++)
+		{
+			BitSet state = states.get(index);
+			Map<QName, Set<Integer>> targets = new LinkedHashMap<>();
+			Map<QName, ElementDeclaration> targetDeclarations = new HashMap<>();
+			for (int nfaState = state.nextSetBit(0); nfaState >= 0; nfaState = state.nextSetBit(nfaState + 1))
+			{
+				for (Edge edge : automaton.edges.get(nfaState))
+				{
+					ElementDeclaration previous = targetDeclarations.putIfAbsent(edge.element.name, edge.element);
+					if (previous != null && previous.type != edge.element.type)
+					{
+						// violates unique particle attribution, left to the schema validator
+						throw new UnsupportedSchemaException("ambiguous content model for " + edge.element.name);
+					}
+					targets.computeIfAbsent(edge.element.name, k -> new HashSet<>()).add(edge.target);
+				}
+			}
+
+			Map<Integer, Integer> stateTransitions = new HashMap<>();
+			Map<Integer, ElementDeclaration> stateDeclarations = new HashMap<>();
+			for (Map.Entry<QName, Set<Integer>> target : targets.entrySet())
+			{
+				BitSet next = automaton.closure(target.getValue());
+				Integer nextNumber = stateNumbers.get(next);
+				if (nextNumber == null)
+				{
+					if (states.size() >= MAX_STATES)
+					{
+						throw new UnsupportedSchemaException("content model too large");
+					}
+					nextNumber = states.size();
+					stateNumbers.put(next, nextNumber);
+					states.add(next);
+				}
+				Integer symbol = symbols.computeIfAbsent(target.getKey(), k -> symbols.size());
+				stateTransitions.put(symbol, nextNumber);
+				stateDeclarations.put(symbol, targetDeclarations.get(target.getKey()));
+			}
+			transitions.add(stateTransitions);
+			declarations.add(stateDeclarations);
+		}
+
+		int[][] transitionTable = new int[states.size()][symbols.size()];
+		ElementDeclaration[][] declarationTable = new ElementDeclaration[states.size()][symbols.size()];
+		boolean[] accepting = new boolean[states.size()];
+		for (int index = 0; index < states.size(); index++)
+		{
+			java.util.Arrays.fill(transitionTable[index], -1);
+			for (Map.Entry<Integer, Integer> transition : transitions.get(index).entrySet())
+			{
+				transitionTable[index][transition.getKey()] = transition.getValue();
+				declarationTable[index][transition.getKey()] = declarations.get(index).get(transition.getKey());
+			}
+			accepting[index] = states.get(index).get(fragment[1]);
+		}
+		return new ContentModel(Map.copyOf(symbols), transitionTable, declarationTable, accepting);
+	}
+
+	/**
+	 * Collects the heads of all substitution groups.
+	 */
+	private static Set<QName> findSubstitutionHeads(SchemaCollection schemas)
+	{
+		Set<QName> heads = new HashSet<>();
+		for (XmlSchema schema : schemas.getXmlSchemas())
+		{
+			for (XmlSchemaElement element : schema.getElements().values())
+			{
+				if (element.getSubstitutionGroup() != null)
+				{
+					heads.add(element.getSubstitutionGroup());
+				}
+			}
+		}
+		return heads;
+	}
+
+	/**
+	 * Element transition of the nondeterministic automaton.
+	 */
+	private static final class Edge
+	{
+		private final ElementDeclaration element;
+		private final int target;
+
+		Edge(ElementDeclaration element, int target)
+		{
+			this.element = element;
+			this.target = target;
+		}
+	}
+
+	/**
+	 * Nondeterministic automaton with epsilon transitions. Fragments are
+	 * represented as {start, end} state pairs.
+	 */
+	private final class Automaton
+	{
+		private final List<List<Edge>> edges = new ArrayList<>();
+		private final List<List<Integer>> epsilons = new ArrayList<>();
+
+		int newState() throws UnsupportedSchemaException
+		{
+			if (edges.size() >= MAX_STATES * 4)
+			{
+				throw new UnsupportedSchemaException("content model too large");
+			}
+			edges.add(new ArrayList<>());
+			epsilons.add(new ArrayList<>());
+			return edges.size() - 1;
+		}
+
+		int[] empty() throws UnsupportedSchemaException
+		{
+			int start = newState();
+			int end = newState();
+			epsilons.get(start).add(end);
+			return new int[] { start, end };
+		}
+
+		int[] particle(XmlSchemaParticle particle) throws UnsupportedSchemaException
+		{
+			if (particle instanceof XmlSchemaElement)
+			{
+				ElementDeclaration element = buildElement((XmlSchemaElement) particle);
+				return repeat(() ->
+				{
+					int start = newState();
+					int end = newState();
+					edges.get(start).add(new Edge(element, end));
+					return new int[] { start, end };
+				}, particle);
+			}
+			if (particle instanceof XmlSchemaSequence)
+			{
+				List<XmlSchemaSequenceMember> items = ((XmlSchemaSequence) particle).getItems();
+				return repeat(() ->
+				{
+					int[] sequence = empty();
+					for (XmlSchemaSequenceMember item : items)
+					{
+						int[] member = particle(member(item));
+						epsilons.get(sequence[1]).add(member[0]);
+						sequence[1] = member[1];
+					}
+					return sequence;
+				}, particle);
+			}
+			if (particle instanceof XmlSchemaChoice)
+			{
+				List<XmlSchemaChoiceMember> items = ((XmlSchemaChoice) particle).getItems();
+				return repeat(() ->
+				{
+					int start = newState();
+					int end = newState();
+					for (XmlSchemaChoiceMember item : items)
+					{
+						int[] member = particle(member(item));
+						epsilons.get(start).add(member[0]);
+						epsilons.get(member[1]).add(end);
+					}
+					return new int[] { start, end };
+				}, particle);
+			}
+			if (particle instanceof XmlSchemaGroupRef)
+			{
+				XmlSchemaGroupRef groupRef = (XmlSchemaGroupRef) particle;
+				XmlSchemaParticle groupParticle = groupRef.getParticle();
+				if (groupParticle == null && schemas.getXmlSchemaCollection() != null)
+				{
+					XmlSchemaGroup group = schemas.getXmlSchemaCollection().getGroupByQName(groupRef.getRefName());
+					groupParticle = group == null ? null : group.getParticle();
+				}
+				if (groupParticle == null)
+				{
+					throw new UnsupportedSchemaException("unresolved group " + groupRef.getRefName());
+				}
+				XmlSchemaParticle resolved = groupParticle;
+				return repeat(() -> particleOnce(resolved), particle);
+			}
+			throw new UnsupportedSchemaException("particle " + particle.getClass().getSimpleName());
+		}
+
+		/**
+		 * Builds a particle ignoring its own occurrence bounds (used for the
+		 * particle of a referenced group, whose bounds are those of the reference).
+		 */
+		int[] particleOnce(XmlSchemaParticle particle) throws UnsupportedSchemaException
+		{
+			if (particle.getMinOccurs() != 1 || particle.getMaxOccurs() != 1)
+			{
+				throw new UnsupportedSchemaException("group particle with occurrence bounds");
+			}
+			return particle(particle);
+		}
+
+		private XmlSchemaParticle member(Object item) throws UnsupportedSchemaException
+		{
+			if (!(item instanceof XmlSchemaParticle))
+			{
+				throw new UnsupportedSchemaException("member " + item.getClass().getSimpleName());
+			}
+			return (XmlSchemaParticle) item;
+		}
+
+		/**
+		 * Repeats a fragment according to the occurrence bounds of the particle.
+		 */
+		private int[] repeat(FragmentFactory factory, XmlSchemaParticle particle) throws UnsupportedSchemaException
+		{
+			long min = particle.getMinOccurs();
+			long max = particle.getMaxOccurs();
+			boolean unbounded = max == Long.MAX_VALUE;
+			if (min > MAX_UNROLLED_OCCURS || (!unbounded && max > MAX_UNROLLED_OCCURS))
+			{
+				throw new UnsupportedSchemaException("occurrence bounds " + min + ".." + max);
+			}
+
+			int[] result = empty();
+			for (long i = 0; i < min; i++)
+			{
+				int[] copy = factory.create();
+				epsilons.get(result[1]).add(copy[0]);
+				result[1] = copy[1];
+			}
+			if (unbounded)
+			{
+				int[] loop = factory.create();
+				int end = newState();
+				epsilons.get(result[1]).add(loop[0]);
+				epsilons.get(result[1]).add(end);
+				epsilons.get(loop[1]).add(loop[0]);
+				epsilons.get(loop[1]).add(end);
+				result[1] = end;
+			} else
+			{
+				int end = newState();
+				epsilons.get(result[1]).add(end);
+				for (long i = min; i < max; i++)
+				{
+					int[] copy = factory.create();
+					epsilons.get(result[1]).add(copy[0]);
+					epsilons.get(copy[1]).add(end);
+					result[1] = copy[1];
+				}
+				epsilons.get(result[1]).add(end);
+				result[1] = end;
+			}
+			return result;
+		}
+
+		BitSet closure(Set<Integer> states)
+		{
+			BitSet closure = new BitSet();
+			List<Integer> pending = new ArrayList<>(states);
+			while (!pending.isEmpty())
+			{
+				int state = pending.remove(pending.size() - 1);
+				if (!closure.get(state))
+				{
+					closure.set(state);
+					pending.addAll(epsilons.get(state));
+				}
+			}
+			return closure;
+		}
+	}
+
+	/**
+	 * Creates a fresh copy of a fragment.
+	 */
+	@FunctionalInterface
+	private interface FragmentFactory
+	{
+		int[] create() throws UnsupportedSchemaException;
+	}
+
+	/**
+	 * Signals a schema construct the builder does not compile.
+	 */
+	static final class UnsupportedSchemaException extends Exception
+	{
+		private static final long serialVersionUID = 1L;
+
+		UnsupportedSchemaException(String message)
+		{
+			super(message, null, false, false);
+		}
+	}
+}
@@ -0,0 +1,220 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Import graph of the WSDL and XSD documents of a contract, with a content
+ * hash per document.
+ * <p>
+ * The documents are read from the extracted contract, following
+ * {@code wsdl:import} locations and {@code xs:import}, {@code xs:include} and
+ * {@code xs:redefine} schema locations. Locations that are not local files are
+ * not read; they are identified by their location only.
+ * <p>
+ * The fingerprint of a root WSDL covers the content of every document it
+ * depends on, with the locations as written in the documents, so it does not
+ * depend on the folder the contract was extracted to: two revisions of a
+ * contract have the same fingerprint for a root WSDL if and only if none of
+ * the documents it depends on changed.
+ */
+public class ContractDocumentGraph
+{
+	private static final Log logger = LogFactory.getLog(ContractDocumentGraph.class);
+
+	private static final String WSDL_NS = "http://schemas.xmlsoap.org/wsdl/";
+
+	private final Map<URI, Document> documents = new HashMap<>();
+	private final Map<URI, String> fingerprints = new HashMap<>();
+	private final XMLInputFactory inputFactory;
+
+	private ContractDocumentGraph()
+	{
+		inputFactory = XMLInputFactory.newFactory();
+		inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	/**
+	 * Reads the documents of a contract.
+	 *
+	 * @param wsdlURIs root WSDL documents of the contract
+	 * @return the document graph
+	 * @throws IOException        if a document cannot be read
+	 * @throws XMLStreamException if a document is not well-formed
+	 */
+	public static ContractDocumentGraph build(URI[] wsdlURIs) throws IOException, XMLStreamException
+	{
+		ContractDocumentGraph graph = new ContractDocumentGraph();
+		for (URI wsdlURI : wsdlURIs)
+		{
+			graph.read(wsdlURI.normalize());
+			graph.fingerprints.put(wsdlURI, graph.fingerprint(wsdlURI.normalize()));
+		}
+		logger.debug("Contract document graph built with " + graph.documents.size() + " documents");
+		return graph;
+	}
+
+	/**
+	 * @param wsdlURI root WSDL document, as passed to {@link #build}
+	 * @return the fingerprint of the document and all documents it depends on
+	 */
+	public String getFingerprint(URI wsdlURI)
+	{
+		return fingerprints.get(wsdlURI);
+	}
+
+	/**
+	 * @return the number of documents read
+	 */
+	public int getDocumentCount()
+	{
+		return documents.size();
+	}
+
+	/**
+	 * Reads a document and, recursively, the documents it imports.
+	 */
+	private void read(URI uri) throws IOException, XMLStreamException
+	{
+		if (documents.containsKey(uri))
+		{
+			return;
+		}
+		Document document = new Document();
+		documents.put(uri, document);
+		if (!"file".equals(uri.getScheme()))
+		{
+			// identified by its location only
+			document.hash = "";
+			return;
+		}
+
+		byte[] content;
+		try (InputStream in = uri.toURL().openStream())
+		{
+			content = in.readAllBytes();
+		}
+		document.hash = sha256(content);
+
+		XMLStreamReader reader = inputFactory.createXMLStreamReader(new ByteArrayInputStream(content));
+		try
+		{
+			while (reader.hasNext())
+			{
+				if (reader.next() != XMLStreamConstants.START_ELEMENT)
+				{
+					continue;
+				}
+				String location = getImportLocation(reader);
+				if (location != null && !location.isBlank())
+				{
+					document.imports.add(location.trim());
+					document.importURIs.add(uri.resolve(location.trim()).normalize());
+				}
+			}
+		} finally
+		{
+			reader.close();
+		}
+		for (URI importURI : document.importURIs)
+		{
+			read(importURI);
+		}
+	}
+
+	/**
+	 * @return the location imported by the current element, or null
+	 */
+	private static String getImportLocation(XMLStreamReader reader)
+	{
+		String namespace = reader.getNamespaceURI();
+		String localName = reader.getLocalName();
+		if (WSDL_NS.equals(namespace) && "import".equals(localName))
+		{
+			return reader.getAttributeValue(null, "location");
+		}
+		if (XMLConstants.W3C_XML_SCHEMA_NS_URI.equals(namespace)
+				&& ("import".equals(localName) || "include".equals(localName) || "redefine".equals(localName)))
+		{
+			return reader.getAttributeValue(null, "schemaLocation");
+		}
+		return null;
+	}
+
+	/**
+	 * Hashes the content of a root document and all documents reachable from it,
+	 * in import order.
+	 */
+	private String fingerprint(URI root)
+	{
+		MessageDigest digest = newDigest();
+		digest.update(documents.get(root).hash.getBytes(StandardCharsets.UTF_8));
+		fingerprint(root, digest, new HashSet<>());
+		return HexFormat.of().formatHex(digest.digest());
+	}
+
+	private void fingerprint(URI uri, MessageDigest digest, Set<URI> visited)
+	{
+		if (!visited.add(uri))
+		{
+			return;
+		}
+		Document document = documents.get(uri);
+		for (int i = 0; i < document.imports.size(); i++)
+		{
+			URI importURI = document.importURIs.get(i);
+			digest.update((document.imports.get(i) + "\n" + documents.get(importURI).hash + "\n")
+					.getBytes(StandardCharsets.UTF_8));
+			fingerprint(importURI, digest, visited);
+		}
+	}
+
+	private static String sha256(byte[] content)
+	{
+		return HexFormat.of().formatHex(newDigest().digest(content));
+	}
+
+	private static MessageDigest newDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+
+	/**
+	 * One document of the contract.
+	 */
+	private static final class Document
+	{
+		private String hash;
+		/** import locations as written in the document */
+		private final List<String> imports = new ArrayList<>();
+		private final List<URI> importURIs = new ArrayList<>();
+	}
+}
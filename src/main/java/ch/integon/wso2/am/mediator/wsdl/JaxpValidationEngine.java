@@ -0,0 +1,190 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+
+import org.apache.axiom.om.OMElement;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.codehaus.stax2.validation.XMLValidationProblem;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import ch.integon.wso2.am.mediator.wsdl.model.SOAPServiceOperation;
+import ch.integon.wso2.am.mediator.wsdl.model.SOAPValidationException;
+
+/**
+ * Validation engine using the JDK {@code javax.xml.validation} validator
+ * (Xerces). The compiled {@link Schema} is shared; its validators are not
+ * thread-safe and are pooled. The JDK validator does not report its events,
+ * so resource limits are checked in a separate pass before it runs.
+ */
+public class JaxpValidationEngine implements ValidationEngine
+{
+	private static final Log logger = LogFactory.getLog(JaxpValidationEngine.class);
+
+	static final String NAME = "jaxp";
+
+	/** validators kept per schema, more are created under load but not kept */
+	private static final int MAX_POOLED_VALIDATORS = 16;
+
+	@Override
+	public String getName()
+	{
+		return NAME;
+	}
+
+	@Override
+	public PreparedSchema prepare(SOAPServiceOperation serviceOperation) throws SOAPValidationException
+	{
+		Schema schema;
+		try
+		{
+			Source[] sources = new SchemaCompiler().collectSchemaSources(serviceOperation).values()
+					.toArray(new Source[0]);
+			SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+			factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+			schema = factory.newSchema(sources);
+		} catch (XMLStreamException | SAXException e)
+		{
+			throw new SOAPValidationException("error while reading the schema", e);
+		}
+		logger.debug("JAXP schema compiled for " + serviceOperation.getOperation().getName());
+		return new PooledSchema(schema);
+	}
+
+	/**
+	 * Shared schema with a pool of validators.
+	 */
+	private static final class PooledSchema implements PreparedSchema
+	{
+		private final Schema schema;
+		private final Queue<Validator> validators = new ConcurrentLinkedQueue<>();
+
+		PooledSchema(Schema schema)
+		{
+			this.schema = schema;
+		}
+
+		@Override
+		public List<XMLValidationProblem> validate(OMElement payload) throws XMLStreamException
+		{
+			Validator validator = validators.poll();
+			if (validator == null)
+			{
+				validator = schema.newValidator();
+			}
+			List<XMLValidationProblem> problems = new ArrayList<>();
+			validator.setErrorHandler(new ProblemCollector(problems));
+			try
+			{
+				validator.validate(new StreamSource(new StringReader(payload.toString())));
+			} catch (SAXParseException e)
+			{
+				throw new XMLStreamException(e.getMessage(), new SAXLocation(e), e);
+			} catch (SAXException | IOException e)
+			{
+				throw new XMLStreamException(e);
+			} finally
+			{
+				validator.reset();
+				if (validators.size() < MAX_POOLED_VALIDATORS)
+				{
+					validators.offer(validator);
+				}
+			}
+			return problems;
+		}
+	}
+
+	/**
+	 * Collects validation errors as {@link XMLValidationProblem}s; fatal errors
+	 * (malformed payloads) abort the validation.
+	 */
+	private static final class ProblemCollector implements ErrorHandler
+	{
+		private final List<XMLValidationProblem> problems;
+
+		ProblemCollector(List<XMLValidationProblem> problems)
+		{
+			this.problems = problems;
+		}
+
+		@Override
+		public void warning(SAXParseException exception)
+		{
+			logger.debug("Validation warning: " + exception.getMessage());
+		}
+
+		@Override
+		public void error(SAXParseException exception)
+		{
+			problems.add(new XMLValidationProblem(new SAXLocation(exception), exception.getMessage(),
+					XMLValidationProblem.SEVERITY_ERROR));
+			logger.debug("Validation problem detected: " + exception.getMessage());
+		}
+
+		@Override
+		public void fatalError(SAXParseException exception) throws SAXException
+		{
+			throw exception;
+		}
+	}
+
+	/**
+	 * Location of a SAX problem.
+	 */
+	private static final class SAXLocation implements Location
+	{
+		private final SAXParseException exception;
+
+		SAXLocation(SAXParseException exception)
+		{
+			this.exception = exception;
+		}
+
+		@Override
+		public int getLineNumber()
+		{
+			return exception.getLineNumber();
+		}
+
+		@Override
+		public int getColumnNumber()
+		{
+			return exception.getColumnNumber();
+		}
+
+		@Override
+		public int getCharacterOffset()
+		{
+			return -1;
+		}
+
+		@Override
+		public String getPublicId()
+		{
+			return exception.getPublicId();
+		}
+
+		@Override
+		public String getSystemId()
+		{
+			return exception.getSystemId();
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import javax.xml.stream.Location;
+
+import org.codehaus.stax2.validation.XMLValidationProblem;
+
+/**
+ * Validation problem whose message is only rendered when it is read.
+ * <p>
+ * The message parts are kept as they are and concatenated on the first call
+ * of {@link #getMessage()}, so rejected payloads whose problems are only
+ * counted or summarized do not pay for formatting every message.
+ */
+final class LazyValidationProblem extends XMLValidationProblem
+{
+	private final Object[] messageParts;
+	private volatile String message;
+
+	/**
+	 * @param location     location of the problem
+	 * @param messageParts parts of the message, concatenated with their
+	 *                     {@code toString()} when the message is read
+	 */
+	LazyValidationProblem(Location location, Object... messageParts)
+	{
+		super(location, null, XMLValidationProblem.SEVERITY_ERROR);
+		this.messageParts = messageParts;
+	}
+
+	@Override
+	public String getMessage()
+	{
+		String rendered = message;
+		if (rendered == null)
+		{
+			StringBuilder builder = new StringBuilder();
+			for (Object part : messageParts)
+			{
+				builder.append(part);
+			}
+			rendered = builder.toString();
+			message = rendered;
+		}
+		return rendered;
+	}
+
+	/**
+	 * @return the message with every part that is not a string literal (names,
+	 *         values) replaced by {@code ?}, identifying the kind of problem
+	 *         without rendering the message
+	 */
+	String getSignature()
+	{
+		StringBuilder builder = new StringBuilder();
+		for (Object part : messageParts)
+		{
+			builder.append(part instanceof String ? (String) part : "?");
+		}
+		return builder.toString();
+	}
+}
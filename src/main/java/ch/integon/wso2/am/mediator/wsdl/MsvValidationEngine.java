@@ -0,0 +1,59 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import java.util.List;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.axiom.om.OMElement;
+import org.codehaus.stax2.validation.XMLValidationProblem;
+import org.codehaus.stax2.validation.XMLValidationSchema;
+
+import ch.integon.wso2.am.mediator.wsdl.model.ResourceLimits;
+import ch.integon.wso2.am.mediator.wsdl.model.SOAPServiceOperation;
+import ch.integon.wso2.am.mediator.wsdl.model.SOAPValidationException;
+
+/**
+ * Validation engine using Woodstox with the MSV schema validator, as the
+ * mediator does by default.
+ */
+public class MsvValidationEngine implements ValidationEngine
+{
+	static final String NAME = "msv";
+
+	private final SOAPValidator soapValidator = new SOAPValidator();
+
+	@Override
+	public String getName()
+	{
+		return NAME;
+	}
+
+	@Override
+	public PreparedSchema prepare(SOAPServiceOperation serviceOperation) throws SOAPValidationException
+	{
+		XMLValidationSchema schema;
+		try
+		{
+			schema = new SchemaCompiler().compileSchema(serviceOperation);
+		} catch (XMLStreamException e)
+		{
+			throw new SOAPValidationException("error while reading the schema", e);
+		}
+		return new PreparedSchema()
+		{
+			@Override
+			public List<XMLValidationProblem> validate(OMElement payload) throws XMLStreamException
+			{
+				return soapValidator.validate(schema, payload);
+			}
+
+			@Override
+			public List<XMLValidationProblem> validate(OMElement payload, ResourceLimits limits)
+					throws XMLStreamException
+			{
+				// enforced in the validation pass
+				return soapValidator.validate(schema, payload, limits);
+			}
+		};
+	}
+}
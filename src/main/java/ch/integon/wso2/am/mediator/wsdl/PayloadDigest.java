@@ -0,0 +1,177 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+import org.apache.axiom.om.OMAttribute;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.OMNamespace;
+import org.apache.axiom.om.OMNode;
+import org.apache.axiom.om.OMText;
+
+/**
+ * Digest of a built payload tree: element and attribute names, attribute
+ * values and text, in document order. Comments and processing instructions
+ * are ignored, binary attachments are identified by their content id.
+ * <p>
+ * The tree is walked iteratively, so deep payloads cannot overflow the stack,
+ * and without serializing it.
+ */
+abstract class PayloadDigest
+{
+	private static final Object END = new Object();
+
+	private long length;
+
+	/**
+	 * Adds a character to the digest.
+	 */
+	protected abstract void update(char c);
+
+	/**
+	 * Adds an element tree to the digest.
+	 *
+	 * @param root      root of the tree
+	 * @param maxLength maximum number of characters to digest, 0 for no limit
+	 * @return false if the tree has more than {@code maxLength} characters and
+	 *         the digest is incomplete
+	 */
+	final boolean update(OMElement root, long maxLength)
+	{
+		Deque<Object> stack = new ArrayDeque<>();
+		stack.push(root);
+		while (!stack.isEmpty())
+		{
+			if (maxLength > 0 && length > maxLength)
+			{
+				return false;
+			}
+			Object item = stack.pop();
+			if (item == END)
+			{
+				update('>');
+				continue;
+			}
+			OMNode node = (OMNode) item;
+			if (node != root && node.getNextOMSibling() != null)
+			{
+				stack.push(node.getNextOMSibling());
+			}
+			if (node instanceof OMElement)
+			{
+				OMElement element = (OMElement) node;
+				update('<');
+				update(element.getNamespace());
+				update(element.getLocalName());
+				for (Iterator<?> attributes = element.getAllAttributes(); attributes.hasNext();)
+				{
+					OMAttribute attribute = (OMAttribute) attributes.next();
+					update('@');
+					update(attribute.getNamespace());
+					update(attribute.getLocalName());
+					update(attribute.getAttributeValue());
+				}
+				stack.push(END);
+				if (element.getFirstOMChild() != null)
+				{
+					stack.push(element.getFirstOMChild());
+				}
+			} else if (node instanceof OMText)
+			{
+				OMText text = (OMText) node;
+				update('#');
+				// do not encode binary attachments, they are identified by their content id
+				update(text.isOptimized() ? text.getContentID() : text.getText());
+			}
+		}
+		return true;
+	}
+
+	private void update(OMNamespace namespace)
+	{
+		if (namespace != null)
+		{
+			update(namespace.getNamespaceURI());
+		}
+		update(':');
+	}
+
+	private void update(String value)
+	{
+		if (value != null)
+		{
+			length += value.length();
+			for (int i = 0; i < value.length(); i++)
+			{
+				update(value.charAt(i));
+			}
+		}
+		update('\0');
+	}
+
+	/**
+	 * 64-bit FNV-1a digest: fast, but not collision resistant.
+	 */
+	static final class Fnv extends PayloadDigest
+	{
+		private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+		private static final long FNV_PRIME = 0x100000001b3L;
+
+		private long hash = FNV_OFFSET;
+
+		@Override
+		protected void update(char c)
+		{
+			hash = (hash ^ c) * FNV_PRIME;
+		}
+
+		long getHash()
+		{
+			return hash;
+		}
+	}
+
+	/**
+	 * SHA-256 digest, for payloads whose digest stands in for the payload
+	 * itself and must not be forged.
+	 */
+	static final class Sha256 extends PayloadDigest
+	{
+		private final MessageDigest digest;
+		private final byte[] buffer = new byte[1024];
+		private int position;
+
+		Sha256()
+		{
+			try
+			{
+				digest = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e)
+			{
+				throw new IllegalStateException("SHA-256 not available", e);
+			}
+		}
+
+		@Override
+		protected void update(char c)
+		{
+			if (position == buffer.length)
+			{
+				digest.update(buffer, 0, position);
+				position = 0;
+			}
+			buffer[position++] = (byte) (c >> 8);
+			buffer[position++] = (byte) c;
+		}
+
+		byte[] getHash()
+		{
+			digest.update(buffer, 0, position);
+			position = 0;
+			return digest.digest();
+		}
+	}
+}
@@ -13,21 +13,26 @@ import org.wso2.carbon.registry.core.service.RegistryService;
 import org.wso2.carbon.registry.core.session.UserRegistry;
 
 /**
- * Helper class for accessing WSO2 governance registry. Provides methods to
- * obtain the governance registry, download resources, and get the latest WSDL
- * URI for an API.
+ * Helper class for accessing the WSO2 governance registry of the current
+ * tenant. Provides methods to obtain the governance registry, download
+ * resources, and get the latest WSDL URI for an API.
  */
 public class RegistryServiceHelper
 {
 
 	private static final Log logger = LogFactory.getLog(RegistryServiceHelper.class);
 
+	private static final String API_BASE_PATH = "/apimgt/applicationdata/apis/";
+
+	/** tenant ID of a carbon context without tenant */
+	private static final int INVALID_TENANT_ID = -1;
+
 	/** The governance registry instance retrieved from OSGi context */
 	private final UserRegistry governanceRegistry;
 
 	/**
-	 * Initializes the helper by fetching the governance registry from the OSGi
-	 * Carbon context.
+	 * Initializes the helper by fetching the governance registry of the current
+	 * tenant from the OSGi Carbon context.
 	 * 
 	 * @throws RegistryException if the registry service is not available or cannot
 	 *                           be initialized
@@ -43,11 +48,28 @@ public class RegistryServiceHelper
 			throw new RegistryException("RegistryService not available in OSGi context");
 		}
 
-		logger.debug("Obtaining governance system registry");
-		this.governanceRegistry = registryService.getGovernanceSystemRegistry();
+		// the registry of the tenant the API belongs to
+		int tenantId = carbonContext.getTenantId();
+		if (tenantId == INVALID_TENANT_ID)
+		{
+			logger.debug("Obtaining governance system registry");
+			this.governanceRegistry = registryService.getGovernanceSystemRegistry();
+		} else
+		{
+			logger.debug("Obtaining governance system registry of tenant " + carbonContext.getTenantDomain());
+			this.governanceRegistry = registryService.getGovernanceSystemRegistry(tenantId);
+		}
 		logger.debug("Governance registry initialized successfully");
 	}
 
+	/**
+	 * @param governanceRegistry governance registry to access, e.g. a stub
+	 */
+	RegistryServiceHelper(UserRegistry governanceRegistry)
+	{
+		this.governanceRegistry = governanceRegistry;
+	}
+
 	/**
 	 * Returns the governance registry instance.
 	 * 
@@ -70,7 +92,19 @@ public class RegistryServiceHelper
 	 */
 	public URI[] getLatestWSDLUri(String apiUUID, WSDLExtractor extractor) throws Exception
 	{
-		String apiBasePath = "/apimgt/applicationdata/apis/" + apiUUID;
+		return getWSDLUri(apiUUID, getLatestRevision(apiUUID), extractor);
+	}
+
+	/**
+	 * Determines the latest revision of an API in the registry.
+	 * 
+	 * @param apiUUID API identifier
+	 * @return the latest revision number
+	 * @throws RegistryException if the API path is missing
+	 */
+	public int getLatestRevision(String apiUUID) throws RegistryException
+	{
+		String apiBasePath = API_BASE_PATH + apiUUID;
 		logger.debug("Checking if API base path exists: " + apiBasePath);
 		if (!governanceRegistry.resourceExists(apiBasePath))
 		{
@@ -82,8 +116,22 @@ public class RegistryServiceHelper
 		Collection apiRevisionCollection = (Collection) governanceRegistry.get(apiBasePath);
 		int latestRevision = apiRevisionCollection.getChildCount();
 		logger.debug("Latest revision number for API " + apiUUID + ": " + latestRevision);
+		return latestRevision;
+	}
 
-		String apiRevisionPath = apiBasePath + "/" + latestRevision;
+	/**
+	 * Retrieves the WSDL URI of a given revision of an API. Checks the registry
+	 * for WSDL files or archives and delegates extraction to WSDLExtractor.
+	 * 
+	 * @param apiUUID   API identifier
+	 * @param revision  revision number, see {@link #getLatestRevision}
+	 * @param extractor Helper to extract WSDL or archive from registry
+	 * @return URI pointing to the WSDL file
+	 * @throws Exception if the revision or WSDL is missing, or extraction fails
+	 */
+	public URI[] getWSDLUri(String apiUUID, int revision, WSDLExtractor extractor) throws Exception
+	{
+		String apiRevisionPath = API_BASE_PATH + apiUUID + "/" + revision;
 		if (!governanceRegistry.resourceExists(apiRevisionPath))
 		{
 			logger.error("Revision path does not exist: " + apiRevisionPath);
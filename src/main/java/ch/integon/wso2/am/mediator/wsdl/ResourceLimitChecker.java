@@ -0,0 +1,174 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.axiom.om.OMElement;
+
+import ch.integon.wso2.am.mediator.wsdl.model.ResourceLimitException;
+import ch.integon.wso2.am.mediator.wsdl.model.ResourceLimits;
+
+/**
+ * Enforces the {@link ResourceLimits} of one payload on the events of the
+ * validation pass. Instances are not thread-safe and are used for a single
+ * payload.
+ */
+final class ResourceLimitChecker
+{
+	private final ResourceLimits limits;
+	private int depth;
+	private long elements;
+	private long characters;
+
+	/**
+	 * @param limits limits of the payload
+	 * @return a checker, or null if no limit is set
+	 */
+	static ResourceLimitChecker of(ResourceLimits limits)
+	{
+		return limits == null || !limits.isLimited() ? null : new ResourceLimitChecker(limits);
+	}
+
+	private ResourceLimitChecker(ResourceLimits limits)
+	{
+		this.limits = limits;
+	}
+
+	/**
+	 * Checks a built payload in a separate pass, for validators that cannot
+	 * report their events, and for payloads whose verdict is cached.
+	 *
+	 * @param payload payload element
+	 * @param limits  limits of the payload
+	 * @throws XMLStreamException if a limit is exceeded or the payload cannot
+	 *                            be read
+	 */
+	static void check(OMElement payload, ResourceLimits limits) throws XMLStreamException
+	{
+		ResourceLimitChecker checker = of(limits);
+		if (checker == null)
+		{
+			return;
+		}
+		XMLStreamReader reader = payload.getXMLStreamReader();
+		try
+		{
+			// skip the start document event, if reported
+			int event = reader.getEventType();
+			while (event != XMLStreamConstants.START_ELEMENT)
+			{
+				event = reader.next();
+			}
+			checker.event(reader, event);
+			while (checker.depth > 0 && reader.hasNext())
+			{
+				checker.event(reader, reader.next());
+			}
+		} finally
+		{
+			reader.close();
+		}
+	}
+
+	/**
+	 * Checks the current event of a reader that reports every text node as one
+	 * event (coalescing).
+	 *
+	 * @param reader reader positioned on the event
+	 * @param event  type of the event
+	 * @throws ResourceLimitException if a limit is exceeded
+	 */
+	void event(XMLStreamReader reader, int event) throws ResourceLimitException
+	{
+		switch (event)
+		{
+		case XMLStreamConstants.START_ELEMENT:
+			startElement(reader);
+			break;
+		case XMLStreamConstants.END_ELEMENT:
+			endElement();
+			break;
+		case XMLStreamConstants.CHARACTERS:
+		case XMLStreamConstants.CDATA:
+		case XMLStreamConstants.SPACE:
+			text(reader, reader.getTextLength());
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Checks the start element the reader is positioned on.
+	 *
+	 * @throws ResourceLimitException if a limit is exceeded
+	 */
+	void startElement(XMLStreamReader reader) throws ResourceLimitException
+	{
+		depth++;
+		elements++;
+		if (limits.getMaxDepth() > 0 && depth > limits.getMaxDepth())
+		{
+			throw new ResourceLimitException("payload exceeds the maximum element depth of " + limits.getMaxDepth(),
+					reader.getLocation());
+		}
+		if (limits.getMaxElements() > 0 && elements > limits.getMaxElements())
+		{
+			throw new ResourceLimitException(
+					"payload exceeds the maximum number of " + limits.getMaxElements() + " elements",
+					reader.getLocation());
+		}
+		int attributeCount = reader.getAttributeCount();
+		if (limits.getMaxAttributes() > 0 && attributeCount > limits.getMaxAttributes())
+		{
+			throw new ResourceLimitException("element " + reader.getLocalName() + " exceeds the maximum number of "
+					+ limits.getMaxAttributes() + " attributes", reader.getLocation());
+		}
+		if (limits.getMaxCharacters() > 0)
+		{
+			for (int i = 0; i < attributeCount; i++)
+			{
+				characters += reader.getAttributeValue(i).length();
+			}
+			checkCharacters(reader);
+		}
+	}
+
+	/**
+	 * Records an end element.
+	 */
+	void endElement()
+	{
+		depth--;
+	}
+
+	/**
+	 * Checks the text event the reader is positioned on.
+	 *
+	 * @param textLength length of the text node so far, including previous
+	 *                   events of the same node
+	 * @throws ResourceLimitException if a limit is exceeded
+	 */
+	void text(XMLStreamReader reader, int textLength) throws ResourceLimitException
+	{
+		if (limits.getMaxTextLength() > 0 && textLength > limits.getMaxTextLength())
+		{
+			throw new ResourceLimitException(
+					"text exceeds the maximum length of " + limits.getMaxTextLength() + " characters",
+					reader.getLocation());
+		}
+		characters += reader.getTextLength();
+		checkCharacters(reader);
+	}
+
+	private void checkCharacters(XMLStreamReader reader) throws ResourceLimitException
+	{
+		if (limits.getMaxCharacters() > 0 && characters > limits.getMaxCharacters())
+		{
+			throw new ResourceLimitException(
+					"payload exceeds the maximum number of " + limits.getMaxCharacters() + " characters",
+					reader.getLocation());
+		}
+	}
+}
@@ -1,7 +1,5 @@
 package ch.integon.wso2.am.mediator.wsdl;
 
-import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 
 import javax.xml.namespace.QName;
@@ -9,7 +7,6 @@ import javax.xml.namespace.QName;
 import org.apache.axiom.om.OMElement;
 import org.apache.axiom.om.OMNode;
 import org.apache.axiom.soap.SOAPEnvelope;
-import org.apache.axiom.soap.SOAPHeader;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.synapse.MessageContext;
@@ -66,7 +63,10 @@ public class SOAPAnalyzer
 
 		// get the payload / payload related info
 		SOAPEnvelope envelope = ((Axis2MessageContext) ctx).getAxis2MessageContext().getEnvelope();
-		logger.debug("Received SOAP payload: " + envelope.toString());
+		if (logger.isDebugEnabled())
+		{
+			logger.debug("Received SOAP payload: " + envelope.toString());
+		}
 		OMElement bodyElement = envelope.getBody().getFirstElement();
 
 		if (bodyElement == null)
@@ -86,7 +86,10 @@ public class SOAPAnalyzer
 				throw new SOAPValidationException("soap (inner)body empty");
 			}
 			bodyElement = innerBody;
-			logger.debug("Received SOAP payload was double-wrapped because of no SOAPAction was submitted. Unwrapped payload: " + envelope.toString());
+			if (logger.isDebugEnabled())
+			{
+				logger.debug("Received SOAP payload was double-wrapped because of no SOAPAction was submitted. Unwrapped payload: " + envelope.toString());
+			}
 		}
 
 		// check more elements are found than current payload (skip comment and text
@@ -103,7 +106,10 @@ public class SOAPAnalyzer
 			sibling = sibling.getNextOMSibling();
 		}
 
-		logger.debug("SOAP body element found: " + bodyElement.getQName());
+		if (logger.isDebugEnabled())
+		{
+			logger.debug("SOAP body element found: " + bodyElement.getQName());
+		}
 
 		// no further analyzing needed for outbound messages
 		if (soapDirection == SOAPDirection.OUTBOUND)
@@ -112,17 +118,22 @@ public class SOAPAnalyzer
 			return new SOAPAnalysisResult(soapDirection, null, soapVersion, bodyElement, null);
 		}
 
-		// extract headers
-		List<OMElement> headerElements = getHeaderElements(ctx);
-		logger.debug("Number of SOAP header elements found: " + headerElements.size());
-		for (OMElement header : headerElements)
+		// headers are collected by the result on demand
+		SOAPAnalysisResult result = new SOAPAnalysisResult(soapDirection, soapAction, soapVersion, bodyElement,
+				envelope.getHeader());
+		if (logger.isDebugEnabled())
 		{
-			logger.debug("Header element: " + header.getQName());
+			List<OMElement> headerElements = result.getHeaderElements();
+			logger.debug("Number of SOAP header elements found: " + headerElements.size());
+			for (OMElement header : headerElements)
+			{
+				logger.debug("Header element: " + header.getQName());
+			}
 		}
 
 		// return result for inbound message
 		logger.debug("Returning SOAPAnalysisResult for inbound message");
-		return new SOAPAnalysisResult(soapDirection, soapAction, soapVersion, bodyElement, headerElements);
+		return result;
 	}
 
 	/**
@@ -144,34 +155,4 @@ public class SOAPAnalyzer
 			return SOAPDirection.INBOUND;
 		}
 	}
-
-	/**
-	 * Extracts all SOAP header elements from the given MessageContext.
-	 *
-	 * @param ctx the Synapse MessageContext containing the SOAP message
-	 * @return a List of OMElement representing all SOAP headers; empty if none
-	 */
-	private List<OMElement> getHeaderElements(MessageContext ctx)
-	{
-		SOAPEnvelope envelope = ((Axis2MessageContext) ctx).getAxis2MessageContext().getEnvelope();
-		SOAPHeader header = envelope.getHeader();
-
-		List<OMElement> headerElements = List.of();
-
-		if (header != null)
-		{
-			headerElements = new ArrayList<>();
-			Iterator<?> iter = header.getChildElements();
-			while (iter.hasNext())
-			{
-				Object obj = iter.next();
-				if (obj instanceof OMElement)
-				{
-					headerElements.add((OMElement) obj);
-				}
-			}
-		}
-
-		return headerElements;
-	}
 }
\ No newline at end of file
@@ -6,6 +6,7 @@ import javax.xml.namespace.QName;
 
 import org.apache.axiom.soap.*;
 import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.util.CopyUtils;
 import org.apache.axis2.AxisFault;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -30,111 +31,54 @@ public class SOAPValidationFaultHandler
 
 	private static final Log logger = LogFactory.getLog(SOAPValidationFaultHandler.class);
 
+	/**
+	 * Handles a message rejected before an operation was matched.
+	 *
+	 * @see #handleValidationProblem(MessageContext, QName, List, String)
+	 */
+	public boolean handleValidationProblem(MessageContext messageContext, List<XMLValidationProblem> validationProblems,
+			String faultMessage)
+	{
+		return handleValidationProblem(messageContext, null, validationProblems, faultMessage);
+	}
+
 	/**
 	 * Handles XML validation problems by creating a SOAP fault and sending it back
 	 * to the client.
 	 * <p>
 	 * Determines SOAP version and message direction, sets the fault code and
-	 * reason, and sends the fault response.
+	 * reason, and sends the fault response. The problems are logged through the
+	 * {@link ValidationProblemLogger}, aggregated and rate limited.
 	 *
 	 * @param messageContext     The Synapse message context for the current
 	 *                           message.
-	 * @param validationProblems List of XMLValidationProblem objects (currently not
-	 *                           logged individually).
+	 * @param operation          The matched operation, null if none was matched.
+	 * @param validationProblems List of XMLValidationProblem objects, null if the
+	 *                           payload was not validated.
 	 * @param faultMessage       The fault message to include in the SOAP fault.
 	 * @return false always, indicating the mediation flow should stop.
 	 */
-	public boolean handleValidationProblem(MessageContext messageContext, List<XMLValidationProblem> validationProblems,
-			String faultMessage)
+	public boolean handleValidationProblem(MessageContext messageContext, QName operation,
+			List<XMLValidationProblem> validationProblems, String faultMessage)
 	{
 
 		// parse fresh because direction could be null (analysis error)
 		SOAPDirection direction = messageContext.isFaultResponse() ? SOAPDirection.FAULT
 				: messageContext.isResponse() ? SOAPDirection.OUTBOUND : SOAPDirection.INBOUND;
 
-		logger.debug("Handling SOAP validation problem. Direction: " + direction);
-		logger.error("SOAP validation failed: " + faultMessage);
-
-		if (validationProblems != null && !validationProblems.isEmpty())
+		if (logger.isDebugEnabled())
 		{
-			for (XMLValidationProblem problem : validationProblems)
-			{
-				logger.error("Validation problem detected: " + problem.getMessage());
-			}
+			logger.debug("Handling SOAP validation problem. Direction: " + direction);
 		}
+		Object apiUUID = messageContext.getProperty("API_UUID");
+		ValidationProblemLogger.getInstance().log(apiUUID == null ? null : apiUUID.toString(), operation,
+				validationProblems, faultMessage);
 
-		if (messageContext.isSOAP11())
-		{
-			handleSoap11Fault(messageContext, faultMessage, direction);
-		} else
-		{
-			handleSoap12Fault(messageContext, faultMessage, direction);
-		}
+		FaultTemplate template = FaultTemplate.get(messageContext.isSOAP11(), direction);
+		sendFaultResponse(messageContext, template.createEnvelope(faultMessage));
 		return false;
 	}
 
-	/**
-	 * Constructs a SOAP 1.1 fault envelope and sends it back to the client.
-	 *
-	 * @param messageContext The Synapse message context.
-	 * @param faultMessage   The fault message to include.
-	 * @param direction      Direction of the message (INBOUND/OUTBOUND/FAULT) to
-	 *                       determine fault code.
-	 */
-	private void handleSoap11Fault(MessageContext messageContext, String faultMessage, SOAPDirection direction)
-	{
-		logger.debug("Building SOAP 1.1 fault envelope for message: " + faultMessage);
-
-		SOAPFactory soap11Factory = OMAbstractFactory.getSOAP11Factory();
-		SOAPEnvelope soap11Envelope = soap11Factory.getDefaultFaultEnvelope();
-		SOAPFault soap11Fault = soap11Envelope.getBody().getFault();
-
-		SOAPFaultCode soap11FaultCode = soap11Factory.createSOAPFaultCode();
-		QName serverQName = new QName(SOAP11Constants.SOAP_ENVELOPE_NAMESPACE_URI,
-				direction == SOAPDirection.INBOUND ? "Client" : "Server", "soapenv");
-		soap11FaultCode.setText(serverQName);
-		soap11Fault.setCode(soap11FaultCode);
-
-		SOAPFaultReason soap11Reason = soap11Factory.createSOAPFaultReason();
-		soap11Reason.setText(faultMessage);
-		soap11Fault.setReason(soap11Reason);
-
-		sendFaultResponse(messageContext, soap11Envelope);
-	}
-
-	/**
-	 * Constructs a SOAP 1.2 fault envelope and sends it back to the client.
-	 *
-	 * @param messageContext The Synapse message context.
-	 * @param faultMessage   The fault message to include.
-	 * @param direction      Direction of the message (INBOUND/OUTBOUND/FAULT) to
-	 *                       determine fault code.
-	 */
-	private void handleSoap12Fault(MessageContext messageContext, String faultMessage, SOAPDirection direction)
-	{
-		logger.debug("Building SOAP 1.2 fault envelope for message: " + faultMessage);
-
-		SOAPFactory soap12Factory = OMAbstractFactory.getSOAP12Factory();
-		SOAPEnvelope soap12Envelope = soap12Factory.getDefaultFaultEnvelope();
-		SOAPFault soap12Fault = soap12Envelope.getBody().getFault();
-
-		SOAPFaultCode soap12FaultCode = soap12Factory.createSOAPFaultCode();
-		SOAPFaultValue soap12Value = soap12Factory.createSOAPFaultValue(soap12FaultCode);
-		QName receiverQName = new QName(SOAP12Constants.SOAP_ENVELOPE_NAMESPACE_URI,
-				direction == SOAPDirection.INBOUND ? "Sender" : "Receiver", "soapenv");
-		soap12Value.setText(receiverQName);
-		soap12Fault.setCode(soap12FaultCode);
-
-		SOAPFaultReason soap12Reason = soap12Factory.createSOAPFaultReason();
-		SOAPFaultText soap12Text = soap12Factory.createSOAPFaultText();
-		soap12Text.setText(faultMessage);
-		soap12Text.setLang("en");
-		soap12Reason.addSOAPText(soap12Text);
-		soap12Fault.setReason(soap12Reason);
-
-		sendFaultResponse(messageContext, soap12Envelope);
-	}
-
 	/**
 	 * Sends the given SOAP envelope back to the client by setting it in the Axis2
 	 * message context and invoking Axis2Sender.sendBack().
@@ -160,4 +104,92 @@ public class SOAPValidationFaultHandler
 		axis2Ctx.setTo(null);
 		Axis2Sender.sendBack(messageContext);
 	}
+
+	/**
+	 * Prebuilt fault envelope of one SOAP version and fault code. Axiom nodes
+	 * cannot be shared between messages, so every fault is a copy of the
+	 * prebuilt envelope with its own reason. The prebuilt envelope is complete
+	 * and never changed, so it can be copied by several threads at once.
+	 */
+	static final class FaultTemplate
+	{
+		private static final FaultTemplate SOAP11_CLIENT = new FaultTemplate(true, false);
+		private static final FaultTemplate SOAP11_SERVER = new FaultTemplate(true, true);
+		private static final FaultTemplate SOAP12_SENDER = new FaultTemplate(false, false);
+		private static final FaultTemplate SOAP12_RECEIVER = new FaultTemplate(false, true);
+
+		private final boolean soap11;
+		private final SOAPEnvelope envelope;
+
+		private FaultTemplate(boolean soap11, boolean server)
+		{
+			this.soap11 = soap11;
+			SOAPFactory factory;
+			QName code;
+			if (soap11)
+			{
+				factory = OMAbstractFactory.getSOAP11Factory();
+				code = new QName(SOAP11Constants.SOAP_ENVELOPE_NAMESPACE_URI, server ? "Server" : "Client",
+						"soapenv");
+			} else
+			{
+				factory = OMAbstractFactory.getSOAP12Factory();
+				code = new QName(SOAP12Constants.SOAP_ENVELOPE_NAMESPACE_URI, server ? "Receiver" : "Sender",
+						"soapenv");
+			}
+			envelope = factory.getDefaultFaultEnvelope();
+			SOAPFault fault = envelope.getBody().getFault();
+			SOAPFaultCode faultCode = factory.createSOAPFaultCode();
+			SOAPFaultReason faultReason = factory.createSOAPFaultReason();
+			if (soap11)
+			{
+				faultCode.setText(code);
+				faultReason.setText("");
+			} else
+			{
+				factory.createSOAPFaultValue(faultCode).setText(code);
+				SOAPFaultText text = factory.createSOAPFaultText();
+				text.setText("");
+				text.setLang("en");
+				faultReason.addSOAPText(text);
+			}
+			fault.setCode(faultCode);
+			fault.setReason(faultReason);
+		}
+
+		/**
+		 * @param soap11    true for SOAP 1.1, false for SOAP 1.2
+		 * @param direction direction of the rejected message; requests are
+		 *                  rejected with a client fault, responses with a server
+		 *                  fault
+		 * @return the template
+		 */
+		static FaultTemplate get(boolean soap11, SOAPDirection direction)
+		{
+			boolean server = direction != SOAPDirection.INBOUND;
+			if (soap11)
+			{
+				return server ? SOAP11_SERVER : SOAP11_CLIENT;
+			}
+			return server ? SOAP12_RECEIVER : SOAP12_SENDER;
+		}
+
+		/**
+		 * @param reason reason of the fault
+		 * @return a copy of the prebuilt fault envelope with the given reason
+		 */
+		SOAPEnvelope createEnvelope(String reason)
+		{
+			SOAPEnvelope copy = CopyUtils.copy(envelope);
+			SOAPFaultReason faultReason = copy.getBody().getFault().getReason();
+			if (soap11)
+			{
+				faultReason.setText(reason);
+			} else
+			{
+				faultReason.getFirstSOAPText().setText(reason);
+			}
+			return copy;
+		}
+	}
 }
@@ -4,16 +4,26 @@ import org.apache.synapse.mediators.AbstractMediator;
 import org.codehaus.stax2.validation.XMLValidationProblem;
 import org.codehaus.stax2.validation.XMLValidationSchema;
 import org.apache.synapse.MessageContext;
+import org.apache.synapse.core.axis2.Axis2MessageContext;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.stream.XMLStreamException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import ch.integon.wso2.am.mediator.wsdl.model.CompiledValidationMode;
+import ch.integon.wso2.am.mediator.wsdl.model.ResourceLimitException;
+import ch.integon.wso2.am.mediator.wsdl.model.ResourceLimits;
 import ch.integon.wso2.am.mediator.wsdl.model.SOAPAnalysisResult;
+import ch.integon.wso2.am.mediator.wsdl.model.SOAPServiceOperation;
 import ch.integon.wso2.am.mediator.wsdl.model.SOAPValidationException;
+import ch.integon.wso2.am.mediator.wsdl.model.StructuralModel;
+import ch.integon.wso2.am.mediator.wsdl.model.ValidationMode;
 
 /**
  * SOAPValidationMediator is a custom class mediator for the WSO2 API Manager.
@@ -24,22 +34,101 @@ import ch.integon.wso2.am.mediator.wsdl.model.SOAPValidationException;
  *
  * Validation handles both single WSDL files and WSDL archives (zip).
  *
+ * The validation depth is configurable: besides full schema validation, a
+ * cheap structural check of the payload root and its direct children can be
+ * used on its own or as a fast path in front of the schema validation
+ * ({@link ValidationMode#TIERED}).
+ *
+ * Responses can also be validated in shadow mode: a detached copy of the
+ * payload is validated on a background executor for monitoring only, and the
+ * response leaves the gateway unchanged.
+ *
+ * Optionally the mediator adapts the validation depth to the load: when the
+ * average validation cost of an API exceeds the configured latency or CPU
+ * budget, validation is degraded from full to structural-only to sampled and
+ * recovered step by step once the load drops (see
+ * {@link AdaptiveValidationController}).
+ *
+ * Payloads larger than the configured threshold are validated while they
+ * stream through the gateway, with bounded heap usage (see
+ * {@link StreamingPayloadValidator}).
+ *
+ * MTOM/XOP messages are validated without inlining their binary attachments;
+ * the referenced attachments are only checked for presence and size.
+ *
+ * WSDLs are loaded and schemas compiled on a bounded worker pool with a time
+ * and allocation budget (see {@link SchemaCompilationExecutor}), so a
+ * pathological contract cannot hold the gateway's worker threads. Loaded
+ * services and compiled schemas are cached per tenant, with per-tenant quotas
+ * (see {@link TenantCache}). New revisions of a contract can be picked up
+ * incrementally: only the documents that changed are parsed and compiled
+ * again.
+ *
+ * Optionally the SOAP header blocks declared in the WSDL binding are validated
+ * together with the body, in the same pass over the envelope.
+ *
+ * Hot operations can be validated with a validator compiled from their schema
+ * (see {@link CompiledValidatorBuilder}) instead of the general schema
+ * validator; a compare mode runs both and reports disagreements.
+ *
+ * The validation engine is pluggable (see {@link ValidationEngine}): besides
+ * Woodstox/MSV, the JDK validator or the compiled validators can be selected
+ * per API; {@link ValidationEngineBenchmark} compares them for a contract.
+ *
  * Author: Integon GmbH
  */
 public class SOAPValidationMediator extends AbstractMediator {
 
     private static final Log logger = LogFactory.getLog(SOAPValidationMediator.class);
 
+    /** message context property holding the validation mode applied to the message */
+    public static final String VALIDATION_MODE_PROPERTY = "SOAP_VALIDATION_MODE";
+    /** message context property holding the record of a successful validation of the message */
+    public static final String VALIDATION_RECORD_PROPERTY = "SOAP_VALIDATION_RECORD";
+
     private final SOAPAnalyzer soapAnalyzer;
     private final SchemaResolver schemaResolver;
     private final SOAPValidator soapValidator;
     private final SOAPValidationFaultHandler soapValidationFaultHandler;
+    private final AdaptiveValidationController adaptiveController;
+    private final StreamingPayloadValidator streamingValidator;
+
+    private final AtomicLong deepValidationCounter = new AtomicLong();
+
+    private ValidationMode validationMode = ValidationMode.FULL;
+    private int deepValidationRate = 0;
+    private boolean adaptive = false;
+    private boolean shadowResponses = false;
+    private int shadowConcurrency = 2;
+    private int shadowQueueCapacity = 1000;
+    private volatile ShadowValidationExecutor shadowExecutor;
+    private long largePayloadThreshold = 0;
+    private boolean largePayloadUnknownLength = false;
+    private long largePayloadMemoryLimit = 1024 * 1024;
+    private boolean fastInfoset = false;
+    private long maxAttachmentSize = 0;
+    private boolean validateHeaders = false;
+    private boolean skipRevalidation = false;
+    private boolean recordTimings = false;
+    private int maxDepth = 0;
+    private long maxElements = 0;
+    private int maxAttributes = 0;
+    private int maxTextLength = 0;
+    private long maxCharacters = 0;
+    private boolean verdictCache = false;
+    private int verdictCacheMaxEntries = 1000;
+    private long verdictCacheMaxPayloadChars = 16384;
+    private CompiledValidationMode compiledValidation = CompiledValidationMode.OFF;
+    private long compiledValidationThreshold = 100;
+    private ValidationEngine validationEngine = null;
 
     public SOAPValidationMediator() {
         this.soapAnalyzer = new SOAPAnalyzer();
         this.schemaResolver = new SchemaResolver();
         this.soapValidator = new SOAPValidator();
         this.soapValidationFaultHandler = new SOAPValidationFaultHandler();
+        this.adaptiveController = new AdaptiveValidationController();
+        this.streamingValidator = new StreamingPayloadValidator(schemaResolver, soapValidator);
     }
 
     /**
@@ -59,48 +148,351 @@ public class SOAPValidationMediator extends AbstractMediator {
             return false;
         }
         String apiUUID = apiUUIDObject.toString();
+
+        if (validationMode == ValidationMode.OFF) {
+            logger.debug("Validation is turned off for API UUID: " + apiUUID);
+            return true;
+        }
+        if (skipRevalidation && isValidated(messageContext, apiUUID)) {
+            return true;
+        }
+        if (shadowResponses && messageContext.isResponse()) {
+            return shadowValidate(messageContext, apiUUID);
+        }
+        if (!adaptive) {
+            return validateMessage(messageContext, apiUUID, validationMode);
+        }
+
+        // Determine the validation depth the current load allows
+        ValidationMode controllerMode = adaptiveController.currentMode(apiUUID);
+        messageContext.setProperty(VALIDATION_MODE_PROPERTY, controllerMode.name());
+        ValidationMode mode = controllerMode;
+        if (mode == ValidationMode.SAMPLED) {
+            if (!adaptiveController.sample(apiUUID)) {
+                logger.debug("Message not sampled for validation for API UUID: " + apiUUID);
+                return true;
+            }
+            mode = validationMode;
+        } else if (mode == ValidationMode.FULL) {
+            mode = validationMode;
+        }
+
+        long startNanos = System.nanoTime();
+        long startCpuNanos = adaptiveController.currentThreadCpuTime();
+        try {
+            return validateMessage(messageContext, apiUUID, mode);
+        } finally {
+            adaptiveController.record(apiUUID, controllerMode, System.nanoTime() - startNanos,
+                    adaptiveController.currentThreadCpuTime() - startCpuNanos);
+        }
+    }
+
+    /**
+     * Validates the message with the given validation depth.
+     *
+     * @param messageContext Synapse message context
+     * @param apiUUID        API identifier
+     * @param mode           {@link ValidationMode#FULL},
+     *                       {@link ValidationMode#TIERED} or
+     *                       {@link ValidationMode#STRUCTURAL}
+     * @return true if payload is valid; false if invalid
+     */
+    private boolean validateMessage(MessageContext messageContext, String apiUUID, ValidationMode mode) {
+        ValidationTimings timings = recordTimings ? ValidationTimings.start(messageContext) : ValidationTimings.NONE;
+
+        // Large and Fast Infoset payloads are validated on the raw stream, without building the message first;
+        // the streaming pass skips the SOAP header, so it is not used when headers are validated
+        if (mode != ValidationMode.STRUCTURAL && !validateHeaders
+                && ((fastInfoset && streamingValidator.appliesToFastInfoset(messageContext))
+                        || (largePayloadThreshold > 0 && streamingValidator.applies(messageContext, largePayloadThreshold,
+                                largePayloadUnknownLength)))) {
+            return validateLargePayload(messageContext, apiUUID, timings);
+        }
+
         logger.debug("Starting SOAP analysis for API UUID: " + apiUUID);
 
         // Analyze the incoming SOAP message
         SOAPAnalysisResult result = null;
-		try
-		{
-			result = soapAnalyzer.analyze(messageContext);
-		} catch (SOAPValidationException e)
-		{
-			return soapValidationFaultHandler.handleValidationProblem(messageContext, null, e.getMessage());
-		}
+        try {
+            result = soapAnalyzer.analyze(messageContext);
+        } catch (SOAPValidationException e) {
+            return soapValidationFaultHandler.handleValidationProblem(messageContext, null, e.getMessage());
+        }
         logger.debug("SOAP analysis completed. Detected SOAP version: " + result.getSoapVersion());
+        timings.analyzed();
+
+        // Match the service operation of this API and SOAP body
+        SOAPServiceOperation serviceOperation = null;
+        try {
+            serviceOperation = schemaResolver.resolveOperation(apiUUID, result);
+        } catch (Exception e) {
+            return soapValidationFaultHandler.handleValidationProblem(messageContext, null, e.getMessage());
+        }
+        timings.operation(serviceOperation.getOperationName());
+        timings.resolved();
+
+        // Cheap structural check of the payload root and its direct children
+        if (mode == ValidationMode.STRUCTURAL || mode == ValidationMode.TIERED) {
+            StructuralModel.Result structuralResult = null;
+            try {
+                StructuralModel model = schemaResolver.resolveStructuralModel(apiUUID, serviceOperation);
+                timings.resolved();
+                structuralResult = soapValidator.checkStructure(model, result);
+                timings.validated();
+            } catch (XMLStreamException e) {
+                // reported through the fault handler, aggregated and rate limited
+                logger.debug("Error during structural check", e);
+                return soapValidationFaultHandler.handleValidationProblem(messageContext, null, e.getLocalizedMessage());
+            } catch (SOAPValidationException e) {
+                return soapValidationFaultHandler.handleValidationProblem(messageContext, null, e.getMessage());
+            }
+
+            if (mode == ValidationMode.STRUCTURAL) {
+                timings.problems(structuralResult.getVerdict() == StructuralModel.Verdict.INVALID ? 1 : 0);
+                if (structuralResult.getVerdict() == StructuralModel.Verdict.INVALID) {
+                    return soapValidationFaultHandler.handleValidationProblem(messageContext,
+                            serviceOperation.getOperationName(), null, structuralResult.getMessage());
+                }
+                logger.debug("Payload structure is valid for API UUID: " + apiUUID);
+                return true;
+            }
+
+            if (structuralResult.getVerdict() == StructuralModel.Verdict.VALID && !selectForDeepValidation()) {
+                timings.problems(0);
+                logger.debug("Payload structure is valid for API UUID: " + apiUUID + " - skipping deep validation");
+                return true;
+            }
+            logger.debug("Structural check verdict " + structuralResult.getVerdict() + " - running deep validation");
+        }
+
+        org.apache.axis2.context.MessageContext axis2MessageContext = ((Axis2MessageContext) messageContext)
+                .getAxis2MessageContext();
+        if (validationEngine != null && !validateHeaders && !axis2MessageContext.isDoingMTOM()) {
+            return validateWithEngine(messageContext, apiUUID, serviceOperation, result, timings);
+        }
 
         // Resolve schema for this API and SOAP body
         logger.debug("Resolving schema for API UUID: " + apiUUID);
-        XMLValidationSchema schema = null;
-        try
-        {
-        	schema = schemaResolver.resolve(apiUUID, result);
-        }
-        catch (Exception e)
-        {
-        	return soapValidationFaultHandler.handleValidationProblem(messageContext, null, e.getMessage());
+        XMLValidationSchema schema = schemaResolver.getCachedSchema(apiUUID, serviceOperation);
+        timings.schemaCache(schema != null);
+        if (schema == null) {
+            try {
+                schema = schemaResolver.resolveSchema(apiUUID, serviceOperation);
+            } catch (Exception e) {
+                return soapValidationFaultHandler.handleValidationProblem(messageContext, null, e.getMessage());
+            }
         }
+        timings.resolved();
         logger.debug("Schema resolution completed");
 
         // Validate SOAP payload against schema
         List<XMLValidationProblem> problems = null;
         try {
             logger.debug("Starting payload validation");
-            problems = soapValidator.validate(schema, result);
+            XopAttachmentChecker attachmentChecker = axis2MessageContext.isDoingMTOM()
+                    ? new XopAttachmentChecker(axis2MessageContext.getAttachmentMap(), maxAttachmentSize)
+                    : null;
+            if (validateHeaders) {
+                // headers and body in one pass over the envelope
+                problems = soapValidator.validateEnvelope(schema, axis2MessageContext.getEnvelope(),
+                        serviceOperation.getHeaderElementNames(messageContext.isResponse()), attachmentChecker);
+            } else if (attachmentChecker != null) {
+                // validate without inlining the binary attachments
+                problems = soapValidator.validate(schema, result, attachmentChecker);
+            } else {
+                VerdictCache.Lookup verdict = lookupVerdict(apiUUID, serviceOperation, result, timings);
+                if (verdict != null && verdict.getProblems() != null) {
+                    problems = verdict.getProblems();
+                } else {
+                    problems = validatePayload(apiUUID, serviceOperation, schema, result);
+                    if (verdict != null) {
+                        verdict.store(problems, verdictCacheMaxEntries);
+                    }
+                }
+            }
             logger.debug("Payload validation completed");
+            timings.validated();
+            timings.problems(problems == null ? 0 : problems.size());
+        } catch (ResourceLimitException e) {
+            return rejectOverLimit(messageContext, apiUUID, e);
         } catch (XMLStreamException e) {
-            logger.error("Error during validation", e);
-            
+            // reported through the fault handler, aggregated and rate limited
+            logger.debug("Error during validation", e);
+
             return soapValidationFaultHandler.handleValidationProblem(messageContext, null, e.getLocalizedMessage());
         }
 
-        // Handle schema violations 
+        // Handle schema violations
         if ((problems != null && !problems.isEmpty())) {
-            logger.error("Schema violations occured for api: " + apiUUID);
+            return soapValidationFaultHandler.handleValidationProblem(messageContext,
+                    serviceOperation.getOperationName(), problems, "payload not conform to schema");
+        }
+
+        logger.debug("Payload is valid for API UUID: " + apiUUID);
+        recordValidation(messageContext, apiUUID, serviceOperation);
+        return true;
+    }
+
+    /**
+     * Validates the SOAP body with the configured validation engine.
+     *
+     * @param messageContext   Synapse message context
+     * @param apiUUID          API identifier
+     * @param serviceOperation matched service and operation
+     * @param result           SOAP analysis result containing the body
+     * @param timings          figures of the message
+     * @return true if payload is valid; false if invalid
+     */
+    private boolean validateWithEngine(MessageContext messageContext, String apiUUID,
+            SOAPServiceOperation serviceOperation, SOAPAnalysisResult result, ValidationTimings timings) {
+        logger.debug("Validating payload with engine " + validationEngine.getName() + " for API UUID: " + apiUUID);
+
+        List<XMLValidationProblem> problems = null;
+        try {
+            ValidationEngine.PreparedSchema schema = schemaResolver.getCachedPreparedSchema(apiUUID, serviceOperation,
+                    validationEngine);
+            timings.schemaCache(schema != null);
+            if (schema == null) {
+                schema = schemaResolver.resolvePreparedSchema(apiUUID, serviceOperation, validationEngine);
+            }
+            timings.resolved();
+            VerdictCache.Lookup verdict = lookupVerdict(apiUUID, serviceOperation, result, timings);
+            if (verdict != null && verdict.getProblems() != null) {
+                problems = verdict.getProblems();
+            } else {
+                problems = schema.validate(result.getSoapBodyElement(), soapValidator.getResourceLimits());
+                if (verdict != null) {
+                    verdict.store(problems, verdictCacheMaxEntries);
+                }
+            }
+            timings.validated();
+            timings.problems(problems.size());
+        } catch (SOAPValidationException e) {
+            return soapValidationFaultHandler.handleValidationProblem(messageContext, null, e.getMessage());
+        } catch (ResourceLimitException e) {
+            return rejectOverLimit(messageContext, apiUUID, e);
+        } catch (XMLStreamException e) {
+            // reported through the fault handler, aggregated and rate limited
+            logger.debug("Error during validation", e);
+            return soapValidationFaultHandler.handleValidationProblem(messageContext, null, e.getLocalizedMessage());
+        }
+
+        if (!problems.isEmpty()) {
+            return soapValidationFaultHandler.handleValidationProblem(messageContext,
+                    serviceOperation.getOperationName(), problems, "payload not conform to schema");
+        }
+
+        logger.debug("Payload is valid for API UUID: " + apiUUID);
+        recordValidation(messageContext, apiUUID, serviceOperation);
+        return true;
+    }
+
+    /**
+     * Looks up the cached verdict of the payload, if the verdict cache is
+     * enabled.
+     *
+     * @param apiUUID          API identifier
+     * @param serviceOperation matched service and operation
+     * @param result           SOAP analysis result containing the body
+     * @param timings          figures of the message, records the outcome
+     * @return the lookup, null if verdicts are not cached for this payload
+     * @throws XMLStreamException if the payload of a cached verdict exceeds a
+     *                            resource limit
+     */
+    private VerdictCache.Lookup lookupVerdict(String apiUUID, SOAPServiceOperation serviceOperation,
+            SOAPAnalysisResult result, ValidationTimings timings) throws XMLStreamException {
+        if (!verdictCache) {
+            return null;
+        }
+        VerdictCache.Lookup verdict = VerdictCache.getInstance().lookup(apiUUID, serviceOperation.getRuntimeOperation(),
+                getValidationConfiguration(), result.getSoapBodyElement(), verdictCacheMaxPayloadChars);
+        if (verdict != null) {
+            timings.verdictCache(verdict.getProblems() != null);
+            if (verdict.getProblems() != null) {
+                // the validation pass that enforces the limits is skipped
+                ResourceLimitChecker.check(result.getSoapBodyElement(), soapValidator.getResourceLimits());
+            }
+        }
+        return verdict;
+    }
+
+    /**
+     * @return a string identifying the settings a validation result depends
+     *         on: the validation engine, the compiled validation mode and the
+     *         resource limits
+     */
+    private String getValidationConfiguration() {
+        return (validationEngine != null ? validationEngine.getName() : ValidationEngines.DEFAULT_ENGINE) + ","
+                + compiledValidation + "," + soapValidator.getResourceLimits().getFingerprint();
+    }
+
+    /**
+     * Validates the SOAP body, using the compiled validator of the operation if
+     * enabled and available.
+     *
+     * @param apiUUID          API identifier
+     * @param serviceOperation matched service and operation
+     * @param schema           compiled schema of the operation
+     * @param result           SOAP analysis result containing the body
+     * @return the validation problems, empty if valid
+     * @throws XMLStreamException if an XML parsing error occurs
+     */
+    private List<XMLValidationProblem> validatePayload(String apiUUID, SOAPServiceOperation serviceOperation,
+            XMLValidationSchema schema, SOAPAnalysisResult result) throws XMLStreamException {
+        if (compiledValidation == CompiledValidationMode.OFF) {
+            return soapValidator.validate(schema, result);
+        }
 
+        CompiledValidator compiledValidator = schemaResolver.resolveCompiledValidator(apiUUID, serviceOperation,
+                compiledValidationThreshold);
+        List<XMLValidationProblem> compiledProblems = compiledValidator == null ? null
+                : soapValidator.validate(compiledValidator, result);
+        if (compiledProblems != null && compiledValidation == CompiledValidationMode.ON) {
+            return compiledProblems;
+        }
+
+        List<XMLValidationProblem> problems = soapValidator.validate(schema, result);
+        if (compiledProblems != null && compiledProblems.isEmpty() != problems.isEmpty()) {
+            // the schema validator is authoritative, stop using the compiled validator
+            logger.warn("Compiled validator of " + serviceOperation.getOperationName() + " for api " + apiUUID
+                    + " disagrees with schema validation (compiled: " + compiledProblems.size() + " problems, schema: "
+                    + problems.size() + " problems) - disabling it");
+            ValidationMetrics.getInstance().increment(apiUUID + ".compiled.mismatch");
+            schemaResolver.disableCompiledValidator(apiUUID, serviceOperation);
+        }
+        return problems;
+    }
+
+    /**
+     * Validates a large payload while it streams through the gateway. The
+     * structural fast path is skipped, the payload is always validated against
+     * the compiled schema.
+     *
+     * @param messageContext Synapse message context
+     * @param apiUUID        API identifier
+     * @param timings        figures of the message
+     * @return true if payload is valid; false if invalid
+     */
+    private boolean validateLargePayload(MessageContext messageContext, String apiUUID, ValidationTimings timings) {
+        logger.debug("Starting streaming validation of large payload for API UUID: " + apiUUID);
+
+        List<XMLValidationProblem> problems = null;
+        try {
+            problems = streamingValidator.validate(apiUUID, messageContext, largePayloadMemoryLimit);
+        } catch (SOAPValidationException e) {
+            return soapValidationFaultHandler.handleValidationProblem(messageContext, null, e.getMessage());
+        } catch (ResourceLimitException e) {
+            return rejectOverLimit(messageContext, apiUUID, e);
+        } catch (XMLStreamException | IOException e) {
+            // reported through the fault handler, aggregated and rate limited
+            logger.debug("Error during streaming validation", e);
+            return soapValidationFaultHandler.handleValidationProblem(messageContext, null, e.getLocalizedMessage());
+        }
+        // matching and resolving are part of the streaming pass
+        timings.validated();
+        timings.problems(problems.size());
+
+        if (!problems.isEmpty()) {
             return soapValidationFaultHandler.handleValidationProblem(messageContext, problems, "payload not conform to schema");
         }
 
@@ -108,4 +500,505 @@ public class SOAPValidationMediator extends AbstractMediator {
         return true;
     }
 
+    /**
+     * Rejects a payload that exceeded one of the resource limits.
+     *
+     * @param messageContext Synapse message context
+     * @param apiUUID        API identifier
+     * @param e              the exceeded limit
+     * @return false always
+     */
+    private boolean rejectOverLimit(MessageContext messageContext, String apiUUID, ResourceLimitException e) {
+        ValidationMetrics.getInstance().increment(apiUUID + ".limit.exceeded");
+        return soapValidationFaultHandler.handleValidationProblem(messageContext, null, e.getMessage());
+    }
+
+    /**
+     * Checks whether the message was already validated for this API with the
+     * same configuration, e.g. by the same policy attached on API and on
+     * operation level, and has not been changed since.
+     *
+     * @param messageContext Synapse message context
+     * @param apiUUID        API identifier
+     * @return true if the message does not need to be validated again
+     */
+    private boolean isValidated(MessageContext messageContext, String apiUUID) {
+        Object record = messageContext.getProperty(VALIDATION_RECORD_PROPERTY);
+        if (!(record instanceof ValidationRecord)) {
+            return false;
+        }
+        if (((ValidationRecord) record).covers(messageContext, apiUUID, getValidationConfiguration(),
+                validateHeaders)) {
+            ValidationMetrics.getInstance().increment(apiUUID + ".revalidation.skipped");
+            logger.debug("Payload already validated for API UUID: " + apiUUID + " - skipping validation");
+            return true;
+        }
+        // the payload changed since or was validated differently, the record no longer applies
+        messageContext.setProperty(VALIDATION_RECORD_PROPERTY, null);
+        return false;
+    }
+
+    /**
+     * Records the successful validation of the message against the schema, so a
+     * further pass of the mediator can skip it.
+     *
+     * @param messageContext   Synapse message context
+     * @param apiUUID          API identifier
+     * @param serviceOperation validated service and operation
+     */
+    private void recordValidation(MessageContext messageContext, String apiUUID,
+            SOAPServiceOperation serviceOperation) {
+        if (skipRevalidation) {
+            messageContext.setProperty(VALIDATION_RECORD_PROPERTY, ValidationRecord.of(messageContext, apiUUID,
+                    serviceOperation.getOperationName(), getValidationConfiguration(), validateHeaders));
+        }
+    }
+
+    /**
+     * Hands a detached copy of the payload to the background executor for
+     * log-only validation. The payload is only built and serialized if the
+     * executor can take it. The message always continues unchanged.
+     *
+     * @param messageContext Synapse message context
+     * @param apiUUID        API identifier
+     * @return true always
+     */
+    private boolean shadowValidate(MessageContext messageContext, String apiUUID) {
+        ShadowValidationExecutor executor = getShadowExecutor();
+        if (messageContext.isFaultResponse() || !executor.accepts(apiUUID)) {
+            return true;
+        }
+        try {
+            // faults are not validated and were left out above
+            SOAPAnalysisResult result = soapAnalyzer.analyze(messageContext);
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            result.getSoapBodyElement().serialize(payload);
+            executor.submit(apiUUID, result.getSoapAction(), result.getSoapBodyQName(), payload.toByteArray());
+        } catch (SOAPValidationException | XMLStreamException e) {
+            ValidationMetrics.getInstance().increment(apiUUID + ".shadow.error");
+            logger.warn("Unable to hand over payload for shadow validation for api: " + apiUUID + " - " + e.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * @return the shadow validation executor, created on first use
+     */
+    private ShadowValidationExecutor getShadowExecutor() {
+        ShadowValidationExecutor executor = shadowExecutor;
+        if (executor == null) {
+            synchronized (this) {
+                if (shadowExecutor == null) {
+                    shadowExecutor = new ShadowValidationExecutor(shadowConcurrency, shadowQueueCapacity, schemaResolver,
+                            soapValidator);
+                }
+                executor = shadowExecutor;
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * In tiered mode decides whether a structurally valid message is also
+     * validated against the compiled schema.
+     *
+     * @return true for one of every {@code deepValidationRate} messages
+     */
+    private boolean selectForDeepValidation() {
+        return deepValidationRate > 0 && deepValidationCounter.getAndIncrement() % deepValidationRate == 0;
+    }
+
+    /**
+     * Sets the validation depth: {@code off}, {@code structural},
+     * {@code tiered} or {@code full} (default).
+     *
+     * @param validationMode name of the validation mode
+     */
+    public void setValidationMode(String validationMode) {
+        ValidationMode mode = ValidationMode.valueOf(validationMode.trim().toUpperCase());
+        if (mode == ValidationMode.SAMPLED) {
+            throw new IllegalArgumentException("validation mode " + validationMode + " can only be set adaptively");
+        }
+        this.validationMode = mode;
+    }
+
+    /**
+     * @param deepValidationRate in tiered mode, one of this many structurally
+     *                           valid messages is validated against the schema;
+     *                           0 never selects messages
+     */
+    public void setDeepValidationRate(int deepValidationRate) {
+        this.deepValidationRate = deepValidationRate;
+    }
+
+    /**
+     * Enables log-only validation of responses on a background executor. Invalid
+     * responses are reported but passed on unchanged and without added latency.
+     *
+     * @param shadowResponses true to validate responses in shadow mode
+     */
+    public void setShadowResponses(boolean shadowResponses) {
+        this.shadowResponses = shadowResponses;
+    }
+
+    /**
+     * @param shadowConcurrency maximum number of responses validated concurrently
+     *                          in shadow mode
+     */
+    public void setShadowConcurrency(int shadowConcurrency) {
+        this.shadowConcurrency = shadowConcurrency;
+    }
+
+    /**
+     * @param shadowQueueCapacity maximum number of responses waiting for shadow
+     *                            validation before further ones are dropped
+     */
+    public void setShadowQueueCapacity(int shadowQueueCapacity) {
+        this.shadowQueueCapacity = shadowQueueCapacity;
+    }
+
+    /**
+     * @param largePayloadThreshold payload size in bytes above which the payload
+     *                              is validated while streaming, 0 disables
+     *                              streaming validation
+     */
+    public void setLargePayloadThreshold(long largePayloadThreshold) {
+        this.largePayloadThreshold = largePayloadThreshold;
+    }
+
+    /**
+     * @param largePayloadUnknownLength true to also validate messages without
+     *                                  Content-Length (e.g. chunked) while
+     *                                  streaming, if streaming is enabled
+     */
+    public void setLargePayloadUnknownLength(boolean largePayloadUnknownLength) {
+        this.largePayloadUnknownLength = largePayloadUnknownLength;
+    }
+
+    /**
+     * @param largePayloadMemoryLimit number of bytes of a streamed payload kept on
+     *                                the heap before it is spilled to disk
+     */
+    public void setLargePayloadMemoryLimit(long largePayloadMemoryLimit) {
+        this.largePayloadMemoryLimit = largePayloadMemoryLimit;
+    }
+
+    /**
+     * @param recordTimings true to record the phase timings, cache outcomes,
+     *                      operation and problem count of every validated
+     *                      message as message context properties (see
+     *                      {@link ValidationTimings})
+     */
+    public void setRecordTimings(boolean recordTimings) {
+        this.recordTimings = recordTimings;
+    }
+
+    /**
+     * @param fastInfoset true to validate unbuilt Fast Infoset messages directly
+     *                    on their binary stream, whatever their size
+     */
+    public void setFastInfoset(boolean fastInfoset) {
+        this.fastInfoset = fastInfoset;
+    }
+
+    /**
+     * @param maxAttachmentSize maximum size in bytes of an MTOM/XOP attachment
+     *                          referenced by the payload, 0 disables the check
+     */
+    public void setMaxAttachmentSize(long maxAttachmentSize) {
+        this.maxAttachmentSize = maxAttachmentSize;
+    }
+
+    /**
+     * Enables the validation of the SOAP header blocks declared by the
+     * {@code soap:header} parts of the WSDL binding. Undeclared header blocks are
+     * ignored, missing declared ones are reported. Messages are then always
+     * built first, large and Fast Infoset payloads are not validated while
+     * streaming.
+     *
+     * @param validateHeaders true to validate declared headers with the body
+     */
+    public void setValidateHeaders(boolean validateHeaders) {
+        this.validateHeaders = validateHeaders;
+    }
+
+    /**
+     * @param skipRevalidation true to skip a message that was already validated
+     *                         for this API by an earlier, equally configured
+     *                         pass of the mediator and has not been changed
+     *                         since
+     */
+    public void setSkipRevalidation(boolean skipRevalidation) {
+        this.skipRevalidation = skipRevalidation;
+    }
+
+    /**
+     * @param maxDepth maximum nesting depth of the elements of a payload, 0 for
+     *                 no limit
+     */
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+        applyResourceLimits();
+    }
+
+    /**
+     * @param maxElements maximum number of elements of a payload, 0 for no limit
+     */
+    public void setMaxElements(long maxElements) {
+        this.maxElements = maxElements;
+        applyResourceLimits();
+    }
+
+    /**
+     * @param maxAttributes maximum number of attributes of one element, 0 for no
+     *                      limit
+     */
+    public void setMaxAttributes(int maxAttributes) {
+        this.maxAttributes = maxAttributes;
+        applyResourceLimits();
+    }
+
+    /**
+     * @param maxTextLength maximum length of one text node, 0 for no limit
+     */
+    public void setMaxTextLength(int maxTextLength) {
+        this.maxTextLength = maxTextLength;
+        applyResourceLimits();
+    }
+
+    /**
+     * @param maxCharacters maximum number of characters of all text and
+     *                      attribute values of a payload, 0 for no limit
+     */
+    public void setMaxCharacters(long maxCharacters) {
+        this.maxCharacters = maxCharacters;
+        applyResourceLimits();
+    }
+
+    /**
+     * Applies the configured resource limits to the validator, which also
+     * provides them (and its input factory) to the streaming, shadow and warm-up
+     * validation.
+     */
+    private void applyResourceLimits() {
+        soapValidator.setResourceLimits(
+                new ResourceLimits(maxDepth, maxElements, maxAttributes, maxTextLength, maxCharacters));
+    }
+
+    /**
+     * Enables the caching of the verdicts of identical payloads (see
+     * {@link VerdictCache}).
+     *
+     * @param verdictCache true to cache the verdicts of repeated payloads
+     */
+    public void setVerdictCache(boolean verdictCache) {
+        this.verdictCache = verdictCache;
+    }
+
+    /**
+     * @param verdictCacheMaxEntries maximum number of cached verdicts per API
+     */
+    public void setVerdictCacheMaxEntries(int verdictCacheMaxEntries) {
+        this.verdictCacheMaxEntries = verdictCacheMaxEntries;
+    }
+
+    /**
+     * @param verdictCacheMaxPayloadChars number of characters above which the
+     *                                    verdict of a payload is not cached
+     */
+    public void setVerdictCacheMaxPayloadChars(long verdictCacheMaxPayloadChars) {
+        this.verdictCacheMaxPayloadChars = verdictCacheMaxPayloadChars;
+    }
+
+    /**
+     * Selects the validation engine for plain payloads (MTOM, header and large
+     * payload validation always use Woodstox/MSV): {@code msv} (default),
+     * {@code jaxp}, {@code compiled} or the name of an engine registered
+     * through {@link java.util.ServiceLoader}.
+     *
+     * @param validationEngine name of the validation engine
+     */
+    public void setValidationEngine(String validationEngine) {
+        ValidationEngine engine = ValidationEngines.get(validationEngine);
+        this.validationEngine = ValidationEngines.DEFAULT_ENGINE.equals(engine.getName()) ? null : engine;
+    }
+
+    /**
+     * Sets the use of compiled validators for hot operations: {@code off}
+     * (default), {@code on} or {@code compare}.
+     *
+     * @param compiledValidation name of the compiled validation mode
+     */
+    public void setCompiledValidation(String compiledValidation) {
+        this.compiledValidation = CompiledValidationMode.valueOf(compiledValidation.trim().toUpperCase());
+    }
+
+    /**
+     * @param compiledValidationThreshold number of validations of an operation
+     *                                    after which its validator is compiled
+     */
+    public void setCompiledValidationThreshold(long compiledValidationThreshold) {
+        this.compiledValidationThreshold = compiledValidationThreshold;
+    }
+
+    /**
+     * @param revisionCheckMillis interval in which the registry is checked for a
+     *                            new revision of the API's contract, 0 to load
+     *                            it only once
+     */
+    public void setRevisionCheckMillis(long revisionCheckMillis) {
+        schemaResolver.setRevisionCheckMillis(revisionCheckMillis);
+    }
+
+    /**
+     * @param releaseServiceModel true to release the parsed WSDLs and schemas of
+     *                            an API once its operations in use are compiled
+     */
+    public void setReleaseServiceModel(boolean releaseServiceModel) {
+        schemaResolver.setReleaseServiceModels(releaseServiceModel);
+    }
+
+    /**
+     * @param warmupMillis time spent validating synthetic payloads of an
+     *                     operation after its schema is compiled, 0 to not warm
+     *                     up
+     */
+    public void setWarmupMillis(long warmupMillis) {
+        schemaResolver.setWarmup(
+                warmupMillis > 0 ? new ValidationWarmup(schemaResolver, soapValidator, warmupMillis) : null);
+    }
+
+    /**
+     * @param parseParallelism maximum number of WSDLs of an archive parsed in
+     *                         parallel (shared by all APIs)
+     */
+    public void setParseParallelism(int parseParallelism) {
+        WSDLServiceBuilder.setParseParallelism(parseParallelism);
+    }
+
+    /**
+     * @param problemLogRate maximum number of individual validation problems
+     *                       logged per second (shared by all APIs), 0 to only
+     *                       log the summaries
+     */
+    public void setProblemLogRate(int problemLogRate) {
+        ValidationProblemLogger.getInstance().setMaxLinesPerSecond(problemLogRate);
+    }
+
+    /**
+     * @param problemSummaryMillis interval of the aggregated validation problem
+     *                             summaries (shared by all APIs), 0 to disable
+     *                             them
+     */
+    public void setProblemSummaryMillis(long problemSummaryMillis) {
+        ValidationProblemLogger.getInstance().setSummaryIntervalMillis(problemSummaryMillis);
+    }
+
+    /**
+     * @param compileConcurrency maximum number of WSDLs/schemas compiled
+     *                           concurrently (shared by all APIs)
+     */
+    public void setCompileConcurrency(int compileConcurrency) {
+        SchemaCompilationExecutor.getInstance().setConcurrency(compileConcurrency);
+    }
+
+    /**
+     * @param compileTimeoutMillis maximum time a WSDL/schema compilation may take
+     *                             (shared by all APIs)
+     */
+    public void setCompileTimeoutMillis(long compileTimeoutMillis) {
+        SchemaCompilationExecutor.getInstance().setTimeoutMillis(compileTimeoutMillis);
+    }
+
+    /**
+     * @param compileAllocationBudgetBytes approximate number of bytes a
+     *                                     WSDL/schema compilation may allocate, 0
+     *                                     disables the check (shared by all APIs)
+     */
+    public void setCompileAllocationBudgetBytes(long compileAllocationBudgetBytes) {
+        SchemaCompilationExecutor.getInstance().setAllocationBudgetBytes(compileAllocationBudgetBytes);
+    }
+
+    /**
+     * @param compileRetryMillis time after which a failed compilation is retried
+     *                           (shared by all APIs)
+     */
+    public void setCompileRetryMillis(long compileRetryMillis) {
+        SchemaCompilationExecutor.getInstance().setRetryMillis(compileRetryMillis);
+    }
+
+    /**
+     * @param tenantCacheMaxEntries maximum number of cached services and schemas
+     *                              per tenant, 0 for no limit (shared by all
+     *                              APIs)
+     */
+    public void setTenantCacheMaxEntries(long tenantCacheMaxEntries) {
+        TenantCache.getInstance().setDefaultMaxEntries(tenantCacheMaxEntries);
+    }
+
+    /**
+     * @param tenantCacheMaxBytes maximum bytes allocated to build the cached
+     *                            services and schemas per tenant, 0 for no limit
+     *                            (shared by all APIs)
+     */
+    public void setTenantCacheMaxBytes(long tenantCacheMaxBytes) {
+        TenantCache.getInstance().setDefaultMaxBytes(tenantCacheMaxBytes);
+    }
+
+    /**
+     * @param tenantCacheQuotas quotas of individual tenants, as comma separated
+     *                          {@code <tenant domain>=<max entries>/<max bytes>}
+     *                          (shared by all APIs)
+     */
+    public void setTenantCacheQuotas(String tenantCacheQuotas) {
+        TenantCache.getInstance().setQuotas(tenantCacheQuotas);
+    }
+
+    /**
+     * Enables the adaptive validation depth.
+     *
+     * @param adaptive true to degrade validation under load
+     */
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * @param latencyBudgetMillis average validation latency per message before
+     *                            validation is degraded, 0 disables the check
+     */
+    public void setLatencyBudgetMillis(long latencyBudgetMillis) {
+        adaptiveController.setLatencyBudgetMillis(latencyBudgetMillis);
+    }
+
+    /**
+     * @param cpuBudgetMillis average validation CPU time per message before
+     *                        validation is degraded, 0 disables the check
+     */
+    public void setCpuBudgetMillis(long cpuBudgetMillis) {
+        adaptiveController.setCpuBudgetMillis(cpuBudgetMillis);
+    }
+
+    /**
+     * @param modeCooldownMillis minimum time between two validation mode changes
+     */
+    public void setModeCooldownMillis(long modeCooldownMillis) {
+        adaptiveController.setCooldownMillis(modeCooldownMillis);
+    }
+
+    /**
+     * @param recoveryRatio fraction of the budget the cost has to fall below
+     *                      before validation is raised again
+     */
+    public void setRecoveryRatio(double recoveryRatio) {
+        adaptiveController.setRecoveryRatio(recoveryRatio);
+    }
+
+    /**
+     * @param sampleRate in sampled mode, one of this many messages is validated
+     */
+    public void setSampleRate(int sampleRate) {
+        adaptiveController.setSampleRate(sampleRate);
+    }
+
 }
@@ -1,13 +1,21 @@
 package ch.integon.wso2.am.mediator.wsdl;
 
+import java.io.InputStream;
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
+import javax.xml.namespace.QName;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.soap.SOAPEnvelope;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.codehaus.stax2.XMLStreamReader2;
@@ -16,15 +24,22 @@ import org.codehaus.stax2.validation.XMLValidationException;
 import org.codehaus.stax2.validation.XMLValidationProblem;
 import org.codehaus.stax2.validation.XMLValidationSchema;
 
+import com.ctc.wstx.api.WstxInputProperties;
 import com.ctc.wstx.stax.WstxInputFactory;
+import com.sun.xml.fastinfoset.stax.StAXDocumentParser;
 
+import ch.integon.wso2.am.mediator.wsdl.model.ResourceLimits;
 import ch.integon.wso2.am.mediator.wsdl.model.SOAPAnalysisResult;
+import ch.integon.wso2.am.mediator.wsdl.model.StructuralModel;
 
 /**
  * SOAPValidator is responsible for validating a SOAP payload against a given
  * XML schema.
  * <p>
- * It uses Woodstox XMLStreamReader2 and StAX2 validation.
+ * It uses Woodstox XMLStreamReader2 and StAX2 validation. Fast Infoset
+ * (binary XML) payloads are read with the Fast Infoset StAX parser and
+ * validated with a {@link StaxValidationDriver}, without converting them to
+ * textual XML.
  * <p>
  * Validation problems are collected into a list and returned, to allow further
  * handling by the mediator.
@@ -34,6 +49,29 @@ public class SOAPValidator
 
 	private static final Log logger = LogFactory.getLog(SOAPValidator.class);
 
+	private static final String SOAP11_NS = "http://schemas.xmlsoap.org/soap/envelope/";
+	private static final String SOAP_ENVELOPE = "Envelope";
+	private static final String SOAP_HEADER = "Header";
+	private static final String SOAP_BODY = "Body";
+
+	private volatile ResourceLimits resourceLimits = ResourceLimits.NONE;
+
+	/**
+	 * @param resourceLimits limits enforced on every validated payload
+	 */
+	public void setResourceLimits(ResourceLimits resourceLimits)
+	{
+		this.resourceLimits = resourceLimits == null ? ResourceLimits.NONE : resourceLimits;
+	}
+
+	/**
+	 * @return the limits enforced on every validated payload
+	 */
+	public ResourceLimits getResourceLimits()
+	{
+		return resourceLimits;
+	}
+
 	/**
 	 * Validates the SOAP body against the provided XML schema.
 	 *
@@ -45,21 +83,377 @@ public class SOAPValidator
 	public List<XMLValidationProblem> validate(XMLValidationSchema schema, SOAPAnalysisResult result)
 			throws XMLStreamException
 	{
-		logger.debug("Starting SOAP payload validation");
+		return validate(schema, result.getSoapBodyElement());
+	}
 
-		// Initialize Woodstox input factory
-		WstxInputFactory factory = new WstxInputFactory();
-		factory.setProperty(XMLInputFactory.IS_COALESCING, true);
-		// TODO: Configure factory properties if needed. see:
-		// https://github.com/codehaus/woodstox/blob/master/wstx1/src/java/com/ctc/wstx/stax/WstxInputProperties.java
+	/**
+	 * Validates a payload element against the provided XML schema.
+	 *
+	 * @param schema  the compiled XMLValidationSchema for the WSDL/XSD
+	 * @param payload the payload element, usually the first child of the SOAP
+	 *                body
+	 * @return a list of XMLValidationProblem, empty if valid
+	 * @throws XMLStreamException if an XML parsing error occurs
+	 */
+	public List<XMLValidationProblem> validate(XMLValidationSchema schema, OMElement payload)
+			throws XMLStreamException
+	{
+		return validate(schema, payload, resourceLimits);
+	}
+
+	/**
+	 * Validates a payload element against the provided XML schema with the
+	 * given resource limits instead of the ones of this validator.
+	 *
+	 * @param schema  the compiled XMLValidationSchema for the WSDL/XSD
+	 * @param payload the payload element, usually the first child of the SOAP
+	 *                body
+	 * @param limits  limits enforced on the payload
+	 * @return a list of XMLValidationProblem, empty if valid
+	 * @throws XMLStreamException if an XML parsing error occurs or a limit is
+	 *                            exceeded
+	 */
+	public List<XMLValidationProblem> validate(XMLValidationSchema schema, OMElement payload, ResourceLimits limits)
+			throws XMLStreamException
+	{
+		logger.debug("Starting SOAP payload validation");
 
 		// Get SOAP body XML as string
-		String xmlPayload = result.getSoapBodyElement().toString();
+		String xmlPayload = payload.toString();
 		logger.debug("SOAP payload extracted: "
 				+ (xmlPayload.length() > 200 ? xmlPayload.substring(0, 200) + "..." : xmlPayload));
 
-		// Create XMLStreamReader2 from payload
-		XMLStreamReader2 reader = (XMLStreamReader2) factory.createXMLStreamReader(new StringReader(xmlPayload));
+		return validateStream(schema, createInputFactory(limits).createXMLStreamReader(new StringReader(xmlPayload)),
+				limits);
+	}
+
+	/**
+	 * Validates the SOAP body of an MTOM/XOP message against the provided XML
+	 * schema, directly from the Axiom tree. Binary content is not inlined: the
+	 * referenced attachments are only checked for presence and size.
+	 *
+	 * @param schema            the compiled XMLValidationSchema for the WSDL/XSD
+	 * @param result            the SOAP analysis result containing the body
+	 * @param attachmentChecker checker for the referenced attachments
+	 * @return a list of XMLValidationProblem, empty if valid
+	 * @throws XMLStreamException if an XML parsing error occurs
+	 */
+	public List<XMLValidationProblem> validate(XMLValidationSchema schema, SOAPAnalysisResult result,
+			XopAttachmentChecker attachmentChecker) throws XMLStreamException
+	{
+		logger.debug("Starting SOAP payload validation with XOP attachments");
+
+		XMLStreamReader reader = result.getSoapBodyElement().getXMLStreamReader();
+		try
+		{
+			moveToRootElement(reader);
+			StaxValidationDriver driver = new StaxValidationDriver(reader);
+			driver.setAttachmentChecker(attachmentChecker);
+			driver.setResourceLimits(resourceLimits);
+			List<XMLValidationProblem> validationProblems = driver.validateElement(schema);
+			logger.debug("SOAP validation completed. Number of problems found: " + validationProblems.size());
+			return validationProblems;
+		} finally
+		{
+			reader.close();
+		}
+	}
+
+	/**
+	 * Validates the declared SOAP header blocks and the SOAP body against the
+	 * provided XML schema in a single pass over the envelope.
+	 * <p>
+	 * Header blocks that are not declared by the operation (e.g. WS-Security or
+	 * WS-Addressing headers) are skipped; declared header blocks that are
+	 * missing are reported as problems. A double-wrapped SOAP 1.1 payload is
+	 * unwrapped as in {@link SOAPAnalyzer}.
+	 *
+	 * @param schema            the compiled XMLValidationSchema for the WSDL/XSD
+	 * @param envelope          the SOAP envelope of the message
+	 * @param headerNames       element names of the declared header parts
+	 * @param attachmentChecker checker for referenced MTOM/XOP attachments, null
+	 *                          if the message has none
+	 * @return a list of XMLValidationProblem, empty if valid
+	 * @throws XMLStreamException if an XML parsing error occurs
+	 */
+	public List<XMLValidationProblem> validateEnvelope(XMLValidationSchema schema, SOAPEnvelope envelope,
+			Collection<QName> headerNames, XopAttachmentChecker attachmentChecker) throws XMLStreamException
+	{
+		logger.debug("Starting SOAP header and payload validation");
+
+		XMLStreamReader reader = envelope.getXMLStreamReader();
+		try
+		{
+			StaxValidationDriver driver = new StaxValidationDriver(reader);
+			driver.setAttachmentChecker(attachmentChecker);
+			driver.setResourceLimits(resourceLimits);
+			List<XMLValidationProblem> validationProblems = new ArrayList<>();
+
+			// <Envelope>, followed by the optional <Header>
+			moveToRootElement(reader);
+			reader.nextTag();
+			Set<QName> missingHeaders = new LinkedHashSet<>(headerNames);
+			if (SOAP_HEADER.equals(reader.getLocalName()))
+			{
+				while (reader.nextTag() == XMLStreamConstants.START_ELEMENT)
+				{
+					if (missingHeaders.remove(reader.getName()))
+					{
+						logger.debug("Validating SOAP header block: " + reader.getName());
+						driver.validateElement(schema);
+					} else
+					{
+						skipElement(reader);
+					}
+				}
+				reader.nextTag();
+			}
+			for (QName missingHeader : missingHeaders)
+			{
+				validationProblems.add(new LazyValidationProblem(reader.getLocation(), "missing soap header: ",
+						missingHeader));
+			}
+
+			// first child of <Body>, unwrapping a double-wrapped SOAP 1.1 payload
+			if (!SOAP_BODY.equals(reader.getLocalName()) || reader.nextTag() != XMLStreamConstants.START_ELEMENT)
+			{
+				throw new XMLStreamException("soap body element not found", reader.getLocation());
+			}
+			if (SOAP_ENVELOPE.equals(reader.getLocalName()) && SOAP11_NS.equals(reader.getNamespaceURI()))
+			{
+				while (reader.nextTag() == XMLStreamConstants.START_ELEMENT && !SOAP_BODY.equals(reader.getLocalName()))
+				{
+					skipElement(reader);
+				}
+				if (reader.getEventType() != XMLStreamConstants.START_ELEMENT
+						|| reader.nextTag() != XMLStreamConstants.START_ELEMENT)
+				{
+					throw new XMLStreamException("soap (inner)body element not found", reader.getLocation());
+				}
+			}
+			validationProblems.addAll(driver.validateElement(schema));
+
+			logger.debug("SOAP validation completed. Number of problems found: " + validationProblems.size());
+			return validationProblems;
+		} finally
+		{
+			reader.close();
+		}
+	}
+
+	/**
+	 * Validates the SOAP body with the compiled validator of the operation,
+	 * directly from the Axiom tree.
+	 *
+	 * @param validator the compiled validator of the operation
+	 * @param result    the SOAP analysis result containing the body
+	 * @return a list of XMLValidationProblem, empty if valid, or null if the
+	 *         payload has to be validated against the compiled schema instead
+	 * @throws XMLStreamException if an XML parsing error occurs
+	 */
+	public List<XMLValidationProblem> validate(CompiledValidator validator, SOAPAnalysisResult result)
+			throws XMLStreamException
+	{
+		return validate(validator, result.getSoapBodyElement());
+	}
+
+	/**
+	 * Validates a payload element with a compiled validator, directly from the
+	 * Axiom tree.
+	 *
+	 * @param validator the compiled validator of the operation
+	 * @param payload   the payload element, usually the first child of the SOAP
+	 *                  body
+	 * @return a list of XMLValidationProblem, empty if valid, or null if the
+	 *         payload has to be validated against the compiled schema instead
+	 * @throws XMLStreamException if an XML parsing error occurs
+	 */
+	public List<XMLValidationProblem> validate(CompiledValidator validator, OMElement payload)
+			throws XMLStreamException
+	{
+		return validate(validator, payload, resourceLimits);
+	}
+
+	/**
+	 * Validates a payload element with a compiled validator and the given
+	 * resource limits instead of the ones of this validator.
+	 *
+	 * @param validator the compiled validator of the operation
+	 * @param payload   the payload element, usually the first child of the SOAP
+	 *                  body
+	 * @param limits    limits enforced on the payload
+	 * @return a list of XMLValidationProblem, empty if valid, or null if the
+	 *         payload has to be validated against the compiled schema instead
+	 * @throws XMLStreamException if an XML parsing error occurs or a limit is
+	 *                            exceeded
+	 */
+	public List<XMLValidationProblem> validate(CompiledValidator validator, OMElement payload,
+			ResourceLimits limits) throws XMLStreamException
+	{
+		logger.debug("Starting SOAP payload validation with compiled validator");
+
+		XMLStreamReader reader = payload.getXMLStreamReader();
+		try
+		{
+			List<XMLValidationProblem> validationProblems = validator.validate(reader,
+					ResourceLimitChecker.of(limits));
+			if (logger.isDebugEnabled())
+			{
+				logger.debug(validationProblems == null ? "Payload not decided by compiled validator"
+						: "SOAP validation completed. Number of problems found: " + validationProblems.size());
+			}
+			return validationProblems;
+		} finally
+		{
+			reader.close();
+		}
+	}
+
+	/**
+	 * Moves a reader obtained from an Axiom element to that element, skipping
+	 * the start document event if present.
+	 */
+	private static void moveToRootElement(XMLStreamReader reader) throws XMLStreamException
+	{
+		if (reader.getEventType() != XMLStreamConstants.START_ELEMENT)
+		{
+			reader.nextTag();
+		}
+	}
+
+	/**
+	 * Skips the element the reader is positioned on, including its content.
+	 */
+	private static void skipElement(XMLStreamReader reader) throws XMLStreamException
+	{
+		int depth = 1;
+		while (depth > 0)
+		{
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT)
+			{
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT)
+			{
+				depth--;
+			}
+		}
+	}
+
+	/**
+	 * Validates a SOAP body that was detached from the message, e.g. for
+	 * validation on a background thread.
+	 *
+	 * @param schema  the compiled XMLValidationSchema for the WSDL/XSD
+	 * @param payload the serialized SOAP body element
+	 * @return a list of XMLValidationProblem, empty if valid
+	 * @throws XMLStreamException if an XML parsing error occurs
+	 */
+	public List<XMLValidationProblem> validate(XMLValidationSchema schema, InputStream payload)
+			throws XMLStreamException
+	{
+		return validateStream(schema, createInputFactory().createXMLStreamReader(payload), resourceLimits);
+	}
+
+	/**
+	 * Validates a serialized Fast Infoset document against the provided XML
+	 * schema. The document is either a SOAP envelope, whose first body element
+	 * is validated, or the payload element itself.
+	 *
+	 * @param schema  the compiled XMLValidationSchema for the WSDL/XSD
+	 * @param payload the Fast Infoset encoded SOAP envelope or body element
+	 * @return a list of XMLValidationProblem, empty if valid
+	 * @throws XMLStreamException if a parsing error occurs
+	 */
+	public List<XMLValidationProblem> validateFastInfoset(XMLValidationSchema schema, InputStream payload)
+			throws XMLStreamException
+	{
+		XMLStreamReader reader = createFastInfosetReader(payload);
+		try
+		{
+			moveToRootElement(reader);
+			if (SOAP_ENVELOPE.equals(reader.getLocalName()))
+			{
+				moveToBodyElement(reader);
+			}
+			StaxValidationDriver driver = new StaxValidationDriver(reader);
+			driver.setResourceLimits(resourceLimits);
+			List<XMLValidationProblem> validationProblems = driver.validateElement(schema);
+			logger.debug("Fast Infoset validation completed. Number of problems found: " + validationProblems.size());
+			return validationProblems;
+		} finally
+		{
+			reader.close();
+		}
+	}
+
+	/**
+	 * Moves a reader positioned on a SOAP envelope to the first element of its
+	 * body.
+	 */
+	static void moveToBodyElement(XMLStreamReader reader) throws XMLStreamException
+	{
+		String envelopeNS = reader.getNamespaceURI();
+		reader.nextTag();
+		if (SOAP_HEADER.equals(reader.getLocalName()) && envelopeNS.equals(reader.getNamespaceURI()))
+		{
+			skipElement(reader);
+			reader.nextTag();
+		}
+		if (!SOAP_BODY.equals(reader.getLocalName()) || !envelopeNS.equals(reader.getNamespaceURI())
+				|| reader.nextTag() != XMLStreamConstants.START_ELEMENT)
+		{
+			throw new XMLStreamException("SOAP body element not found", reader.getLocation());
+		}
+	}
+
+	/**
+	 * Creates a StAX reader for a Fast Infoset encoded document. Names are
+	 * interned, as by Woodstox, so the validator can compare them cheaply.
+	 *
+	 * @param in Fast Infoset encoded document
+	 * @return the reader, positioned before the start of the document
+	 */
+	XMLStreamReader createFastInfosetReader(InputStream in)
+	{
+		StAXDocumentParser parser = new StAXDocumentParser(in);
+		parser.setStringInterning(true);
+		return parser;
+	}
+
+	/**
+	 * Initializes the Woodstox input factory used for validation, with the text
+	 * size limits of the resource limits.
+	 */
+	WstxInputFactory createInputFactory()
+	{
+		return createInputFactory(resourceLimits);
+	}
+
+	private static WstxInputFactory createInputFactory(ResourceLimits limits)
+	{
+		WstxInputFactory factory = new WstxInputFactory();
+		factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+		// text is accumulated by the parser before it is reported, so text size
+		// limits are also enforced by the parser itself
+		if (limits.getMaxTextLength() > 0)
+		{
+			factory.setProperty(WstxInputProperties.P_MAX_TEXT_LENGTH, limits.getMaxTextLength());
+		}
+		if (limits.getMaxCharacters() > 0)
+		{
+			factory.setProperty(WstxInputProperties.P_MAX_CHARACTERS, limits.getMaxCharacters());
+		}
+		return factory;
+	}
+
+	/**
+	 * Validates the payload provided by the given Woodstox reader.
+	 */
+	private List<XMLValidationProblem> validateStream(XMLValidationSchema schema, XMLStreamReader streamReader,
+			ResourceLimits limits) throws XMLStreamException
+	{
+		XMLStreamReader2 reader = (XMLStreamReader2) streamReader;
 
 		// Apply schema validation
 		reader.validateAgainst(schema);
@@ -78,10 +472,16 @@ public class SOAPValidator
 			}
 		});
 		
+		ResourceLimitChecker limitChecker = ResourceLimitChecker.of(limits);
+
 		// Advance the reader to the <Body> element
 		while (reader.hasNext())
 		{
 			int event = reader.next();
+			if (limitChecker != null)
+			{
+				limitChecker.event(reader, event);
+			}
 			if (event == XMLStreamConstants.START_ELEMENT && "Body".equals(reader.getLocalName()))
 			{
 				logger.debug("Reached SOAP <Body> element, starting validation from first child");
@@ -92,10 +492,38 @@ public class SOAPValidator
 		// Consume the rest of the XML to trigger validation
 		while (reader.hasNext())
 		{
-			reader.next();
+			int event = reader.next();
+			if (limitChecker != null)
+			{
+				limitChecker.event(reader, event);
+			}
 		}
 
 		logger.debug("SOAP validation completed. Number of problems found: " + validationProblems.size());
 		return validationProblems;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Checks the top-level structure of the SOAP body against the structural
+	 * model of the operation in a single pass, without schema validation.
+	 *
+	 * @param model  the structural model of the matched operation
+	 * @param result the SOAP analysis result containing the body
+	 * @return the outcome of the structural check
+	 * @throws XMLStreamException if an XML parsing error occurs
+	 */
+	public StructuralModel.Result checkStructure(StructuralModel model, SOAPAnalysisResult result)
+			throws XMLStreamException
+	{
+		XMLStreamReader reader = result.getSoapBodyElement().getXMLStreamReader();
+		try
+		{
+			StructuralModel.Result structuralResult = model.check(reader);
+			logger.debug("Structural check completed with verdict: " + structuralResult.getVerdict());
+			return structuralResult;
+		} finally
+		{
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,423 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+
+import org.apache.cxf.common.xmlschema.SchemaCollection;
+import org.apache.ws.commons.schema.XmlSchemaAll;
+import org.apache.ws.commons.schema.XmlSchemaAllMember;
+import org.apache.ws.commons.schema.XmlSchemaAttribute;
+import org.apache.ws.commons.schema.XmlSchemaAttributeOrGroupRef;
+import org.apache.ws.commons.schema.XmlSchemaChoice;
+import org.apache.ws.commons.schema.XmlSchemaChoiceMember;
+import org.apache.ws.commons.schema.XmlSchemaComplexContentExtension;
+import org.apache.ws.commons.schema.XmlSchemaComplexContentRestriction;
+import org.apache.ws.commons.schema.XmlSchemaComplexType;
+import org.apache.ws.commons.schema.XmlSchemaContent;
+import org.apache.ws.commons.schema.XmlSchemaElement;
+import org.apache.ws.commons.schema.XmlSchemaEnumerationFacet;
+import org.apache.ws.commons.schema.XmlSchemaFacet;
+import org.apache.ws.commons.schema.XmlSchemaGroupRef;
+import org.apache.ws.commons.schema.XmlSchemaLengthFacet;
+import org.apache.ws.commons.schema.XmlSchemaMinInclusiveFacet;
+import org.apache.ws.commons.schema.XmlSchemaMinLengthFacet;
+import org.apache.ws.commons.schema.XmlSchemaParticle;
+import org.apache.ws.commons.schema.XmlSchemaSequence;
+import org.apache.ws.commons.schema.XmlSchemaSequenceMember;
+import org.apache.ws.commons.schema.XmlSchemaSimpleContentExtension;
+import org.apache.ws.commons.schema.XmlSchemaSimpleType;
+import org.apache.ws.commons.schema.XmlSchemaSimpleTypeRestriction;
+import org.apache.ws.commons.schema.XmlSchemaType;
+import org.apache.ws.commons.schema.XmlSchemaUse;
+
+import ch.integon.wso2.am.mediator.wsdl.model.RuntimeOperation;
+import ch.integon.wso2.am.mediator.wsdl.model.SOAPServiceOperation;
+
+/**
+ * Generates sample payloads of an operation from the schemas of its service,
+ * e.g. to warm up the validation code before real traffic arrives.
+ * <p>
+ * Every element and attribute that is allowed is generated once (or as often
+ * as required), except optional elements whose type is already being
+ * generated further up (recursive types), the first alternative of a choice
+ * is taken and simple values
+ * are chosen by their built-in type, enumeration and length facets. Patterns,
+ * wildcards, abstract elements and identity constraints are not honoured, so
+ * a sample is representative of the payloads of the operation but not always
+ * valid.
+ */
+public class SampleMessageGenerator
+{
+	private static final int MAX_DEPTH = 16;
+
+	private final SchemaCollection schemas;
+	/** complex types of the elements being generated, from the root down */
+	private final Set<XmlSchemaType> typesOnPath = Collections.newSetFromMap(new IdentityHashMap<>());
+
+	/**
+	 * @param serviceOperation bound service operation whose schemas are used
+	 */
+	public SampleMessageGenerator(SOAPServiceOperation serviceOperation)
+	{
+		this(serviceOperation.getService().getXmlSchemaCollection());
+	}
+
+	/**
+	 * @param schemas schemas of the service of the operation
+	 */
+	public SampleMessageGenerator(SchemaCollection schemas)
+	{
+		this.schemas = schemas;
+	}
+
+	/**
+	 * Generates one sample of each request and response payload element of the
+	 * operation.
+	 *
+	 * @param operation runtime data of the operation
+	 * @return the serialized samples by payload element
+	 */
+	public Map<QName, String> generate(RuntimeOperation operation)
+	{
+		List<QName> elementNames = new ArrayList<>(operation.getInputElementNames());
+		elementNames.addAll(operation.getOutputElementNames());
+		Map<QName, String> samples = new LinkedHashMap<>();
+		for (QName elementName : elementNames)
+		{
+			XmlSchemaElement element = schemas.getElementByQName(elementName);
+			if (element != null)
+			{
+				StringBuilder xml = new StringBuilder();
+				writeElement(xml, element, null, 0);
+				samples.put(elementName, xml.toString());
+			}
+		}
+		return samples;
+	}
+
+	private void writeElement(StringBuilder xml, XmlSchemaElement element, String parentNamespace, int depth)
+	{
+		if (element.isRef() && element.getRef().getTarget() != null)
+		{
+			element = element.getRef().getTarget();
+		}
+		QName name = element.getWireName() != null ? element.getWireName() : element.getQName();
+		// required recursion (e.g. through the first alternative of a choice) is cut off
+		if (name == null || element.isAbstract() || depth > 2 * MAX_DEPTH)
+		{
+			return;
+		}
+		xml.append('<').append(name.getLocalPart());
+		if (!name.getNamespaceURI().equals(parentNamespace))
+		{
+			xml.append(" xmlns=\"").append(escape(name.getNamespaceURI())).append('"');
+		}
+
+		XmlSchemaType type = typeOf(element);
+		String fixedValue = element.getFixedValue() != null ? element.getFixedValue() : element.getDefaultValue();
+		if (type instanceof XmlSchemaComplexType)
+		{
+			XmlSchemaComplexType complexType = (XmlSchemaComplexType) type;
+			StringBuilder content = new StringBuilder();
+			boolean added = typesOnPath.add(complexType);
+			writeComplexContent(xml, content, complexType, name.getNamespaceURI(), depth);
+			if (added)
+			{
+				typesOnPath.remove(complexType);
+			}
+			xml.append('>').append(fixedValue != null && content.length() == 0 ? escape(fixedValue) : content);
+		} else
+		{
+			xml.append('>');
+			xml.append(escape(fixedValue != null ? fixedValue
+					: type == null && element.getSchemaTypeName() != null ? builtinValue(element.getSchemaTypeName())
+							: simpleValue(type)));
+		}
+		xml.append("</").append(name.getLocalPart()).append('>');
+	}
+
+	/**
+	 * Writes the attributes of a complex type into the start tag and its
+	 * content into {@code content}.
+	 */
+	private void writeComplexContent(StringBuilder startTag, StringBuilder content, XmlSchemaComplexType type,
+			String namespace, int depth)
+	{
+		if (type.getContentModel() != null)
+		{
+			XmlSchemaContent contentModel = type.getContentModel().getContent();
+			if (contentModel instanceof XmlSchemaSimpleContentExtension)
+			{
+				XmlSchemaSimpleContentExtension extension = (XmlSchemaSimpleContentExtension) contentModel;
+				writeAttributes(startTag, extension.getAttributes());
+				XmlSchemaType baseType = schemas.getTypeByQName(extension.getBaseTypeName());
+				content.append(escape(baseType == null ? builtinValue(extension.getBaseTypeName()) : simpleValue(baseType)));
+			} else if (contentModel instanceof XmlSchemaComplexContentExtension)
+			{
+				XmlSchemaComplexContentExtension extension = (XmlSchemaComplexContentExtension) contentModel;
+				XmlSchemaType baseType = schemas.getTypeByQName(extension.getBaseTypeName());
+				if (baseType instanceof XmlSchemaComplexType)
+				{
+					writeComplexContent(startTag, content, (XmlSchemaComplexType) baseType, namespace, depth);
+				}
+				writeAttributes(startTag, extension.getAttributes());
+				writeParticle(content, extension.getParticle(), namespace, depth);
+			} else if (contentModel instanceof XmlSchemaComplexContentRestriction)
+			{
+				XmlSchemaComplexContentRestriction restriction = (XmlSchemaComplexContentRestriction) contentModel;
+				writeAttributes(startTag, restriction.getAttributes());
+				writeParticle(content, restriction.getParticle(), namespace, depth);
+			}
+			return;
+		}
+		writeAttributes(startTag, type.getAttributes());
+		writeParticle(content, type.getParticle(), namespace, depth);
+	}
+
+	private void writeAttributes(StringBuilder startTag, List<XmlSchemaAttributeOrGroupRef> attributes)
+	{
+		if (attributes == null)
+		{
+			return;
+		}
+		for (XmlSchemaAttributeOrGroupRef member : attributes)
+		{
+			if (!(member instanceof XmlSchemaAttribute))
+			{
+				continue;
+			}
+			XmlSchemaAttribute attribute = (XmlSchemaAttribute) member;
+			if (attribute.isRef() && attribute.getRef().getTarget() != null)
+			{
+				attribute = attribute.getRef().getTarget();
+			}
+			QName name = attribute.getWireName() != null ? attribute.getWireName() : attribute.getQName();
+			if (name == null || attribute.getUse() == XmlSchemaUse.PROHIBITED)
+			{
+				continue;
+			}
+			String value = attribute.getFixedValue();
+			if (value == null)
+			{
+				value = attribute.getSchemaType() != null ? simpleValue(attribute.getSchemaType())
+						: builtinValue(attribute.getSchemaTypeName());
+			}
+			startTag.append(' ');
+			if (!name.getNamespaceURI().isEmpty())
+			{
+				// unique on the element, also when a derived type adds attributes
+				String prefix = "a" + startTag.length();
+				startTag.append("xmlns:").append(prefix).append("=\"").append(escape(name.getNamespaceURI()))
+						.append("\" ").append(prefix).append(':');
+			}
+			startTag.append(name.getLocalPart()).append("=\"").append(escape(value)).append('"');
+		}
+	}
+
+	private void writeParticle(StringBuilder xml, XmlSchemaParticle particle, String namespace, int depth)
+	{
+		if (particle == null || particle.getMaxOccurs() == 0)
+		{
+			return;
+		}
+		// optional particles are generated once, except in recursive or deep structures
+		boolean recursive = particle instanceof XmlSchemaElement
+				&& typesOnPath.contains(typeOf((XmlSchemaElement) particle));
+		long occurs = recursive || depth >= MAX_DEPTH ? particle.getMinOccurs()
+				: Math.max(particle.getMinOccurs(), 1);
+		for (long i = 0; i < occurs; i++)
+		{
+			if (particle instanceof XmlSchemaElement)
+			{
+				writeElement(xml, (XmlSchemaElement) particle, namespace, depth + 1);
+			} else if (particle instanceof XmlSchemaSequence)
+			{
+				for (XmlSchemaSequenceMember member : ((XmlSchemaSequence) particle).getItems())
+				{
+					if (member instanceof XmlSchemaParticle)
+					{
+						writeParticle(xml, (XmlSchemaParticle) member, namespace, depth);
+					}
+				}
+			} else if (particle instanceof XmlSchemaChoice)
+			{
+				List<XmlSchemaChoiceMember> items = ((XmlSchemaChoice) particle).getItems();
+				if (!items.isEmpty() && items.get(0) instanceof XmlSchemaParticle)
+				{
+					writeParticle(xml, (XmlSchemaParticle) items.get(0), namespace, depth);
+				}
+			} else if (particle instanceof XmlSchemaAll)
+			{
+				for (XmlSchemaAllMember member : ((XmlSchemaAll) particle).getItems())
+				{
+					if (member instanceof XmlSchemaParticle)
+					{
+						writeParticle(xml, (XmlSchemaParticle) member, namespace, depth);
+					}
+				}
+			} else if (particle instanceof XmlSchemaGroupRef)
+			{
+				writeParticle(xml, ((XmlSchemaGroupRef) particle).getParticle(), namespace, depth);
+			}
+			// wildcards are left empty
+		}
+	}
+
+	/**
+	 * @return the type of an element, or of the element it refers to; null if
+	 *         it is unknown or a built-in type
+	 */
+	private XmlSchemaType typeOf(XmlSchemaElement element)
+	{
+		if (element.isRef() && element.getRef().getTarget() != null)
+		{
+			element = element.getRef().getTarget();
+		}
+		XmlSchemaType type = element.getSchemaType();
+		if (type == null && element.getSchemaTypeName() != null)
+		{
+			type = schemas.getTypeByQName(element.getSchemaTypeName());
+		}
+		return type;
+	}
+
+	/**
+	 * @return a value of a simple type: its first enumeration value, or a value
+	 *         of its built-in base type with the minimum length
+	 */
+	private String simpleValue(XmlSchemaType type)
+	{
+		int minLength = 0;
+		String minValue = null;
+		for (int depth = 0; type != null && depth < MAX_DEPTH; depth++)
+		{
+			QName typeName = type.getQName();
+			if (typeName != null && XMLConstants.W3C_XML_SCHEMA_NS_URI.equals(typeName.getNamespaceURI()))
+			{
+				if (minValue != null)
+				{
+					return minValue;
+				}
+				String value = builtinValue(typeName);
+				return minLength > value.length() ? value + "a".repeat(minLength - value.length()) : value;
+			}
+			if (!(type instanceof XmlSchemaSimpleType)
+					|| !(((XmlSchemaSimpleType) type).getContent() instanceof XmlSchemaSimpleTypeRestriction))
+			{
+				// lists and unions: a single token is a likely item
+				return "a";
+			}
+			XmlSchemaSimpleTypeRestriction restriction = (XmlSchemaSimpleTypeRestriction) ((XmlSchemaSimpleType) type)
+					.getContent();
+			for (XmlSchemaFacet facet : restriction.getFacets())
+			{
+				if (facet instanceof XmlSchemaEnumerationFacet)
+				{
+					return String.valueOf(facet.getValue());
+				} else if ((facet instanceof XmlSchemaMinLengthFacet || facet instanceof XmlSchemaLengthFacet)
+						&& minLength == 0)
+				{
+					minLength = Integer.parseInt(String.valueOf(facet.getValue()));
+				} else if (facet instanceof XmlSchemaMinInclusiveFacet && minValue == null)
+				{
+					minValue = String.valueOf(facet.getValue());
+				}
+			}
+			QName baseTypeName = restriction.getBaseTypeName();
+			if (restriction.getBaseType() != null)
+			{
+				type = restriction.getBaseType();
+			} else if (baseTypeName != null
+					&& XMLConstants.W3C_XML_SCHEMA_NS_URI.equals(baseTypeName.getNamespaceURI()))
+			{
+				String value = minValue != null ? minValue : builtinValue(baseTypeName);
+				return minLength > value.length() ? value + "a".repeat(minLength - value.length()) : value;
+			} else
+			{
+				type = schemas.getTypeByQName(baseTypeName);
+			}
+		}
+		return "a";
+	}
+
+	/**
+	 * @return a valid value of a built-in schema type
+	 */
+	private static String builtinValue(QName typeName)
+	{
+		if (typeName == null || !XMLConstants.W3C_XML_SCHEMA_NS_URI.equals(typeName.getNamespaceURI()))
+		{
+			return "a";
+		}
+		switch (typeName.getLocalPart())
+		{
+		case "boolean":
+			return "true";
+		case "decimal":
+		case "integer":
+		case "long":
+		case "int":
+		case "short":
+		case "byte":
+		case "nonNegativeInteger":
+		case "positiveInteger":
+		case "unsignedLong":
+		case "unsignedInt":
+		case "unsignedShort":
+		case "unsignedByte":
+			return "1";
+		case "negativeInteger":
+			return "-1";
+		case "nonPositiveInteger":
+			return "0";
+		case "float":
+		case "double":
+			return "1.0";
+		case "date":
+			return "2000-01-01";
+		case "dateTime":
+			return "2000-01-01T00:00:00";
+		case "time":
+			return "00:00:00";
+		case "duration":
+			return "P1D";
+		case "gYear":
+			return "2000";
+		case "gYearMonth":
+			return "2000-01";
+		case "gMonth":
+			return "--01";
+		case "gMonthDay":
+			return "--01-01";
+		case "gDay":
+			return "---01";
+		case "base64Binary":
+			return "AAAA";
+		case "hexBinary":
+			return "00";
+		case "anyURI":
+			return "http://example.com";
+		case "language":
+			return "en";
+		default:
+			return "a";
+		}
+	}
+
+	private static String escape(String value)
+	{
+		if (value.indexOf('&') < 0 && value.indexOf('<') < 0 && value.indexOf('"') < 0)
+		{
+			return value;
+		}
+		return value.replace("&", "&amp;").replace("<", "&lt;").replace("\"", "&quot;");
+	}
+}
@@ -0,0 +1,341 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import ch.integon.wso2.am.mediator.wsdl.model.SOAPValidationException;
+
+/**
+ * JVM-wide bounded worker pool for loading WSDLs and compiling schemas.
+ * <p>
+ * Compilation jobs run on a small pool of dedicated threads instead of the
+ * request threads. A watchdog fails jobs that run longer than the configured
+ * timeout or allocate more than the configured budget (measured with the
+ * per-thread allocation counter of the JVM, so it is approximate). Requests
+ * wait at most the timeout for a job and then fail with a clear message.
+ * <p>
+ * Failed jobs are recorded: requests for the same contract fail immediately
+ * until the retry interval has passed, so a pathological contract cannot tie
+ * up the pool. A job that ignores the interruption keeps its worker until it
+ * ends, but its result is discarded.
+ */
+public final class SchemaCompilationExecutor
+{
+	private static final Log logger = LogFactory.getLog(SchemaCompilationExecutor.class);
+
+	private static final int QUEUE_CAPACITY = 100;
+	private static final long WATCHDOG_INTERVAL_MILLIS = 100;
+
+	private static final SchemaCompilationExecutor INSTANCE = new SchemaCompilationExecutor();
+
+	private final ThreadPoolExecutor executor;
+	private final ScheduledThreadPoolExecutor watchdog;
+	private final com.sun.management.ThreadMXBean allocationMXBean;
+
+	private final Map<String, Job<?>> runningJobs = new ConcurrentHashMap<>();
+	private final Map<String, Failure> failures = new ConcurrentHashMap<>();
+	private final Map<String, Long> allocatedBytes = new ConcurrentHashMap<>();
+
+	private volatile long timeoutMillis = 30000;
+	private volatile long allocationBudgetBytes = 0;
+	private volatile long retryMillis = 60000;
+
+	private SchemaCompilationExecutor()
+	{
+		executor = new ThreadPoolExecutor(2, 2, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+				Thread.ofPlatform().name("soap-schema-compiler-", 0).daemon(true).factory(),
+				new ThreadPoolExecutor.AbortPolicy());
+		executor.allowCoreThreadTimeOut(true);
+
+		watchdog = new ScheduledThreadPoolExecutor(1,
+				Thread.ofPlatform().name("soap-schema-compiler-watchdog").daemon(true).factory());
+		watchdog.scheduleWithFixedDelay(this::checkRunningJobs, WATCHDOG_INTERVAL_MILLIS, WATCHDOG_INTERVAL_MILLIS,
+				TimeUnit.MILLISECONDS);
+
+		ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+		if (threadMXBean instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) threadMXBean).isThreadAllocatedMemorySupported())
+		{
+			allocationMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+		} else
+		{
+			logger.warn("Thread allocation measurement not supported - compile allocation budget is not enforced");
+			allocationMXBean = null;
+		}
+	}
+
+	/**
+	 * @return the shared compilation executor
+	 */
+	public static SchemaCompilationExecutor getInstance()
+	{
+		return INSTANCE;
+	}
+
+	/**
+	 * @param concurrency maximum number of compilation jobs running concurrently
+	 */
+	public void setConcurrency(int concurrency)
+	{
+		if (concurrency > executor.getMaximumPoolSize())
+		{
+			executor.setMaximumPoolSize(concurrency);
+			executor.setCorePoolSize(concurrency);
+		} else
+		{
+			executor.setCorePoolSize(concurrency);
+			executor.setMaximumPoolSize(concurrency);
+		}
+	}
+
+	/**
+	 * @param timeoutMillis maximum run time of a compilation job, which is also
+	 *                      the maximum time a request waits for it
+	 */
+	public void setTimeoutMillis(long timeoutMillis)
+	{
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * @param allocationBudgetBytes approximate number of bytes a compilation job
+	 *                              may allocate, 0 disables the check
+	 */
+	public void setAllocationBudgetBytes(long allocationBudgetBytes)
+	{
+		this.allocationBudgetBytes = allocationBudgetBytes;
+	}
+
+	/**
+	 * @param retryMillis time after which a failed compilation is retried
+	 */
+	public void setRetryMillis(long retryMillis)
+	{
+		this.retryMillis = retryMillis;
+	}
+
+	/**
+	 * Queues a compilation job. A job that cannot be queued, or whose contract
+	 * failed recently, results in a failed future.
+	 *
+	 * @param apiUUID API identifier, used for metrics
+	 * @param key     identifier of the compiled contract
+	 * @param task    compilation task
+	 * @return future completed with the result of the task
+	 */
+	public <T> CompletableFuture<T> submit(String apiUUID, String key, Callable<T> task)
+	{
+		Failure failure = failures.get(key);
+		if (failure != null)
+		{
+			if (System.currentTimeMillis() - failure.timeMillis < retryMillis)
+			{
+				return CompletableFuture.failedFuture(
+						new SOAPValidationException("compilation failed recently: " + failure.message));
+			}
+			failures.remove(key, failure);
+		}
+
+		Job<T> job = new Job<>(apiUUID, key);
+		try
+		{
+			executor.execute(() -> job.run(task));
+		} catch (RejectedExecutionException e)
+		{
+			ValidationMetrics.getInstance().increment(apiUUID + ".compile.rejected");
+			logger.warn("Schema compilation queue full - rejecting compilation of " + key);
+			job.future.completeExceptionally(new SOAPValidationException("schema compilation queue full"));
+		}
+		return job.future;
+	}
+
+	/**
+	 * Waits for a compilation job queued with {@link #submit}.
+	 *
+	 * @param future future returned by {@link #submit}
+	 * @return the result of the job
+	 * @throws SOAPValidationException if the job failed or did not complete in
+	 *                                 time
+	 */
+	public <T> T await(CompletableFuture<T> future) throws SOAPValidationException
+	{
+		try
+		{
+			return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e)
+		{
+			throw new SOAPValidationException("schema compilation did not complete within " + timeoutMillis + " ms");
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new SOAPValidationException("interrupted while waiting for schema compilation", e);
+		} catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof SOAPValidationException)
+			{
+				throw (SOAPValidationException) cause;
+			}
+			throw new SOAPValidationException("error during schema compilation", cause);
+		}
+	}
+
+	/**
+	 * @param key identifier of the compiled contract
+	 * @return the bytes allocated by the last successful compilation of the
+	 *         contract, including its garbage, used as the size of the result
+	 *         in the tenant cache; 0 if unknown
+	 */
+	public long getAllocatedBytes(String key)
+	{
+		return allocatedBytes.getOrDefault(key, 0L);
+	}
+
+	/**
+	 * @return the bytes allocated so far by the current thread, 0 if the JVM does
+	 *         not measure allocations
+	 */
+	public long getCurrentThreadAllocatedBytes()
+	{
+		return allocationMXBean == null ? 0 : allocationMXBean.getThreadAllocatedBytes(Thread.currentThread().threadId());
+	}
+
+	/**
+	 * @return the recent compilation failures by contract
+	 */
+	public Map<String, String> getFailures()
+	{
+		Map<String, String> failureMessages = new TreeMap<>();
+		failures.forEach((key, failure) -> failureMessages.put(key, failure.message));
+		return failureMessages;
+	}
+
+	/**
+	 * Fails jobs that exceeded their time or allocation budget.
+	 */
+	private void checkRunningJobs()
+	{
+		long now = System.nanoTime();
+		long budget = allocationBudgetBytes;
+		for (Job<?> job : runningJobs.values())
+		{
+			if (TimeUnit.NANOSECONDS.toMillis(now - job.startNanos) > timeoutMillis)
+			{
+				job.fail("compilation exceeded time limit of " + timeoutMillis + " ms", "timeout");
+			} else if (budget > 0 && allocationMXBean != null
+					&& allocationMXBean.getThreadAllocatedBytes(job.threadId) - job.startAllocatedBytes > budget)
+			{
+				job.fail("compilation exceeded allocation budget of " + budget + " bytes", "overbudget");
+			}
+		}
+	}
+
+	/**
+	 * One compilation job and its budget accounting.
+	 */
+	private final class Job<T>
+	{
+		private final String apiUUID;
+		private final String key;
+		private final CompletableFuture<T> future = new CompletableFuture<>();
+		private Thread thread;
+		private volatile long threadId;
+		private volatile long startNanos;
+		private volatile long startAllocatedBytes;
+
+		Job(String apiUUID, String key)
+		{
+			this.apiUUID = apiUUID;
+			this.key = key;
+		}
+
+		void run(Callable<T> task)
+		{
+			synchronized (this)
+			{
+				thread = Thread.currentThread();
+			}
+			threadId = Thread.currentThread().threadId();
+			startAllocatedBytes = allocationMXBean == null ? 0 : allocationMXBean.getThreadAllocatedBytes(threadId);
+			startNanos = System.nanoTime();
+			runningJobs.put(key, this);
+			try
+			{
+				T result = task.call();
+				if (allocationMXBean != null)
+				{
+					allocatedBytes.put(key, allocationMXBean.getThreadAllocatedBytes(threadId) - startAllocatedBytes);
+				}
+				if (future.complete(result))
+				{
+					logger.debug("Compilation of " + key + " completed in "
+							+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + " ms");
+				} else
+				{
+					logger.debug("Discarding result of failed compilation of " + key);
+				}
+			} catch (Throwable e)
+			{
+				fail(e.getMessage() == null ? e.toString() : e.getMessage(), "failed");
+			} finally
+			{
+				runningJobs.remove(key, this);
+				synchronized (this)
+				{
+					thread = null;
+				}
+				// clear an interruption raised by the watchdog before the thread is reused
+				Thread.interrupted();
+			}
+		}
+
+		void fail(String message, String reason)
+		{
+			if (!future.completeExceptionally(new SOAPValidationException(message)))
+			{
+				return;
+			}
+			failures.put(key, new Failure(message));
+			ValidationMetrics.getInstance().increment(apiUUID + ".compile." + reason);
+			logger.error("Schema compilation of " + key + " failed: " + message);
+			// the job clears its thread under the same lock before it clears the
+			// interruption, so a late interruption cannot hit the next job
+			synchronized (this)
+			{
+				if (thread != null && thread != Thread.currentThread())
+				{
+					thread.interrupt();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Record of a failed compilation.
+	 */
+	private static final class Failure
+	{
+		private final long timeMillis = System.currentTimeMillis();
+		private final String message;
+
+		Failure(String message)
+		{
+			this.message = message;
+		}
+	}
+}
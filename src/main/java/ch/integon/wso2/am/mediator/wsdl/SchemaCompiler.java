@@ -55,47 +55,7 @@ public class SchemaCompiler
 	{
 		logger.debug("Starting schema compilation for given services");
 
-		// Collect schema sources
-		Map<String, Source> sources = new TreeMap<>();
-		for (SchemaInfo schemaInfo : serviceOperation.getService().getSchemas())
-		{
-			XmlSchema schema = schemaInfo.getSchema();
-			if (XMLConstants.W3C_XML_SCHEMA_NS_URI.equals(schema.getSourceURI()))
-			{
-				logger.debug("Skipping default XML schema namespace: " + schema.getSourceURI());
-				continue;
-			}
-
-			List<?> externals;
-			try
-			{
-				Method getExternalsMethod = schema.getClass().getMethod("getExternals");
-				externals = (List<?>) getExternalsMethod.invoke(schema);
-			} catch (Exception e)
-			{
-				throw new RuntimeException("Failed to get schema externals via reflection", e);
-			}
-
-			// Handle schemas without targetNamespace but with externals
-			if (schema.getTargetNamespace() == null && !externals.isEmpty())
-			{
-				logger.debug("Schema without targetNamespace has externals, processing them");
-				for (Object o : externals)
-				{
-					XmlSchemaExternal external = (XmlSchemaExternal) o;
-					addSchema(sources, external.getSchema(), getElement(external.getSchema().getSourceURI()));
-				}
-			}
-			// Normal schema with targetNamespace
-			else if (schema.getTargetNamespace() != null)
-			{
-				logger.debug("Adding schema with targetNamespace: " + schema.getTargetNamespace());
-				addSchema(sources, schema, schemaInfo.getElement());
-			} else
-			{
-				throw new IllegalStateException("Schema without targetNamespace and no externals");
-			}
-		}
+		Map<String, Source> sources = collectSchemaSources(serviceOperation);
 
 		// Compile all collected schemas into a single validation schema
 		logger.debug("Compiling collected schemas into XMLValidationSchema");
@@ -139,6 +99,60 @@ public class SchemaCompiler
 		return compiledSchema;
 	}
 
+	/**
+	 * Collects the schema sources of the service by target namespace; also used
+	 * by the other validation engines.
+	 *
+	 * @param serviceOperation service and operation to collect the schemas of
+	 * @return the schema sources by target namespace
+	 * @throws XMLStreamException if an external schema cannot be read
+	 */
+	Map<String, Source> collectSchemaSources(SOAPServiceOperation serviceOperation) throws XMLStreamException
+	{
+		// Collect schema sources
+		Map<String, Source> sources = new TreeMap<>();
+		for (SchemaInfo schemaInfo : serviceOperation.getService().getSchemas())
+		{
+			XmlSchema schema = schemaInfo.getSchema();
+			if (XMLConstants.W3C_XML_SCHEMA_NS_URI.equals(schema.getSourceURI()))
+			{
+				logger.debug("Skipping default XML schema namespace: " + schema.getSourceURI());
+				continue;
+			}
+
+			List<?> externals;
+			try
+			{
+				Method getExternalsMethod = schema.getClass().getMethod("getExternals");
+				externals = (List<?>) getExternalsMethod.invoke(schema);
+			} catch (Exception e)
+			{
+				throw new RuntimeException("Failed to get schema externals via reflection", e);
+			}
+
+			// Handle schemas without targetNamespace but with externals
+			if (schema.getTargetNamespace() == null && !externals.isEmpty())
+			{
+				logger.debug("Schema without targetNamespace has externals, processing them");
+				for (Object o : externals)
+				{
+					XmlSchemaExternal external = (XmlSchemaExternal) o;
+					addSchema(sources, external.getSchema(), getElement(external.getSchema().getSourceURI()));
+				}
+			}
+			// Normal schema with targetNamespace
+			else if (schema.getTargetNamespace() != null)
+			{
+				logger.debug("Adding schema with targetNamespace: " + schema.getTargetNamespace());
+				addSchema(sources, schema, schemaInfo.getElement());
+			} else
+			{
+				throw new IllegalStateException("Schema without targetNamespace and no externals");
+			}
+		}
+		return sources;
+	}
+
 	/**
 	 * Adds an individual schema to the source map for compilation.
 	 */
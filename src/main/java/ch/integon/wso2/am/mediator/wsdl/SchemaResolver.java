@@ -1,41 +1,97 @@
 package ch.integon.wso2.am.mediator.wsdl;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.namespace.QName;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.cxf.service.model.ServiceInfo;
 import org.codehaus.stax2.validation.XMLValidationSchema;
+import org.wso2.carbon.context.PrivilegedCarbonContext;
+import org.wso2.carbon.registry.core.exceptions.RegistryException;
 
+import ch.integon.wso2.am.mediator.wsdl.model.ApiContract;
+import ch.integon.wso2.am.mediator.wsdl.model.ApiRuntimeModel;
+import ch.integon.wso2.am.mediator.wsdl.model.RuntimeOperation;
 import ch.integon.wso2.am.mediator.wsdl.model.SOAPAnalysisResult;
 import ch.integon.wso2.am.mediator.wsdl.model.SOAPServiceOperation;
 import ch.integon.wso2.am.mediator.wsdl.model.SOAPValidationException;
+import ch.integon.wso2.am.mediator.wsdl.model.StructuralModel;
 
 /**
  * Resolves and caches XML schemas (XMLValidationSchema) for APIs based on
  * SOAPAnalysisResult and API UUIDs.
  * <p>
- * Uses two internal caches:
+ * Caches, in the partition of the API's tenant in the {@link TenantCache}:
  * <ul>
- * <li>{@code apiServices} – caches the CXF ServiceInfo list per API UUID</li>
- * <li>{@code schemaCache} – caches compiled XMLValidationSchema per API UUID
- * and operation</li>
+ * <li>{@code runtime:} – the compact {@link ApiRuntimeModel} per API UUID,
+ * used to match the operation of a message</li>
+ * <li>{@code services:} – the loaded {@link ApiContract} per API UUID, only as
+ * long as it is needed to compile the schemas of its operations</li>
+ * <li>{@code schema:} – the compiled XMLValidationSchema per API UUID and
+ * operation</li>
+ * <li>{@code structural:} – the lightweight StructuralModel per API UUID and
+ * operation</li>
+ * <li>{@code compiled:} – the {@link CompiledValidator} of hot operations,
+ * built in the background once an operation has been validated often
+ * enough</li>
+ * <li>{@code prepared:} – the schemas prepared by a non-default
+ * {@link ValidationEngine} per API UUID, operation and engine</li>
  * </ul>
+ * The tenant of an API is taken from the carbon context of the request thread;
+ * on other threads the tenant recorded for the API is used.
+ * <p>
+ * Compiled results are keyed by the fingerprint of the documents they were
+ * built from (see {@link ContractDocumentGraph}). When a new revision of a
+ * contract is loaded, only root WSDLs with changed documents are parsed again,
+ * and only the results depending on them are dropped and compiled again.
  * If the requested API’s services or schema are not cached, they are loaded
- * from the WSO2 governance registry and compiled.
+ * from the WSO2 governance registry and compiled on the
+ * {@link SchemaCompilationExecutor}, with a time and allocation budget.
  * <p>
- * Thread-safe: uses {@link java.util.concurrent.ConcurrentHashMap} and
- * {@code computeIfAbsent} to avoid redundant loading/compilation.
+ * Thread-safe: uses the {@link TenantCache} and {@code computeIfAbsent} on
+ * the pending jobs to avoid redundant
+ * loading/compilation.
  */
 public class SchemaResolver
 {
 
 	private static final Log logger = LogFactory.getLog(SchemaResolver.class);
 
-	private static final ConcurrentHashMap<String, List<ServiceInfo>> apiServices = new ConcurrentHashMap<>();
-	private static final ConcurrentHashMap<String, XMLValidationSchema> schemaCache = new ConcurrentHashMap<>();
+	private static final String SERVICES = "services:";
+	private static final String SCHEMA = "schema:";
+	private static final String STRUCTURAL = "structural:";
+	private static final String COMPILED = "compiled:";
+	private static final String PREPARED = "prepared:";
+	private static final String RUNTIME = "runtime:";
+
+	private static final TenantCache cache = TenantCache.getInstance();
+	private static final ConcurrentHashMap<String, String> apiTenants = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, AtomicLong> invocationCounts = new ConcurrentHashMap<>();
+	/** cache keys of the results built from the service model, by API and root WSDL fingerprint */
+	private static final ConcurrentHashMap<String, Set<String>> boundResults = new ConcurrentHashMap<>();
+
+	private long revisionCheckMillis = 0;
+	private boolean releaseServiceModels = true;
+	private volatile ValidationWarmup warmup;
+	private RegistryHelperFactory registryHelperFactory = RegistryServiceHelper::new;
+	private SchemaCompiler schemaCompiler = new SchemaCompiler();
+
+	private static final ConcurrentHashMap<String, CompletableFuture<ApiContract>> pendingServices = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, CompletableFuture<XMLValidationSchema>> pendingSchemas = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, CompletableFuture<ValidationEngine.PreparedSchema>> pendingPreparedSchemas = new ConcurrentHashMap<>();
 
 	/**
 	 * 
@@ -49,89 +105,680 @@ public class SchemaResolver
 	public XMLValidationSchema resolve(String apiUUID, SOAPAnalysisResult result) throws SOAPValidationException
 	{
 		logger.debug("Start resolving XML schema for API: " + apiUUID);
-		logger.debug("Looking for cached api services with api UUID: " + apiUUID);
+		return resolveSchema(apiUUID, resolveOperation(apiUUID, result));
+	}
 
-		WSDLServiceBuilder serviceBuilder = new WSDLServiceBuilder();
+	/**
+	 * @param revisionCheckMillis interval in which the registry is checked for a
+	 *                            new revision of a loaded contract, 0 to never
+	 *                            check
+	 */
+	public void setRevisionCheckMillis(long revisionCheckMillis)
+	{
+		this.revisionCheckMillis = revisionCheckMillis;
+	}
+
+	/**
+	 * @param releaseServiceModels true to release the CXF services of a root
+	 *                             WSDL once the results of all its operations
+	 *                             in use are built
+	 */
+	public void setReleaseServiceModels(boolean releaseServiceModels)
+	{
+		this.releaseServiceModels = releaseServiceModels;
+	}
+
+	/**
+	 * @param warmup warm-up run for every newly compiled schema, null for none
+	 */
+	public void setWarmup(ValidationWarmup warmup)
+	{
+		this.warmup = warmup;
+	}
+
+	/**
+	 * @param registryHelperFactory creates the registry access of the current
+	 *                              tenant, replaced by stubbed registry content
+	 *                              in tests
+	 */
+	void setRegistryHelperFactory(RegistryHelperFactory registryHelperFactory)
+	{
+		this.registryHelperFactory = registryHelperFactory;
+	}
+
+	/**
+	 * @param schemaCompiler compiler of the operation schemas, replaced in tests
+	 */
+	void setSchemaCompiler(SchemaCompiler schemaCompiler)
+	{
+		this.schemaCompiler = schemaCompiler;
+	}
 
-		List<ServiceInfo> services;
-		if (apiServices.containsKey(apiUUID))
+	/**
+	 * Resolves the compiled schema of an already matched service operation.
+	 * 
+	 * @param apiUUID          The unique identifier of the API.
+	 * @param serviceOperation The matched service and operation.
+	 * @return The compiled {@link XMLValidationSchema} ready for validating SOAP
+	 *         messages.
+	 * @throws SOAPValidationException if the schema cannot be compiled
+	 */
+	public XMLValidationSchema resolveSchema(String apiUUID, SOAPServiceOperation serviceOperation)
+			throws SOAPValidationException
+	{
+		String schemaCacheKey = buildSchemaCacheKey(apiUUID, serviceOperation);
+		logger.debug("Looking for cached schema with key: " + schemaCacheKey);
+
+		// Return cached schema if exists
+		String tenantDomain = getTenantDomain(apiUUID);
+		XMLValidationSchema cachedSchema = cache.get(tenantDomain, SCHEMA + schemaCacheKey);
+		if (cachedSchema != null)
 		{
-			logger.debug("Cached services found for: " + apiUUID);
-			services = apiServices.get(apiUUID);
-		} else
+			logger.debug("Cached schema found for " + schemaCacheKey + " - returning it");
+			return cachedSchema;
+		}
+
+		// Compile on the compilation pool, one job per schema shared by all waiting requests
+		bindServiceModel(apiUUID, tenantDomain, serviceOperation, SCHEMA + schemaCacheKey);
+		SchemaCompilationExecutor compilationExecutor = SchemaCompilationExecutor.getInstance();
+		CompletableFuture<XMLValidationSchema> pendingSchema = pendingSchemas.computeIfAbsent(schemaCacheKey,
+				k -> compilationExecutor.submit(apiUUID, k, () -> schemaCompiler.compileSchema(serviceOperation)));
+		XMLValidationSchema validationSchema;
+		try
+		{
+			validationSchema = compilationExecutor.await(pendingSchema);
+		} catch (SOAPValidationException e)
+		{
+			if (pendingSchema.isDone())
+			{
+				pendingSchemas.remove(schemaCacheKey, pendingSchema);
+			}
+			logger.error("Failed to resolve schema for API: " + apiUUID + " - " + e.getMessage());
+			throw e;
+		}
+		if (cache.putIfAbsent(tenantDomain, SCHEMA + schemaCacheKey, validationSchema,
+				compilationExecutor.getAllocatedBytes(schemaCacheKey)) == validationSchema)
+		{
+			VerdictCache.getInstance().invalidate(apiUUID);
+			ValidationWarmup validationWarmup = warmup;
+			if (validationWarmup != null)
+			{
+				validationWarmup.schedule(apiUUID, serviceOperation, validationSchema);
+			}
+		}
+		pendingSchemas.remove(schemaCacheKey, pendingSchema);
+		releaseServiceModel(apiUUID, tenantDomain, serviceOperation);
+		return validationSchema;
+	}
+
+	/**
+	 * @param apiUUID          The unique identifier of the API.
+	 * @param serviceOperation The matched service and operation.
+	 * @return the compiled schema of the operation if it is cached, null
+	 *         otherwise; never loads or compiles anything
+	 */
+	public XMLValidationSchema getCachedSchema(String apiUUID, SOAPServiceOperation serviceOperation)
+	{
+		return cache.get(getTenantDomain(apiUUID), SCHEMA + buildSchemaCacheKey(apiUUID, serviceOperation));
+	}
+
+	/**
+	 * Resolves the schema of an already matched service operation, prepared by
+	 * the given validation engine.
+	 * 
+	 * @param apiUUID          The unique identifier of the API.
+	 * @param serviceOperation The matched service and operation.
+	 * @param engine           The validation engine to prepare the schema with.
+	 * @return the prepared schema
+	 * @throws SOAPValidationException if the schema cannot be prepared
+	 */
+	public ValidationEngine.PreparedSchema resolvePreparedSchema(String apiUUID, SOAPServiceOperation serviceOperation,
+			ValidationEngine engine) throws SOAPValidationException
+	{
+		String cacheKey = buildSchemaCacheKey(apiUUID, serviceOperation) + ":" + engine.getName();
+		String tenantDomain = getTenantDomain(apiUUID);
+		ValidationEngine.PreparedSchema preparedSchema = cache.get(tenantDomain, PREPARED + cacheKey);
+		if (preparedSchema != null)
+		{
+			return preparedSchema;
+		}
+
+		bindServiceModel(apiUUID, tenantDomain, serviceOperation, PREPARED + cacheKey);
+		SchemaCompilationExecutor compilationExecutor = SchemaCompilationExecutor.getInstance();
+		CompletableFuture<ValidationEngine.PreparedSchema> pendingSchema = pendingPreparedSchemas.computeIfAbsent(
+				cacheKey, k -> compilationExecutor.submit(apiUUID, k, () -> engine.prepare(serviceOperation)));
+		try
+		{
+			preparedSchema = compilationExecutor.await(pendingSchema);
+		} catch (SOAPValidationException e)
 		{
-			services = apiServices.computeIfAbsent(apiUUID, k ->
+			if (pendingSchema.isDone())
 			{
-				try
+				pendingPreparedSchemas.remove(cacheKey, pendingSchema);
+			}
+			logger.error("Failed to prepare schema with engine " + engine.getName() + " for API: " + apiUUID + " - "
+					+ e.getMessage());
+			throw e;
+		}
+		if (cache.putIfAbsent(tenantDomain, PREPARED + cacheKey, preparedSchema,
+				compilationExecutor.getAllocatedBytes(cacheKey)) == preparedSchema)
+		{
+			VerdictCache.getInstance().invalidate(apiUUID);
+		}
+		pendingPreparedSchemas.remove(cacheKey, pendingSchema);
+		releaseServiceModel(apiUUID, tenantDomain, serviceOperation);
+		return preparedSchema;
+	}
+
+	/**
+	 * @param apiUUID          The unique identifier of the API.
+	 * @param serviceOperation The matched service and operation.
+	 * @param engine           The validation engine the schema is prepared by.
+	 * @return the prepared schema of the operation if it is cached, null
+	 *         otherwise; never loads or prepares anything
+	 */
+	public ValidationEngine.PreparedSchema getCachedPreparedSchema(String apiUUID,
+			SOAPServiceOperation serviceOperation, ValidationEngine engine)
+	{
+		return cache.get(getTenantDomain(apiUUID),
+				PREPARED + buildSchemaCacheKey(apiUUID, serviceOperation) + ":" + engine.getName());
+	}
+
+	/**
+	 * Resolves the structural model of an already matched service operation.
+	 * 
+	 * @param apiUUID          The unique identifier of the API.
+	 * @param serviceOperation The matched service and operation.
+	 * @return the cached or newly built {@link StructuralModel}
+	 * @throws SOAPValidationException if the service model of the operation
+	 *                                 cannot be loaded
+	 */
+	public StructuralModel resolveStructuralModel(String apiUUID, SOAPServiceOperation serviceOperation)
+			throws SOAPValidationException
+	{
+		String cacheKey = buildSchemaCacheKey(apiUUID, serviceOperation);
+		String tenantDomain = getTenantDomain(apiUUID);
+		StructuralModel model = cache.get(tenantDomain, STRUCTURAL + cacheKey);
+		if (model == null)
+		{
+			logger.debug("Building structural model for " + cacheKey);
+			bindServiceModel(apiUUID, tenantDomain, serviceOperation, STRUCTURAL + cacheKey);
+			SchemaCompilationExecutor compilationExecutor = SchemaCompilationExecutor.getInstance();
+			long allocatedBefore = compilationExecutor.getCurrentThreadAllocatedBytes();
+			model = new StructuralModelBuilder().build(serviceOperation);
+			model = cache.putIfAbsent(tenantDomain, STRUCTURAL + cacheKey, model,
+					compilationExecutor.getCurrentThreadAllocatedBytes() - allocatedBefore);
+			releaseServiceModel(apiUUID, tenantDomain, serviceOperation);
+		}
+		return model;
+	}
+
+	/**
+	 * Resolves the compiled validator of a hot service operation. The validator
+	 * is built in the background on the {@link SchemaCompilationExecutor} once
+	 * the operation was resolved {@code threshold} times; until then, and for
+	 * operations that cannot be compiled, null is returned.
+	 * 
+	 * @param apiUUID          The unique identifier of the API.
+	 * @param serviceOperation The matched service and operation.
+	 * @param threshold        number of invocations after which the operation
+	 *                         is compiled
+	 * @return the compiled validator, or null if none is available (yet)
+	 */
+	public CompiledValidator resolveCompiledValidator(String apiUUID, SOAPServiceOperation serviceOperation,
+			long threshold)
+	{
+		String cacheKey = buildSchemaCacheKey(apiUUID, serviceOperation);
+		String tenantDomain = getTenantDomain(apiUUID);
+		Optional<CompiledValidator> compiledValidator = cache.get(tenantDomain, COMPILED + cacheKey);
+		if (compiledValidator != null)
+		{
+			return compiledValidator.orElse(null);
+		}
+		// counting restarts after the build is started, so an evicted validator is built again
+		AtomicLong invocationCount = invocationCounts.computeIfAbsent(cacheKey, k -> new AtomicLong());
+		if (invocationCount.incrementAndGet() < Math.max(threshold, 1)
+				|| !invocationCounts.remove(cacheKey, invocationCount))
+		{
+			return null;
+		}
+
+		logger.debug("Operation " + cacheKey + " is hot - building compiled validator");
+		try
+		{
+			bindServiceModel(apiUUID, tenantDomain, serviceOperation, COMPILED + cacheKey);
+		} catch (SOAPValidationException e)
+		{
+			logger.warn("Compiled validator for " + cacheKey + " not built: " + e.getMessage());
+			return null;
+		}
+		SchemaCompilationExecutor compilationExecutor = SchemaCompilationExecutor.getInstance();
+		String jobKey = cacheKey + ":compiled";
+		compilationExecutor.submit(apiUUID, jobKey, () -> new CompiledValidatorBuilder().build(serviceOperation))
+				.whenComplete((validator, e) ->
 				{
-					logger.debug(
-							"No cached services found for: " + apiUUID + " - Start loading files from the registry");
+					if (e != null)
+					{
+						logger.warn("Compiled validator for " + cacheKey + " not built: " + e.getMessage());
+					}
+					cache.putIfAbsent(tenantDomain, COMPILED + cacheKey, Optional.ofNullable(validator),
+							validator == null ? 0 : compilationExecutor.getAllocatedBytes(jobKey));
+					releaseServiceModel(apiUUID, tenantDomain, serviceOperation);
+				});
+		return null;
+	}
 
-					RegistryServiceHelper registryHelper = new RegistryServiceHelper();
-					logger.debug("RegistryServiceHelper initialized");
+	/**
+	 * Stops using the compiled validator of a service operation, e.g. after it
+	 * disagreed with the schema validator.
+	 * 
+	 * @param apiUUID          The unique identifier of the API.
+	 * @param serviceOperation The matched service and operation.
+	 */
+	public void disableCompiledValidator(String apiUUID, SOAPServiceOperation serviceOperation)
+	{
+		cache.put(getTenantDomain(apiUUID), COMPILED + buildSchemaCacheKey(apiUUID, serviceOperation),
+				Optional.empty(), 0);
+		VerdictCache.getInstance().invalidate(apiUUID);
+	}
 
-					WSDLExtractor wsdlExtractor = new WSDLExtractor();
-					logger.debug("WSDLExtractor initialized");
+	/**
+	 * Resolves the service operation matching the analyzed message without
+	 * compiling its schema.
+	 * 
+	 * @param apiUUID The unique identifier of the API.
+	 * @param result  The SOAPAnalysisResult containing the SOAP action and body
+	 *                element QName used to match the correct service operation.
+	 * @return the matched service and operation
+	 * @throws SOAPValidationException if the services cannot be loaded or no
+	 *                                 operation matches the message
+	 */
+	public SOAPServiceOperation resolveOperation(String apiUUID, SOAPAnalysisResult result)
+			throws SOAPValidationException
+	{
+		return resolveOperation(apiUUID, result.getSoapAction(), result.getSoapBodyQName());
+	}
 
-					URI[] wsdlURIs = registryHelper.getLatestWSDLUri(apiUUID, wsdlExtractor);
-					logger.debug("Obtained WSDL URIs: " + wsdlURIs);
+	/**
+	 * Resolves the service operation matching the given SOAP action and body
+	 * element without compiling its schema.
+	 * 
+	 * @param apiUUID    The unique identifier of the API.
+	 * @param soapAction The SOAP action of the message (may be null).
+	 * @param bodyQName  The QName of the SOAP body element.
+	 * @return the matched service and operation
+	 * @throws SOAPValidationException if the services cannot be loaded or no
+	 *                                 operation matches the message
+	 */
+	public SOAPServiceOperation resolveOperation(String apiUUID, String soapAction, QName bodyQName)
+			throws SOAPValidationException
+	{
+		logger.debug("Looking for cached runtime model with api UUID: " + apiUUID);
 
-					return serviceBuilder.buildServices(wsdlURIs);
-				} catch (Exception e)
+		String tenantDomain = getTenantDomain(apiUUID);
+		ApiRuntimeModel model = cache.get(tenantDomain, RUNTIME + apiUUID);
+		boolean reload = false;
+		if (model != null && revisionCheckMillis > 0 && model.claimRevisionCheck(revisionCheckMillis))
+		{
+			try
+			{
+				int latestRevision = registryHelperFactory.create().getLatestRevision(apiUUID);
+				if (latestRevision != model.getRevision())
 				{
-					logger.error("unable to build services from wsdl", e);
+					logger.info("New revision " + latestRevision + " of API " + apiUUID + " - reloading contract");
+					reload = true;
 				}
-				return null;
-			});
+			} catch (RegistryException e)
+			{
+				logger.warn("Unable to check the revision of API " + apiUUID + " - " + e.getMessage());
+			}
+		}
 
+		if (model != null && !reload)
+		{
+			logger.debug("Cached runtime model found for: " + apiUUID);
+		} else
+		{
+			ApiContract contract = loadContract(apiUUID, tenantDomain, reload, null);
+			SchemaCompilationExecutor compilationExecutor = SchemaCompilationExecutor.getInstance();
+			long allocatedBefore = compilationExecutor.getCurrentThreadAllocatedBytes();
+			model = ApiRuntimeModel.build(contract, model);
+			long estimatedBytes = compilationExecutor.getCurrentThreadAllocatedBytes() - allocatedBefore;
+			if (reload)
+			{
+				cache.put(tenantDomain, RUNTIME + apiUUID, model, estimatedBytes);
+				VerdictCache.getInstance().invalidate(apiUUID);
+			} else
+			{
+				model = cache.putIfAbsent(tenantDomain, RUNTIME + apiUUID, model, estimatedBytes);
+			}
 		}
-		if (services == null || services.size() == 0)
+		if (model.getOperations().isEmpty())
 		{
 			logger.error("no service found");
-			return null;
+			throw new SOAPValidationException("no service found for api");
 		}
 
-		// build cache key for schema cache
-		SOAPServiceOperation serviceOperation;
+		RuntimeOperation operation;
 		try
 		{
-			serviceOperation = serviceBuilder.getMatchedServiceOperation(services, result.getSoapAction(),
-					result.getSoapBodyElement().getQName());
+			operation = model.match(soapAction, bodyQName);
 		} catch (Exception e)
 		{
 			throw new SOAPValidationException("error while finding corresponding service and operation", e);
 		}
+		if (operation == null)
+		{
+			throw new SOAPValidationException("no matching service operation found");
+		}
+		return new SOAPServiceOperation(operation);
+	}
 
-		String schemaCacheKey = buildSchemaCacheKey(apiUUID, serviceOperation);
-		logger.debug("Looking for cached schema with key: " + schemaCacheKey);
+	/**
+	 * Loads the contract of an API from the registry, unless it is still cached
+	 * with the required services and no new revision is requested.
+	 * 
+	 * @param apiUUID      ID of the API
+	 * @param tenantDomain tenant of the API
+	 * @param reload       true to load the latest revision, reusing the cached
+	 *                     contract for unchanged WSDLs; unchanged WSDLs whose
+	 *                     services were released are not loaded
+	 * @param fingerprint  root WSDL whose services are required, null for all;
+	 *                     other released root WSDLs stay released
+	 * @return the loaded contract, partial if loaded for a new revision
+	 * @throws SOAPValidationException if the contract cannot be loaded
+	 */
+	private ApiContract loadContract(String apiUUID, String tenantDomain, boolean reload, String fingerprint)
+			throws SOAPValidationException
+	{
+		ApiContract contract = cache.get(tenantDomain, SERVICES + apiUUID);
+		if (contract != null && !reload && (fingerprint == null ? contract.isComplete() : contract.isLoaded(fingerprint)))
+		{
+			logger.debug("Cached services found for: " + apiUUID);
+			return contract;
+		}
+		ApiContract previousContract = contract;
+		// the operations of released WSDLs that did not change are taken over from the runtime model,
+		// unless their services are required
+		ApiRuntimeModel previousModel = reload || fingerprint != null ? cache.get(tenantDomain, RUNTIME + apiUUID)
+				: null;
+		String requiredFingerprint = reload ? null : fingerprint;
+		logger.debug("No cached services found for: " + apiUUID + " - Start loading files from the registry");
 
-		// Return cached schema if exists
-		if (schemaCache.containsKey(schemaCacheKey))
+		// the registry is looked up on the request thread, which holds the carbon context
+		RegistryServiceHelper registryHelper;
+		try
 		{
-			logger.debug("Cached schema found for " + schemaCacheKey + " - returning it");
-			return schemaCache.get(schemaCacheKey);
+			registryHelper = registryHelperFactory.create();
+		} catch (RegistryException e)
+		{
+			logger.error("unable to access the registry", e);
+			throw new SOAPValidationException("registry not available", e);
 		}
+		logger.debug("RegistryServiceHelper initialized");
 
-		// Compute schema if absent blocks other threads (synchronized)
-		XMLValidationSchema validationSchema = schemaCache.computeIfAbsent(schemaCacheKey, k ->
+		// Load on the compilation pool, one job per API shared by all waiting requests
+		SchemaCompilationExecutor compilationExecutor = SchemaCompilationExecutor.getInstance();
+		WSDLServiceBuilder serviceBuilder = new WSDLServiceBuilder();
+		CompletableFuture<ApiContract> pendingService = pendingServices.computeIfAbsent(apiUUID,
+				k -> compilationExecutor.submit(apiUUID, k,
+						() -> loadContract(apiUUID, registryHelper, serviceBuilder, previousContract, previousModel,
+								requiredFingerprint)));
+		try
 		{
-			try
+			contract = compilationExecutor.await(pendingService);
+		} catch (SOAPValidationException e)
+		{
+			if (pendingService.isDone())
+			{
+				pendingServices.remove(apiUUID, pendingService);
+			}
+			logger.error("unable to build services from wsdl - " + e.getMessage());
+			throw e;
+		}
+		if (contract == null)
+		{
+			pendingServices.remove(apiUUID, pendingService);
+			logger.error("no service found");
+			throw new SOAPValidationException("no service found for api");
+		}
+		long estimatedBytes = compilationExecutor.getAllocatedBytes(apiUUID);
+		if (!reload && previousContract == null)
+		{
+			contract = cache.putIfAbsent(tenantDomain, SERVICES + apiUUID, contract, estimatedBytes);
+		} else if (pendingServices.remove(apiUUID, pendingService))
+		{
+			cache.put(tenantDomain, SERVICES + apiUUID, contract, estimatedBytes);
+			if (reload)
+			{
+				removeStaleEntries(tenantDomain, apiUUID, contract.getFingerprints());
+			}
+		}
+		pendingServices.remove(apiUUID, pendingService);
+		return contract;
+	}
+
+	/**
+	 * Binds the CXF service model to an operation matched with the runtime
+	 * model, loading the services of its root WSDL again if they were
+	 * released.
+	 * 
+	 * @param apiUUID          ID of the API
+	 * @param tenantDomain     tenant of the API
+	 * @param serviceOperation matched operation
+	 * @param resultKey        cache key of the result built from the service
+	 *                         model, which has to be cached before the model
+	 *                         is released
+	 * @throws SOAPValidationException if the contract cannot be loaded or no
+	 *                                 longer contains the operation
+	 */
+	private void bindServiceModel(String apiUUID, String tenantDomain, SOAPServiceOperation serviceOperation,
+			String resultKey) throws SOAPValidationException
+	{
+		String fingerprint = serviceOperation.getRuntimeOperation().getFingerprint();
+		if (releaseServiceModels)
+		{
+			boundResults.computeIfAbsent(apiUUID + ":" + fingerprint, k -> ConcurrentHashMap.newKeySet())
+					.add(resultKey);
+		}
+		if (serviceOperation.isBound())
+		{
+			return;
+		}
+		ApiContract contract = loadContract(apiUUID, tenantDomain, false, fingerprint);
+		while (!contract.isLoaded(fingerprint))
+		{
+			// joined the load of a new revision or of another released WSDL, which leaves this one out
+			contract = loadContract(apiUUID, tenantDomain, false, fingerprint);
+		}
+		SOAPServiceOperation boundOperation = contract.findOperation(serviceOperation.getRuntimeOperation());
+		if (boundOperation == null)
+		{
+			// a released contract is loaded in its latest revision, which may differ from the runtime model
+			ApiRuntimeModel model = cache.get(tenantDomain, RUNTIME + apiUUID);
+			if (model != null && model.getRevision() != contract.getRevision())
+			{
+				logger.info("Contract of API " + apiUUID + " changed to revision " + contract.getRevision()
+						+ " - replacing its runtime model");
+				cache.put(tenantDomain, RUNTIME + apiUUID, ApiRuntimeModel.build(contract), 0);
+				removeStaleEntries(tenantDomain, apiUUID, contract.getFingerprints());
+			}
+			throw new SOAPValidationException("operation " + serviceOperation.getOperationName()
+					+ " no longer part of the contract of api " + apiUUID);
+		}
+		serviceOperation.bind(boundOperation);
+	}
+
+	/**
+	 * Releases the CXF services of the root WSDL of an operation once all
+	 * results built from them are cached. Operations that are not used keep
+	 * no services loaded; the services are loaded again if an operation of the
+	 * WSDL has to be compiled later on.
+	 * 
+	 * @param apiUUID          ID of the API
+	 * @param tenantDomain     tenant of the API
+	 * @param serviceOperation operation whose result was just cached
+	 */
+	private void releaseServiceModel(String apiUUID, String tenantDomain, SOAPServiceOperation serviceOperation)
+	{
+		String fingerprint = serviceOperation.getRuntimeOperation().getFingerprint();
+		Set<String> resultKeys = boundResults.get(apiUUID + ":" + fingerprint);
+		if (!releaseServiceModels || resultKeys == null)
+		{
+			return;
+		}
+		for (String resultKey : resultKeys)
+		{
+			if (cache.get(tenantDomain, resultKey) == null)
 			{
-				SchemaCompiler schemaCompiler = new SchemaCompiler();
-				XMLValidationSchema schema = schemaCompiler.compileSchema(serviceOperation);
+				return;
+			}
+		}
+		String servicesKey = SERVICES + apiUUID;
+		ApiContract contract = cache.get(tenantDomain, servicesKey);
+		if (contract == null || contract.getServices(fingerprint) == null)
+		{
+			return;
+		}
+		ApiContract releasedContract = contract.release(fingerprint);
+		boolean released = releasedContract.getServices().isEmpty()
+				? cache.removeIf(tenantDomain, servicesKey::equals) > 0
+				: cache.replace(tenantDomain, servicesKey, contract, releasedContract,
+						(double) releasedContract.getServices().size() / contract.getServices().size());
+		if (released)
+		{
+			logger.debug("Operations in use of WSDL " + fingerprint + " of API " + apiUUID
+					+ " compiled - released its service model");
+		}
+	}
+
+	/**
+	 * Loads the latest revision of the contract of an API. Root WSDLs whose
+	 * documents did not change since the previous revision are not parsed
+	 * again; their services are taken over from the previous contract or, if
+	 * they were released, left unloaded with their operations in the previous
+	 * runtime model. The other WSDLs are parsed in parallel; WSDLs that fail to
+	 * parse are left out.
+	 * 
+	 * @param apiUUID             ID of the API
+	 * @param registryHelper      registry of the API's tenant
+	 * @param serviceBuilder      builder for the CXF services
+	 * @param previousContract    previously loaded revision, may be null
+	 * @param previousModel       runtime model of the previous revision, null
+	 *                            to load all WSDLs without services
+	 * @param requiredFingerprint root WSDL whose services are loaded even if
+	 *                            they were released, may be null
+	 * @return the loaded contract, or null if no WSDL can be built
+	 * @throws Exception if the contract cannot be read from the registry
+	 */
+	private ApiContract loadContract(String apiUUID, RegistryServiceHelper registryHelper,
+			WSDLServiceBuilder serviceBuilder, ApiContract previousContract, ApiRuntimeModel previousModel,
+			String requiredFingerprint) throws Exception
+	{
+		WSDLExtractor wsdlExtractor = new WSDLExtractor();
+		logger.debug("WSDLExtractor initialized");
+
+		int revision = registryHelper.getLatestRevision(apiUUID);
+		URI[] wsdlURIs = registryHelper.getWSDLUri(apiUUID, revision, wsdlExtractor);
+		logger.debug("Obtained WSDL URIs: " + Arrays.toString(wsdlURIs));
 
-				return schema;
-			} catch (Exception e)
+		ContractDocumentGraph documentGraph = ContractDocumentGraph.build(wsdlURIs);
+		Map<String, List<ServiceInfo>> servicesByFingerprint = new LinkedHashMap<>();
+		List<URI> changedURIs = new ArrayList<>();
+		Set<String> changedFingerprints = new HashSet<>();
+		for (URI wsdlURI : wsdlURIs)
+		{
+			String fingerprint = documentGraph.getFingerprint(wsdlURI);
+			if (servicesByFingerprint.containsKey(fingerprint) || changedFingerprints.contains(fingerprint))
 			{
-				logger.error("Failed to resolve schema for API: " + apiUUID, e);
-				return null;
+				continue;
 			}
+			List<ServiceInfo> services = previousContract == null ? null : previousContract.getServices(fingerprint);
+			if (services != null)
+			{
+				logger.debug("Documents of " + wsdlURI + " unchanged - reusing its services");
+				servicesByFingerprint.put(fingerprint, services);
+			} else if (previousModel != null && previousModel.getFingerprints().contains(fingerprint)
+					&& !fingerprint.equals(requiredFingerprint))
+			{
+				logger.debug("Documents of " + wsdlURI + " unchanged - taking over its released operations");
+				servicesByFingerprint.put(fingerprint, null);
+			} else
+			{
+				changedURIs.add(wsdlURI);
+				changedFingerprints.add(fingerprint);
+			}
+		}
+
+		// parse the new and changed WSDLs, a WSDL that fails does not prevent the others from loading
+		Map<URI, List<ServiceInfo>> builtServices = changedURIs.isEmpty() ? Map.of()
+				: serviceBuilder.buildServicesByURI(changedURIs.toArray(new URI[0]));
+		for (URI wsdlURI : changedURIs)
+		{
+			String fingerprint = documentGraph.getFingerprint(wsdlURI);
+			List<ServiceInfo> services = builtServices.get(wsdlURI);
+			if (services == null)
+			{
+				logger.error("WSDL " + wsdlURI + " of API " + apiUUID + " could not be loaded - skipping it");
+				continue;
+			}
+			services.forEach(service -> service.setProperty(ApiContract.FINGERPRINT_PROPERTY, fingerprint));
+			servicesByFingerprint.putIfAbsent(fingerprint, services);
+		}
+		if (servicesByFingerprint.isEmpty())
+		{
+			return null;
+		}
+		return new ApiContract(revision, servicesByFingerprint);
+	}
+
+	/**
+	 * Removes the cached results of an API that were compiled from documents
+	 * that are no longer part of its contract.
+	 * 
+	 * @param tenantDomain tenant of the API
+	 * @param apiUUID      ID of the API
+	 * @param fingerprints fingerprints of the root WSDLs of the current contract
+	 */
+	private void removeStaleEntries(String tenantDomain, String apiUUID, Set<String> fingerprints)
+	{
+		int removed = cache.removeIf(tenantDomain, key ->
+		{
+			for (String prefix : new String[] { SCHEMA, STRUCTURAL, COMPILED, PREPARED })
+			{
+				String apiPrefix = prefix + apiUUID + ":";
+				if (key.startsWith(apiPrefix))
+				{
+					int end = key.indexOf(':', apiPrefix.length());
+					return end < 0 || !fingerprints.contains(key.substring(apiPrefix.length(), end));
+				}
+			}
+			return false;
 		});
-		if(validationSchema == null)
+		boundResults.keySet().removeIf(key -> key.startsWith(apiUUID + ":")
+				&& !fingerprints.contains(key.substring(apiUUID.length() + 1)));
+		ValidationWarmup.forget(apiUUID);
+		logger.debug("Removed " + removed + " stale cache entries of API " + apiUUID);
+	}
+
+	/**
+	 * Determines the tenant of an API: the tenant of the carbon context on
+	 * request threads, which is recorded for the API, or the recorded tenant on
+	 * other threads.
+	 * 
+	 * @param apiUUID ID of the API called
+	 * @return tenant domain of the API
+	 */
+	private String getTenantDomain(String apiUUID)
+	{
+		PrivilegedCarbonContext carbonContext = PrivilegedCarbonContext.getThreadLocalCarbonContext();
+		String tenantDomain = carbonContext == null ? null : carbonContext.getTenantDomain();
+		if (tenantDomain != null)
 		{
-			throw new SOAPValidationException("error during schema compilation");
+			apiTenants.putIfAbsent(apiUUID, tenantDomain);
+			return tenantDomain;
 		}
-		return validationSchema;
+		return apiTenants.getOrDefault(apiUUID, TenantCache.SUPER_TENANT_DOMAIN);
 	}
 
 	/**
@@ -143,8 +790,15 @@ public class SchemaResolver
 	 */
 	private String buildSchemaCacheKey(String apiUUID, SOAPServiceOperation serviceOperation)
 	{
-		return apiUUID + ":" + serviceOperation.getService().getName().toString() + ":"
-				+ serviceOperation.getOperation().getName().toString();
+		return apiUUID + ":" + serviceOperation.getRuntimeOperation().getKey();
+
+	}
 
+	/**
+	 * Creates the registry access of the current tenant.
+	 */
+	interface RegistryHelperFactory
+	{
+		RegistryServiceHelper create() throws RegistryException;
 	}
 }
@@ -0,0 +1,127 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.namespace.QName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.codehaus.stax2.validation.XMLValidationProblem;
+import org.codehaus.stax2.validation.XMLValidationSchema;
+
+import ch.integon.wso2.am.mediator.wsdl.model.SOAPServiceOperation;
+
+/**
+ * Validates detached SOAP payloads on a bounded background executor, for
+ * monitoring only.
+ * <p>
+ * The payload is handed over as serialized bytes, so the background thread
+ * never touches the Axiom tree of the message in flight. Validation runs on
+ * virtual threads, at most {@code concurrency} at a time; when the queue is
+ * full the payload is dropped and counted instead of blocking the caller.
+ * Callers check {@link #accepts(String)} first, so a payload that would be
+ * dropped is not built and serialized.
+ * Outcomes are logged and counted in {@link ValidationMetrics}.
+ */
+public class ShadowValidationExecutor
+{
+	private static final Log logger = LogFactory.getLog(ShadowValidationExecutor.class);
+
+	private final ThreadPoolExecutor executor;
+	private final SchemaResolver schemaResolver;
+	private final SOAPValidator soapValidator;
+
+	/**
+	 * @param concurrency    maximum number of payloads validated concurrently
+	 * @param queueCapacity  maximum number of payloads waiting for validation
+	 * @param schemaResolver resolver used to match operations and schemas
+	 * @param soapValidator  validator used for the payloads
+	 */
+	public ShadowValidationExecutor(int concurrency, int queueCapacity, SchemaResolver schemaResolver,
+			SOAPValidator soapValidator)
+	{
+		this.executor = new ThreadPoolExecutor(concurrency, concurrency, 30, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(queueCapacity), Thread.ofVirtual().name("soap-shadow-validation-", 0).factory(),
+				new ThreadPoolExecutor.AbortPolicy());
+		this.executor.allowCoreThreadTimeOut(true);
+		this.schemaResolver = schemaResolver;
+		this.soapValidator = soapValidator;
+	}
+
+	/**
+	 * Checks whether a payload can be queued now, and counts it as dropped
+	 * otherwise. A payload may still be dropped by {@link #submit} if other
+	 * callers fill the queue in between.
+	 *
+	 * @param apiUUID API identifier
+	 * @return true if the payload should be handed over
+	 */
+	public boolean accepts(String apiUUID)
+	{
+		if (executor.getPoolSize() < executor.getMaximumPoolSize() || executor.getQueue().remainingCapacity() > 0)
+		{
+			return true;
+		}
+		dropped(apiUUID);
+		return false;
+	}
+
+	/**
+	 * Queues a detached payload for validation. Never blocks.
+	 *
+	 * @param apiUUID    API identifier
+	 * @param soapAction SOAP action of the message (may be null)
+	 * @param bodyQName  QName of the SOAP body element
+	 * @param payload    serialized SOAP body element
+	 * @return true if the payload was queued, false if it was dropped
+	 */
+	public boolean submit(String apiUUID, String soapAction, QName bodyQName, byte[] payload)
+	{
+		try
+		{
+			executor.execute(() -> validate(apiUUID, soapAction, bodyQName, payload));
+			return true;
+		} catch (RejectedExecutionException e)
+		{
+			dropped(apiUUID);
+			return false;
+		}
+	}
+
+	private static void dropped(String apiUUID)
+	{
+		ValidationMetrics.getInstance().increment(apiUUID + ".shadow.dropped");
+		logger.debug("Shadow validation queue full - dropping payload for API: " + apiUUID);
+	}
+
+	/**
+	 * Validates one payload and records the outcome.
+	 */
+	private void validate(String apiUUID, String soapAction, QName bodyQName, byte[] payload)
+	{
+		ValidationMetrics metrics = ValidationMetrics.getInstance();
+		try
+		{
+			SOAPServiceOperation serviceOperation = schemaResolver.resolveOperation(apiUUID, soapAction, bodyQName);
+			XMLValidationSchema schema = schemaResolver.resolveSchema(apiUUID, serviceOperation);
+			List<XMLValidationProblem> problems = soapValidator.validate(schema, new ByteArrayInputStream(payload));
+			if (problems.isEmpty())
+			{
+				metrics.increment(apiUUID + ".shadow.valid");
+				return;
+			}
+			metrics.increment(apiUUID + ".shadow.invalid");
+			logger.warn("Shadow validation found " + problems.size() + " schema violation(s) for api: " + apiUUID
+					+ " - first: " + problems.get(0).getMessage());
+		} catch (Exception e)
+		{
+			metrics.increment(apiUUID + ".shadow.error");
+			logger.warn("Shadow validation failed for api: " + apiUUID + " - " + e.getMessage());
+		}
+	}
+}
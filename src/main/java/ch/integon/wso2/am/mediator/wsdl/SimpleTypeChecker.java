@@ -0,0 +1,474 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Precompiled check of a simple type value: lexical space of the built-in
+ * base type, whitespace normalization and the facets of all restriction
+ * steps.
+ * <p>
+ * Only the built-in types and facets whose semantics can be reproduced
+ * exactly are supported; {@link CompiledValidatorBuilder} declines everything
+ * else, so that those types stay with the schema validator. Instances are
+ * immutable and thread-safe.
+ */
+final class SimpleTypeChecker
+{
+	/** Whitespace normalization of a type. */
+	enum WhiteSpace
+	{
+		PRESERVE, REPLACE, COLLAPSE
+	}
+
+	/** Value space families of the supported built-in types. */
+	enum Primitive
+	{
+		STRING, BOOLEAN, DECIMAL, INTEGER, FLOAT, DOUBLE, DATE_TIME, DATE, TIME, DURATION, BASE64, HEX, ANY_URI, ANY
+	}
+
+	private static final Pattern DECIMAL = Pattern.compile("[+-]?(\\d+(\\.\\d*)?|\\.\\d+)");
+	private static final Pattern INTEGER = Pattern.compile("[+-]?\\d+");
+	private static final Pattern FLOATING = Pattern.compile("[+-]?(\\d+(\\.\\d*)?|\\.\\d+)([Ee][+-]?\\d+)?|-?INF|NaN");
+	private static final Pattern BOOLEAN = Pattern.compile("true|false|1|0");
+	private static final String TIMEZONE = "(Z|[+-](\\d{2}):(\\d{2}))?";
+	private static final Pattern DATE_TIME = Pattern
+			.compile("-?(\\d{4,})-(\\d{2})-(\\d{2})T(\\d{2}):(\\d{2}):(\\d{2})(\\.\\d+)?" + TIMEZONE);
+	private static final Pattern DATE = Pattern.compile("-?(\\d{4,})-(\\d{2})-(\\d{2})" + TIMEZONE);
+	private static final Pattern TIME = Pattern.compile("(\\d{2}):(\\d{2}):(\\d{2})(\\.\\d+)?" + TIMEZONE);
+	private static final Pattern DURATION = Pattern
+			.compile("-?P(?=\\d|T\\d)(\\d+Y)?(\\d+M)?(\\d+D)?(T(?=\\d)(\\d+H)?(\\d+M)?(\\d+(\\.\\d+)?S)?)?");
+	private static final Pattern BASE64 = Pattern.compile("((([A-Za-z0-9+/] ?){4})*(([A-Za-z0-9+/] ?){3}[A-Za-z0-9+/]"
+			+ "|([A-Za-z0-9+/] ?){2}[AEIMQUYcgkosw048] ?=|[A-Za-z0-9+/] ?[AQgw] ?= ?=))?");
+	private static final Pattern HEX = Pattern.compile("([0-9a-fA-F]{2})*");
+
+	private final String name;
+	private final Primitive primitive;
+	private final WhiteSpace whiteSpace;
+	private final BigDecimal minInclusive;
+	private final BigDecimal maxInclusive;
+	private final BigDecimal minExclusive;
+	private final BigDecimal maxExclusive;
+	private final int minLength;
+	private final int maxLength;
+	private final int totalDigits;
+	private final int fractionDigits;
+	private final Set<String> enumeration;
+	private final List<List<Pattern>> patterns;
+
+	private SimpleTypeChecker(Builder builder)
+	{
+		this.name = builder.name;
+		this.primitive = builder.primitive;
+		this.whiteSpace = builder.whiteSpace;
+		this.minInclusive = builder.minInclusive;
+		this.maxInclusive = builder.maxInclusive;
+		this.minExclusive = builder.minExclusive;
+		this.maxExclusive = builder.maxExclusive;
+		this.minLength = builder.minLength;
+		this.maxLength = builder.maxLength;
+		this.totalDigits = builder.totalDigits;
+		this.fractionDigits = builder.fractionDigits;
+		this.enumeration = builder.enumeration == null ? null : Set.copyOf(builder.enumeration);
+		this.patterns = List.copyOf(builder.patterns);
+	}
+
+	/**
+	 * Checks a value.
+	 *
+	 * @param rawValue the value as found in the document
+	 * @return description of the problem, or null if the value is valid
+	 */
+	String check(String rawValue)
+	{
+		String value = normalize(rawValue, whiteSpace);
+		for (List<Pattern> step : patterns)
+		{
+			boolean matched = false;
+			for (Pattern pattern : step)
+			{
+				matched |= pattern.matcher(value).matches();
+			}
+			if (!matched)
+			{
+				return "value '" + value + "' does not match the pattern of type " + name;
+			}
+		}
+
+		String lexicalProblem = checkLexical(value);
+		if (lexicalProblem != null)
+		{
+			return lexicalProblem;
+		}
+
+		if (minLength > 0 || maxLength >= 0)
+		{
+			long length = length(value);
+			if (length < minLength || (maxLength >= 0 && length > maxLength))
+			{
+				return "length of value '" + value + "' is not within the bounds of type " + name;
+			}
+		}
+
+		if (primitive == Primitive.DECIMAL || primitive == Primitive.INTEGER)
+		{
+			BigDecimal number = new BigDecimal(value.startsWith("+") ? value.substring(1) : value);
+			if ((minInclusive != null && number.compareTo(minInclusive) < 0)
+					|| (maxInclusive != null && number.compareTo(maxInclusive) > 0)
+					|| (minExclusive != null && number.compareTo(minExclusive) <= 0)
+					|| (maxExclusive != null && number.compareTo(maxExclusive) >= 0))
+			{
+				return "value '" + value + "' is out of the range of type " + name;
+			}
+			if ((totalDigits > 0 && totalDigits(number) > totalDigits)
+					|| (fractionDigits >= 0 && Math.max(number.stripTrailingZeros().scale(), 0) > fractionDigits))
+			{
+				return "value '" + value + "' has too many digits for type " + name;
+			}
+		}
+
+		if (enumeration != null && !enumeration.contains(valueKey(primitive, value)))
+		{
+			return "value '" + value + "' is not one of the enumerated values of type " + name;
+		}
+		return null;
+	}
+
+	/**
+	 * Checks the lexical space of the primitive type.
+	 */
+	private String checkLexical(String value)
+	{
+		boolean valid;
+		switch (primitive)
+		{
+		case BOOLEAN:
+			valid = BOOLEAN.matcher(value).matches();
+			break;
+		case DECIMAL:
+			valid = DECIMAL.matcher(value).matches();
+			break;
+		case INTEGER:
+			valid = INTEGER.matcher(value).matches();
+			break;
+		case FLOAT:
+		case DOUBLE:
+			valid = FLOATING.matcher(value).matches();
+			break;
+		case DATE_TIME:
+			valid = isValidDateTime(DATE_TIME, value, true, true);
+			break;
+		case DATE:
+			valid = isValidDateTime(DATE, value, true, false);
+			break;
+		case TIME:
+			valid = isValidDateTime(TIME, value, false, true);
+			break;
+		case DURATION:
+			valid = DURATION.matcher(value).matches();
+			break;
+		case BASE64:
+			valid = BASE64.matcher(value).matches();
+			break;
+		case HEX:
+			valid = HEX.matcher(value).matches();
+			break;
+		default:
+			valid = true;
+		}
+		return valid ? null : "value '" + value + "' is not a valid " + name;
+	}
+
+	/**
+	 * Checks the lexical form and the field ranges of a date/time value.
+	 */
+	private static boolean isValidDateTime(Pattern pattern, String value, boolean hasDate, boolean hasTime)
+	{
+		Matcher matcher = pattern.matcher(value);
+		if (!matcher.matches())
+		{
+			return false;
+		}
+		int group = 1;
+		if (hasDate)
+		{
+			String yearDigits = matcher.group(group++);
+			int month = Integer.parseInt(matcher.group(group++));
+			int day = Integer.parseInt(matcher.group(group++));
+			// year 0000 does not exist, years beyond 9999 have no leading zeros
+			if (yearDigits.matches("0+") || (yearDigits.length() > 4 && yearDigits.charAt(0) == '0'))
+			{
+				return false;
+			}
+			if (month < 1 || month > 12 || day < 1 || day > daysInMonth(yearDigits, value.startsWith("-"), month))
+			{
+				return false;
+			}
+		}
+		if (hasTime)
+		{
+			int hour = Integer.parseInt(matcher.group(group++));
+			int minute = Integer.parseInt(matcher.group(group++));
+			String secondDigits = matcher.group(group++);
+			String fraction = matcher.group(group++);
+			int second = Integer.parseInt(secondDigits);
+			boolean endOfDay = hour == 24 && minute == 0 && second == 0 && (fraction == null || fraction.matches("\\.0+"));
+			if ((hour > 23 && !endOfDay) || minute > 59 || second > 59)
+			{
+				return false;
+			}
+		}
+		group++;
+		String zoneHours = matcher.group(group++);
+		String zoneMinutes = matcher.group(group);
+		if (zoneHours != null)
+		{
+			int hours = Integer.parseInt(zoneHours);
+			int minutes = Integer.parseInt(zoneMinutes);
+			if (minutes > 59 || hours > 14 || (hours == 14 && minutes > 0))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int daysInMonth(String yearDigits, boolean negative, int month)
+	{
+		switch (month)
+		{
+		case 2:
+			BigInteger year = new BigInteger(yearDigits);
+			if (negative)
+			{
+				// year -0001 is the leap year 1 BC
+				year = year.negate().add(BigInteger.ONE);
+			}
+			boolean leap = year.mod(BigInteger.valueOf(4)).signum() == 0
+					&& (year.mod(BigInteger.valueOf(100)).signum() != 0 || year.mod(BigInteger.valueOf(400)).signum() == 0);
+			return leap ? 29 : 28;
+		case 4:
+		case 6:
+		case 9:
+		case 11:
+			return 30;
+		default:
+			return 31;
+		}
+	}
+
+	/**
+	 * @return the length of the value in the unit of its type
+	 */
+	private long length(String value)
+	{
+		switch (primitive)
+		{
+		case HEX:
+			return value.length() / 2;
+		case BASE64:
+			String data = value.replace(" ", "");
+			int padding = data.endsWith("==") ? 2 : data.endsWith("=") ? 1 : 0;
+			return data.length() / 4 * 3 - padding;
+		default:
+			return value.codePointCount(0, value.length());
+		}
+	}
+
+	private static int totalDigits(BigDecimal number)
+	{
+		BigDecimal stripped = number.stripTrailingZeros();
+		return stripped.scale() < 0 ? stripped.precision() - stripped.scale() : stripped.precision();
+	}
+
+	/**
+	 * @return the comparison key of a value in the value space of its type
+	 */
+	static String valueKey(Primitive primitive, String value)
+	{
+		switch (primitive)
+		{
+		case BOOLEAN:
+			return String.valueOf("true".equals(value) || "1".equals(value));
+		case DECIMAL:
+		case INTEGER:
+			BigDecimal number = new BigDecimal(value.startsWith("+") ? value.substring(1) : value);
+			return number.signum() == 0 ? "0" : number.stripTrailingZeros().toPlainString();
+		case FLOAT:
+			return value.endsWith("INF") || value.equals("NaN") ? value
+					: String.valueOf(Float.parseFloat(value));
+		case DOUBLE:
+			return value.endsWith("INF") || value.equals("NaN") ? value
+					: String.valueOf(Double.parseDouble(value));
+		case HEX:
+			return value.toUpperCase();
+		case BASE64:
+			return value.replace(" ", "");
+		default:
+			return value;
+		}
+	}
+
+	/**
+	 * Applies the whitespace normalization of a type.
+	 */
+	static String normalize(String value, WhiteSpace whiteSpace)
+	{
+		switch (whiteSpace)
+		{
+		case REPLACE:
+			return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+		case COLLAPSE:
+			StringBuilder collapsed = new StringBuilder(value.length());
+			boolean space = false;
+			for (int i = 0; i < value.length(); i++)
+			{
+				char c = value.charAt(i);
+				if (c == ' ' || c == '\t' || c == '\n' || c == '\r')
+				{
+					space = collapsed.length() > 0;
+				} else
+				{
+					if (space)
+					{
+						collapsed.append(' ');
+						space = false;
+					}
+					collapsed.append(c);
+				}
+			}
+			return collapsed.toString();
+		default:
+			return value;
+		}
+	}
+
+	/**
+	 * Collects the base type and facets of a simple type, one restriction step
+	 * after the other.
+	 */
+	static final class Builder
+	{
+		private final String name;
+		private final Primitive primitive;
+		private WhiteSpace whiteSpace;
+		private BigDecimal minInclusive;
+		private BigDecimal maxInclusive;
+		private BigDecimal minExclusive;
+		private BigDecimal maxExclusive;
+		private int minLength;
+		private int maxLength = -1;
+		private int totalDigits;
+		private int fractionDigits = -1;
+		private Set<String> enumeration;
+		private final List<List<Pattern>> patterns = new ArrayList<>();
+
+		Builder(String name, Primitive primitive, WhiteSpace whiteSpace)
+		{
+			this.name = name;
+			this.primitive = primitive;
+			this.whiteSpace = whiteSpace;
+		}
+
+		Primitive getPrimitive()
+		{
+			return primitive;
+		}
+
+		Builder whiteSpace(WhiteSpace whiteSpace)
+		{
+			if (whiteSpace.ordinal() > this.whiteSpace.ordinal())
+			{
+				this.whiteSpace = whiteSpace;
+			}
+			return this;
+		}
+
+		Builder minInclusive(BigDecimal value)
+		{
+			minInclusive = minInclusive == null || value.compareTo(minInclusive) > 0 ? value : minInclusive;
+			return this;
+		}
+
+		Builder maxInclusive(BigDecimal value)
+		{
+			maxInclusive = maxInclusive == null || value.compareTo(maxInclusive) < 0 ? value : maxInclusive;
+			return this;
+		}
+
+		Builder minExclusive(BigDecimal value)
+		{
+			minExclusive = minExclusive == null || value.compareTo(minExclusive) > 0 ? value : minExclusive;
+			return this;
+		}
+
+		Builder maxExclusive(BigDecimal value)
+		{
+			maxExclusive = maxExclusive == null || value.compareTo(maxExclusive) < 0 ? value : maxExclusive;
+			return this;
+		}
+
+		Builder minLength(int value)
+		{
+			minLength = Math.max(minLength, value);
+			return this;
+		}
+
+		Builder maxLength(int value)
+		{
+			maxLength = maxLength < 0 ? value : Math.min(maxLength, value);
+			return this;
+		}
+
+		Builder totalDigits(int value)
+		{
+			totalDigits = totalDigits == 0 ? value : Math.min(totalDigits, value);
+			return this;
+		}
+
+		Builder fractionDigits(int value)
+		{
+			fractionDigits = fractionDigits < 0 ? value : Math.min(fractionDigits, value);
+			return this;
+		}
+
+		/**
+		 * Restricts the enumeration to the values of one restriction step.
+		 */
+		Builder enumeration(Set<String> values)
+		{
+			Set<String> keys = new HashSet<>();
+			for (String value : values)
+			{
+				keys.add(valueKey(primitive, normalize(value, whiteSpace)));
+			}
+			if (enumeration != null)
+			{
+				keys.retainAll(enumeration);
+			}
+			enumeration = keys;
+			return this;
+		}
+
+		/**
+		 * Adds the patterns of one restriction step; a value has to match one
+		 * pattern of every step.
+		 */
+		Builder patterns(List<Pattern> stepPatterns)
+		{
+			patterns.add(List.copyOf(stepPatterns));
+			return this;
+		}
+
+		SimpleTypeChecker build()
+		{
+			return new SimpleTypeChecker(this);
+		}
+	}
+}
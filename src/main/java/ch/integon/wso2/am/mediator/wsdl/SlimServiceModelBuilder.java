@@ -0,0 +1,430 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.wsdl.Binding;
+import javax.wsdl.BindingOperation;
+import javax.wsdl.Definition;
+import javax.wsdl.Fault;
+import javax.wsdl.Import;
+import javax.wsdl.Input;
+import javax.wsdl.Message;
+import javax.wsdl.Operation;
+import javax.wsdl.Output;
+import javax.wsdl.Part;
+import javax.wsdl.Port;
+import javax.wsdl.PortType;
+import javax.wsdl.Service;
+import javax.wsdl.extensions.schema.Schema;
+import javax.wsdl.extensions.soap.SOAPBinding;
+import javax.wsdl.extensions.soap.SOAPBody;
+import javax.wsdl.extensions.soap.SOAPHeader;
+import javax.wsdl.extensions.soap.SOAPOperation;
+import javax.wsdl.extensions.soap12.SOAP12Binding;
+import javax.wsdl.extensions.soap12.SOAP12Body;
+import javax.wsdl.extensions.soap12.SOAP12Header;
+import javax.wsdl.extensions.soap12.SOAP12Operation;
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.cxf.binding.soap.model.SoapHeaderInfo;
+import org.apache.cxf.binding.soap.model.SoapOperationInfo;
+import org.apache.cxf.common.xmlschema.SchemaCollection;
+import org.apache.cxf.service.model.AbstractMessageContainer;
+import org.apache.cxf.service.model.BindingInfo;
+import org.apache.cxf.service.model.BindingMessageInfo;
+import org.apache.cxf.service.model.BindingOperationInfo;
+import org.apache.cxf.service.model.FaultInfo;
+import org.apache.cxf.service.model.InterfaceInfo;
+import org.apache.cxf.service.model.MessageInfo;
+import org.apache.cxf.service.model.MessagePartInfo;
+import org.apache.cxf.service.model.OperationInfo;
+import org.apache.cxf.service.model.SchemaInfo;
+import org.apache.cxf.service.model.ServiceInfo;
+import org.apache.ws.commons.schema.XmlSchema;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Builds the service model used by the validator directly from a WSDL4J
+ * definition, without the CXF bus, binding factories and transports.
+ * <p>
+ * Only what validation needs is built: one {@link ServiceInfo} per service and
+ * port type with its schemas, and the SOAP 1.1/1.2 bindings with their
+ * operations, SOAP actions, body and header parts. Bindings of other protocols
+ * and endpoints are not modelled. Selected with the {@code slim} build
+ * profile, see {@link WSDLServiceBuilder}.
+ */
+final class SlimServiceModelBuilder
+{
+	private static final Log logger = LogFactory.getLog(SlimServiceModelBuilder.class);
+
+	static final String SOAP11_BINDING_ID = "http://schemas.xmlsoap.org/wsdl/soap/";
+	static final String SOAP12_BINDING_ID = "http://schemas.xmlsoap.org/wsdl/soap12/";
+
+	private final Definition definition;
+	private final SchemaCollection schemas = new SchemaCollection();
+	private final List<SchemaInfo> schemaInfos = new ArrayList<>();
+
+	private SlimServiceModelBuilder(Definition definition)
+	{
+		this.definition = definition;
+	}
+
+	/**
+	 * Builds the services of a WSDL definition.
+	 *
+	 * @param definition WSDL definition, with its imports resolved
+	 * @return the services of the definition; for a definition without
+	 *         services, one per SOAP binding
+	 */
+	static List<ServiceInfo> buildServices(Definition definition)
+	{
+		SlimServiceModelBuilder builder = new SlimServiceModelBuilder(definition);
+		builder.readSchemas(definition, Collections.newSetFromMap(new IdentityHashMap<>()));
+
+		List<ServiceInfo> services = new ArrayList<>();
+		Collection<?> wsdlServices = definition.getAllServices().values();
+		if (wsdlServices.isEmpty())
+		{
+			for (Object binding : definition.getAllBindings().values())
+			{
+				Binding wsdlBinding = (Binding) binding;
+				if (getBindingId(wsdlBinding) != null)
+				{
+					ServiceInfo service = builder.createService(wsdlBinding.getQName(), wsdlBinding.getPortType());
+					builder.buildBinding(service, wsdlBinding);
+					services.add(service);
+				}
+			}
+		}
+		for (Object wsdlService : wsdlServices)
+		{
+			services.addAll(builder.buildServices((Service) wsdlService));
+		}
+		logger.debug("Built " + services.size() + " services from " + definition.getDocumentBaseURI());
+		return services;
+	}
+
+	/**
+	 * Builds one service per port type of the SOAP ports of a WSDL service.
+	 */
+	private List<ServiceInfo> buildServices(Service wsdlService)
+	{
+		Map<QName, ServiceInfo> servicesByPortType = new LinkedHashMap<>();
+		Set<QName> builtBindings = new HashSet<>();
+		for (Object port : wsdlService.getPorts().values())
+		{
+			Binding binding = ((Port) port).getBinding();
+			if (binding == null || getBindingId(binding) == null || !builtBindings.add(binding.getQName()))
+			{
+				continue;
+			}
+			ServiceInfo service = servicesByPortType.computeIfAbsent(binding.getPortType().getQName(),
+					k -> createService(wsdlService.getQName(), binding.getPortType()));
+			buildBinding(service, binding);
+		}
+		return new ArrayList<>(servicesByPortType.values());
+	}
+
+	private ServiceInfo createService(QName name, PortType portType)
+	{
+		ServiceInfo service = new ServiceInfo();
+		service.setName(name);
+		service.setTargetNamespace(definition.getTargetNamespace());
+		service.setXmlSchemaCollection(schemas);
+		schemaInfos.forEach(service::addSchema);
+
+		InterfaceInfo interfaceInfo = service.createInterface(portType.getQName());
+		for (Object o : portType.getOperations())
+		{
+			Operation operation = (Operation) o;
+			OperationInfo operationInfo = interfaceInfo
+					.addOperation(new QName(portType.getQName().getNamespaceURI(), operation.getName()));
+			Input input = operation.getInput();
+			if (input != null && input.getMessage() != null)
+			{
+				MessageInfo message = operationInfo.createMessage(input.getMessage().getQName(), MessageInfo.Type.INPUT);
+				addParts(message, input.getMessage());
+				operationInfo.setInput(input.getName(), message);
+			}
+			Output output = operation.getOutput();
+			if (output != null && output.getMessage() != null)
+			{
+				MessageInfo message = operationInfo.createMessage(output.getMessage().getQName(),
+						MessageInfo.Type.OUTPUT);
+				addParts(message, output.getMessage());
+				operationInfo.setOutput(output.getName(), message);
+			}
+			for (Object f : operation.getFaults().values())
+			{
+				Fault fault = (Fault) f;
+				if (fault.getMessage() != null)
+				{
+					FaultInfo faultInfo = operationInfo.addFault(
+							new QName(portType.getQName().getNamespaceURI(), fault.getName()),
+							fault.getMessage().getQName());
+					addParts(faultInfo, fault.getMessage());
+				}
+			}
+		}
+		return service;
+	}
+
+	private static void addParts(AbstractMessageContainer container, Message message)
+	{
+		for (Object p : message.getOrderedParts(null))
+		{
+			Part part = (Part) p;
+			MessagePartInfo partInfo = container
+					.addMessagePart(new QName(message.getQName().getNamespaceURI(), part.getName()));
+			if (part.getElementName() != null)
+			{
+				partInfo.setElement(true);
+				partInfo.setElementQName(part.getElementName());
+			} else
+			{
+				partInfo.setElement(false);
+				partInfo.setTypeQName(part.getTypeName());
+			}
+		}
+	}
+
+	/**
+	 * Adds a SOAP binding and its operations to a service.
+	 */
+	private void buildBinding(ServiceInfo service, Binding binding)
+	{
+		String bindingId = getBindingId(binding);
+		BindingInfo bindingInfo = new BindingInfo(service, bindingId);
+		bindingInfo.setName(binding.getQName());
+		String defaultStyle = getStyle(binding.getExtensibilityElements());
+		String namespace = binding.getPortType().getQName().getNamespaceURI();
+		for (Object o : binding.getBindingOperations())
+		{
+			BindingOperation bindingOperation = (BindingOperation) o;
+			BindingOperationInfo operationInfo = bindingInfo.buildOperation(
+					new QName(namespace, bindingOperation.getName()),
+					bindingOperation.getBindingInput() == null ? null : bindingOperation.getBindingInput().getName(),
+					bindingOperation.getBindingOutput() == null ? null : bindingOperation.getBindingOutput().getName());
+			if (operationInfo == null)
+			{
+				logger.warn("Operation " + bindingOperation.getName() + " of binding " + binding.getQName()
+						+ " not found in its port type - skipping it");
+				continue;
+			}
+
+			SoapOperationInfo soapOperation = new SoapOperationInfo();
+			String style = defaultStyle;
+			for (Object e : bindingOperation.getExtensibilityElements())
+			{
+				if (e instanceof SOAPOperation)
+				{
+					soapOperation.setAction(((SOAPOperation) e).getSoapActionURI());
+					style = ((SOAPOperation) e).getStyle() == null ? style : ((SOAPOperation) e).getStyle();
+				} else if (e instanceof SOAP12Operation)
+				{
+					soapOperation.setAction(((SOAP12Operation) e).getSoapActionURI());
+					style = ((SOAP12Operation) e).getStyle() == null ? style : ((SOAP12Operation) e).getStyle();
+				}
+			}
+			soapOperation.setStyle(style == null ? "document" : style);
+			operationInfo.addExtensor(soapOperation);
+
+			if (bindingOperation.getBindingInput() != null)
+			{
+				bindMessage(operationInfo.getInput(), bindingOperation.getBindingInput().getExtensibilityElements());
+			}
+			if (bindingOperation.getBindingOutput() != null)
+			{
+				bindMessage(operationInfo.getOutput(), bindingOperation.getBindingOutput().getExtensibilityElements());
+			}
+			bindingInfo.addOperation(operationInfo);
+		}
+		service.addBinding(bindingInfo);
+	}
+
+	/**
+	 * Restricts the parts of a bound message to the {@code soap:body} parts and
+	 * adds its {@code soap:header} parts.
+	 */
+	private void bindMessage(BindingMessageInfo message, List<?> extensibilityElements)
+	{
+		if (message == null)
+		{
+			return;
+		}
+		List<?> bodyPartNames = null;
+		List<MessagePartInfo> headerParts = new ArrayList<>();
+		for (Object e : extensibilityElements)
+		{
+			if (e instanceof SOAPBody)
+			{
+				bodyPartNames = ((SOAPBody) e).getParts();
+			} else if (e instanceof SOAP12Body)
+			{
+				bodyPartNames = ((SOAP12Body) e).getParts();
+			} else if (e instanceof SOAPHeader)
+			{
+				SOAPHeader header = (SOAPHeader) e;
+				addHeader(message, headerParts, header.getMessage(), header.getPart(), header.getUse());
+			} else if (e instanceof SOAP12Header)
+			{
+				SOAP12Header header = (SOAP12Header) e;
+				addHeader(message, headerParts, header.getMessage(), header.getPart(), header.getUse());
+			}
+		}
+
+		List<MessagePartInfo> bodyParts = new ArrayList<>();
+		for (MessagePartInfo part : message.getMessageParts())
+		{
+			String partName = part.getName().getLocalPart();
+			if (bodyPartNames != null ? bodyPartNames.contains(partName) : !headerParts.contains(part))
+			{
+				bodyParts.add(part);
+			}
+		}
+		message.setMessageParts(bodyParts);
+	}
+
+	private void addHeader(BindingMessageInfo message, List<MessagePartInfo> headerParts, QName messageName,
+			String partName, String use)
+	{
+		Message headerMessage = messageName == null ? null : definition.getMessage(messageName);
+		Part part = headerMessage == null ? null : headerMessage.getPart(partName);
+		if (part == null)
+		{
+			logger.warn("Header part " + partName + " of message " + messageName + " not found - skipping it");
+			return;
+		}
+
+		MessagePartInfo partInfo = null;
+		if (messageName.equals(message.getMessageInfo().getName()))
+		{
+			partInfo = message.getMessageInfo()
+					.getMessagePart(new QName(messageName.getNamespaceURI(), partName));
+		}
+		if (partInfo == null)
+		{
+			partInfo = new MessagePartInfo(new QName(messageName.getNamespaceURI(), partName),
+					message.getMessageInfo());
+			partInfo.setElement(part.getElementName() != null);
+			partInfo.setElementQName(part.getElementName());
+			partInfo.setTypeQName(part.getTypeName());
+		}
+		headerParts.add(partInfo);
+
+		SoapHeaderInfo header = new SoapHeaderInfo();
+		header.setPart(partInfo);
+		header.setUse(use);
+		message.addExtensor(header);
+	}
+
+	/**
+	 * Reads the inline schemas of a definition and of the definitions it
+	 * imports into the shared schema collection.
+	 */
+	private void readSchemas(Definition wsdlDefinition, Set<Definition> visited)
+	{
+		if (!visited.add(wsdlDefinition))
+		{
+			return;
+		}
+		if (wsdlDefinition.getTypes() != null)
+		{
+			for (Object e : wsdlDefinition.getTypes().getExtensibilityElements())
+			{
+				if (e instanceof Schema)
+				{
+					readSchema(wsdlDefinition, (Schema) e);
+				}
+			}
+		}
+		for (Object imports : wsdlDefinition.getImports().values())
+		{
+			for (Object wsdlImport : (List<?>) imports)
+			{
+				Definition imported = ((Import) wsdlImport).getDefinition();
+				if (imported != null)
+				{
+					readSchemas(imported, visited);
+				}
+			}
+		}
+	}
+
+	private void readSchema(Definition wsdlDefinition, Schema schema)
+	{
+		// namespaces declared on wsdl:definitions are in scope of the schema, copy them over
+		Element schemaElement = (Element) schema.getElement().cloneNode(true);
+		for (Node parent = schema.getElement().getParentNode(); parent instanceof Element; parent = parent
+				.getParentNode())
+		{
+			NamedNodeMap attributes = parent.getAttributes();
+			for (int i = 0; i < attributes.getLength(); i++)
+			{
+				Attr attribute = (Attr) attributes.item(i);
+				if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attribute.getNamespaceURI())
+						&& !schemaElement.hasAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, attribute.getLocalName()))
+				{
+					schemaElement.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, attribute.getName(),
+							attribute.getValue());
+				}
+			}
+		}
+
+		String systemId = wsdlDefinition.getDocumentBaseURI() + "#types" + (schemaInfos.size() + 1);
+		XmlSchema xmlSchema = schemas.read(schemaElement, systemId);
+		SchemaInfo schemaInfo = new SchemaInfo(xmlSchema.getTargetNamespace());
+		schemaInfo.setSchema(xmlSchema);
+		schemaInfo.setElement(schemaElement);
+		schemaInfo.setSystemId(systemId);
+		schemaInfos.add(schemaInfo);
+	}
+
+	/**
+	 * @return the binding id of a SOAP 1.1 or 1.2 binding, null for other
+	 *         bindings
+	 */
+	private static String getBindingId(Binding binding)
+	{
+		for (Object e : binding.getExtensibilityElements())
+		{
+			if (e instanceof SOAPBinding)
+			{
+				return SOAP11_BINDING_ID;
+			} else if (e instanceof SOAP12Binding)
+			{
+				return SOAP12_BINDING_ID;
+			}
+		}
+		return null;
+	}
+
+	private static String getStyle(List<?> extensibilityElements)
+	{
+		for (Object e : extensibilityElements)
+		{
+			if (e instanceof SOAPBinding)
+			{
+				return ((SOAPBinding) e).getStyle();
+			} else if (e instanceof SOAP12Binding)
+			{
+				return ((SOAP12Binding) e).getStyle();
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,215 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Byte buffer with bounded heap usage.
+ * <p>
+ * Bytes are kept in fixed-size chunks on the heap until the memory limit is
+ * reached; from then on the whole content is spilled to a temporary file. The
+ * buffered content can be replayed any number of times. The temporary file is
+ * removed by {@link #release()} or when a replay stream opened with
+ * {@link #openReplayStream()} is exhausted or closed.
+ */
+public class SpillBuffer extends OutputStream
+{
+	private static final Log logger = LogFactory.getLog(SpillBuffer.class);
+
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private final long memoryLimit;
+	private final List<byte[]> chunks = new ArrayList<>();
+	private int lastChunkLength = CHUNK_SIZE;
+	private long size;
+
+	private Path file;
+	private OutputStream fileOut;
+
+	/**
+	 * @param memoryLimit number of bytes kept on the heap before spilling to disk
+	 */
+	public SpillBuffer(long memoryLimit)
+	{
+		this.memoryLimit = memoryLimit;
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		if (file == null && size + len > memoryLimit)
+		{
+			spill();
+		}
+		size += len;
+		if (file != null)
+		{
+			fileOut.write(b, off, len);
+			return;
+		}
+
+		while (len > 0)
+		{
+			if (lastChunkLength == CHUNK_SIZE)
+			{
+				chunks.add(new byte[CHUNK_SIZE]);
+				lastChunkLength = 0;
+			}
+			int count = Math.min(len, CHUNK_SIZE - lastChunkLength);
+			System.arraycopy(b, off, chunks.get(chunks.size() - 1), lastChunkLength, count);
+			lastChunkLength += count;
+			off += count;
+			len -= count;
+		}
+	}
+
+	/**
+	 * Moves the buffered chunks to a temporary file.
+	 */
+	private void spill() throws IOException
+	{
+		file = Files.createTempFile("soap-payload", ".xml");
+		logger.debug("Spilling payload buffer of " + size + " bytes to " + file);
+		fileOut = new BufferedOutputStream(Files.newOutputStream(file), CHUNK_SIZE);
+		for (int i = 0; i < chunks.size(); i++)
+		{
+			fileOut.write(chunks.get(i), 0, i == chunks.size() - 1 ? lastChunkLength : CHUNK_SIZE);
+		}
+		chunks.clear();
+	}
+
+	@Override
+	public void flush() throws IOException
+	{
+		if (fileOut != null)
+		{
+			fileOut.flush();
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (fileOut != null)
+		{
+			fileOut.close();
+		}
+	}
+
+	/**
+	 * @return number of bytes written to the buffer
+	 */
+	public long size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return true if the content was spilled to disk
+	 */
+	public boolean isSpilled()
+	{
+		return file != null;
+	}
+
+	/**
+	 * Opens a stream over the buffered content. The buffer must be closed first.
+	 *
+	 * @return stream replaying all written bytes
+	 * @throws IOException if the spill file cannot be opened
+	 */
+	public InputStream openStream() throws IOException
+	{
+		if (file != null)
+		{
+			return Files.newInputStream(file);
+		}
+		List<InputStream> streams = new ArrayList<>(chunks.size());
+		for (int i = 0; i < chunks.size(); i++)
+		{
+			streams.add(new ByteArrayInputStream(chunks.get(i), 0, i == chunks.size() - 1 ? lastChunkLength : CHUNK_SIZE));
+		}
+		return new SequenceInputStream(Collections.enumeration(streams));
+	}
+
+	/**
+	 * Opens a stream over the buffered content that releases the buffer once it
+	 * is exhausted or closed.
+	 *
+	 * @return stream replaying all written bytes
+	 * @throws IOException if the spill file cannot be opened
+	 */
+	public InputStream openReplayStream() throws IOException
+	{
+		return new FilterInputStream(openStream())
+		{
+			@Override
+			public int read() throws IOException
+			{
+				int b = super.read();
+				if (b < 0)
+				{
+					close();
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException
+			{
+				int count = super.read(b, off, len);
+				if (count < 0)
+				{
+					close();
+				}
+				return count;
+			}
+
+			@Override
+			public void close() throws IOException
+			{
+				super.close();
+				release();
+			}
+		};
+	}
+
+	/**
+	 * Drops the buffered content and deletes the spill file, if any. Also used
+	 * to abandon a buffer that was not closed.
+	 */
+	public void release()
+	{
+		chunks.clear();
+		if (file != null)
+		{
+			try
+			{
+				fileOut.close();
+				Files.deleteIfExists(file);
+			} catch (IOException e)
+			{
+				logger.warn("Unable to delete payload spill file " + file, e);
+			}
+		}
+	}
+}
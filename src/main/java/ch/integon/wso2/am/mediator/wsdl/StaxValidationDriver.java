@@ -0,0 +1,387 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import javax.activation.DataHandler;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.axiom.ext.stax.datahandler.DataHandlerReader;
+import org.codehaus.stax2.validation.ValidationContext;
+import org.codehaus.stax2.validation.XMLValidationProblem;
+import org.codehaus.stax2.validation.XMLValidationSchema;
+import org.codehaus.stax2.validation.XMLValidator;
+
+import ch.integon.wso2.am.mediator.wsdl.model.ResourceLimits;
+
+/**
+ * Drives a StAX2 {@link XMLValidator} from the events of an arbitrary
+ * {@link XMLStreamReader}.
+ * <p>
+ * Woodstox can only validate documents it parses itself, from the root
+ * element on. This driver feeds the events of a single element subtree to a
+ * validator created from the compiled schema, which allows validating a
+ * payload in the middle of a larger stream (e.g. the body of a raw SOAP
+ * envelope) or from readers that are not backed by Woodstox.
+ * <p>
+ * Binary content of MTOM/XOP messages (optimized text exposed through
+ * Axiom's {@link DataHandlerReader}, or {@code xop:Include} elements) is
+ * never read: a short placeholder that is valid both as base64Binary and as
+ * hexBinary is validated instead, and the referenced attachment is checked
+ * with the {@link XopAttachmentChecker}, if one is set.
+ * <p>
+ * If {@link ResourceLimits} are set, the validation stops with a
+ * {@link ch.integon.wso2.am.mediator.wsdl.model.ResourceLimitException} as
+ * soon as the payload exceeds one of them.
+ * <p>
+ * Instances are not thread-safe. Several subtrees of the same stream can be
+ * validated one after the other; the problems found are accumulated.
+ */
+public class StaxValidationDriver implements ValidationContext
+{
+	private static final String XOP_NS = "http://www.w3.org/2004/08/xop/include";
+	private static final String XOP_INCLUDE = "Include";
+	private static final String XOP_HREF = "href";
+	private static final String BINARY_PLACEHOLDER = "AAAA";
+
+	private final XMLStreamReader reader;
+	private final DataHandlerReader dataHandlerReader;
+	private XopAttachmentChecker attachmentChecker;
+	private ResourceLimitChecker limitChecker;
+	private final List<XMLValidationProblem> problems = new ArrayList<>();
+	private final Deque<QName> elementStack = new ArrayDeque<>();
+	private final StringBuilder text = new StringBuilder();
+
+	/**
+	 * @param reader reader providing the events to validate
+	 */
+	public StaxValidationDriver(XMLStreamReader reader)
+	{
+		this.reader = reader;
+		this.dataHandlerReader = getDataHandlerReader(reader);
+	}
+
+	/**
+	 * @param attachmentChecker checker for the attachments referenced by binary
+	 *                          content, null to skip the attachment checks
+	 */
+	public void setAttachmentChecker(XopAttachmentChecker attachmentChecker)
+	{
+		this.attachmentChecker = attachmentChecker;
+	}
+
+	/**
+	 * @param limits resource limits enforced on the validated elements, null or
+	 *               {@link ResourceLimits#NONE} for none; the limits are shared
+	 *               by all elements validated with this driver
+	 */
+	public void setResourceLimits(ResourceLimits limits)
+	{
+		this.limitChecker = ResourceLimitChecker.of(limits);
+	}
+
+	/**
+	 * @return the Axiom extension exposing binary content, or null if the reader
+	 *         does not support it
+	 */
+	private static DataHandlerReader getDataHandlerReader(XMLStreamReader reader)
+	{
+		try
+		{
+			Object property = reader.getProperty(DataHandlerReader.PROPERTY);
+			return property instanceof DataHandlerReader ? (DataHandlerReader) property : null;
+		} catch (IllegalArgumentException e)
+		{
+			// reader does not know the property
+			return null;
+		}
+	}
+
+	/**
+	 * Validates the element the reader is positioned on, including all of its
+	 * content. On return the reader is positioned on the matching end element.
+	 *
+	 * @param schema compiled schema to validate against
+	 * @return the validation problems found by this driver so far, empty if
+	 *         valid
+	 * @throws XMLStreamException if the reader is not positioned on a start
+	 *                            element or the payload cannot be read
+	 */
+	public List<XMLValidationProblem> validateElement(XMLValidationSchema schema) throws XMLStreamException
+	{
+		if (reader.getEventType() != XMLStreamConstants.START_ELEMENT)
+		{
+			throw new XMLStreamException("reader is not positioned on a start element", reader.getLocation());
+		}
+
+		XMLValidator validator = schema.createValidator(this);
+		int event = reader.getEventType();
+		while (true)
+		{
+			switch (event)
+			{
+			case XMLStreamConstants.START_ELEMENT:
+				if (isXopInclude())
+				{
+					skipXopInclude();
+					break;
+				}
+				if (limitChecker != null)
+				{
+					limitChecker.startElement(reader);
+				}
+				flushText(validator);
+				elementStack.push(reader.getName());
+				validator.validateElementStart(reader.getLocalName(), nonNull(reader.getNamespaceURI()),
+						nonNull(reader.getPrefix()));
+				for (int i = 0; i < reader.getAttributeCount(); i++)
+				{
+					validator.validateAttribute(reader.getAttributeLocalName(i), nonNull(reader.getAttributeNamespace(i)),
+							nonNull(reader.getAttributePrefix(i)), reader.getAttributeValue(i));
+				}
+				validator.validateElementAndAttributes();
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				flushText(validator);
+				validator.validateElementEnd(reader.getLocalName(), nonNull(reader.getNamespaceURI()),
+						nonNull(reader.getPrefix()));
+				elementStack.pop();
+				if (limitChecker != null)
+				{
+					limitChecker.endElement();
+				}
+				break;
+			case XMLStreamConstants.CHARACTERS:
+				if (dataHandlerReader != null && dataHandlerReader.isBinary())
+				{
+					checkAttachment(dataHandlerReader.getContentID(),
+							dataHandlerReader.isDeferred() ? null : dataHandlerReader.getDataHandler());
+					text.append(BINARY_PLACEHOLDER);
+					break;
+				}
+				appendText();
+				break;
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.SPACE:
+				appendText();
+				break;
+			default:
+				// comments and processing instructions are not validated
+				break;
+			}
+
+			if (elementStack.isEmpty())
+			{
+				break;
+			}
+			event = reader.next();
+		}
+
+		validator.validationCompleted(true);
+		return problems;
+	}
+
+	/**
+	 * @return true if the reader is positioned on a {@code xop:Include} element
+	 *         below the validated element
+	 */
+	private boolean isXopInclude()
+	{
+		return !elementStack.isEmpty() && XOP_INCLUDE.equals(reader.getLocalName())
+				&& XOP_NS.equals(reader.getNamespaceURI());
+	}
+
+	/**
+	 * Replaces a {@code xop:Include} element by the binary placeholder and moves
+	 * the reader to its end element.
+	 */
+	private void skipXopInclude() throws XMLStreamException
+	{
+		checkAttachment(XopAttachmentChecker.getContentID(reader.getAttributeValue(null, XOP_HREF)), null);
+		text.append(BINARY_PLACEHOLDER);
+		int depth = 1;
+		while (depth > 0)
+		{
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT)
+			{
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT)
+			{
+				depth--;
+			}
+		}
+	}
+
+	/**
+	 * Checks a referenced attachment and reports a problem if it is missing or
+	 * too large.
+	 */
+	private void checkAttachment(String contentID, DataHandler dataHandler) throws XMLStreamException
+	{
+		if (attachmentChecker == null)
+		{
+			return;
+		}
+		String message = attachmentChecker.check(contentID, dataHandler);
+		if (message != null)
+		{
+			reportProblem(new XMLValidationProblem(reader.getLocation(), message, XMLValidationProblem.SEVERITY_ERROR));
+		}
+	}
+
+	/**
+	 * Accumulates the text of the current event, within the resource limits.
+	 */
+	private void appendText() throws XMLStreamException
+	{
+		text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+		if (limitChecker != null)
+		{
+			limitChecker.text(reader, text.length());
+		}
+	}
+
+	/**
+	 * Hands accumulated text to the validator as one segment.
+	 */
+	private void flushText(XMLValidator validator) throws XMLStreamException
+	{
+		if (text.length() > 0)
+		{
+			validator.validateText(text.toString(), true);
+			text.setLength(0);
+		}
+	}
+
+	private static String nonNull(String value)
+	{
+		return value == null ? "" : value;
+	}
+
+	@Override
+	public String getXmlVersion()
+	{
+		return "1.0";
+	}
+
+	@Override
+	public QName getCurrentElementName()
+	{
+		return elementStack.peek();
+	}
+
+	@Override
+	public String getNamespaceURI(String prefix)
+	{
+		NamespaceContext namespaceContext = reader.getNamespaceContext();
+		String uri = namespaceContext == null ? null : namespaceContext.getNamespaceURI(prefix);
+		if (uri == null || uri.isEmpty())
+		{
+			return prefix == null || prefix.isEmpty() ? "" : null;
+		}
+		return uri;
+	}
+
+	@Override
+	public int getAttributeCount()
+	{
+		return reader.getAttributeCount();
+	}
+
+	@Override
+	public String getAttributeLocalName(int index)
+	{
+		return reader.getAttributeLocalName(index);
+	}
+
+	@Override
+	public String getAttributeNamespace(int index)
+	{
+		return nonNull(reader.getAttributeNamespace(index));
+	}
+
+	@Override
+	public String getAttributePrefix(int index)
+	{
+		return nonNull(reader.getAttributePrefix(index));
+	}
+
+	@Override
+	public String getAttributeValue(int index)
+	{
+		return reader.getAttributeValue(index);
+	}
+
+	@Override
+	public String getAttributeValue(String nsURI, String localName)
+	{
+		int index = findAttributeIndex(nsURI, localName);
+		return index < 0 ? null : reader.getAttributeValue(index);
+	}
+
+	@Override
+	public String getAttributeType(int index)
+	{
+		return reader.getAttributeType(index);
+	}
+
+	@Override
+	public int findAttributeIndex(String nsURI, String localName)
+	{
+		String namespace = nonNull(nsURI);
+		for (int i = 0; i < reader.getAttributeCount(); i++)
+		{
+			if (localName.equals(reader.getAttributeLocalName(i))
+					&& namespace.equals(nonNull(reader.getAttributeNamespace(i))))
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public boolean isNotationDeclared(String name)
+	{
+		return false;
+	}
+
+	@Override
+	public boolean isUnparsedEntityDeclared(String name)
+	{
+		return false;
+	}
+
+	@Override
+	public String getBaseUri()
+	{
+		return null;
+	}
+
+	@Override
+	public Location getValidationLocation()
+	{
+		return reader.getLocation();
+	}
+
+	@Override
+	public void reportProblem(XMLValidationProblem problem) throws XMLStreamException
+	{
+		problems.add(problem);
+	}
+
+	@Override
+	public int addDefaultAttribute(String localName, String uri, String prefix, String value)
+	{
+		// default attributes are not materialized, the payload is only validated
+		return -1;
+	}
+}
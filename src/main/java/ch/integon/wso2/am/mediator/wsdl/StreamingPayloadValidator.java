@@ -0,0 +1,433 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.soap.SOAPFactory;
+import org.apache.axis2.AxisFault;
+import org.apache.axis2.Constants;
+import org.apache.axis2.builder.Builder;
+import org.apache.axis2.builder.BuilderUtil;
+import org.apache.axis2.transport.TransportUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.core.axis2.Axis2MessageContext;
+import org.apache.synapse.transport.passthru.PassThroughConstants;
+import org.apache.synapse.transport.passthru.Pipe;
+import org.codehaus.stax2.validation.XMLValidationProblem;
+import org.codehaus.stax2.validation.XMLValidationSchema;
+
+import ch.integon.wso2.am.mediator.wsdl.model.SOAPServiceOperation;
+import ch.integon.wso2.am.mediator.wsdl.model.SOAPValidationException;
+
+/**
+ * Validates large SOAP payloads while they stream through the gateway, without
+ * building an Axiom tree or a String copy of the body.
+ * <p>
+ * The raw pass-through stream is parsed once with Woodstox; the SOAP body is
+ * validated on the fly with a {@link StaxValidationDriver}. All bytes read are
+ * copied into a {@link SpillBuffer}, which keeps at most
+ * {@code memoryLimit} bytes on the heap and spills the rest to a temporary
+ * file. Afterwards a valid message is rebuilt from the buffer with the regular
+ * Axis2 message builder, so the mediation flow works on an envelope that is
+ * deferred-built from the replayed bytes. A rejected message is not read any
+ * further and its buffer is released right away, so an oversized or endless
+ * body cannot fill the heap or the disk.
+ * <p>
+ * Fast Infoset (binary XML) messages are parsed with the Fast Infoset StAX
+ * parser instead of Woodstox, so they are validated without being converted to
+ * textual XML. Rebuilding them requires the Fast Infoset message builders to
+ * be configured in the {@code axis2.xml} of the gateway.
+ */
+public class StreamingPayloadValidator
+{
+	private static final Log logger = LogFactory.getLog(StreamingPayloadValidator.class);
+
+	private static final String CONTENT_LENGTH = "Content-Length";
+	private static final String SOAP11_NS = "http://schemas.xmlsoap.org/soap/envelope/";
+	private static final String SOAP12_NS = "http://www.w3.org/2003/05/soap-envelope";
+	private static final String SOAP_ENVELOPE = "Envelope";
+	private static final String SOAP_BODY = "Body";
+	private static final String SOAP12_XML = "application/soap+xml";
+	private static final String FAST_INFOSET = "application/fastinfoset";
+	private static final String SOAP_FAST_INFOSET = "application/soap+fastinfoset";
+
+	private final SchemaResolver schemaResolver;
+	private final SOAPValidator soapValidator;
+
+	/**
+	 * @param schemaResolver resolver used to match operations and schemas
+	 * @param soapValidator  validator providing the input factory
+	 */
+	public StreamingPayloadValidator(SchemaResolver schemaResolver, SOAPValidator soapValidator)
+	{
+		this.schemaResolver = schemaResolver;
+		this.soapValidator = soapValidator;
+	}
+
+	/**
+	 * Checks whether the message can and should be validated in streaming mode:
+	 * the message must not have been built yet, its raw stream must still be
+	 * available and it must be larger than the threshold.
+	 *
+	 * @param ctx           Synapse message context
+	 * @param threshold     payload size in bytes above which streaming is used
+	 * @param unknownLength true to stream messages without
+	 *                      {@code Content-Length} as well
+	 * @return true if the message should be validated in streaming mode
+	 */
+	public boolean applies(MessageContext ctx, long threshold, boolean unknownLength)
+	{
+		if (!isRawStreamAvailable(ctx))
+		{
+			return false;
+		}
+		org.apache.axis2.context.MessageContext axis2Ctx = ((Axis2MessageContext) ctx).getAxis2MessageContext();
+		String contentType = getMediaType(axis2Ctx);
+		if (contentType == null || contentType.startsWith("multipart/"))
+		{
+			return false;
+		}
+
+		long contentLength = getContentLength(axis2Ctx);
+		return contentLength < 0 ? unknownLength : contentLength > threshold;
+	}
+
+	/**
+	 * Checks whether the message is an unbuilt Fast Infoset message whose raw
+	 * stream is still available, which is validated in streaming mode
+	 * regardless of its size.
+	 *
+	 * @param ctx Synapse message context
+	 * @return true if the message is Fast Infoset encoded and can be streamed
+	 */
+	public boolean appliesToFastInfoset(MessageContext ctx)
+	{
+		return isRawStreamAvailable(ctx)
+				&& isFastInfoset(getMediaType(((Axis2MessageContext) ctx).getAxis2MessageContext()));
+	}
+
+	/**
+	 * @return true if the message has not been built yet and its raw stream is
+	 *         still available
+	 */
+	private static boolean isRawStreamAvailable(MessageContext ctx)
+	{
+		if (ctx.isFaultResponse())
+		{
+			return false;
+		}
+		org.apache.axis2.context.MessageContext axis2Ctx = ((Axis2MessageContext) ctx).getAxis2MessageContext();
+		return !Boolean.TRUE.equals(axis2Ctx.getProperty(PassThroughConstants.MESSAGE_BUILDER_INVOKED))
+				&& axis2Ctx.getProperty(PassThroughConstants.PASS_THROUGH_PIPE) instanceof Pipe;
+	}
+
+	/**
+	 * @return true if the media type denotes a Fast Infoset encoded message
+	 */
+	private static boolean isFastInfoset(String mediaType)
+	{
+		return FAST_INFOSET.equals(mediaType) || SOAP_FAST_INFOSET.equals(mediaType);
+	}
+
+	/**
+	 * Validates the SOAP body of the raw message stream. If the payload is valid,
+	 * the rest of the message is buffered and the message envelope rebuilt from
+	 * the buffered bytes. Otherwise reading stops right away: the buffer is
+	 * released and the message is replaced by an empty envelope of its SOAP
+	 * version, which the fault replaces in turn.
+	 *
+	 * @param apiUUID     API identifier
+	 * @param ctx         Synapse message context
+	 * @param memoryLimit number of payload bytes kept on the heap before spilling
+	 *                    to disk
+	 * @return a list of XMLValidationProblem, empty if valid
+	 * @throws SOAPValidationException if no operation or schema matches the body
+	 * @throws XMLStreamException      if an XML parsing error occurs
+	 * @throws IOException             if the payload cannot be read or buffered
+	 */
+	public List<XMLValidationProblem> validate(String apiUUID, MessageContext ctx, long memoryLimit)
+			throws SOAPValidationException, XMLStreamException, IOException
+	{
+		org.apache.axis2.context.MessageContext axis2Ctx = ((Axis2MessageContext) ctx).getAxis2MessageContext();
+		Pipe pipe = (Pipe) axis2Ctx.getProperty(PassThroughConstants.PASS_THROUGH_PIPE);
+		String mediaType = getMediaType(axis2Ctx);
+
+		SpillBuffer buffer = new SpillBuffer(memoryLimit);
+		InputStream in = new TeeInputStream(pipe.getInputStream(), buffer);
+		List<XMLValidationProblem> problems;
+		try
+		{
+			XMLStreamReader reader = isFastInfoset(mediaType) ? soapValidator.createFastInfosetReader(in)
+					: soapValidator.createInputFactory().createXMLStreamReader(in);
+			try
+			{
+				problems = validateBody(apiUUID, ctx.getSoapAction(), reader);
+			} finally
+			{
+				reader.close();
+			}
+			if (problems.isEmpty())
+			{
+				// copy the rest of the message so that it can be replayed completely
+				in.transferTo(OutputStream.nullOutputStream());
+				buffer.close();
+			}
+		} catch (SOAPValidationException | XMLStreamException | IOException | RuntimeException e)
+		{
+			discard(axis2Ctx, mediaType, buffer);
+			throw e;
+		}
+
+		if (!problems.isEmpty())
+		{
+			discard(axis2Ctx, mediaType, buffer);
+			return problems;
+		}
+		logger.debug("Buffered " + buffer.size() + " payload bytes" + (buffer.isSpilled() ? " (spilled to disk)" : ""));
+		try
+		{
+			rebuildEnvelope(axis2Ctx, buffer);
+		} catch (IOException | RuntimeException e)
+		{
+			buffer.release();
+			throw e;
+		}
+		return problems;
+	}
+
+	/**
+	 * Moves the reader to the first child of the SOAP body and validates it.
+	 */
+	private List<XMLValidationProblem> validateBody(String apiUUID, String soapAction, XMLStreamReader reader)
+			throws SOAPValidationException, XMLStreamException
+	{
+		reader.nextTag();
+		String envelopeNS = reader.getNamespaceURI();
+		if (!SOAP_ENVELOPE.equals(reader.getLocalName())
+				|| !(SOAP11_NS.equals(envelopeNS) || SOAP12_NS.equals(envelopeNS)))
+		{
+			throw new SOAPValidationException("payload is not a soap envelope");
+		}
+
+		// skip the header, if any, up to the body
+		reader.nextTag();
+		if (!SOAP_BODY.equals(reader.getLocalName()))
+		{
+			skipElement(reader);
+			reader.nextTag();
+		}
+		if (!SOAP_BODY.equals(reader.getLocalName()) || !envelopeNS.equals(reader.getNamespaceURI()))
+		{
+			throw new SOAPValidationException("soap body not found");
+		}
+
+		if (reader.nextTag() != XMLStreamConstants.START_ELEMENT)
+		{
+			logger.warn("SOAP body is empty");
+			throw new SOAPValidationException("soap body empty");
+		}
+		if (SOAP11_NS.equals(envelopeNS) && SOAP_ENVELOPE.equals(reader.getLocalName())
+				&& SOAP11_NS.equals(reader.getNamespaceURI()))
+		{
+			// double-wrapped SOAP 1.1 payload, unwrapped like the SOAPAnalyzer does
+			moveToInnerBodyElement(reader);
+		}
+		QName bodyQName = reader.getName();
+		logger.debug("SOAP body element found: " + bodyQName);
+
+		SOAPServiceOperation serviceOperation = schemaResolver.resolveOperation(apiUUID, soapAction, bodyQName);
+		XMLValidationSchema schema = schemaResolver.resolveSchema(apiUUID, serviceOperation);
+		StaxValidationDriver driver = new StaxValidationDriver(reader);
+		driver.setResourceLimits(soapValidator.getResourceLimits());
+		List<XMLValidationProblem> problems = driver.validateElement(schema);
+
+		if (reader.nextTag() == XMLStreamConstants.START_ELEMENT)
+		{
+			logger.warn("Found more than one element in the SOAP body, only the first was validated: "
+					+ bodyQName.getLocalPart());
+		}
+		logger.debug("Streaming validation completed. Number of problems found: " + problems.size());
+		return problems;
+	}
+
+	/**
+	 * Moves the reader from an envelope wrapped in the SOAP 1.1 body to the first
+	 * element of its body.
+	 */
+	private static void moveToInnerBodyElement(XMLStreamReader reader)
+			throws SOAPValidationException, XMLStreamException
+	{
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT
+				&& !(SOAP_BODY.equals(reader.getLocalName()) && SOAP11_NS.equals(reader.getNamespaceURI())))
+		{
+			skipElement(reader);
+		}
+		if (!reader.isStartElement() || reader.nextTag() != XMLStreamConstants.START_ELEMENT)
+		{
+			logger.warn("SOAP (inner)body is empty");
+			throw new SOAPValidationException("soap (inner)body empty");
+		}
+	}
+
+	/**
+	 * Skips the element the reader is positioned on, including its content.
+	 */
+	private static void skipElement(XMLStreamReader reader) throws XMLStreamException
+	{
+		int depth = 1;
+		while (depth > 0)
+		{
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT)
+			{
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT)
+			{
+				depth--;
+			}
+		}
+	}
+
+	/**
+	 * Builds the message envelope from the buffered payload, as the pass-through
+	 * transport would have done from the raw stream.
+	 */
+	private void rebuildEnvelope(org.apache.axis2.context.MessageContext axis2Ctx, SpillBuffer buffer) throws IOException
+	{
+		String contentType = (String) axis2Ctx.getProperty(Constants.Configuration.CONTENT_TYPE);
+		Builder builder = BuilderUtil.getBuilderFromSelector(getMediaType(axis2Ctx), axis2Ctx);
+		if (builder == null)
+		{
+			throw new IOException("no message builder found for content type: " + contentType);
+		}
+		OMElement documentElement = builder.processDocument(buffer.openReplayStream(), contentType, axis2Ctx);
+		axis2Ctx.setEnvelope(TransportUtils.createSOAPEnvelope(documentElement));
+		axis2Ctx.setProperty(PassThroughConstants.MESSAGE_BUILDER_INVOKED, Boolean.TRUE);
+	}
+
+	/**
+	 * Drops the buffered payload of a rejected message without reading the rest
+	 * of its stream, and replaces the message by an empty envelope of the SOAP
+	 * version of its content type, so the fault is created with that version.
+	 */
+	private void discard(org.apache.axis2.context.MessageContext axis2Ctx, String mediaType, SpillBuffer buffer)
+	{
+		buffer.release();
+		SOAPFactory factory = SOAP12_XML.equals(mediaType) || SOAP_FAST_INFOSET.equals(mediaType)
+				? OMAbstractFactory.getSOAP12Factory()
+				: OMAbstractFactory.getSOAP11Factory();
+		try
+		{
+			axis2Ctx.setEnvelope(factory.getDefaultEnvelope());
+		} catch (AxisFault e)
+		{
+			logger.warn("Unable to replace the envelope of the rejected message", e);
+		}
+		axis2Ctx.setProperty(PassThroughConstants.MESSAGE_BUILDER_INVOKED, Boolean.TRUE);
+	}
+
+	/**
+	 * @return the content type of the message without parameters, or null
+	 */
+	private static String getMediaType(org.apache.axis2.context.MessageContext axis2Ctx)
+	{
+		Object contentType = axis2Ctx.getProperty(Constants.Configuration.CONTENT_TYPE);
+		if (contentType == null)
+		{
+			return null;
+		}
+		String mediaType = contentType.toString();
+		int index = mediaType.indexOf(';');
+		return (index < 0 ? mediaType : mediaType.substring(0, index)).trim().toLowerCase();
+	}
+
+	/**
+	 * @return the Content-Length transport header, or -1 if not available
+	 */
+	private static long getContentLength(org.apache.axis2.context.MessageContext axis2Ctx)
+	{
+		Object headers = axis2Ctx.getProperty(org.apache.axis2.context.MessageContext.TRANSPORT_HEADERS);
+		if (!(headers instanceof Map))
+		{
+			return -1;
+		}
+		for (Map.Entry<?, ?> header : ((Map<?, ?>) headers).entrySet())
+		{
+			if (CONTENT_LENGTH.equalsIgnoreCase(String.valueOf(header.getKey())) && header.getValue() != null)
+			{
+				try
+				{
+					return Long.parseLong(header.getValue().toString().trim());
+				} catch (NumberFormatException e)
+				{
+					return -1;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Input stream copying all bytes read into a {@link SpillBuffer}.
+	 */
+	private static class TeeInputStream extends FilterInputStream
+	{
+		private final SpillBuffer buffer;
+
+		TeeInputStream(InputStream in, SpillBuffer buffer)
+		{
+			super(in);
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			int b = super.read();
+			if (b >= 0)
+			{
+				buffer.write(b);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			int count = super.read(b, off, len);
+			if (count > 0)
+			{
+				buffer.write(b, off, count);
+			}
+			return count;
+		}
+
+		@Override
+		public long skip(long n) throws IOException
+		{
+			// skipped bytes have to be buffered as well
+			byte[] skipped = new byte[(int) Math.min(n, 8192)];
+			int count = read(skipped, 0, skipped.length);
+			return Math.max(count, 0);
+		}
+
+		@Override
+		public boolean markSupported()
+		{
+			return false;
+		}
+	}
+}
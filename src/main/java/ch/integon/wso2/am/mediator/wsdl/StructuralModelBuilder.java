@@ -0,0 +1,169 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.namespace.QName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.cxf.common.xmlschema.SchemaCollection;
+import org.apache.cxf.service.model.BindingFaultInfo;
+import org.apache.cxf.service.model.BindingMessageInfo;
+import org.apache.cxf.service.model.BindingOperationInfo;
+import org.apache.cxf.service.model.MessagePartInfo;
+import org.apache.ws.commons.schema.XmlSchema;
+import org.apache.ws.commons.schema.XmlSchemaComplexType;
+import org.apache.ws.commons.schema.XmlSchemaElement;
+import org.apache.ws.commons.schema.XmlSchemaParticle;
+import org.apache.ws.commons.schema.XmlSchemaSequence;
+import org.apache.ws.commons.schema.XmlSchemaSequenceMember;
+import org.apache.ws.commons.schema.XmlSchemaSimpleContent;
+import org.apache.ws.commons.schema.XmlSchemaSimpleType;
+import org.apache.ws.commons.schema.XmlSchemaType;
+
+import ch.integon.wso2.am.mediator.wsdl.model.SOAPServiceOperation;
+import ch.integon.wso2.am.mediator.wsdl.model.StructuralModel;
+import ch.integon.wso2.am.mediator.wsdl.model.StructuralModel.Particle;
+
+/**
+ * Derives the {@link StructuralModel} of a service operation from the schemas
+ * of its CXF service.
+ * <p>
+ * Only the top-level content model of each payload element is captured. Root
+ * elements whose content is not a plain sequence of elements (choices, groups,
+ * wildcards, derived types, substitution groups) are left unmodelled.
+ */
+public class StructuralModelBuilder
+{
+	private static final Log logger = LogFactory.getLog(StructuralModelBuilder.class);
+
+	/**
+	 * Builds the structural model for all payload elements of the operation.
+	 *
+	 * @param serviceOperation service and operation to build the model for
+	 * @return the structural model of the operation
+	 */
+	public StructuralModel build(SOAPServiceOperation serviceOperation)
+	{
+		SchemaCollection schemas = serviceOperation.getService().getXmlSchemaCollection();
+		Set<QName> substitutionHeads = findSubstitutionHeads(schemas);
+		BindingOperationInfo operation = serviceOperation.getOperation();
+
+		List<MessagePartInfo> parts = new ArrayList<>();
+		addParts(parts, operation.getInput());
+		addParts(parts, operation.getOutput());
+		if (operation.getFaults() != null)
+		{
+			for (BindingFaultInfo fault : operation.getFaults())
+			{
+				parts.addAll(fault.getFaultInfo().getMessageParts());
+			}
+		}
+
+		Map<QName, List<Particle>> roots = new HashMap<>();
+		for (MessagePartInfo part : parts)
+		{
+			QName elementName = part.getElementQName();
+			if (elementName == null)
+			{
+				continue;
+			}
+			XmlSchemaElement element = schemas.getElementByQName(elementName);
+			List<Particle> particles = element == null ? null : buildParticles(schemas, element, substitutionHeads);
+			roots.put(elementName, particles);
+			logger.debug("Structural model for " + elementName + ": "
+					+ (particles == null ? "not modelled" : particles.size() + " children"));
+		}
+		return new StructuralModel(Collections.unmodifiableMap(roots));
+	}
+
+	/**
+	 * Adds the message parts of a binding message, if present.
+	 */
+	private void addParts(List<MessagePartInfo> parts, BindingMessageInfo message)
+	{
+		if (message != null)
+		{
+			parts.addAll(message.getMessageParts());
+		}
+	}
+
+	/**
+	 * Builds the list of expected children for an element, or returns null if
+	 * its content model is not a plain sequence.
+	 */
+	private List<Particle> buildParticles(SchemaCollection schemas, XmlSchemaElement element, Set<QName> substitutionHeads)
+	{
+		XmlSchemaType type = element.getSchemaType();
+		if (type == null && element.getSchemaTypeName() != null)
+		{
+			type = schemas.getTypeByQName(element.getSchemaTypeName());
+		}
+		if (type instanceof XmlSchemaSimpleType)
+		{
+			return List.of();
+		}
+		if (!(type instanceof XmlSchemaComplexType))
+		{
+			return null;
+		}
+
+		XmlSchemaComplexType complexType = (XmlSchemaComplexType) type;
+		if (complexType.getContentModel() != null)
+		{
+			return complexType.getContentModel() instanceof XmlSchemaSimpleContent ? List.of() : null;
+		}
+		XmlSchemaParticle particle = complexType.getParticle();
+		if (particle == null)
+		{
+			return List.of();
+		}
+		if (!(particle instanceof XmlSchemaSequence) || particle.getMinOccurs() != 1 || particle.getMaxOccurs() != 1)
+		{
+			return null;
+		}
+
+		List<Particle> particles = new ArrayList<>();
+		for (XmlSchemaSequenceMember member : ((XmlSchemaSequence) particle).getItems())
+		{
+			if (!(member instanceof XmlSchemaElement))
+			{
+				return null;
+			}
+			XmlSchemaElement child = (XmlSchemaElement) member;
+			QName childName = child.isRef() ? child.getRef().getTargetQName() : child.getWireName();
+			if (childName == null || child.isAbstract() || substitutionHeads.contains(childName))
+			{
+				return null;
+			}
+			particles.add(new Particle(childName, child.getMinOccurs(), child.getMaxOccurs()));
+		}
+		return List.copyOf(particles);
+	}
+
+	/**
+	 * Collects the heads of all substitution groups, as elements of these groups
+	 * can be replaced by any member on the wire.
+	 */
+	private Set<QName> findSubstitutionHeads(SchemaCollection schemas)
+	{
+		Set<QName> heads = new HashSet<>();
+		for (XmlSchema schema : schemas.getXmlSchemas())
+		{
+			for (XmlSchemaElement element : schema.getElements().values())
+			{
+				if (element.getSubstitutionGroup() != null)
+				{
+					heads.add(element.getSubstitutionGroup());
+				}
+			}
+		}
+		return heads;
+	}
+}
@@ -0,0 +1,362 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * JVM-wide cache for loaded services and compiled schemas, partitioned by
+ * tenant domain.
+ * <p>
+ * Every tenant has its own partition with a quota on the number of entries and
+ * on their allocation size. When a quota is exceeded the least recently used
+ * entries of that tenant are evicted, so a tenant with large contracts cannot
+ * push out the entries of other tenants. Reads do not lock; the recency of an
+ * entry is its last access time, so eviction is an approximate LRU.
+ * <p>
+ * The size of an entry is the number of bytes allocated while building it, as
+ * reported by the caller. This includes the garbage created while parsing
+ * and compiling, so it is an upper bound of the heap the entry retains and
+ * the byte quota is an allocation budget rather than a heap limit. An entry
+ * larger than the quota is kept as the only entry of its partition.
+ * <p>
+ * Per tenant the gauges {@code tenant.<domain>.cache.entries} and
+ * {@code tenant.<domain>.cache.bytes} and the counter
+ * {@code tenant.<domain>.cache.evictions} are reported to
+ * {@link ValidationMetrics}.
+ */
+public final class TenantCache
+{
+	private static final Log logger = LogFactory.getLog(TenantCache.class);
+
+	/** tenant domain of the super tenant, also used if no tenant is known */
+	public static final String SUPER_TENANT_DOMAIN = "carbon.super";
+
+	private static final TenantCache INSTANCE = new TenantCache();
+
+	private final Map<String, Partition> partitions = new ConcurrentHashMap<>();
+	private final Map<String, Quota> quotas = new ConcurrentHashMap<>();
+	private volatile Quota defaultQuota = new Quota(0, 0);
+
+	private TenantCache()
+	{
+	}
+
+	/**
+	 * @return the shared tenant cache
+	 */
+	public static TenantCache getInstance()
+	{
+		return INSTANCE;
+	}
+
+	/**
+	 * @param maxEntries maximum number of entries of a tenant without an own
+	 *                   quota, 0 for no limit
+	 */
+	public void setDefaultMaxEntries(long maxEntries)
+	{
+		defaultQuota = new Quota(maxEntries, defaultQuota.maxBytes);
+		partitions.values().forEach(Partition::trim);
+	}
+
+	/**
+	 * @param maxBytes maximum bytes allocated to build the entries of a tenant
+	 *                 without an own quota, 0 for no limit
+	 */
+	public void setDefaultMaxBytes(long maxBytes)
+	{
+		defaultQuota = new Quota(defaultQuota.maxEntries, maxBytes);
+		partitions.values().forEach(Partition::trim);
+	}
+
+	/**
+	 * Sets the quotas of individual tenants.
+	 *
+	 * @param quotaSpec comma separated list of
+	 *                  {@code <tenant domain>=<max entries>/<max bytes>}, e.g.
+	 *                  {@code example.com=200/268435456,carbon.super=0/0}
+	 * @throws IllegalArgumentException if the list cannot be parsed
+	 */
+	public void setQuotas(String quotaSpec)
+	{
+		Map<String, Quota> parsedQuotas = new ConcurrentHashMap<>();
+		for (String tenantQuota : quotaSpec.split(","))
+		{
+			if (tenantQuota.isBlank())
+			{
+				continue;
+			}
+			String[] domainAndLimits = tenantQuota.split("=");
+			String[] limits = domainAndLimits.length == 2 ? domainAndLimits[1].split("/") : new String[0];
+			if (limits.length != 2)
+			{
+				throw new IllegalArgumentException("invalid tenant cache quota: " + tenantQuota);
+			}
+			parsedQuotas.put(domainAndLimits[0].trim(),
+					new Quota(Long.parseLong(limits[0].trim()), Long.parseLong(limits[1].trim())));
+		}
+		quotas.clear();
+		quotas.putAll(parsedQuotas);
+		partitions.values().forEach(Partition::trim);
+	}
+
+	/**
+	 * @param tenantDomain tenant domain
+	 * @param key          cache key
+	 * @return the cached value, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T get(String tenantDomain, String key)
+	{
+		Partition partition = partitions.get(tenantDomain);
+		return partition == null ? null : (T) partition.get(key);
+	}
+
+	/**
+	 * Adds a value unless the key is already cached, evicting least recently used
+	 * entries of the tenant as needed.
+	 *
+	 * @param tenantDomain   tenant domain
+	 * @param key            cache key
+	 * @param value          value to cache
+	 * @param estimatedBytes bytes allocated to build the value
+	 * @return the value cached for the key
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T putIfAbsent(String tenantDomain, String key, T value, long estimatedBytes)
+	{
+		return (T) partitions.computeIfAbsent(tenantDomain, Partition::new).putIfAbsent(key, value, estimatedBytes);
+	}
+
+	/**
+	 * Adds or replaces a value, evicting least recently used entries of the
+	 * tenant as needed.
+	 *
+	 * @param tenantDomain   tenant domain
+	 * @param key            cache key
+	 * @param value          value to cache
+	 * @param estimatedBytes bytes allocated to build the value
+	 */
+	public void put(String tenantDomain, String key, Object value, long estimatedBytes)
+	{
+		partitions.computeIfAbsent(tenantDomain, Partition::new).put(key, value, estimatedBytes);
+	}
+
+	/**
+	 * Replaces a value if it is still cached for the key, e.g. by a smaller
+	 * version of it.
+	 *
+	 * @param tenantDomain tenant domain
+	 * @param key          cache key
+	 * @param expected     value expected to be cached
+	 * @param value        value to cache instead
+	 * @param sizeFraction size of the new value relative to the expected one,
+	 *                     applied to the allocation estimate of the entry
+	 * @return true if the value was replaced
+	 */
+	public boolean replace(String tenantDomain, String key, Object expected, Object value, double sizeFraction)
+	{
+		Partition partition = partitions.get(tenantDomain);
+		return partition != null && partition.replace(key, expected, value, sizeFraction);
+	}
+
+	/**
+	 * Removes the entries of a tenant whose keys match the filter.
+	 *
+	 * @param tenantDomain tenant domain
+	 * @param filter       filter on the cache keys
+	 * @return number of entries removed
+	 */
+	public int removeIf(String tenantDomain, Predicate<String> filter)
+	{
+		Partition partition = partitions.get(tenantDomain);
+		return partition == null ? 0 : partition.removeIf(filter);
+	}
+
+	/**
+	 * @param tenantDomain tenant domain
+	 * @return number of entries cached for the tenant
+	 */
+	public int getEntryCount(String tenantDomain)
+	{
+		Partition partition = partitions.get(tenantDomain);
+		return partition == null ? 0 : partition.size();
+	}
+
+	private Quota getQuota(String tenantDomain)
+	{
+		return quotas.getOrDefault(tenantDomain, defaultQuota);
+	}
+
+	/**
+	 * Cache entries of one tenant. Reads are lock-free and only stamp the
+	 * entry with its access time; entries are evicted in the order of their
+	 * last access, under the lock of the partition, so the eviction order is
+	 * an approximate LRU.
+	 */
+	private final class Partition
+	{
+		private final String tenantDomain;
+		private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+		private final AtomicLong estimatedBytes = new AtomicLong();
+
+		Partition(String tenantDomain)
+		{
+			this.tenantDomain = tenantDomain;
+		}
+
+		Object get(String key)
+		{
+			Entry entry = entries.get(key);
+			if (entry == null)
+			{
+				return null;
+			}
+			entry.accessed();
+			return entry.value;
+		}
+
+		Object putIfAbsent(String key, Object value, long valueBytes)
+		{
+			Entry entry = new Entry(value, valueBytes);
+			Entry cached = entries.putIfAbsent(key, entry);
+			if (cached != null)
+			{
+				cached.accessed();
+				return cached.value;
+			}
+			estimatedBytes.addAndGet(valueBytes);
+			trim();
+			return value;
+		}
+
+		void put(String key, Object value, long valueBytes)
+		{
+			Entry previous = entries.put(key, new Entry(value, valueBytes));
+			estimatedBytes.addAndGet(previous == null ? valueBytes : valueBytes - previous.estimatedBytes);
+			trim();
+		}
+
+		boolean replace(String key, Object expected, Object value, double sizeFraction)
+		{
+			Entry cached = entries.get(key);
+			if (cached == null || cached.value != expected)
+			{
+				return false;
+			}
+			Entry entry = new Entry(value, (long) (cached.estimatedBytes * sizeFraction));
+			if (!entries.replace(key, cached, entry))
+			{
+				return false;
+			}
+			estimatedBytes.addAndGet(entry.estimatedBytes - cached.estimatedBytes);
+			trim();
+			return true;
+		}
+
+		int removeIf(Predicate<String> filter)
+		{
+			int removed = 0;
+			for (Map.Entry<String, Entry> entry : entries.entrySet())
+			{
+				if (filter.test(entry.getKey()) && entries.remove(entry.getKey(), entry.getValue()))
+				{
+					estimatedBytes.addAndGet(-entry.getValue().estimatedBytes);
+					removed++;
+				}
+			}
+			trim();
+			return removed;
+		}
+
+		int size()
+		{
+			return entries.size();
+		}
+
+		/**
+		 * Evicts the least recently used entries until the partition is within
+		 * its quota, keeping at least the most recently used entry.
+		 */
+		synchronized void trim()
+		{
+			Quota quota = getQuota(tenantDomain);
+			int evicted = 0;
+			if (quota.isExceeded(entries.size(), estimatedBytes.get()))
+			{
+				List<Map.Entry<String, Entry>> eldestFirst = new ArrayList<>(entries.entrySet());
+				eldestFirst.sort(Comparator.comparingLong(entry -> entry.getValue().accessedNanos));
+				Iterator<Map.Entry<String, Entry>> iterator = eldestFirst.iterator();
+				while (entries.size() > 1 && quota.isExceeded(entries.size(), estimatedBytes.get())
+						&& iterator.hasNext())
+				{
+					Map.Entry<String, Entry> eldest = iterator.next();
+					if (entries.remove(eldest.getKey(), eldest.getValue()))
+					{
+						estimatedBytes.addAndGet(-eldest.getValue().estimatedBytes);
+						evicted++;
+						logger.debug("Evicted " + eldest.getKey() + " from cache of tenant " + tenantDomain);
+					}
+				}
+			}
+
+			ValidationMetrics metrics = ValidationMetrics.getInstance();
+			for (int i = 0; i < evicted; i++)
+			{
+				metrics.increment("tenant." + tenantDomain + ".cache.evictions");
+			}
+			metrics.setGauge("tenant." + tenantDomain + ".cache.entries", entries.size());
+			metrics.setGauge("tenant." + tenantDomain + ".cache.bytes", estimatedBytes.get());
+		}
+	}
+
+	/**
+	 * Cached value with its allocation estimate and its last access time.
+	 */
+	private static final class Entry
+	{
+		private final Object value;
+		private final long estimatedBytes;
+		private volatile long accessedNanos = System.nanoTime();
+
+		Entry(Object value, long estimatedBytes)
+		{
+			this.value = value;
+			this.estimatedBytes = estimatedBytes;
+		}
+
+		void accessed()
+		{
+			accessedNanos = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Cache limits of a tenant, 0 meaning no limit.
+	 */
+	private static final class Quota
+	{
+		private final long maxEntries;
+		private final long maxBytes;
+
+		Quota(long maxEntries, long maxBytes)
+		{
+			this.maxEntries = maxEntries;
+			this.maxBytes = maxBytes;
+		}
+
+		boolean isExceeded(int entryCount, long estimatedBytes)
+		{
+			return (maxEntries > 0 && entryCount > maxEntries) || (maxBytes > 0 && estimatedBytes > maxBytes);
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import java.util.List;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.axiom.om.OMElement;
+import org.codehaus.stax2.validation.XMLValidationProblem;
+
+import ch.integon.wso2.am.mediator.wsdl.model.ResourceLimits;
+import ch.integon.wso2.am.mediator.wsdl.model.SOAPServiceOperation;
+import ch.integon.wso2.am.mediator.wsdl.model.SOAPValidationException;
+
+/**
+ * Validation engine SPI: prepares the schemas of a service operation once and
+ * validates payloads against them.
+ * <p>
+ * All engines report problems as {@link XMLValidationProblem}s, so they can be
+ * exchanged without changes to the fault handling. Engines are registered in
+ * {@link ValidationEngines}; additional engines can be provided through
+ * {@link java.util.ServiceLoader}.
+ */
+public interface ValidationEngine
+{
+	/**
+	 * @return the name the engine is selected by
+	 */
+	String getName();
+
+	/**
+	 * Loads and compiles the schemas of a service operation. Called on the
+	 * {@link SchemaCompilationExecutor}, the result is cached per operation.
+	 *
+	 * @param serviceOperation service and operation to prepare
+	 * @return the prepared schema, thread-safe
+	 * @throws SOAPValidationException if the schemas cannot be compiled
+	 */
+	PreparedSchema prepare(SOAPServiceOperation serviceOperation) throws SOAPValidationException;
+
+	/**
+	 * Schemas of one operation, prepared by an engine.
+	 */
+	interface PreparedSchema
+	{
+		/**
+		 * Validates a payload element, usually the first child of the SOAP body.
+		 *
+		 * @param payload payload element
+		 * @return a list of XMLValidationProblem, empty if valid
+		 * @throws XMLStreamException if the payload cannot be read
+		 */
+		List<XMLValidationProblem> validate(OMElement payload) throws XMLStreamException;
+
+		/**
+		 * Validates a payload element within resource limits. Engines that do
+		 * not enforce the limits in their own pass get them checked in a
+		 * separate pass over the payload first.
+		 *
+		 * @param payload payload element
+		 * @param limits  limits enforced on the payload
+		 * @return a list of XMLValidationProblem, empty if valid
+		 * @throws XMLStreamException if the payload cannot be read or a limit
+		 *                            is exceeded
+		 */
+		default List<XMLValidationProblem> validate(OMElement payload, ResourceLimits limits)
+				throws XMLStreamException
+		{
+			ResourceLimitChecker.check(payload, limits);
+			return validate(payload);
+		}
+	}
+}
@@ -0,0 +1,260 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.OMNode;
+import org.apache.axiom.om.OMXMLBuilderFactory;
+import org.apache.cxf.service.model.ServiceInfo;
+
+import ch.integon.wso2.am.mediator.wsdl.model.SOAPServiceOperation;
+
+/**
+ * Compares the registered {@link ValidationEngine}s on sample payloads of one
+ * contract, to find the fastest engine for it.
+ * <p>
+ * Each engine prepares the schemas of the operation, is warmed up and then
+ * validates every payload the given number of times. The report lists the
+ * preparation time, the mean validation time and the number of payloads found
+ * valid, which must be the same for all engines.
+ * <p>
+ * Usage:
+ * {@code ValidationEngineBenchmark [--iterations=n] [--warmup=n] <wsdl-uri> <payload-file>...}
+ * where a payload file contains either a SOAP envelope or the payload element.
+ */
+public class ValidationEngineBenchmark
+{
+	private static final String SOAP_ENVELOPE = "Envelope";
+	private static final String SOAP_BODY = "Body";
+
+	private final int warmupIterations;
+	private final int iterations;
+
+	/**
+	 * @param warmupIterations validations of each payload before measuring
+	 * @param iterations       measured validations of each payload
+	 */
+	public ValidationEngineBenchmark(int warmupIterations, int iterations)
+	{
+		this.warmupIterations = warmupIterations;
+		this.iterations = iterations;
+	}
+
+	/**
+	 * Runs the benchmark of the given engines.
+	 *
+	 * @param engines          engines to compare
+	 * @param serviceOperation service and operation of the payloads
+	 * @param payloads         payload elements
+	 * @return one result per engine, fastest first; engines that failed to
+	 *         prepare the schemas are reported with their error
+	 */
+	public List<Result> run(Collection<ValidationEngine> engines, SOAPServiceOperation serviceOperation,
+			List<OMElement> payloads)
+	{
+		List<Result> results = new ArrayList<>();
+		for (ValidationEngine engine : engines)
+		{
+			results.add(run(engine, serviceOperation, payloads));
+		}
+		results.sort((a, b) -> Double.compare(a.getMeanMicros(), b.getMeanMicros()));
+		return results;
+	}
+
+	private Result run(ValidationEngine engine, SOAPServiceOperation serviceOperation, List<OMElement> payloads)
+	{
+		try
+		{
+			long start = System.nanoTime();
+			ValidationEngine.PreparedSchema schema = engine.prepare(serviceOperation);
+			long prepareNanos = System.nanoTime() - start;
+
+			for (int i = 0; i < warmupIterations; i++)
+			{
+				for (OMElement payload : payloads)
+				{
+					schema.validate(payload);
+				}
+			}
+
+			int valid = 0;
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++)
+			{
+				for (OMElement payload : payloads)
+				{
+					if (schema.validate(payload).isEmpty() && i == 0)
+					{
+						valid++;
+					}
+				}
+			}
+			long validationNanos = System.nanoTime() - start;
+			double meanMicros = validationNanos / 1000.0 / Math.max(1, (long) iterations * payloads.size());
+			return new Result(engine.getName(), prepareNanos / 1000000, meanMicros, valid, null);
+		} catch (Exception e)
+		{
+			return new Result(engine.getName(), 0, Double.MAX_VALUE, 0, e.toString());
+		}
+	}
+
+	/**
+	 * Command line entry point, see the class description.
+	 *
+	 * @param args command line arguments
+	 * @throws Exception if the contract or a payload cannot be read
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		int warmupIterations = 1000;
+		int iterations = 10000;
+		List<String> files = new ArrayList<>();
+		for (String arg : args)
+		{
+			if (arg.startsWith("--iterations="))
+			{
+				iterations = Integer.parseInt(arg.substring("--iterations=".length()));
+			} else if (arg.startsWith("--warmup="))
+			{
+				warmupIterations = Integer.parseInt(arg.substring("--warmup=".length()));
+			} else
+			{
+				files.add(arg);
+			}
+		}
+		if (files.size() < 2)
+		{
+			System.err.println("Usage: ValidationEngineBenchmark [--iterations=n] [--warmup=n] <wsdl-uri> <payload-file>...");
+			System.exit(2);
+		}
+
+		WSDLServiceBuilder serviceBuilder = new WSDLServiceBuilder();
+		List<ServiceInfo> services = serviceBuilder.buildServices(new URI[] { URI.create(files.get(0)) });
+		if (services == null || services.isEmpty())
+		{
+			throw new IllegalArgumentException("no service found in " + files.get(0));
+		}
+
+		List<OMElement> payloads = new ArrayList<>();
+		for (String file : files.subList(1, files.size()))
+		{
+			payloads.add(readPayload(Path.of(file)));
+		}
+		QName payloadName = payloads.get(0).getQName();
+		SOAPServiceOperation serviceOperation = serviceBuilder.getMatchedServiceOperation(services, null, payloadName);
+		if (serviceOperation == null)
+		{
+			throw new IllegalArgumentException("no operation found for payload element " + payloadName);
+		}
+
+		System.out.println("Operation " + serviceOperation.getOperation().getName() + ", " + payloads.size()
+				+ " payload(s), " + iterations + " iteration(s)");
+		System.out.println(String.format("%-12s %12s %14s %8s", "engine", "prepare [ms]", "mean [us]", "valid"));
+		for (Result result : new ValidationEngineBenchmark(warmupIterations, iterations)
+				.run(ValidationEngines.getAll(), serviceOperation, payloads))
+		{
+			if (result.getError() != null)
+			{
+				System.out.println(String.format("%-12s failed: %s", result.getEngine(), result.getError()));
+			} else
+			{
+				System.out.println(String.format("%-12s %12d %14.1f %8d", result.getEngine(), result.getPrepareMillis(),
+						result.getMeanMicros(), result.getValidPayloads()));
+			}
+		}
+	}
+
+	/**
+	 * Reads a payload file, unwrapping the payload element of a SOAP envelope.
+	 */
+	static OMElement readPayload(Path file) throws Exception
+	{
+		OMElement element;
+		try (InputStream in = Files.newInputStream(file))
+		{
+			element = OMXMLBuilderFactory.createOMBuilder(in).getDocumentElement();
+			element.build();
+		}
+		if (SOAP_ENVELOPE.equals(element.getLocalName()))
+		{
+			for (OMElement child = element.getFirstElement(); child != null; child = nextElement(child))
+			{
+				if (SOAP_BODY.equals(child.getLocalName()) && child.getFirstElement() != null)
+				{
+					return child.getFirstElement();
+				}
+			}
+			throw new IllegalArgumentException("no payload in SOAP body of " + file);
+		}
+		return element;
+	}
+
+	private static OMElement nextElement(OMElement element)
+	{
+		for (OMNode node = element.getNextOMSibling(); node != null; node = node.getNextOMSibling())
+		{
+			if (node instanceof OMElement)
+			{
+				return (OMElement) node;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Benchmark result of one engine.
+	 */
+	public static final class Result
+	{
+		private final String engine;
+		private final long prepareMillis;
+		private final double meanMicros;
+		private final int validPayloads;
+		private final String error;
+
+		Result(String engine, long prepareMillis, double meanMicros, int validPayloads, String error)
+		{
+			this.engine = engine;
+			this.prepareMillis = prepareMillis;
+			this.meanMicros = meanMicros;
+			this.validPayloads = validPayloads;
+			this.error = error;
+		}
+
+		public String getEngine()
+		{
+			return engine;
+		}
+
+		public long getPrepareMillis()
+		{
+			return prepareMillis;
+		}
+
+		public double getMeanMicros()
+		{
+			return meanMicros;
+		}
+
+		public int getValidPayloads()
+		{
+			return validPayloads;
+		}
+
+		/**
+		 * @return the error preparing the schemas, or null
+		 */
+		public String getError()
+		{
+			return error;
+		}
+	}
+}
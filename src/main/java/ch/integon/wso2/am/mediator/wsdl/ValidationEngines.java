@@ -0,0 +1,88 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Registry of the available {@link ValidationEngine}s.
+ * <p>
+ * The built-in engines are {@code msv} (Woodstox with MSV, the default),
+ * {@code jaxp} (the JDK validator with a shared {@code Schema} and pooled
+ * validators) and {@code compiled} (compiled validators, see
+ * {@link CompiledValidatorBuilder}, with MSV for payloads they cannot decide).
+ * Engines found through {@link ServiceLoader} are added at class
+ * initialization.
+ */
+public final class ValidationEngines
+{
+	private static final Log logger = LogFactory.getLog(ValidationEngines.class);
+
+	/** name of the default engine */
+	public static final String DEFAULT_ENGINE = MsvValidationEngine.NAME;
+
+	private static final Map<String, ValidationEngine> engines = new ConcurrentHashMap<>();
+
+	static
+	{
+		for (ValidationEngine engine : List.of(new MsvValidationEngine(), new JaxpValidationEngine(),
+				new CompiledValidationEngine()))
+		{
+			register(engine);
+		}
+		try
+		{
+			for (ValidationEngine engine : ServiceLoader.load(ValidationEngine.class,
+					ValidationEngines.class.getClassLoader()))
+			{
+				register(engine);
+			}
+		} catch (Throwable e)
+		{
+			logger.error("Error while loading validation engines", e);
+		}
+	}
+
+	private ValidationEngines()
+	{
+	}
+
+	/**
+	 * Registers an engine, replacing an engine of the same name.
+	 *
+	 * @param engine engine to register
+	 */
+	public static void register(ValidationEngine engine)
+	{
+		engines.put(engine.getName(), engine);
+		logger.debug("Validation engine registered: " + engine.getName());
+	}
+
+	/**
+	 * @param name name of the engine
+	 * @return the engine
+	 * @throws IllegalArgumentException if no engine of this name is registered
+	 */
+	public static ValidationEngine get(String name)
+	{
+		ValidationEngine engine = engines.get(name.trim().toLowerCase());
+		if (engine == null)
+		{
+			throw new IllegalArgumentException("unknown validation engine " + name + ", available: " + engines.keySet());
+		}
+		return engine;
+	}
+
+	/**
+	 * @return all registered engines
+	 */
+	public static Collection<ValidationEngine> getAll()
+	{
+		return List.copyOf(engines.values());
+	}
+}
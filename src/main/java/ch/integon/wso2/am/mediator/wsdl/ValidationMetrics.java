@@ -0,0 +1,109 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * JVM-wide registry of validation metrics.
+ * <p>
+ * Counters and gauges are identified by a dotted name, usually prefixed with
+ * the API UUID (e.g. {@code <apiUUID>.mode.changes}). The registry is exposed
+ * through JMX under {@value #OBJECT_NAME} so it can be scraped by the usual
+ * gateway monitoring tools.
+ */
+public final class ValidationMetrics implements ValidationMetricsMXBean
+{
+	private static final Log logger = LogFactory.getLog(ValidationMetrics.class);
+
+	public static final String OBJECT_NAME = "ch.integon.wso2.am.mediator:type=SOAPValidationMetrics";
+
+	private static final ValidationMetrics INSTANCE = new ValidationMetrics();
+
+	private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, AtomicLong> gauges = new ConcurrentHashMap<>();
+
+	static
+	{
+		try
+		{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name))
+			{
+				server.registerMBean(INSTANCE, name);
+			}
+		} catch (Exception e)
+		{
+			logger.warn("Unable to register validation metrics MBean", e);
+		}
+	}
+
+	private ValidationMetrics()
+	{
+	}
+
+	/**
+	 * @return the shared metrics registry
+	 */
+	public static ValidationMetrics getInstance()
+	{
+		return INSTANCE;
+	}
+
+	/**
+	 * Increments the named counter by one.
+	 *
+	 * @param name counter name
+	 */
+	public void increment(String name)
+	{
+		counters.computeIfAbsent(name, k -> new LongAdder()).increment();
+	}
+
+	/**
+	 * Sets the named gauge to the given value.
+	 *
+	 * @param name  gauge name
+	 * @param value current value
+	 */
+	public void setGauge(String name, long value)
+	{
+		gauges.computeIfAbsent(name, k -> new AtomicLong()).set(value);
+	}
+
+	/**
+	 * @param name counter name
+	 * @return current value of the counter, 0 if it was never incremented
+	 */
+	public long getCounter(String name)
+	{
+		LongAdder counter = counters.get(name);
+		return counter == null ? 0 : counter.sum();
+	}
+
+	@Override
+	public Map<String, Long> getCounters()
+	{
+		Map<String, Long> snapshot = new TreeMap<>();
+		counters.forEach((k, v) -> snapshot.put(k, v.sum()));
+		return snapshot;
+	}
+
+	@Override
+	public Map<String, Long> getGauges()
+	{
+		Map<String, Long> snapshot = new TreeMap<>();
+		gauges.forEach((k, v) -> snapshot.put(k, v.get()));
+		return snapshot;
+	}
+}
@@ -0,0 +1,20 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import java.util.Map;
+
+/**
+ * JMX management interface exposing the counters and gauges collected by
+ * {@link ValidationMetrics}.
+ */
+public interface ValidationMetricsMXBean
+{
+	/**
+	 * @return snapshot of all monotonically increasing counters by name
+	 */
+	Map<String, Long> getCounters();
+
+	/**
+	 * @return snapshot of all gauges (last reported value) by name
+	 */
+	Map<String, Long> getGauges();
+}
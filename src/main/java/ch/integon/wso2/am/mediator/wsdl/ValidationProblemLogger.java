@@ -0,0 +1,340 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.xml.namespace.QName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.codehaus.stax2.validation.XMLValidationProblem;
+
+/**
+ * JVM-wide logger for rejected messages.
+ * <p>
+ * Problems are aggregated per API, operation and problem signature (the
+ * message with its variable parts such as element names and values removed)
+ * and written as one summary line per signature at the end of each window,
+ * with the number of occurrences and a few sample messages. Individual
+ * problems are only logged up to a rate limit, so a misbehaving client cannot
+ * turn the gateway log into the bottleneck.
+ * <p>
+ * The number of signatures per window is bounded; problems beyond it are only
+ * counted.
+ */
+public final class ValidationProblemLogger
+{
+	private static final Log logger = LogFactory.getLog(ValidationProblemLogger.class);
+
+	private static final int MAX_SAMPLES = 3;
+	private static final int MAX_SIGNATURES = 1000;
+
+	private static final ValidationProblemLogger INSTANCE = new ValidationProblemLogger();
+
+	private final ScheduledThreadPoolExecutor scheduler;
+	/** aggregates of the current window, replaced by a fresh map when it is summarized */
+	private final AtomicReference<Map<Key, Aggregate>> aggregates = new AtomicReference<>(new ConcurrentHashMap<>());
+	private final LongAdder overflow = new LongAdder();
+	private final LongAdder suppressed = new LongAdder();
+	private final AtomicLong rateWindowSecond = new AtomicLong();
+	private final AtomicInteger rateWindowLines = new AtomicInteger();
+
+	private volatile int maxLinesPerSecond = 10;
+	private volatile long summaryIntervalMillis = 60000;
+	private ScheduledFuture<?> summaryTask;
+
+	private ValidationProblemLogger()
+	{
+		scheduler = new ScheduledThreadPoolExecutor(1,
+				Thread.ofPlatform().name("soap-validation-problem-logger").daemon(true).factory());
+		scheduler.setRemoveOnCancelPolicy(true);
+		scheduleSummary();
+	}
+
+	/**
+	 * @return the shared problem logger
+	 */
+	public static ValidationProblemLogger getInstance()
+	{
+		return INSTANCE;
+	}
+
+	/**
+	 * @param maxLinesPerSecond maximum number of individual problem lines logged
+	 *                          per second, 0 to only log summaries
+	 */
+	public void setMaxLinesPerSecond(int maxLinesPerSecond)
+	{
+		this.maxLinesPerSecond = Math.max(0, maxLinesPerSecond);
+	}
+
+	/**
+	 * @param summaryIntervalMillis length of the aggregation window, 0 disables
+	 *                              the summaries
+	 */
+	public synchronized void setSummaryIntervalMillis(long summaryIntervalMillis)
+	{
+		if (this.summaryIntervalMillis == summaryIntervalMillis)
+		{
+			return;
+		}
+		this.summaryIntervalMillis = summaryIntervalMillis;
+		scheduleSummary();
+	}
+
+	/**
+	 * Records the problems of a rejected message.
+	 *
+	 * @param apiUUID      API identifier, null if unknown
+	 * @param operation    matched operation, null if none was matched
+	 * @param problems     validation problems, null or empty if the message was
+	 *                     rejected before its payload was validated
+	 * @param faultMessage reason returned to the client
+	 */
+	public void log(String apiUUID, QName operation, List<XMLValidationProblem> problems, String faultMessage)
+	{
+		if (!logger.isErrorEnabled())
+		{
+			return;
+		}
+		if (problems == null || problems.isEmpty())
+		{
+			record(apiUUID, operation, signature(faultMessage), faultMessage, null);
+			return;
+		}
+		for (XMLValidationProblem problem : problems)
+		{
+			record(apiUUID, operation, signature(problem), null, problem);
+		}
+	}
+
+	private void record(String apiUUID, QName operation, String signature, String message,
+			XMLValidationProblem problem)
+	{
+		if (summaryIntervalMillis > 0)
+		{
+			Key key = new Key(apiUUID, operation, signature);
+			Map<Key, Aggregate> windowAggregates = aggregates.get();
+			Aggregate aggregate = windowAggregates.get(key);
+			if (aggregate == null)
+			{
+				if (windowAggregates.size() >= MAX_SIGNATURES)
+				{
+					overflow.increment();
+				} else
+				{
+					aggregate = windowAggregates.computeIfAbsent(key, k -> new Aggregate());
+				}
+			}
+			if (aggregate != null)
+			{
+				aggregate.count.increment();
+				if (aggregate.sampleCount.get() < MAX_SAMPLES
+						&& aggregate.sampleCount.getAndIncrement() < MAX_SAMPLES)
+				{
+					aggregate.samples.add(message != null ? message : problem.getMessage());
+				}
+			}
+		}
+
+		if (tryAcquireLine())
+		{
+			logger.error("SOAP validation failed for api: " + apiUUID + ", operation: " + operation + " - "
+					+ (message != null ? message : problem.getMessage()));
+		} else
+		{
+			suppressed.increment();
+		}
+	}
+
+	/**
+	 * @return true if another individual line may be logged in the current
+	 *         second
+	 */
+	private boolean tryAcquireLine()
+	{
+		int limit = maxLinesPerSecond;
+		if (limit == 0)
+		{
+			return false;
+		}
+		long second = System.nanoTime() / 1_000_000_000L;
+		long windowSecond = rateWindowSecond.get();
+		if (second != windowSecond && rateWindowSecond.compareAndSet(windowSecond, second))
+		{
+			rateWindowLines.set(0);
+		}
+		return rateWindowLines.incrementAndGet() <= limit;
+	}
+
+	private synchronized void scheduleSummary()
+	{
+		if (summaryTask != null)
+		{
+			summaryTask.cancel(false);
+			summaryTask = null;
+		}
+		long interval = summaryIntervalMillis;
+		if (interval > 0)
+		{
+			summaryTask = scheduler.scheduleAtFixedRate(this::writeSummary, interval, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Writes the summary of the past window and starts a new one.
+	 */
+	private void writeSummary()
+	{
+		try
+		{
+			long seconds = TimeUnit.MILLISECONDS.toSeconds(summaryIntervalMillis);
+			// problems recorded from now on go to the new window
+			Map<Key, Aggregate> windowAggregates = aggregates.getAndSet(new ConcurrentHashMap<>());
+			for (Map.Entry<Key, Aggregate> entry : windowAggregates.entrySet())
+			{
+				Key key = entry.getKey();
+				Aggregate aggregate = entry.getValue();
+				logger.error("SOAP validation failed " + aggregate.count.sum() + " time(s) in the last " + seconds
+						+ " s for api: " + key.apiUUID + ", operation: " + key.operation + " - " + key.signature
+						+ " - samples: " + aggregate.samples);
+			}
+			long overflowCount = overflow.sumThenReset();
+			if (overflowCount > 0)
+			{
+				logger.error(overflowCount + " further validation problem(s) in the last " + seconds
+						+ " s not summarized - more than " + MAX_SIGNATURES + " distinct problems");
+			}
+			long suppressedCount = suppressed.sumThenReset();
+			if (suppressedCount > 0)
+			{
+				logger.error(suppressedCount + " individual validation problem line(s) suppressed by the rate limit in the last "
+						+ seconds + " s");
+			}
+		} catch (RuntimeException e)
+		{
+			logger.warn("Unable to write validation problem summary", e);
+		}
+	}
+
+	/**
+	 * @param problem validation problem
+	 * @return the signature of the problem message, which identifies the type
+	 *         of the problem
+	 */
+	static String signature(XMLValidationProblem problem)
+	{
+		return problem instanceof LazyValidationProblem ? ((LazyValidationProblem) problem).getSignature()
+				: signature(problem.getMessage());
+	}
+
+	/**
+	 * Removes the variable parts of a problem message: quoted values, element
+	 * and attribute names in {@code {namespace}local} notation and numbers.
+	 *
+	 * @param message problem message
+	 * @return the signature of the message
+	 */
+	static String signature(String message)
+	{
+		if (message == null)
+		{
+			return "";
+		}
+		StringBuilder signature = new StringBuilder(message.length());
+		int length = message.length();
+		for (int i = 0; i < length; i++)
+		{
+			char c = message.charAt(i);
+			char close = c == '"' ? '"' : c == '\'' ? '\'' : c == '{' ? '}' : 0;
+			int end = close == 0 ? -1 : message.indexOf(close, i + 1);
+			if (end > 0)
+			{
+				signature.append('?');
+				i = end;
+				if (close == '}')
+				{
+					// skip the local name following the namespace
+					while (i + 1 < length && isNameChar(message.charAt(i + 1)))
+					{
+						i++;
+					}
+				}
+			} else if (Character.isDigit(c))
+			{
+				signature.append('#');
+				while (i + 1 < length && Character.isDigit(message.charAt(i + 1)))
+				{
+					i++;
+				}
+			} else
+			{
+				signature.append(c);
+			}
+		}
+		return signature.toString();
+	}
+
+	private static boolean isNameChar(char c)
+	{
+		return Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.';
+	}
+
+	/**
+	 * Aggregation key.
+	 */
+	private static final class Key
+	{
+		private final String apiUUID;
+		private final QName operation;
+		private final String signature;
+		private final int hash;
+
+		Key(String apiUUID, QName operation, String signature)
+		{
+			this.apiUUID = apiUUID;
+			this.operation = operation;
+			this.signature = signature;
+			this.hash = Objects.hash(apiUUID, operation, signature);
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof Key))
+			{
+				return false;
+			}
+			Key other = (Key) obj;
+			return hash == other.hash && Objects.equals(apiUUID, other.apiUUID)
+					&& Objects.equals(operation, other.operation) && signature.equals(other.signature);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+	}
+
+	/**
+	 * Occurrences of one problem signature in the current window.
+	 */
+	private static final class Aggregate
+	{
+		private final LongAdder count = new LongAdder();
+		private final AtomicInteger sampleCount = new AtomicInteger();
+		private final List<String> samples = Collections.synchronizedList(new ArrayList<>(MAX_SAMPLES));
+	}
+}
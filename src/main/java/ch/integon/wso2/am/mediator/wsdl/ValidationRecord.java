@@ -0,0 +1,123 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import javax.xml.namespace.QName;
+
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.soap.SOAPEnvelope;
+import org.apache.synapse.MessageContext;
+
+import ch.integon.wso2.am.mediator.wsdl.model.SOAPDirection;
+
+/**
+ * Record of a successful validation, kept in the message context so a second
+ * pass of the mediator over the same message (e.g. policies attached on API
+ * and operation level) can skip the validation.
+ * <p>
+ * The record identifies the API, the direction and the payload element it was
+ * created for, the validation configuration of the mediator (engine, compiled
+ * mode and resource limits) and a fingerprint of the payload tree (names,
+ * attributes and text). It only covers a mediator with the same configuration,
+ * so a stricter second pass still validates. It is only valid while the message still carries the same, unchanged
+ * payload element; a replaced or modified payload is validated again. The
+ * fingerprint is a {@link PayloadDigest.Fnv} of the already built tree, which
+ * is much cheaper to compute than validating the tree again.
+ */
+final class ValidationRecord
+{
+	private final String apiUUID;
+	private final QName operation;
+	private final SOAPDirection direction;
+	private final String configuration;
+	private final OMElement payload;
+	private final boolean headers;
+	private final long fingerprint;
+
+	private ValidationRecord(String apiUUID, QName operation, SOAPDirection direction, String configuration,
+			OMElement payload, boolean headers, long fingerprint)
+	{
+		this.apiUUID = apiUUID;
+		this.operation = operation;
+		this.direction = direction;
+		this.configuration = configuration;
+		this.payload = payload;
+		this.headers = headers;
+		this.fingerprint = fingerprint;
+	}
+
+	/**
+	 * Creates the record of a validated message.
+	 *
+	 * @param messageContext validated message
+	 * @param apiUUID        API identifier
+	 * @param operation      validated operation
+	 * @param configuration  validation configuration of the mediator
+	 * @param headers        true if the SOAP headers were validated as well
+	 * @return the record, null if the payload is not completely built and
+	 *         cannot be fingerprinted without reading the message again
+	 */
+	static ValidationRecord of(MessageContext messageContext, String apiUUID, QName operation,
+			String configuration, boolean headers)
+	{
+		SOAPEnvelope envelope = messageContext.getEnvelope();
+		// the first body element, which also covers a double-wrapped payload
+		OMElement payload = envelope == null || envelope.getBody() == null ? null : envelope.getBody().getFirstElement();
+		if (payload == null || !payload.isComplete())
+		{
+			return null;
+		}
+		if (headers && envelope.getHeader() != null && !envelope.getHeader().isComplete())
+		{
+			return null;
+		}
+		return new ValidationRecord(apiUUID, operation, directionOf(messageContext), configuration, payload, headers,
+				fingerprint(envelope, payload, headers));
+	}
+
+	/**
+	 * @param messageContext message to be validated
+	 * @param apiUUID        API identifier
+	 * @param configuration  validation configuration of the mediator
+	 * @param headers        true if the SOAP headers have to be validated as
+	 *                       well
+	 * @return true if this record covers the message in its current state
+	 */
+	boolean covers(MessageContext messageContext, String apiUUID, String configuration, boolean headers)
+	{
+		if (!this.apiUUID.equals(apiUUID) || (headers && !this.headers)
+				|| direction != directionOf(messageContext) || !this.configuration.equals(configuration))
+		{
+			return false;
+		}
+		SOAPEnvelope envelope = messageContext.getEnvelope();
+		if (envelope == null || envelope.getBody() == null || envelope.getBody().getFirstElement() != payload)
+		{
+			return false;
+		}
+		return payload.isComplete() && fingerprint == fingerprint(envelope, payload, this.headers);
+	}
+
+	/**
+	 * @return the validated operation
+	 */
+	QName getOperation()
+	{
+		return operation;
+	}
+
+	private static SOAPDirection directionOf(MessageContext messageContext)
+	{
+		return messageContext.isFaultResponse() ? SOAPDirection.FAULT
+				: messageContext.isResponse() ? SOAPDirection.OUTBOUND : SOAPDirection.INBOUND;
+	}
+
+	private static long fingerprint(SOAPEnvelope envelope, OMElement payload, boolean headers)
+	{
+		PayloadDigest.Fnv digest = new PayloadDigest.Fnv();
+		digest.update(payload, 0);
+		if (headers && envelope.getHeader() != null)
+		{
+			digest.update(envelope.getHeader(), 0);
+		}
+		return digest.getHash();
+	}
+}
@@ -0,0 +1,193 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import javax.xml.namespace.QName;
+
+import org.apache.synapse.MessageContext;
+
+/**
+ * Records the figures of the validation of one message as message context
+ * properties, where the gateway's analytics and custom reporters pick them
+ * up.
+ * <p>
+ * The properties are named {@code SOAP_VALIDATION_<DIRECTION>_<FIGURE>}, with
+ * the direction {@code REQUEST} or {@code RESPONSE} (also for faults), so the
+ * figures of a request are not overwritten when properties are copied to its
+ * response. The figures are
+ * <ul>
+ * <li>{@code ANALYZE_NANOS}, {@code RESOLVE_NANOS} and {@code VALIDATE_NANOS}
+ * ({@link Long}): time spent analyzing the message, matching the operation and
+ * resolving its schema, and validating the payload;</li>
+ * <li>{@code SCHEMA_CACHE} and {@code VERDICT_CACHE}: {@code HIT} or
+ * {@code MISS} for the compiled schema and, if enabled, the cached verdict;</li>
+ * <li>{@code OPERATION}: local name of the matched operation;</li>
+ * <li>{@code PROBLEMS} ({@link Integer}): number of validation problems
+ * found.</li>
+ * </ul>
+ * Figures of phases that did not run, e.g. because the message was rejected
+ * earlier or validated while streaming, are not set. All property names are
+ * constants and the times are taken with {@link System#nanoTime()}, so
+ * recording costs a few map updates per message.
+ */
+public final class ValidationTimings
+{
+	/** prefix of the properties of requests */
+	public static final String REQUEST_PREFIX = "SOAP_VALIDATION_REQUEST_";
+	/** prefix of the properties of responses and faults */
+	public static final String RESPONSE_PREFIX = "SOAP_VALIDATION_RESPONSE_";
+
+	public static final String ANALYZE_NANOS = "ANALYZE_NANOS";
+	public static final String RESOLVE_NANOS = "RESOLVE_NANOS";
+	public static final String VALIDATE_NANOS = "VALIDATE_NANOS";
+	public static final String SCHEMA_CACHE = "SCHEMA_CACHE";
+	public static final String VERDICT_CACHE = "VERDICT_CACHE";
+	public static final String OPERATION = "OPERATION";
+	public static final String PROBLEMS = "PROBLEMS";
+
+	public static final String HIT = "HIT";
+	public static final String MISS = "MISS";
+
+	/** timings that record nothing */
+	static final ValidationTimings NONE = new ValidationTimings(null, null);
+
+	private static final Names REQUEST_NAMES = new Names(REQUEST_PREFIX);
+	private static final Names RESPONSE_NAMES = new Names(RESPONSE_PREFIX);
+
+	private final MessageContext messageContext;
+	private final Names names;
+	private long markNanos;
+	private long analyzeNanos;
+	private long resolveNanos;
+	private long validateNanos;
+
+	private ValidationTimings(MessageContext messageContext, Names names)
+	{
+		this.messageContext = messageContext;
+		this.names = names;
+		this.markNanos = System.nanoTime();
+	}
+
+	/**
+	 * Starts recording the figures of a message.
+	 *
+	 * @param messageContext Synapse message context
+	 * @return the timings of the message, started now
+	 */
+	static ValidationTimings start(MessageContext messageContext)
+	{
+		return new ValidationTimings(messageContext,
+				messageContext.isResponse() || messageContext.isFaultResponse() ? RESPONSE_NAMES : REQUEST_NAMES);
+	}
+
+	/**
+	 * Ends the analysis phase.
+	 */
+	void analyzed()
+	{
+		if (names != null)
+		{
+			analyzeNanos += elapsed();
+			messageContext.setProperty(names.analyzeNanos, analyzeNanos);
+		}
+	}
+
+	/**
+	 * Ends a resolution phase; the time of several phases is added up.
+	 */
+	void resolved()
+	{
+		if (names != null)
+		{
+			resolveNanos += elapsed();
+			messageContext.setProperty(names.resolveNanos, resolveNanos);
+		}
+	}
+
+	/**
+	 * Ends a validation phase; the time of several phases is added up.
+	 */
+	void validated()
+	{
+		if (names != null)
+		{
+			validateNanos += elapsed();
+			messageContext.setProperty(names.validateNanos, validateNanos);
+		}
+	}
+
+	/**
+	 * @param operation name of the matched operation
+	 */
+	void operation(QName operation)
+	{
+		if (names != null)
+		{
+			messageContext.setProperty(names.operation, operation.getLocalPart());
+		}
+	}
+
+	/**
+	 * @param hit true if the schema of the operation was already compiled
+	 */
+	void schemaCache(boolean hit)
+	{
+		if (names != null)
+		{
+			messageContext.setProperty(names.schemaCache, hit ? HIT : MISS);
+		}
+	}
+
+	/**
+	 * @param hit true if the verdict of the payload was cached
+	 */
+	void verdictCache(boolean hit)
+	{
+		if (names != null)
+		{
+			messageContext.setProperty(names.verdictCache, hit ? HIT : MISS);
+		}
+	}
+
+	/**
+	 * @param problems number of validation problems found
+	 */
+	void problems(int problems)
+	{
+		if (names != null)
+		{
+			messageContext.setProperty(names.problems, problems);
+		}
+	}
+
+	private long elapsed()
+	{
+		long now = System.nanoTime();
+		long elapsed = now - markNanos;
+		markNanos = now;
+		return elapsed;
+	}
+
+	/**
+	 * Property names of one direction, built once.
+	 */
+	private static final class Names
+	{
+		private final String analyzeNanos;
+		private final String resolveNanos;
+		private final String validateNanos;
+		private final String schemaCache;
+		private final String verdictCache;
+		private final String operation;
+		private final String problems;
+
+		Names(String prefix)
+		{
+			analyzeNanos = prefix + ANALYZE_NANOS;
+			resolveNanos = prefix + RESOLVE_NANOS;
+			validateNanos = prefix + VALIDATE_NANOS;
+			schemaCache = prefix + SCHEMA_CACHE;
+			verdictCache = prefix + VERDICT_CACHE;
+			operation = prefix + OPERATION;
+			problems = prefix + PROBLEMS;
+		}
+	}
+}
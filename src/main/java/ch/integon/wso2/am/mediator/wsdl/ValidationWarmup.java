@@ -0,0 +1,189 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import java.io.ByteArrayInputStream;
+import java.lang.ref.SoftReference;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.namespace.QName;
+
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.OMXMLBuilderFactory;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.cxf.common.xmlschema.SchemaCollection;
+import org.codehaus.stax2.validation.XMLValidationSchema;
+
+import ch.integon.wso2.am.mediator.wsdl.model.RuntimeOperation;
+import ch.integon.wso2.am.mediator.wsdl.model.SOAPServiceOperation;
+
+/**
+ * Warms up the validation code of an operation once its schema is compiled.
+ * <p>
+ * Sample payloads are generated from the schema with the
+ * {@link SampleMessageGenerator} and repeatedly matched to their operation and
+ * validated, as real messages are, until the time budget is used up. The JIT
+ * compiler then has optimized the Woodstox/MSV validation and the dispatch
+ * code before the first real requests arrive.
+ * <p>
+ * Warm-up runs on a single low priority daemon thread shared by all APIs, and
+ * only once per operation and contract; warm-ups that cannot be queued are
+ * skipped and tried again the next time the schema is compiled. The samples are generated on that thread as well, so neither the
+ * compilation nor the request waiting for it pays for them. A queued warm-up
+ * holds the schemas of the service model only softly, so it does not keep a
+ * released model in memory; if the schemas are collected, it is skipped.
+ */
+public class ValidationWarmup
+{
+	private static final Log logger = LogFactory.getLog(ValidationWarmup.class);
+
+	private static final int QUEUE_CAPACITY = 100;
+	private static final int MAX_ITERATIONS = 20000;
+
+	private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+			Thread.ofPlatform().name("soap-validation-warmup").daemon(true).priority(Thread.MIN_PRIORITY).factory(),
+			new ThreadPoolExecutor.AbortPolicy());
+	/** keys of the warmed up operations by API */
+	private static final Map<String, Set<String>> warmedUp = new ConcurrentHashMap<>();
+
+	static
+	{
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	private final SchemaResolver schemaResolver;
+	private final SOAPValidator soapValidator;
+	private final long budgetMillis;
+
+	/**
+	 * @param schemaResolver resolver used to match the sample payloads
+	 * @param soapValidator  validator used for the sample payloads
+	 * @param budgetMillis   time spent warming up one operation
+	 */
+	public ValidationWarmup(SchemaResolver schemaResolver, SOAPValidator soapValidator, long budgetMillis)
+	{
+		this.schemaResolver = schemaResolver;
+		this.soapValidator = soapValidator;
+		this.budgetMillis = budgetMillis;
+	}
+
+	/**
+	 * Queues the warm-up of an operation whose schema was just compiled. The
+	 * schemas of the service model are taken right away, while the operation is
+	 * still bound; the samples are generated and validated in the background.
+	 *
+	 * @param apiUUID          API identifier
+	 * @param serviceOperation bound service operation
+	 * @param schema           compiled schema of the operation
+	 */
+	public void schedule(String apiUUID, SOAPServiceOperation serviceOperation, XMLValidationSchema schema)
+	{
+		RuntimeOperation operation = serviceOperation.getRuntimeOperation();
+		Set<String> operations = warmedUp.computeIfAbsent(apiUUID, k -> ConcurrentHashMap.newKeySet());
+		// claimed while queuing, and released again if the warm-up is skipped so it is retried
+		if (!operations.add(operation.getKey()))
+		{
+			return;
+		}
+		if (executor.getQueue().remainingCapacity() == 0)
+		{
+			operations.remove(operation.getKey());
+			return;
+		}
+		SoftReference<SchemaCollection> schemas = new SoftReference<>(
+				serviceOperation.getService().getXmlSchemaCollection());
+		try
+		{
+			executor.execute(() -> warmUp(apiUUID, operation, schemas, schema));
+		} catch (RejectedExecutionException e)
+		{
+			operations.remove(operation.getKey());
+			logger.debug("Warm-up queue full - skipping warm-up of " + operation.getOperationName() + " for api: "
+					+ apiUUID);
+		}
+	}
+
+	/**
+	 * Forgets the warmed up operations of an API, e.g. when the results compiled
+	 * from a previous revision of its contract are removed.
+	 *
+	 * @param apiUUID API identifier
+	 */
+	static void forget(String apiUUID)
+	{
+		warmedUp.remove(apiUUID);
+	}
+
+	/**
+	 * Generates the sample payloads of the operation and validates them until
+	 * the budget is used up.
+	 */
+	private void warmUp(String apiUUID, RuntimeOperation operation, SoftReference<SchemaCollection> schemas,
+			XMLValidationSchema schema)
+	{
+		SchemaCollection schemaCollection = schemas.get();
+		if (schemaCollection == null)
+		{
+			logger.debug("Service model released - skipping warm-up of " + operation.getOperationName()
+					+ " for api: " + apiUUID);
+			return;
+		}
+		try
+		{
+			Map<QName, String> samples = new SampleMessageGenerator(schemaCollection).generate(operation);
+			List<OMElement> payloads = new ArrayList<>();
+			List<String> soapActions = new ArrayList<>();
+			for (Map.Entry<QName, String> sample : samples.entrySet())
+			{
+				payloads.add(OMXMLBuilderFactory
+						.createOMBuilder(new ByteArrayInputStream(sample.getValue().getBytes(StandardCharsets.UTF_8)))
+						.getDocumentElement());
+				// responses carry no SOAP action
+				soapActions.add(operation.getInputElementNames().contains(sample.getKey()) ? operation.getSoapAction()
+						: null);
+			}
+			if (payloads.isEmpty())
+			{
+				return;
+			}
+
+			int valid = 0;
+			for (OMElement payload : payloads)
+			{
+				payload.build();
+				if (soapValidator.validate(schema, payload).isEmpty())
+				{
+					valid++;
+				}
+			}
+
+			long startNanos = System.nanoTime();
+			long budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+			int iterations = 0;
+			while (iterations < MAX_ITERATIONS && System.nanoTime() - startNanos < budgetNanos)
+			{
+				int index = iterations % payloads.size();
+				OMElement payload = payloads.get(index);
+				schemaResolver.resolveOperation(apiUUID, soapActions.get(index), payload.getQName());
+				soapValidator.validate(schema, payload);
+				iterations++;
+			}
+			logger.info("Warmed up validation of " + operation.getOperationName() + " for api: " + apiUUID + " with "
+					+ iterations + " validations in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)
+					+ " ms (" + valid + " of " + payloads.size() + " sample payloads valid)");
+		} catch (Exception e)
+		{
+			logger.warn("Warm-up of " + operation.getOperationName() + " for api: " + apiUUID + " failed - "
+					+ e.getMessage());
+		}
+	}
+}
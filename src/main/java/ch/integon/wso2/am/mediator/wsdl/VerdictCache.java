@@ -0,0 +1,230 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.axiom.om.OMElement;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.codehaus.stax2.validation.XMLValidationProblem;
+
+import ch.integon.wso2.am.mediator.wsdl.model.RuntimeOperation;
+
+/**
+ * JVM-wide cache of validation verdicts of identical payloads.
+ * <p>
+ * Machine generated traffic (health checks, polling, fixed lookups) often
+ * sends byte-identical payloads. For APIs that opt in, the verdict of a
+ * payload, and the problems of an invalid one, is cached under the operation
+ * (whose key contains the fingerprint of its WSDL), the validation
+ * configuration of the mediator (engine, compiled mode and resource limits)
+ * and a SHA-256 digest of the payload, so an identical payload is not
+ * validated again by an equally configured mediator. The digest is
+ * taken over the built payload tree, since the raw bytes of the message have
+ * usually been consumed by the time the payload is validated.
+ * <p>
+ * Every API has its own partition, bounded by the number of entries; the least
+ * recently used entries are evicted. A partition is dropped whenever a schema
+ * of its API is compiled, so no verdict outlives the schema it was made with.
+ * <p>
+ * Per API the counters {@code <apiUUID>.verdict.hits} and
+ * {@code <apiUUID>.verdict.misses} and the gauges
+ * {@code <apiUUID>.verdict.entries} and {@code <apiUUID>.verdict.hitratio}
+ * (in percent) are reported to {@link ValidationMetrics}.
+ */
+public final class VerdictCache
+{
+	private static final Log logger = LogFactory.getLog(VerdictCache.class);
+
+	private static final VerdictCache INSTANCE = new VerdictCache();
+
+	private final Map<String, Partition> partitions = new ConcurrentHashMap<>();
+
+	private VerdictCache()
+	{
+	}
+
+	/**
+	 * @return the shared verdict cache
+	 */
+	public static VerdictCache getInstance()
+	{
+		return INSTANCE;
+	}
+
+	/**
+	 * Looks up the verdict of a payload.
+	 *
+	 * @param apiUUID         API identifier
+	 * @param operation       matched operation
+	 * @param configuration   validation configuration of the mediator, the
+	 *                        verdict is only shared with equal configurations
+	 * @param payload         payload element
+	 * @param maxPayloadChars maximum number of characters of a cached payload
+	 * @return the lookup, null if the payload is too large to be cached
+	 */
+	Lookup lookup(String apiUUID, RuntimeOperation operation, String configuration, OMElement payload,
+			long maxPayloadChars)
+	{
+		PayloadDigest.Sha256 digest = new PayloadDigest.Sha256();
+		if (!digest.update(payload, maxPayloadChars))
+		{
+			return null;
+		}
+		Partition partition = partitions.computeIfAbsent(apiUUID, Partition::new);
+		Key key = new Key(operation.getKey(), configuration, digest.getHash());
+		return new Lookup(partition, key, partition.get(key));
+	}
+
+	/**
+	 * Drops all verdicts of an API, e.g. because one of its schemas changed.
+	 *
+	 * @param apiUUID API identifier
+	 */
+	public void invalidate(String apiUUID)
+	{
+		Partition partition = partitions.remove(apiUUID);
+		if (partition != null)
+		{
+			ValidationMetrics.getInstance().setGauge(partition.entriesMetric, 0);
+			logger.debug("Dropped cached verdicts of API " + apiUUID);
+		}
+	}
+
+	/**
+	 * Result of a lookup, used to store the verdict on a miss.
+	 */
+	static final class Lookup
+	{
+		private final Partition partition;
+		private final Key key;
+		private final List<XMLValidationProblem> problems;
+
+		private Lookup(Partition partition, Key key, List<XMLValidationProblem> problems)
+		{
+			this.partition = partition;
+			this.key = key;
+			this.problems = problems;
+		}
+
+		/**
+		 * @return the cached problems of the payload, empty if it is valid; null
+		 *         if no verdict is cached
+		 */
+		List<XMLValidationProblem> getProblems()
+		{
+			return problems;
+		}
+
+		/**
+		 * Caches the verdict of the payload.
+		 *
+		 * @param problems   validation problems, empty if the payload is valid
+		 * @param maxEntries maximum number of cached verdicts of the API
+		 */
+		void store(List<XMLValidationProblem> problems, int maxEntries)
+		{
+			partition.put(key, List.copyOf(problems), maxEntries);
+		}
+	}
+
+	/**
+	 * Verdicts of one API, in access order.
+	 */
+	private static final class Partition
+	{
+		private final Map<Key, List<XMLValidationProblem>> verdicts = new LinkedHashMap<>(16, 0.75f, true);
+		private final String hitsMetric;
+		private final String missesMetric;
+		private final String entriesMetric;
+		private final String hitRatioMetric;
+		private long hits;
+		private long lookups;
+
+		Partition(String apiUUID)
+		{
+			hitsMetric = apiUUID + ".verdict.hits";
+			missesMetric = apiUUID + ".verdict.misses";
+			entriesMetric = apiUUID + ".verdict.entries";
+			hitRatioMetric = apiUUID + ".verdict.hitratio";
+		}
+
+		List<XMLValidationProblem> get(Key key)
+		{
+			List<XMLValidationProblem> problems;
+			long ratio;
+			synchronized (this)
+			{
+				problems = verdicts.get(key);
+				lookups++;
+				if (problems != null)
+				{
+					hits++;
+				}
+				ratio = hits * 100 / lookups;
+			}
+			ValidationMetrics metrics = ValidationMetrics.getInstance();
+			metrics.increment(problems != null ? hitsMetric : missesMetric);
+			metrics.setGauge(hitRatioMetric, ratio);
+			return problems;
+		}
+
+		void put(Key key, List<XMLValidationProblem> problems, int maxEntries)
+		{
+			int size;
+			synchronized (this)
+			{
+				verdicts.put(key, problems);
+				Iterator<Key> eldest = verdicts.keySet().iterator();
+				while (verdicts.size() > Math.max(maxEntries, 1))
+				{
+					eldest.next();
+					eldest.remove();
+				}
+				size = verdicts.size();
+			}
+			ValidationMetrics.getInstance().setGauge(entriesMetric, size);
+		}
+	}
+
+	/**
+	 * Operation, validation configuration and payload digest.
+	 */
+	private static final class Key
+	{
+		private final String operationKey;
+		private final String configuration;
+		private final byte[] digest;
+		private final int hash;
+
+		Key(String operationKey, String configuration, byte[] digest)
+		{
+			this.operationKey = operationKey;
+			this.configuration = configuration;
+			this.digest = digest;
+			this.hash = 31 * (31 * operationKey.hashCode() + configuration.hashCode()) + Arrays.hashCode(digest);
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof Key))
+			{
+				return false;
+			}
+			Key other = (Key) obj;
+			return hash == other.hash && Arrays.equals(digest, other.digest) && operationKey.equals(other.operationKey)
+					&& configuration.equals(other.configuration);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+	}
+}
@@ -22,8 +22,9 @@ import org.wso2.carbon.registry.core.Resource;
 import org.wso2.carbon.registry.core.session.UserRegistry;
 
 /**
- * Extracts WSDL files from the WSO2 registry, either as single files or
- * archives. Provides helper methods for ZIP extraction and file discovery.
+ * Extracts WSDL files from the WSO2 registry or the local file system, either
+ * as single files or archives. Provides helper methods for ZIP extraction and
+ * file discovery.
  */
 public class WSDLExtractor
 {
@@ -128,6 +129,41 @@ public class WSDLExtractor
 		return wsdlURIs.toArray(new URI[wsdlURIs.size()]);
 	}
 
+	/**
+	 * Provides the WSDL files of a local single WSDL or ZIP archive, e.g. for
+	 * offline validation. Archives are extracted to a temporary directory.
+	 * 
+	 * @param file path to a WSDL file or a ZIP archive of WSDL files
+	 * @return URIs of the WSDL files
+	 * @throws Exception if extraction fails or no WSDL file is found
+	 */
+	public URI[] getWSDLFromFile(Path file) throws Exception
+	{
+		if (!file.getFileName().toString().toLowerCase().endsWith(".zip"))
+		{
+			logger.debug("Using single WSDL file: " + file);
+			return new URI[] { file.toAbsolutePath().toUri() };
+		}
+
+		Path tempFolder = Files.createTempDirectory("archive-wsdl");
+		logger.debug("Created temporary extraction folder: " + tempFolder);
+		extractZIPFile(Files.readAllBytes(file), tempFolder);
+
+		List<Path> wsdlFiles = findWsdlFiles(tempFolder);
+		if (wsdlFiles.isEmpty())
+		{
+			logger.error("No WSDL files found in archive: " + file);
+			throw new Exception("No WSDL files found in archive");
+		}
+		URI[] wsdlURIs = new URI[wsdlFiles.size()];
+		for (int i = 0; i < wsdlURIs.length; i++)
+		{
+			wsdlURIs[i] = wsdlFiles.get(i).toUri();
+		}
+		logger.debug("Found a total of " + wsdlURIs.length + " wsdl files in archive");
+		return wsdlURIs;
+	}
+
 	/**
 	 * Extracts the contents of a ZIP archive to a target directory.
 	 * 
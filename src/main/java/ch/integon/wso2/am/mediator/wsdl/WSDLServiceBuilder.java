@@ -1,10 +1,28 @@
 package ch.integon.wso2.am.mediator.wsdl;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
+import javax.wsdl.Definition;
 import javax.wsdl.WSDLException;
+import javax.wsdl.extensions.ExtensionRegistry;
+import javax.wsdl.factory.WSDLFactory;
+import javax.wsdl.xml.WSDLReader;
 import javax.xml.namespace.QName;
 
 import org.apache.commons.logging.Log;
@@ -30,19 +48,185 @@ import ch.integon.wso2.am.mediator.wsdl.model.SOAPServiceOperation;
  * <p>
  * It initializes a CXF Bus and WSDLManager to parse WSDL files, then provides
  * utility methods to find the correct service and operation for a SOAP request.
+ * Artifacts built with the {@code slim} profile build the services with
+ * {@link SlimServiceModelBuilder} instead, from WSDL4J and XmlSchema only,
+ * without the CXF bus.
+ * The WSDLs of multi-WSDL archives are parsed in parallel on a shared,
+ * bounded fork-join pool.
  * </p>
  */
 public class WSDLServiceBuilder
 {
 	private static final Log logger = LogFactory.getLog(WSDLServiceBuilder.class);
 
+	/** system property selecting the WSDL front end, {@code cxf} or {@code slim} */
+	public static final String FRONTEND_PROPERTY = "soap.validator.wsdl.frontend";
+	private static final String FRONTEND_RESOURCE = "/soap-validator.properties";
+	private static final boolean SLIM_FRONTEND = "slim".equals(getFrontend());
+
+	/** shared pool parsing the WSDLs of multi-WSDL archives */
+	private static volatile ForkJoinPool parsePool = createParsePool(Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * Replaces the shared pool if the parallelism changes. Loads that already
+	 * took the previous pool finish on it, or sequentially if it was shut down
+	 * before they could submit their WSDLs.
+	 *
+	 * @param parallelism maximum number of WSDLs parsed in parallel (shared by
+	 *                    all APIs)
+	 */
+	public static synchronized void setParseParallelism(int parallelism)
+	{
+		if (parallelism != parsePool.getParallelism())
+		{
+			ForkJoinPool previousPool = parsePool;
+			parsePool = createParsePool(parallelism);
+			previousPool.shutdown();
+		}
+	}
+
+	private static ForkJoinPool createParsePool(int parallelism)
+	{
+		return new ForkJoinPool(Math.max(1, parallelism), pool ->
+		{
+			ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			thread.setName("soap-wsdl-parser-" + thread.getPoolIndex());
+			thread.setDaemon(true);
+			return thread;
+		}, null, false);
+	}
+
 	/**
 	 * Builds a list of ServiceInfo objects from the given WSDL URIs.
 	 * 
 	 * @param wsdlURIs array of URIs pointing to WSDL files
-	 * @return list of ServiceInfo objects extracted from the WSDLs
+	 * @return list of ServiceInfo objects extracted from the WSDLs, or null if
+	 *         none of the WSDLs could be loaded
 	 */
 	public List<ServiceInfo> buildServices(URI[] wsdlURIs)
+	{
+		Map<URI, List<ServiceInfo>> servicesByURI = buildServicesByURI(wsdlURIs);
+		if (servicesByURI.isEmpty())
+		{
+			return null;
+		}
+		List<ServiceInfo> services = new ArrayList<ServiceInfo>();
+		servicesByURI.values().forEach(services::addAll);
+		return services;
+	}
+
+	/**
+	 * Builds the ServiceInfo objects of each of the given WSDL URIs. Several
+	 * WSDLs are parsed in parallel on a shared pool, reading the documents they
+	 * import only once. A WSDL that cannot be parsed is logged and left out; the
+	 * other WSDLs are still loaded.
+	 * 
+	 * @param wsdlURIs array of URIs pointing to WSDL files
+	 * @return ServiceInfo objects by WSDL URI, for the WSDLs that could be loaded
+	 */
+	public Map<URI, List<ServiceInfo>> buildServicesByURI(URI[] wsdlURIs)
+	{
+		Map<URI, List<ServiceInfo>> servicesByURI = new LinkedHashMap<>();
+
+		WSDLParser parser = SLIM_FRONTEND ? createSlimParser() : createCXFParser();
+		if (parser == null)
+		{
+			return servicesByURI;
+		}
+
+		// Load WSDL definitions, sharing the imported documents
+		logger.debug("Loading WSDL definition from URIs: " + Arrays.toString(wsdlURIs));
+		Map<String, byte[]> documentCache = new ConcurrentHashMap<>();
+		if (wsdlURIs.length == 1)
+		{
+			List<ServiceInfo> services = parse(parser, wsdlURIs[0], documentCache);
+			if (services != null)
+			{
+				servicesByURI.put(wsdlURIs[0], services);
+			}
+			return servicesByURI;
+		}
+
+		ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+		List<Callable<List<ServiceInfo>>> tasks = new ArrayList<>();
+		for (URI uri : wsdlURIs)
+		{
+			tasks.add(() ->
+			{
+				// CXF and WSDL4J look up extensions through the context class loader
+				Thread thread = Thread.currentThread();
+				ClassLoader workerClassLoader = thread.getContextClassLoader();
+				thread.setContextClassLoader(contextClassLoader);
+				try
+				{
+					return parse(parser, uri, documentCache);
+				} finally
+				{
+					thread.setContextClassLoader(workerClassLoader);
+				}
+			});
+		}
+		ForkJoinPool pool = parsePool;
+		List<Future<List<ServiceInfo>>> results;
+		try
+		{
+			results = pool.invokeAll(tasks);
+		} catch (RejectedExecutionException e)
+		{
+			// the pool was replaced with another parallelism meanwhile
+			logger.debug("WSDL parse pool shut down - parsing " + wsdlURIs.length + " WSDLs sequentially");
+			results = new ArrayList<>();
+			for (Callable<List<ServiceInfo>> task : tasks)
+			{
+				FutureTask<List<ServiceInfo>> result = new FutureTask<>(task);
+				result.run();
+				results.add(result);
+			}
+		}
+		for (int i = 0; i < wsdlURIs.length; i++)
+		{
+			try
+			{
+				List<ServiceInfo> services = results.get(i).get();
+				if (services != null)
+				{
+					servicesByURI.put(wsdlURIs[i], services);
+				}
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return servicesByURI;
+			} catch (ExecutionException e)
+			{
+				logger.error("Unable to load WSDL " + wsdlURIs[i], e.getCause());
+			}
+		}
+		logger.debug("Loaded " + servicesByURI.size() + " of " + wsdlURIs.length + " WSDLs");
+		return servicesByURI;
+	}
+
+	/**
+	 * Parses one WSDL and builds its services.
+	 * 
+	 * @return the services, or null if the WSDL cannot be parsed
+	 */
+	private static List<ServiceInfo> parse(WSDLParser parser, URI uri, Map<String, byte[]> documentCache)
+	{
+		try
+		{
+			return parser.parse(new CachingWSDLLocator(uri.toString(), documentCache));
+		} catch (WSDLException e)
+		{
+			logger.error("Unable to load WSDL " + uri, e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return a parser building the services with the CXF WSDL front end, or
+	 *         null if the CXF bus cannot be initialized
+	 */
+	private static WSDLParser createCXFParser()
 	{
 		logger.debug("Initializing CXF bus and WSDL manager");
 		Bus bus = CXFBusFactory.newInstance().createBus();
@@ -61,24 +245,76 @@ public class WSDLServiceBuilder
 			logger.debug("Created new WSDLManagerImpl");
 		}
 
-		org.apache.cxf.wsdl11.WSDLServiceBuilder wsdlBuilder = new org.apache.cxf.wsdl11.WSDLServiceBuilder(bus);
+		WSDLManager manager = wsdlManager;
+		return locator ->
+		{
+			WSDLReader reader = manager.getWSDLFactory().newWSDLReader();
+			reader.setFeature("javax.wsdl.verbose", false);
+			reader.setFeature("javax.wsdl.importDocuments", true);
+			reader.setExtensionRegistry(manager.getExtensionRegistry());
+			Definition definition = reader.readWSDL(locator);
+			manager.addDefinition(locator.getBaseURI(), definition);
+			return new org.apache.cxf.wsdl11.WSDLServiceBuilder(bus).buildServices(definition);
+		};
+	}
 
-		// Load WSDL definition
-		logger.debug("Loading WSDL definition from URIs: " + wsdlURIs);
-		List<ServiceInfo> services = new ArrayList<ServiceInfo>();
-		for (URI uri : wsdlURIs)
+	/**
+	 * @return a parser building the services with WSDL4J and XmlSchema only, or
+	 *         null if no WSDL4J implementation is available
+	 */
+	private static WSDLParser createSlimParser()
+	{
+		WSDLFactory wsdlFactory;
+		try
 		{
-			try
+			wsdlFactory = WSDLFactory.newInstance();
+		} catch (WSDLException e)
+		{
+			logger.error(e);
+			return null;
+		}
+		ExtensionRegistry extensionRegistry = wsdlFactory.newPopulatedExtensionRegistry();
+		return locator ->
+		{
+			WSDLReader reader = wsdlFactory.newWSDLReader();
+			reader.setFeature("javax.wsdl.verbose", false);
+			reader.setFeature("javax.wsdl.importDocuments", true);
+			reader.setExtensionRegistry(extensionRegistry);
+			return SlimServiceModelBuilder.buildServices(reader.readWSDL(locator));
+		};
+	}
+
+	/**
+	 * @return the configured WSDL front end, {@code cxf} unless set by the
+	 *         system property or the properties file of the build profile
+	 */
+	private static String getFrontend()
+	{
+		String frontend = System.getProperty(FRONTEND_PROPERTY);
+		if (frontend == null)
+		{
+			try (InputStream in = WSDLServiceBuilder.class.getResourceAsStream(FRONTEND_RESOURCE))
 			{
-				services.addAll(wsdlBuilder.buildServices(wsdlManager.getDefinition(uri.toString())));
-			} catch (WSDLException e)
+				if (in != null)
+				{
+					Properties properties = new Properties();
+					properties.load(in);
+					frontend = properties.getProperty(FRONTEND_PROPERTY);
+				}
+			} catch (IOException e)
 			{
-				logger.error(e);
-				return null;
+				logger.warn("Unable to read " + FRONTEND_RESOURCE + " - " + e.getMessage());
 			}
 		}
+		return frontend == null ? "cxf" : frontend.trim();
+	}
 
-		return services;
+	/**
+	 * Parses a WSDL and builds its services.
+	 */
+	private interface WSDLParser
+	{
+		List<ServiceInfo> parse(CachingWSDLLocator locator) throws WSDLException;
 	}
 
 	/**
@@ -0,0 +1,89 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+
+import org.apache.axiom.attachments.Attachments;
+import org.apache.axiom.ext.activation.SizeAwareDataSource;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Checks the MIME attachments referenced by an MTOM/XOP message.
+ * <p>
+ * Only the presence of an attachment and, if its data source knows it, its
+ * size are checked; the attachment content is never read.
+ */
+public class XopAttachmentChecker
+{
+	private static final Log logger = LogFactory.getLog(XopAttachmentChecker.class);
+
+	private static final String CID_PREFIX = "cid:";
+
+	private final Attachments attachments;
+	private final long maxAttachmentSize;
+
+	/**
+	 * @param attachments       attachments of the message (may be null)
+	 * @param maxAttachmentSize maximum size of a single attachment in bytes, 0
+	 *                          disables the size check
+	 */
+	public XopAttachmentChecker(Attachments attachments, long maxAttachmentSize)
+	{
+		this.attachments = attachments;
+		this.maxAttachmentSize = maxAttachmentSize;
+	}
+
+	/**
+	 * Checks one attachment, given by its data handler or its content ID.
+	 *
+	 * @param contentID   content ID of the attachment (may be null if the data
+	 *                    handler is given)
+	 * @param dataHandler data handler of the attachment (may be null if the
+	 *                    content ID is given)
+	 * @return description of the problem, or null if the attachment is fine
+	 */
+	public String check(String contentID, DataHandler dataHandler)
+	{
+		if (dataHandler == null && contentID != null && attachments != null)
+		{
+			dataHandler = attachments.getDataHandler(contentID);
+		}
+		if (dataHandler == null)
+		{
+			return "referenced attachment not found: " + contentID;
+		}
+
+		DataSource dataSource = dataHandler.getDataSource();
+		if (maxAttachmentSize > 0 && dataSource instanceof SizeAwareDataSource)
+		{
+			long size = ((SizeAwareDataSource) dataSource).getSize();
+			if (size > maxAttachmentSize)
+			{
+				return "attachment " + (contentID == null ? "" : contentID + " ") + "exceeds maximum size of "
+						+ maxAttachmentSize + " bytes: " + size;
+			}
+		}
+		logger.debug("Attachment checked: " + contentID);
+		return null;
+	}
+
+	/**
+	 * Extracts the content ID from the {@code href} of a {@code xop:Include}
+	 * element.
+	 *
+	 * @param href value of the href attribute, e.g. {@code cid:part1%40example.org}
+	 * @return the content ID, or null if the href is not a cid URL
+	 */
+	public static String getContentID(String href)
+	{
+		if (href == null || !href.regionMatches(true, 0, CID_PREFIX, 0, CID_PREFIX.length()))
+		{
+			return null;
+		}
+		return URLDecoder.decode(href.substring(CID_PREFIX.length()), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,144 @@
+package ch.integon.wso2.am.mediator.wsdl.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.apache.cxf.service.model.BindingInfo;
+import org.apache.cxf.service.model.BindingOperationInfo;
+import org.apache.cxf.service.model.ServiceInfo;
+
+/**
+ * The loaded contract of an API: its CXF services, grouped by the fingerprint
+ * of the root WSDL they were built from, and the registry revision they were
+ * loaded from.
+ * <p>
+ * Every service carries the fingerprint of its root WSDL in the
+ * {@value #FINGERPRINT_PROPERTY} property, so results compiled from it can be
+ * reused as long as none of the documents of that WSDL change.
+ * </p>
+ * <p>
+ * A contract is partial once the services of some of its root WSDLs were
+ * released, or if it was loaded for a new revision after that: the released
+ * root WSDLs that did not change are not parsed again, only their
+ * fingerprints are listed. Their operations are taken over
+ * from the previous runtime model, their services are loaded once one of
+ * their operations has to be compiled.
+ * </p>
+ */
+public class ApiContract
+{
+	/** service property holding the fingerprint of the root WSDL */
+	public static final String FINGERPRINT_PROPERTY = "soap.validator.contract.fingerprint";
+
+	private final int revision;
+	private final Map<String, List<ServiceInfo>> servicesByFingerprint;
+	private final List<ServiceInfo> services = new ArrayList<>();
+
+	/**
+	 * @param revision              registry revision of the contract
+	 * @param servicesByFingerprint services by fingerprint of their root WSDL,
+	 *                              null for a root WSDL that is not loaded
+	 */
+	public ApiContract(int revision, Map<String, List<ServiceInfo>> servicesByFingerprint)
+	{
+		this.revision = revision;
+		this.servicesByFingerprint = new LinkedHashMap<>(servicesByFingerprint);
+		servicesByFingerprint.values().stream().filter(Objects::nonNull).forEach(services::addAll);
+	}
+
+	public int getRevision()
+	{
+		return revision;
+	}
+
+	/**
+	 * @return true if the services of all root WSDLs are loaded
+	 */
+	public boolean isComplete()
+	{
+		return !servicesByFingerprint.containsValue(null);
+	}
+
+	/**
+	 * @param fingerprint fingerprint of a root WSDL
+	 * @return false if the contract has a root WSDL with this fingerprint whose
+	 *         services are not loaded
+	 */
+	public boolean isLoaded(String fingerprint)
+	{
+		return servicesByFingerprint.get(fingerprint) != null || !servicesByFingerprint.containsKey(fingerprint);
+	}
+
+	/**
+	 * @return all loaded services of the contract
+	 */
+	public List<ServiceInfo> getServices()
+	{
+		return Collections.unmodifiableList(services);
+	}
+
+	/**
+	 * @param fingerprint fingerprint of a root WSDL
+	 * @return the services built from the root WSDL, or null if the contract
+	 *         has no root WSDL with this fingerprint or it is not loaded
+	 */
+	public List<ServiceInfo> getServices(String fingerprint)
+	{
+		return servicesByFingerprint.get(fingerprint);
+	}
+
+	/**
+	 * @return the fingerprints of all root WSDLs
+	 */
+	public Set<String> getFingerprints()
+	{
+		return Collections.unmodifiableSet(servicesByFingerprint.keySet());
+	}
+
+	/**
+	 * @param fingerprint fingerprint of a root WSDL
+	 * @return a copy of the contract without the services of the root WSDL,
+	 *         which is then listed as not loaded
+	 */
+	public ApiContract release(String fingerprint)
+	{
+		Map<String, List<ServiceInfo>> remaining = new LinkedHashMap<>(servicesByFingerprint);
+		remaining.replace(fingerprint, null);
+		return new ApiContract(revision, remaining);
+	}
+
+	/**
+	 * Finds the CXF service model of an operation of the runtime model built
+	 * from this contract.
+	 *
+	 * @param runtimeOperation operation of the runtime model
+	 * @return the service and operation, or null if the contract does not
+	 *         contain the operation
+	 */
+	public SOAPServiceOperation findOperation(RuntimeOperation runtimeOperation)
+	{
+		List<ServiceInfo> fingerprintServices = servicesByFingerprint.get(runtimeOperation.getFingerprint());
+		if (fingerprintServices == null)
+		{
+			return null;
+		}
+		for (ServiceInfo service : fingerprintServices)
+		{
+			BindingInfo binding = service.getName().equals(runtimeOperation.getServiceName())
+					? service.getBinding(runtimeOperation.getBindingName())
+					: null;
+			BindingOperationInfo operation = binding == null ? null
+					: binding.getOperation(runtimeOperation.getOperationName());
+			if (operation != null)
+			{
+				return new SOAPServiceOperation(runtimeOperation, service, operation);
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,178 @@
+package ch.integon.wso2.am.mediator.wsdl.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.namespace.QName;
+
+import org.apache.cxf.service.model.BindingInfo;
+import org.apache.cxf.service.model.BindingOperationInfo;
+import org.apache.cxf.service.model.ServiceInfo;
+
+/**
+ * Compact, immutable runtime model of the contract of an API: its operations
+ * and the lookup tables to dispatch a message to one of them.
+ * <p>
+ * The model is extracted from an {@link ApiContract} once after loading and
+ * does not refer to the CXF service model, so the contract (with its WSDL4J
+ * definitions, schema DOMs and XmlSchema collections) can be released once
+ * the schemas of the API are compiled.
+ * </p>
+ */
+public final class ApiRuntimeModel
+{
+	private final int revision;
+	private final Set<String> fingerprints;
+	private final List<RuntimeOperation> operations;
+	private final Map<String, Integer> operationsByAction;
+	private final Map<QName, Integer> operationsByBodyName;
+	private final AtomicLong checkedMillis = new AtomicLong(System.currentTimeMillis());
+
+	private ApiRuntimeModel(int revision, Set<String> fingerprints, List<RuntimeOperation> operations,
+			Map<String, Integer> operationsByAction, Map<QName, Integer> operationsByBodyName)
+	{
+		this.revision = revision;
+		this.fingerprints = fingerprints;
+		this.operations = operations;
+		this.operationsByAction = operationsByAction;
+		this.operationsByBodyName = operationsByBodyName;
+	}
+
+	/**
+	 * Extracts the runtime model of a complete contract.
+	 *
+	 * @param contract loaded contract
+	 * @return the runtime model
+	 */
+	public static ApiRuntimeModel build(ApiContract contract)
+	{
+		return build(contract, null);
+	}
+
+	/**
+	 * Extracts the runtime model of a loaded contract. The operations of root
+	 * WSDLs that are not loaded are taken over from the previous model.
+	 *
+	 * @param contract loaded, possibly partial contract
+	 * @param previous runtime model of the previous revision, may be null
+	 * @return the runtime model
+	 */
+	public static ApiRuntimeModel build(ApiContract contract, ApiRuntimeModel previous)
+	{
+		Map<QName, QName> names = new HashMap<>();
+		List<RuntimeOperation> operations = new ArrayList<>();
+		Map<String, Integer> operationsByAction = new HashMap<>();
+		Map<QName, Integer> operationsByBodyName = new HashMap<>();
+		for (String fingerprint : contract.getFingerprints())
+		{
+			List<ServiceInfo> services = contract.getServices(fingerprint);
+			if (services == null)
+			{
+				for (RuntimeOperation runtimeOperation : previous == null ? List.<RuntimeOperation>of()
+						: previous.getOperations())
+				{
+					if (fingerprint.equals(runtimeOperation.getFingerprint()))
+					{
+						add(runtimeOperation, operations, operationsByAction, operationsByBodyName);
+					}
+				}
+				continue;
+			}
+			for (ServiceInfo service : services)
+			{
+				for (BindingInfo binding : service.getBindings())
+				{
+					for (BindingOperationInfo operation : binding.getOperations())
+					{
+						add(RuntimeOperation.of(service, operation, names), operations, operationsByAction,
+								operationsByBodyName);
+					}
+				}
+			}
+		}
+		return new ApiRuntimeModel(contract.getRevision(), Set.copyOf(contract.getFingerprints()),
+				List.copyOf(operations), Map.copyOf(operationsByAction),
+				Map.copyOf(operationsByBodyName));
+	}
+
+	private static void add(RuntimeOperation runtimeOperation, List<RuntimeOperation> operations,
+			Map<String, Integer> operationsByAction, Map<QName, Integer> operationsByBodyName)
+	{
+		Integer index = operations.size();
+		operations.add(runtimeOperation);
+		// like the CXF based matching, the last declaring operation wins
+		if (runtimeOperation.getSoapAction() != null)
+		{
+			operationsByAction.put(runtimeOperation.getSoapAction(), index);
+		}
+		runtimeOperation.getInputElementNames().forEach(name -> operationsByBodyName.put(name, index));
+		runtimeOperation.getOutputElementNames().forEach(name -> operationsByBodyName.put(name, index));
+		runtimeOperation.getFaultElementNames().forEach(name -> operationsByBodyName.put(name, index));
+	}
+
+	public int getRevision()
+	{
+		return revision;
+	}
+
+	/**
+	 * @return the fingerprints of all root WSDLs of the contract
+	 */
+	public Set<String> getFingerprints()
+	{
+		return fingerprints;
+	}
+
+	/**
+	 * @return all operations of the contract
+	 */
+	public List<RuntimeOperation> getOperations()
+	{
+		return operations;
+	}
+
+	/**
+	 * Finds the operation matching the SOAP action or the body element of a
+	 * message. The body element is looked up in the input, output and fault
+	 * parts.
+	 *
+	 * @param soapAction SOAP action of the message (may be null)
+	 * @param bodyQName  QName of the SOAP body element
+	 * @return the matching operation, or null if none matches
+	 * @throws IllegalStateException if the SOAP action and the body element
+	 *                               match different operations
+	 */
+	public RuntimeOperation match(String soapAction, QName bodyQName)
+	{
+		Integer byAction = soapAction == null || soapAction.isEmpty() ? null : operationsByAction.get(soapAction);
+		Integer byBodyName = bodyQName == null ? null : operationsByBodyName.get(bodyQName);
+		if (byAction != null && byBodyName != null && !byAction.equals(byBodyName))
+		{
+			RuntimeOperation actionOperation = operations.get(byAction);
+			RuntimeOperation bodyOperation = operations.get(byBodyName);
+			throw new IllegalStateException(actionOperation.getServiceName().equals(bodyOperation.getServiceName())
+					? "operation mismatch: (soap) action does not match body"
+					: "service mismatch: (soap) action does not match body");
+		}
+		Integer index = byAction != null ? byAction : byBodyName;
+		return index == null ? null : operations.get(index);
+	}
+
+	/**
+	 * Claims the next check for a new revision, so that only one request checks
+	 * at a time.
+	 *
+	 * @param intervalMillis minimum time between two checks
+	 * @return true if the caller should check the revision now
+	 */
+	public boolean claimRevisionCheck(long intervalMillis)
+	{
+		long now = System.currentTimeMillis();
+		long checked = checkedMillis.get();
+		return now - checked >= intervalMillis && checkedMillis.compareAndSet(checked, now);
+	}
+}
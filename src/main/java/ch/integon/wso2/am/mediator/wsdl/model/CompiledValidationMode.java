@@ -0,0 +1,22 @@
+package ch.integon.wso2.am.mediator.wsdl.model;
+
+/**
+ * Represents the use of compiled validators for hot operations.
+ * <p>
+ * <ul>
+ *   <li>{@link #OFF} - Payloads are always validated against the compiled
+ *   schema.</li>
+ *   <li>{@link #ON} - Payloads of hot operations are validated with the
+ *   compiled validator; payloads it cannot decide fall back to the compiled
+ *   schema.</li>
+ *   <li>{@link #COMPARE} - Payloads are validated with both, the compiled schema
+ *   decides and disagreements are reported; the compiled validator of an
+ *   operation is disabled after its first disagreement.</li>
+ * </ul>
+ * </p>
+ */
+public enum CompiledValidationMode {
+    OFF,
+    ON,
+    COMPARE
+}
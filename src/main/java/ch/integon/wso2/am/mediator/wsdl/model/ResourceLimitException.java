@@ -0,0 +1,31 @@
+package ch.integon.wso2.am.mediator.wsdl.model;
+
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Thrown as soon as a payload exceeds one of its {@link ResourceLimits}; the
+ * payload is rejected without reading it any further.
+ * <p>
+ * Like the message-only {@link SOAPValidationException}, it signals an
+ * expected rejection and does not capture a stack trace.
+ */
+public class ResourceLimitException extends XMLStreamException
+{
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * @param message  description of the exceeded limit
+	 * @param location location in the payload where the limit was exceeded
+	 */
+	public ResourceLimitException(String message, Location location)
+	{
+		super(message, location);
+	}
+
+	@Override
+	public synchronized Throwable fillInStackTrace()
+	{
+		return this;
+	}
+}
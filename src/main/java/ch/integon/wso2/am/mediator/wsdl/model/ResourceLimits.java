@@ -0,0 +1,76 @@
+package ch.integon.wso2.am.mediator.wsdl.model;
+
+/**
+ * Limits on the resources a single payload may use while it is validated.
+ * <p>
+ * A limit of 0 disables the respective check. Instances are immutable.
+ */
+public final class ResourceLimits
+{
+	/** no limits */
+	public static final ResourceLimits NONE = new ResourceLimits(0, 0, 0, 0, 0);
+
+	private final int maxDepth;
+	private final long maxElements;
+	private final int maxAttributes;
+	private final int maxTextLength;
+	private final long maxCharacters;
+
+	/**
+	 * @param maxDepth      maximum nesting depth of elements
+	 * @param maxElements   maximum number of elements
+	 * @param maxAttributes maximum number of attributes of one element
+	 * @param maxTextLength maximum length of one text node
+	 * @param maxCharacters maximum number of characters of all text and
+	 *                      attribute values
+	 */
+	public ResourceLimits(int maxDepth, long maxElements, int maxAttributes, int maxTextLength, long maxCharacters)
+	{
+		this.maxDepth = maxDepth;
+		this.maxElements = maxElements;
+		this.maxAttributes = maxAttributes;
+		this.maxTextLength = maxTextLength;
+		this.maxCharacters = maxCharacters;
+	}
+
+	public int getMaxDepth()
+	{
+		return maxDepth;
+	}
+
+	public long getMaxElements()
+	{
+		return maxElements;
+	}
+
+	public int getMaxAttributes()
+	{
+		return maxAttributes;
+	}
+
+	public int getMaxTextLength()
+	{
+		return maxTextLength;
+	}
+
+	public long getMaxCharacters()
+	{
+		return maxCharacters;
+	}
+
+	/**
+	 * @return a string identifying the limits, equal for equal limits
+	 */
+	public String getFingerprint()
+	{
+		return maxDepth + "/" + maxElements + "/" + maxAttributes + "/" + maxTextLength + "/" + maxCharacters;
+	}
+
+	/**
+	 * @return true if any limit is set
+	 */
+	public boolean isLimited()
+	{
+		return maxDepth > 0 || maxElements > 0 || maxAttributes > 0 || maxTextLength > 0 || maxCharacters > 0;
+	}
+}
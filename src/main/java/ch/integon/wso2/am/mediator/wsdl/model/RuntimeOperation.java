@@ -0,0 +1,214 @@
+package ch.integon.wso2.am.mediator.wsdl.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+
+import org.apache.cxf.binding.soap.model.SoapHeaderInfo;
+import org.apache.cxf.binding.soap.model.SoapOperationInfo;
+import org.apache.cxf.service.model.BindingFaultInfo;
+import org.apache.cxf.service.model.BindingMessageInfo;
+import org.apache.cxf.service.model.BindingOperationInfo;
+import org.apache.cxf.service.model.MessagePartInfo;
+import org.apache.cxf.service.model.ServiceInfo;
+
+/**
+ * Immutable runtime data of one bound operation: what is needed to dispatch a
+ * message to it and to find its compiled schemas, without the CXF service
+ * model it was extracted from.
+ * <p>
+ * Namespace and local name strings are interned, and the operations of one
+ * API share their QName instances.
+ * </p>
+ */
+public final class RuntimeOperation
+{
+	private final QName serviceName;
+	private final QName bindingName;
+	private final QName operationName;
+	private final String soapAction;
+	private final List<QName> inputElementNames;
+	private final List<QName> outputElementNames;
+	private final List<QName> faultElementNames;
+	private final List<QName> requestHeaderElementNames;
+	private final List<QName> responseHeaderElementNames;
+	private final String fingerprint;
+	private final String key;
+
+	private RuntimeOperation(ServiceInfo service, BindingOperationInfo operation, Map<QName, QName> names)
+	{
+		serviceName = intern(service.getName(), names);
+		bindingName = intern(operation.getBinding().getName(), names);
+		operationName = intern(operation.getName(), names);
+		SoapOperationInfo soapOperation = operation.getExtensor(SoapOperationInfo.class);
+		soapAction = soapOperation == null || soapOperation.getAction() == null || soapOperation.getAction().isEmpty()
+				? null
+				: soapOperation.getAction().intern();
+		inputElementNames = getElementNames(operation.getInput(), names);
+		outputElementNames = getElementNames(operation.getOutput(), names);
+		List<QName> faultNames = new ArrayList<>();
+		if (operation.getFaults() != null)
+		{
+			for (BindingFaultInfo fault : operation.getFaults())
+			{
+				addElementNames(fault.getFaultInfo().getMessageParts(), names, faultNames);
+			}
+		}
+		faultElementNames = List.copyOf(faultNames);
+		requestHeaderElementNames = getHeaderElementNames(operation.getInput(), names);
+		responseHeaderElementNames = getHeaderElementNames(operation.getOutput(), names);
+		Object fingerprintProperty = service.getProperty(ApiContract.FINGERPRINT_PROPERTY);
+		fingerprint = fingerprintProperty == null ? null : fingerprintProperty.toString().intern();
+		key = fingerprint + ":" + serviceName + ":" + operationName;
+	}
+
+	/**
+	 * Extracts the runtime data of a bound operation.
+	 *
+	 * @param service   service of the operation
+	 * @param operation bound operation
+	 * @param names     QNames already used by the model being built, extended
+	 *                  with the names of this operation
+	 * @return the runtime operation
+	 */
+	static RuntimeOperation of(ServiceInfo service, BindingOperationInfo operation, Map<QName, QName> names)
+	{
+		return new RuntimeOperation(service, operation, names);
+	}
+
+	/**
+	 * Extracts the runtime data of a single bound operation.
+	 *
+	 * @param service   service of the operation
+	 * @param operation bound operation
+	 * @return the runtime operation
+	 */
+	public static RuntimeOperation of(ServiceInfo service, BindingOperationInfo operation)
+	{
+		return new RuntimeOperation(service, operation, new HashMap<>());
+	}
+
+	public QName getServiceName()
+	{
+		return serviceName;
+	}
+
+	public QName getBindingName()
+	{
+		return bindingName;
+	}
+
+	public QName getOperationName()
+	{
+		return operationName;
+	}
+
+	/**
+	 * @return the SOAP action of the operation, null if none is declared
+	 */
+	public String getSoapAction()
+	{
+		return soapAction;
+	}
+
+	public List<QName> getInputElementNames()
+	{
+		return inputElementNames;
+	}
+
+	public List<QName> getOutputElementNames()
+	{
+		return outputElementNames;
+	}
+
+	public List<QName> getFaultElementNames()
+	{
+		return faultElementNames;
+	}
+
+	/**
+	 * @param response true for the response headers, false for the request
+	 *                 headers
+	 * @return the elements of the {@code soap:header} parts declared by the
+	 *         binding, empty if none are declared
+	 */
+	public List<QName> getHeaderElementNames(boolean response)
+	{
+		return response ? responseHeaderElementNames : requestHeaderElementNames;
+	}
+
+	/**
+	 * @return the fingerprint of the root WSDL of the operation, null if the
+	 *         service was not loaded as part of an {@link ApiContract}
+	 */
+	public String getFingerprint()
+	{
+		return fingerprint;
+	}
+
+	/**
+	 * @return {@code fingerprint:service:operation}, identifying the compiled
+	 *         schemas of the operation within its API
+	 */
+	public String getKey()
+	{
+		return key;
+	}
+
+	private static List<QName> getElementNames(BindingMessageInfo message, Map<QName, QName> names)
+	{
+		if (message == null)
+		{
+			return List.of();
+		}
+		List<QName> elementNames = new ArrayList<>();
+		addElementNames(message.getMessageParts(), names, elementNames);
+		return List.copyOf(elementNames);
+	}
+
+	private static void addElementNames(List<MessagePartInfo> parts, Map<QName, QName> names, List<QName> elementNames)
+	{
+		for (MessagePartInfo part : parts)
+		{
+			if (part.getElementQName() != null)
+			{
+				elementNames.add(intern(part.getElementQName(), names));
+			}
+		}
+	}
+
+	private static List<QName> getHeaderElementNames(BindingMessageInfo message, Map<QName, QName> names)
+	{
+		if (message == null)
+		{
+			return List.of();
+		}
+		List<SoapHeaderInfo> headers = message.getExtensors(SoapHeaderInfo.class);
+		if (headers == null || headers.isEmpty())
+		{
+			return List.of();
+		}
+		List<QName> headerElementNames = new ArrayList<>(headers.size());
+		for (SoapHeaderInfo header : headers)
+		{
+			if (header.getPart() != null && header.getPart().isElement())
+			{
+				headerElementNames.add(intern(header.getPart().getElementQName(), names));
+			}
+		}
+		return List.copyOf(headerElementNames);
+	}
+
+	/**
+	 * @return the instance of the name already used in the model, or a copy of
+	 *         it with interned strings that is used from now on
+	 */
+	private static QName intern(QName name, Map<QName, QName> names)
+	{
+		return names.computeIfAbsent(name, n -> new QName(n.getNamespaceURI().intern(), n.getLocalPart().intern(),
+				n.getPrefix().intern()));
+	}
+}
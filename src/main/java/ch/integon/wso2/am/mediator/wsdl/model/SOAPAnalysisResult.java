@@ -1,14 +1,21 @@
 package ch.integon.wso2.am.mediator.wsdl.model;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+
+import javax.xml.namespace.QName;
+
 import org.apache.axiom.om.OMElement;
+import org.apache.axiom.soap.SOAPHeader;
 
 /**
  * Represents the analyzed details of a SOAP message.
  * <p>
  * This immutable class encapsulates key information extracted from a SOAP
  * envelope, including the SOAP action, version, direction (INBOUND, OUTBOUND,
- * FAULT), the SOAP body element, and any header elements.
+ * FAULT), the SOAP body element, and any header elements. The header elements
+ * are only collected when they are asked for.
  * </p>
  */
 public final class SOAPAnalysisResult
@@ -20,16 +27,18 @@ public final class SOAPAnalysisResult
 	private final SOAPDirection soapDirection;
 
 	private final OMElement soapBodyElement;
-	private final List<OMElement> headerElements;
+	private final QName soapBodyQName;
+	private final SOAPHeader header;
 
 	public SOAPAnalysisResult(SOAPDirection soapDirection, String soapAction, SOAPVersion soapVersion,
-			OMElement soapBodyElement, List<OMElement> headerElements)
+			OMElement soapBodyElement, SOAPHeader header)
 	{
 		this.soapDirection = soapDirection;
 		this.soapAction = soapAction;
 		this.soapBodyElement = soapBodyElement;
+		this.soapBodyQName = soapBodyElement == null ? null : soapBodyElement.getQName();
 		this.soapVersion = soapVersion;
-		this.headerElements = headerElements == null ? List.of() : List.copyOf(headerElements);
+		this.header = header;
 	}
 
 	public SOAPVersion getSoapVersion()
@@ -52,8 +61,30 @@ public final class SOAPAnalysisResult
 		return soapBodyElement;
 	}
 
+	public QName getSoapBodyQName()
+	{
+		return soapBodyQName;
+	}
+
+	/**
+	 * @return all SOAP header elements of an inbound message; empty if none
+	 */
 	public List<OMElement> getHeaderElements()
 	{
+		if (header == null)
+		{
+			return List.of();
+		}
+		List<OMElement> headerElements = new ArrayList<>();
+		Iterator<?> iter = header.getChildElements();
+		while (iter.hasNext())
+		{
+			Object obj = iter.next();
+			if (obj instanceof OMElement)
+			{
+				headerElements.add((OMElement) obj);
+			}
+		}
 		return headerElements;
 	}
 
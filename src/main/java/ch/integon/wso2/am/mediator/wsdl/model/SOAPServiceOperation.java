@@ -1,5 +1,9 @@
 package ch.integon.wso2.am.mediator.wsdl.model;
 
+import java.util.List;
+
+import javax.xml.namespace.QName;
+
 import org.apache.cxf.service.model.BindingOperationInfo;
 import org.apache.cxf.service.model.ServiceInfo;
 
@@ -10,11 +14,17 @@ import org.apache.cxf.service.model.ServiceInfo;
  * This class is used to identify a specific SOAP service operation for
  * validation, schema resolution, or runtime invocation.
  * </p>
+ * <p>
+ * Operations matched at runtime only carry their {@link RuntimeOperation}; the
+ * CXF service model is bound by the schema resolver when a schema has to be
+ * compiled for them.
+ * </p>
  */
 public class SOAPServiceOperation
 {
-	private ServiceInfo service;
-	private BindingOperationInfo operation;
+	private volatile RuntimeOperation runtimeOperation;
+	private volatile ServiceInfo service;
+	private volatile BindingOperationInfo operation;
 	
 	public SOAPServiceOperation(ServiceInfo service, BindingOperationInfo operation)
 	{
@@ -23,8 +33,61 @@ public class SOAPServiceOperation
 		this.operation = operation;
 	}
 
+	/**
+	 * @param runtimeOperation operation of the API's runtime model, without the
+	 *                         CXF service model
+	 */
+	public SOAPServiceOperation(RuntimeOperation runtimeOperation)
+	{
+		this.runtimeOperation = runtimeOperation;
+	}
+
+	SOAPServiceOperation(RuntimeOperation runtimeOperation, ServiceInfo service, BindingOperationInfo operation)
+	{
+		this.runtimeOperation = runtimeOperation;
+		this.service = service;
+		this.operation = operation;
+	}
+
+	/**
+	 * @return the runtime data of the operation
+	 */
+	public RuntimeOperation getRuntimeOperation()
+	{
+		RuntimeOperation current = runtimeOperation;
+		if (current == null)
+		{
+			current = RuntimeOperation.of(service, operation);
+			runtimeOperation = current;
+		}
+		return current;
+	}
+
+	/**
+	 * @return true if the CXF service model of the operation is available
+	 */
+	public boolean isBound()
+	{
+		return service != null && operation != null;
+	}
+
+	/**
+	 * Binds the CXF service model of the operation.
+	 *
+	 * @param serviceOperation the same operation, with its service model
+	 */
+	public void bind(SOAPServiceOperation serviceOperation)
+	{
+		this.service = serviceOperation.getService();
+		this.operation = serviceOperation.getOperation();
+	}
+
 	public ServiceInfo getService()
 	{
+		if (service == null)
+		{
+			throw new IllegalStateException("service model of " + runtimeOperation.getOperationName() + " not bound");
+		}
 		return service;
 	}
 
@@ -35,6 +98,10 @@ public class SOAPServiceOperation
 
 	public BindingOperationInfo getOperation()
 	{
+		if (operation == null)
+		{
+			throw new IllegalStateException("service model of " + runtimeOperation.getOperationName() + " not bound");
+		}
 		return operation;
 	}
 
@@ -42,5 +109,27 @@ public class SOAPServiceOperation
 	{
 		this.operation = operation;
 	}
+
+	/**
+	 * @return the name of the operation
+	 */
+	public QName getOperationName()
+	{
+		return getRuntimeOperation().getOperationName();
+	}
+
+	/**
+	 * Returns the elements of the {@code soap:header} parts the binding declares
+	 * for the request or the response of this operation. Header parts declared
+	 * by type instead of element are not included.
+	 *
+	 * @param response true for the response headers, false for the request
+	 *                 headers
+	 * @return the header element names, empty if none are declared
+	 */
+	public List<QName> getHeaderElementNames(boolean response)
+	{
+		return getRuntimeOperation().getHeaderElementNames(response);
+	}
 	
 }
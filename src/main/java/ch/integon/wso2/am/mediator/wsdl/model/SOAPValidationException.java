@@ -1,32 +1,28 @@
 package ch.integon.wso2.am.mediator.wsdl.model;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
-
 /**
  * Exception thrown when a SOAP payload fails validation against its XML schema.
  * <p>
  * Can be used to wrap other exceptions encountered during schema compilation or
  * SOAP message validation.
+ * <p>
+ * Exceptions created with a message only signal expected failures (invalid or
+ * unmatched messages) and do not capture a stack trace, so rejecting a bad
+ * message stays cheap. Exceptions wrapping a cause keep the stack trace.
  */
 public class SOAPValidationException extends Exception
 {
 	private static final long serialVersionUID = 1L;
 
-	private static final Log logger = LogFactory.getLog(SOAPValidationException.class);
-
 	/**
-	 * Constructs a SOAPValidationException with the specified detail message.
+	 * Constructs a SOAPValidationException with the specified detail message,
+	 * without a stack trace.
 	 * 
 	 * @param message The detail message explaining the validation failure.
 	 */
 	public SOAPValidationException(String message)
 	{
-		super(message);
-		if (logger.isDebugEnabled())
-		{
-			logger.debug("SOAPValidationException created with message: " + message);
-		}
+		super(message, null, false, false);
 	}
 
 	/**
@@ -39,9 +35,5 @@ public class SOAPValidationException extends Exception
 	public SOAPValidationException(String message, Throwable cause)
 	{
 		super(message, cause);
-		if (logger.isDebugEnabled())
-		{
-			logger.debug("SOAPValidationException created with message: " + message, cause);
-		}
 	}
 }
@@ -0,0 +1,202 @@
+package ch.integon.wso2.am.mediator.wsdl.model;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Lightweight structural model of the payload elements of one service
+ * operation.
+ * <p>
+ * For every root element the operation accepts (input, output and fault
+ * parts) the model holds the expected direct children as an ordered list of
+ * particles with their occurrence bounds. Only plain sequences of elements are
+ * modelled; roots with any other content model are mapped to {@code null} and
+ * reported as {@link Verdict#UNKNOWN}, so that the caller falls back to full
+ * schema validation.
+ * </p>
+ * <p>
+ * Instances are immutable and can be shared between threads.
+ * </p>
+ */
+public final class StructuralModel
+{
+	private static final String XSI_TYPE = "type";
+	private static final String XSI_NIL = "nil";
+
+	private final Map<QName, List<Particle>> roots;
+
+	/**
+	 * @param roots expected children per root element; a {@code null} value
+	 *              marks a root whose content model is not modelled
+	 */
+	public StructuralModel(Map<QName, List<Particle>> roots)
+	{
+		this.roots = roots;
+	}
+
+	/**
+	 * Checks the root element and its direct children in a single pass over the
+	 * given reader. Nested content is skipped without being inspected.
+	 *
+	 * @param reader reader positioned before or on the payload root element
+	 * @return the outcome of the check
+	 * @throws XMLStreamException if the payload cannot be read
+	 */
+	public Result check(XMLStreamReader reader) throws XMLStreamException
+	{
+		while (reader.getEventType() != XMLStreamConstants.START_ELEMENT)
+		{
+			if (!reader.hasNext())
+			{
+				return Result.invalid("payload has no root element");
+			}
+			reader.next();
+		}
+
+		QName rootName = reader.getName();
+		if (!roots.containsKey(rootName))
+		{
+			return Result.invalid("element " + rootName + " is not a payload element of the operation");
+		}
+		List<Particle> particles = roots.get(rootName);
+		if (particles == null || reader.getAttributeValue(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, XSI_TYPE) != null
+				|| reader.getAttributeValue(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, XSI_NIL) != null)
+		{
+			return Result.UNKNOWN;
+		}
+
+		int index = 0;
+		long count = 0;
+		int depth = 1;
+		while (depth > 0 && reader.hasNext())
+		{
+			int event = reader.next();
+			if (event == XMLStreamConstants.END_ELEMENT)
+			{
+				depth--;
+			} else if (event == XMLStreamConstants.START_ELEMENT)
+			{
+				depth++;
+				if (depth != 2)
+				{
+					continue;
+				}
+
+				// greedy match of the child against the remaining particles
+				QName child = reader.getName();
+				while (true)
+				{
+					if (index >= particles.size())
+					{
+						return Result.invalid("element " + child + " not expected in " + rootName);
+					}
+					Particle particle = particles.get(index);
+					if (particle.getName().equals(child) && count < particle.getMaxOccurs())
+					{
+						count++;
+						break;
+					}
+					if (count < particle.getMinOccurs())
+					{
+						return Result.invalid(
+								"element " + child + " not expected in " + rootName + ", expected " + particle.getName());
+					}
+					index++;
+					count = 0;
+				}
+			}
+		}
+
+		// all remaining particles must be satisfied
+		for (; index < particles.size(); index++, count = 0)
+		{
+			Particle particle = particles.get(index);
+			if (count < particle.getMinOccurs())
+			{
+				return Result.invalid("element " + particle.getName() + " missing in " + rootName);
+			}
+		}
+		return Result.VALID;
+	}
+
+	/**
+	 * Outcome of a structural check.
+	 */
+	public enum Verdict {
+		VALID,
+		INVALID,
+		UNKNOWN
+	}
+
+	/**
+	 * Verdict of a structural check together with a short description of the
+	 * first problem found.
+	 */
+	public static final class Result
+	{
+		public static final Result VALID = new Result(Verdict.VALID, null);
+		public static final Result UNKNOWN = new Result(Verdict.UNKNOWN, null);
+
+		private final Verdict verdict;
+		private final String message;
+
+		private Result(Verdict verdict, String message)
+		{
+			this.verdict = verdict;
+			this.message = message;
+		}
+
+		static Result invalid(String message)
+		{
+			return new Result(Verdict.INVALID, message);
+		}
+
+		public Verdict getVerdict()
+		{
+			return verdict;
+		}
+
+		public String getMessage()
+		{
+			return message;
+		}
+	}
+
+	/**
+	 * An expected child element with its occurrence bounds.
+	 */
+	public static final class Particle
+	{
+		private final QName name;
+		private final long minOccurs;
+		private final long maxOccurs;
+
+		public Particle(QName name, long minOccurs, long maxOccurs)
+		{
+			this.name = name;
+			this.minOccurs = minOccurs;
+			this.maxOccurs = maxOccurs;
+		}
+
+		public QName getName()
+		{
+			return name;
+		}
+
+		public long getMinOccurs()
+		{
+			return minOccurs;
+		}
+
+		public long getMaxOccurs()
+		{
+			return maxOccurs;
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package ch.integon.wso2.am.mediator.wsdl.model;
+
+/**
+ * Represents the depth of validation applied to a SOAP message.
+ * <p>
+ * <ul>
+ *   <li>{@link #FULL} - The payload is validated against the compiled schema.</li>
+ *   <li>{@link #TIERED} - The payload structure is checked first; the compiled
+ *   schema is only used if that check fails or the message is selected for
+ *   deep validation.</li>
+ *   <li>{@link #STRUCTURAL} - Only the structure of the payload is checked.</li>
+ *   <li>{@link #SAMPLED} - Only a sample of the messages is fully validated,
+ *   all others pass unchecked.</li>
+ *   <li>{@link #OFF} - The payload is not validated.</li>
+ * </ul>
+ * </p>
+ * <p>
+ * When validation is degraded under load the modes are stepped through from
+ * {@link #FULL} (or {@link #TIERED}) to {@link #STRUCTURAL} to
+ * {@link #SAMPLED}, and back again on recovery.
+ * </p>
+ */
+public enum ValidationMode {
+    FULL,
+    TIERED,
+    STRUCTURAL,
+    SAMPLED,
+    OFF;
+
+    /**
+     * @return the next cheaper mode, or this mode if it cannot be degraded
+     */
+    public ValidationMode degrade() {
+        switch (this) {
+        case FULL:
+        case TIERED:
+            return STRUCTURAL;
+        case STRUCTURAL:
+            return SAMPLED;
+        default:
+            return this;
+        }
+    }
+
+    /**
+     * @return the next more expensive mode, or this mode if it cannot be raised
+     */
+    public ValidationMode recover() {
+        switch (this) {
+        case SAMPLED:
+            return STRUCTURAL;
+        case STRUCTURAL:
+            return FULL;
+        default:
+            return this;
+        }
+    }
+}
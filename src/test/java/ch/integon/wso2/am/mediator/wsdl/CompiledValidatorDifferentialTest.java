@@ -0,0 +1,220 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.OMFactory;
+import org.apache.axiom.om.OMNamespace;
+import org.apache.axiom.om.OMXMLBuilderFactory;
+import org.apache.cxf.service.model.BindingInfo;
+import org.apache.cxf.service.model.BindingOperationInfo;
+import org.apache.cxf.service.model.ServiceInfo;
+import org.codehaus.stax2.validation.XMLValidationProblem;
+import org.codehaus.stax2.validation.XMLValidationSchema;
+
+import ch.integon.wso2.am.mediator.wsdl.model.SOAPServiceOperation;
+
+import junit.framework.TestCase;
+
+/**
+ * Differential test of the {@link CompiledValidator}s against the schema
+ * validator on the test contracts.
+ * <p>
+ * For every operation of every contract under {@code tests/resources/apis}
+ * whose payload elements compile, the generated samples and the captured
+ * request and response payloads of the contract are validated together with
+ * mutated copies of them (an unexpected child or attribute, a missing or
+ * repeated child, an unexpected text value). Wherever the compiled validator
+ * decides a payload, its verdict has to be the one of the schema validator.
+ */
+public class CompiledValidatorDifferentialTest extends TestCase
+{
+	private static final Path CONTRACTS = Path.of("tests", "resources", "apis");
+	private static final String UNEXPECTED_NS = "urn:differential";
+	private static final String UNEXPECTED_TEXT = "ä-unexpected value";
+
+	private final SOAPValidator soapValidator = new SOAPValidator();
+	private int compared;
+
+	public void testCompiledVerdictsMatchSchemaValidation() throws Exception
+	{
+		try (DirectoryStream<Path> apis = Files.newDirectoryStream(CONTRACTS, Files::isDirectory))
+		{
+			for (Path api : apis)
+			{
+				compareContract(api);
+			}
+		}
+		assertTrue("no payload was decided by a compiled validator", compared > 0);
+	}
+
+	private void compareContract(Path api) throws Exception
+	{
+		Path contract = findContract(api);
+		if (contract == null)
+		{
+			return;
+		}
+		List<ServiceInfo> services = new WSDLServiceBuilder()
+				.buildServices(new WSDLExtractor().getWSDLFromFile(contract));
+		assertNotNull("no service found in " + contract, services);
+
+		List<OMElement> captured = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(api, "{request,response}-*.xml"))
+		{
+			for (Path file : files)
+			{
+				captured.add(ValidationEngineBenchmark.readPayload(file));
+			}
+		}
+
+		for (ServiceInfo service : services)
+		{
+			for (BindingInfo binding : service.getBindings())
+			{
+				for (BindingOperationInfo operation : binding.getOperations())
+				{
+					compareOperation(api.getFileName() + " " + operation.getName().getLocalPart(),
+							new SOAPServiceOperation(service, operation), captured);
+				}
+			}
+		}
+	}
+
+	private void compareOperation(String context, SOAPServiceOperation serviceOperation, List<OMElement> captured)
+			throws Exception
+	{
+		CompiledValidator compiledValidator = new CompiledValidatorBuilder().build(serviceOperation);
+		if (compiledValidator == null)
+		{
+			return;
+		}
+		XMLValidationSchema schema = new SchemaCompiler().compileSchema(serviceOperation);
+
+		List<OMElement> payloads = new ArrayList<>();
+		for (String sample : new SampleMessageGenerator(serviceOperation)
+				.generate(serviceOperation.getRuntimeOperation()).values())
+		{
+			payloads.add(OMXMLBuilderFactory
+					.createOMBuilder(new ByteArrayInputStream(sample.getBytes(StandardCharsets.UTF_8)))
+					.getDocumentElement());
+		}
+		for (OMElement payload : captured)
+		{
+			if (compiledValidator.getRootElements().contains(payload.getQName()))
+			{
+				payloads.add(payload);
+			}
+		}
+
+		for (OMElement payload : payloads)
+		{
+			for (OMElement variant : variants(payload))
+			{
+				compare(context, compiledValidator, schema, variant);
+			}
+		}
+	}
+
+	/**
+	 * Validates the payload with both validators and compares their verdicts.
+	 */
+	private void compare(String context, CompiledValidator compiledValidator, XMLValidationSchema schema,
+			OMElement payload) throws XMLStreamException
+	{
+		List<XMLValidationProblem> compiledProblems = soapValidator.validate(compiledValidator, payload);
+		if (compiledProblems == null)
+		{
+			// left to the schema validator
+			return;
+		}
+		List<XMLValidationProblem> problems = soapValidator.validate(schema, payload);
+		assertEquals(context + ": verdicts differ (compiled: " + messages(compiledProblems) + ", schema: "
+				+ messages(problems) + ") for " + payload, problems.isEmpty(), compiledProblems.isEmpty());
+		compared++;
+	}
+
+	/**
+	 * @return the payload and mutated copies of it
+	 */
+	private static List<OMElement> variants(OMElement payload)
+	{
+		List<OMElement> variants = new ArrayList<>();
+		variants.add(payload);
+		OMFactory factory = payload.getOMFactory();
+		OMNamespace unexpectedNS = factory.createOMNamespace(UNEXPECTED_NS, "d");
+
+		OMElement unexpectedChild = payload.cloneOMElement();
+		OMElement child = factory.createOMElement("unexpected", unexpectedNS);
+		if (unexpectedChild.getFirstElement() != null)
+		{
+			unexpectedChild.getFirstElement().insertSiblingBefore(child);
+		} else
+		{
+			unexpectedChild.addChild(child);
+		}
+		variants.add(unexpectedChild);
+
+		OMElement unexpectedAttribute = payload.cloneOMElement();
+		unexpectedAttribute.addAttribute("unexpected", "true", null);
+		variants.add(unexpectedAttribute);
+
+		if (payload.getFirstElement() != null)
+		{
+			OMElement missingChild = payload.cloneOMElement();
+			missingChild.getFirstElement().detach();
+			variants.add(missingChild);
+
+			OMElement repeatedChild = payload.cloneOMElement();
+			repeatedChild.getFirstElement().insertSiblingAfter(repeatedChild.getFirstElement().cloneOMElement());
+			variants.add(repeatedChild);
+		}
+
+		OMElement unexpectedText = payload.cloneOMElement();
+		OMElement leaf = unexpectedText;
+		while (leaf.getFirstElement() != null)
+		{
+			leaf = leaf.getFirstElement();
+		}
+		leaf.setText(UNEXPECTED_TEXT);
+		variants.add(unexpectedText);
+		return variants;
+	}
+
+	/**
+	 * @return the ZIP archive of the contract, or its single WSDL file; null if
+	 *         there is neither
+	 */
+	private static Path findContract(Path api) throws Exception
+	{
+		Path archive = api.resolve(api.getFileName() + ".zip");
+		if (Files.exists(archive))
+		{
+			return archive;
+		}
+		List<Path> wsdls = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(api, "*.wsdl"))
+		{
+			files.forEach(wsdls::add);
+		}
+		return wsdls.size() == 1 ? wsdls.get(0) : null;
+	}
+
+	private static List<String> messages(List<XMLValidationProblem> problems)
+	{
+		List<String> messages = new ArrayList<>();
+		for (XMLValidationProblem problem : problems)
+		{
+			messages.add(problem.getMessage());
+		}
+		return messages;
+	}
+}
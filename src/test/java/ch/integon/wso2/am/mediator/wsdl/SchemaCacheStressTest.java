@@ -0,0 +1,499 @@
+package ch.integon.wso2.am.mediator.wsdl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
+
+import org.codehaus.stax2.validation.XMLValidationSchema;
+import org.wso2.carbon.registry.core.exceptions.RegistryException;
+
+import ch.integon.wso2.am.mediator.wsdl.model.SOAPServiceOperation;
+import ch.integon.wso2.am.mediator.wsdl.model.SOAPValidationException;
+
+import junit.framework.TestCase;
+
+/**
+ * Multi-threaded stress and correctness test of the contract and schema caches
+ * of the {@link SchemaResolver}.
+ * <p>
+ * Many threads match operations and resolve their schemas for a few APIs at
+ * random. Meanwhile new contract revisions are published, which the resolver
+ * picks up through its revision check. The registry is replaced by a stub
+ * serving generated WSDLs: the service name of each WSDL contains the API and
+ * the revision, so every revision has its own fingerprint and schema cache
+ * keys. One run bounds the tenant cache, so entries are evicted while they are
+ * in use.
+ * <p>
+ * The test checks that
+ * <ul>
+ * <li>no schema is compiled by two threads at the same time, and no schema of
+ * the current revision is compiled twice unless the cache evicts entries;</li>
+ * <li>no resolved schema is null or unknown;</li>
+ * <li>no thread gets a schema of an older revision than one already handed out
+ * for the same API, and after a quiet period every API resolves the schemas of
+ * its latest revision.</li>
+ * </ul>
+ * It prints the throughput, the mean and maximum latency of matching and
+ * resolving, the compilations and contract loads, cache evictions and the
+ * rejected requests by reason. The duration of a run is
+ * {@value #DEFAULT_SECONDS} seconds unless set with the system property
+ * {@code stress.seconds}.
+ */
+public class SchemaCacheStressTest extends TestCase
+{
+	private static final String NAMESPACE = "urn:stress";
+	private static final String SERVICE_PREFIX = "Stress_";
+	private static final long REVISION_CHECK_MILLIS = 10;
+	private static final int MAX_REPORTED_FAILURES = 20;
+	private static final long DEFAULT_SECONDS = 3;
+	private static final int APIS = 4;
+	private static final int OPERATIONS = 8;
+	private static final long SWAP_MILLIS = 50;
+	private static final AtomicInteger RUNS = new AtomicInteger();
+
+	// every run uses own APIs, the tenant cache is shared by all tests
+	private final String apiPrefix = "stress-" + RUNS.incrementAndGet() + "-api-";
+	private int apis;
+	private int operations;
+	private boolean evicting;
+	private Path contractFolder;
+	private final SchemaResolver schemaResolver = new SchemaResolver();
+
+	private final Map<String, AtomicInteger> publishedRevisions = new ConcurrentHashMap<>();
+	private final Map<String, AtomicInteger> observedRevisions = new ConcurrentHashMap<>();
+	private final Map<String, URI> wsdlFiles = new ConcurrentHashMap<>();
+	// compiled schemas do not override equals, they are looked up by identity
+	private final Map<XMLValidationSchema, Integer> schemaRevisions = new ConcurrentHashMap<>();
+	private final Map<String, AtomicInteger> compilationsInFlight = new ConcurrentHashMap<>();
+	private final Map<String, AtomicInteger> compilations = new ConcurrentHashMap<>();
+	private final LongAdder staleCompilations = new LongAdder();
+	private final LongAdder contractLoads = new LongAdder();
+
+	private final Phase matching = new Phase();
+	private final Phase resolving = new Phase();
+	private final Map<String, LongAdder> rejections = new ConcurrentHashMap<>();
+	private final LongAdder failureCount = new LongAdder();
+	private final Queue<String> failures = new ConcurrentLinkedQueue<>();
+
+	public void testConcurrentResolutionAcrossRevisions() throws Exception
+	{
+		stress(0);
+	}
+
+	public void testConcurrentResolutionWithEvictions() throws Exception
+	{
+		stress(20);
+	}
+
+	@Override
+	protected void tearDown() throws IOException
+	{
+		TenantCache.getInstance().setDefaultMaxEntries(0);
+		if (contractFolder != null)
+		{
+			for (URI wsdl : wsdlFiles.values())
+			{
+				Files.deleteIfExists(Path.of(wsdl));
+			}
+			Files.deleteIfExists(contractFolder);
+		}
+	}
+
+	/**
+	 * Runs the worker threads, then checks the latest revisions.
+	 *
+	 * @param cacheEntries maximum number of cached entries, 0 for no limit
+	 */
+	private void stress(long cacheEntries) throws Exception
+	{
+		prepare(APIS, OPERATIONS, cacheEntries);
+		long millis = TimeUnit.SECONDS.toMillis(Long.getLong("stress.seconds", DEFAULT_SECONDS));
+		long start = System.nanoTime();
+		run(Runtime.getRuntime().availableProcessors() * 4, millis, SWAP_MILLIS);
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		verifyLatestRevisions();
+		printReport(elapsed);
+		assertEquals(failureCount.sum() + " check(s) failed, e.g. " + failures, 0, failureCount.sum());
+		assertTrue("no operation was resolved", matching.count.sum() > 0);
+	}
+
+	/**
+	 * @param apis         number of simulated APIs
+	 * @param operations   number of operations of each API
+	 * @param cacheEntries maximum number of cached entries, 0 for no limit
+	 * @throws IOException if the contract folder cannot be created
+	 */
+	private void prepare(int apis, int operations, long cacheEntries) throws IOException
+	{
+		this.apis = apis;
+		this.operations = operations;
+		this.evicting = cacheEntries > 0;
+		this.contractFolder = Files.createTempDirectory("schema-cache-stress");
+		for (int i = 0; i < apis; i++)
+		{
+			publishedRevisions.put(apiUUID(i), new AtomicInteger(1));
+			observedRevisions.put(apiUUID(i), new AtomicInteger(0));
+		}
+		TenantCache.getInstance().setDefaultMaxEntries(cacheEntries);
+		schemaResolver.setRevisionCheckMillis(REVISION_CHECK_MILLIS);
+		schemaResolver.setRegistryHelperFactory(StubRegistry::new);
+		schemaResolver.setSchemaCompiler(new CheckingSchemaCompiler());
+	}
+
+	/**
+	 * Runs the worker threads and the revision publisher.
+	 *
+	 * @param threads      number of worker threads
+	 * @param millis       duration of the run
+	 * @param swapMillis   interval in which a new revision of an API is
+	 *                     published, 0 for none
+	 * @throws InterruptedException if interrupted while waiting for the threads
+	 */
+	private void run(int threads, long millis, long swapMillis) throws InterruptedException
+	{
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+		List<Thread> workers = new ArrayList<>();
+		for (int i = 0; i < threads; i++)
+		{
+			workers.add(Thread.ofPlatform().name("stress-worker-" + i).start(() ->
+			{
+				while (System.nanoTime() < deadline)
+				{
+					ThreadLocalRandom random = ThreadLocalRandom.current();
+					resolve(apiUUID(random.nextInt(apis)), random.nextInt(operations));
+				}
+			}));
+		}
+		int published = 0;
+		while (swapMillis > 0 && System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(swapMillis) < deadline)
+		{
+			Thread.sleep(swapMillis);
+			publishedRevisions.get(apiUUID(published++ % apis)).incrementAndGet();
+		}
+		for (Thread worker : workers)
+		{
+			worker.join();
+		}
+	}
+
+	/**
+	 * Matches an operation, resolves its schema and checks the result.
+	 */
+	private void resolve(String apiUUID, int operation)
+	{
+		int floor = observedRevisions.get(apiUUID).get();
+		try
+		{
+			long start = System.nanoTime();
+			SOAPServiceOperation serviceOperation = schemaResolver.resolveOperation(apiUUID, soapAction(operation),
+					new QName(NAMESPACE, requestName(operation)));
+			long matched = System.nanoTime();
+			XMLValidationSchema schema = schemaResolver.resolveSchema(apiUUID, serviceOperation);
+			long resolved = System.nanoTime();
+			matching.record(matched - start);
+			resolving.record(resolved - matched);
+
+			if (schema == null)
+			{
+				failure("null schema resolved for " + apiUUID + " operation " + operation);
+				return;
+			}
+			Integer revision = schemaRevisions.get(schema);
+			if (revision == null)
+			{
+				failure("unknown schema resolved for " + apiUUID + " operation " + operation);
+			} else if (revision < floor)
+			{
+				failure("stale revision " + revision + " of " + apiUUID + " resolved after revision " + floor);
+			} else
+			{
+				observedRevisions.get(apiUUID).accumulateAndGet(revision, Math::max);
+			}
+		} catch (SOAPValidationException e)
+		{
+			// expected under churn, e.g. an operation matched in a revision that was just replaced
+			rejections.computeIfAbsent(ValidationProblemLogger.signature(e.getMessage()), k -> new LongAdder())
+					.increment();
+		} catch (RuntimeException e)
+		{
+			failure("unexpected " + e + " resolving " + apiUUID + " operation " + operation);
+		}
+	}
+
+	/**
+	 * Checks that, once revisions stopped changing, every API resolves the
+	 * schemas of its latest revision.
+	 *
+	 * @throws InterruptedException if interrupted while waiting for the
+	 *                              revision check
+	 */
+	private void verifyLatestRevisions() throws InterruptedException
+	{
+		for (int i = 0; i < apis; i++)
+		{
+			String apiUUID = apiUUID(i);
+			int latest = publishedRevisions.get(apiUUID).get();
+			for (int attempt = 0; attempt < 2; attempt++)
+			{
+				// the first attempt after the check interval picks up the latest revision
+				Thread.sleep(REVISION_CHECK_MILLIS * 2);
+				try
+				{
+					schemaResolver.resolveOperation(apiUUID, soapAction(0), new QName(NAMESPACE, requestName(0)));
+				} catch (SOAPValidationException e)
+				{
+					// retried
+				}
+			}
+			for (int operation = 0; operation < operations; operation++)
+			{
+				try
+				{
+					XMLValidationSchema schema = schemaResolver.resolveSchema(apiUUID, schemaResolver
+							.resolveOperation(apiUUID, soapAction(operation), new QName(NAMESPACE, requestName(operation))));
+					Integer revision = schema == null ? null : schemaRevisions.get(schema);
+					if (revision == null || revision != latest)
+					{
+						failure("API " + apiUUID + " resolves revision " + revision + " instead of " + latest);
+					}
+				} catch (SOAPValidationException e)
+				{
+					failure("API " + apiUUID + " does not resolve its latest revision: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Prints the figures of the run.
+	 *
+	 * @param millis duration of the run
+	 */
+	private void printReport(long millis)
+	{
+		long requests = matching.count.sum();
+		System.out.println(String.format("%d resolution(s) in %d ms: %.0f/s", requests, millis,
+				requests * 1000.0 / Math.max(millis, 1)));
+		System.out.println(String.format("%-10s %12s %12s", "phase", "mean [us]", "max [us]"));
+		System.out.println(String.format("%-10s %12.1f %12d", "match", matching.meanMicros(), matching.maxMicros()));
+		System.out.println(String.format("%-10s %12.1f %12d", "resolve", resolving.meanMicros(), resolving.maxMicros()));
+
+		long total = compilations.values().stream().mapToLong(AtomicInteger::get).sum();
+		System.out.println(String.format("%d compilation(s) of %d key(s), %d of a replaced revision; %d contract load(s)",
+				total, compilations.size(), staleCompilations.sum(), contractLoads.sum()));
+		System.out.println(String.format("%d cache eviction(s)", ValidationMetrics.getInstance()
+				.getCounter("tenant." + TenantCache.SUPER_TENANT_DOMAIN + ".cache.evictions")));
+		rejections.forEach((reason, count) -> System.out.println(String.format("%8d rejected: %s", count.sum(), reason)));
+	}
+
+	private void failure(String failure)
+	{
+		failureCount.increment();
+		if (failures.size() < MAX_REPORTED_FAILURES)
+		{
+			failures.add(failure);
+		}
+	}
+
+	private String apiUUID(int api)
+	{
+		return apiPrefix + api;
+	}
+
+	private static String soapAction(int operation)
+	{
+		return NAMESPACE + ":op" + operation;
+	}
+
+	private static String requestName(int operation)
+	{
+		return "op" + operation + "Request";
+	}
+
+	/**
+	 * @return the generated WSDL of a revision of an API
+	 */
+	private URI getWSDL(String apiUUID, int revision)
+	{
+		return wsdlFiles.computeIfAbsent(apiUUID + "/" + revision, k ->
+		{
+			StringBuilder types = new StringBuilder();
+			StringBuilder messages = new StringBuilder();
+			StringBuilder portType = new StringBuilder();
+			StringBuilder binding = new StringBuilder();
+			for (int i = 0; i < operations; i++)
+			{
+				types.append("<xs:element name=\"").append(requestName(i)).append("\"><xs:complexType><xs:sequence>")
+						.append("<xs:element name=\"revision\" type=\"xs:int\"/><xs:element name=\"value\" ")
+						.append("type=\"xs:string\" minOccurs=\"0\"/></xs:sequence></xs:complexType></xs:element>");
+				messages.append("<wsdl:message name=\"op").append(i).append("\"><wsdl:part name=\"body\" element=\"tns:")
+						.append(requestName(i)).append("\"/></wsdl:message>");
+				portType.append("<wsdl:operation name=\"op").append(i).append("\"><wsdl:input message=\"tns:op")
+						.append(i).append("\"/></wsdl:operation>");
+				binding.append("<wsdl:operation name=\"op").append(i).append("\"><soap:operation soapAction=\"")
+						.append(soapAction(i)).append("\"/><wsdl:input><soap:body use=\"literal\"/></wsdl:input>")
+						.append("</wsdl:operation>");
+			}
+			String wsdl = "<wsdl:definitions xmlns:wsdl=\"http://schemas.xmlsoap.org/wsdl/\""
+					+ " xmlns:soap=\"http://schemas.xmlsoap.org/wsdl/soap/\""
+					+ " xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" xmlns:tns=\"" + NAMESPACE + "\""
+					+ " targetNamespace=\"" + NAMESPACE + "\">"
+					+ "<wsdl:types><xs:schema targetNamespace=\"" + NAMESPACE + "\" elementFormDefault=\"qualified\">"
+					+ types + "</xs:schema></wsdl:types>" + messages
+					+ "<wsdl:portType name=\"StressPortType\">" + portType + "</wsdl:portType>"
+					+ "<wsdl:binding name=\"StressBinding\" type=\"tns:StressPortType\">"
+					+ "<soap:binding style=\"document\" transport=\"http://schemas.xmlsoap.org/soap/http\"/>" + binding
+					+ "</wsdl:binding><wsdl:service name=\"" + SERVICE_PREFIX + apiUUID.replace('-', '_') + "_r"
+					+ revision + "\"><wsdl:port name=\"StressPort\" binding=\"tns:StressBinding\">"
+					+ "<soap:address location=\"http://localhost/stress\"/></wsdl:port></wsdl:service>"
+					+ "</wsdl:definitions>";
+			try
+			{
+				Path file = contractFolder.resolve(apiUUID + "-r" + revision + ".wsdl");
+				Files.writeString(file, wsdl, StandardCharsets.UTF_8);
+				return file.toUri();
+			} catch (IOException e)
+			{
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+
+	/**
+	 * @return the revision encoded in the service name of a generated WSDL
+	 */
+	private static int revisionOf(SOAPServiceOperation serviceOperation)
+	{
+		String serviceName = serviceOperation.getService().getName().getLocalPart();
+		return Integer.parseInt(serviceName.substring(serviceName.lastIndexOf("_r") + 2));
+	}
+
+	/**
+	 * Registry stub serving the generated WSDLs of the published revisions.
+	 */
+	private final class StubRegistry extends RegistryServiceHelper
+	{
+		StubRegistry()
+		{
+			super(null);
+		}
+
+		@Override
+		public int getLatestRevision(String apiUUID) throws RegistryException
+		{
+			AtomicInteger revision = publishedRevisions.get(apiUUID);
+			if (revision == null)
+			{
+				throw new RegistryException("API base path does not exist: " + apiUUID);
+			}
+			return revision.get();
+		}
+
+		@Override
+		public URI[] getWSDLUri(String apiUUID, int revision, WSDLExtractor extractor)
+		{
+			contractLoads.increment();
+			return new URI[] { getWSDL(apiUUID, revision) };
+		}
+	}
+
+	/**
+	 * Compiler recording the compilations per cache key and the revision of
+	 * every compiled schema.
+	 */
+	private final class CheckingSchemaCompiler extends SchemaCompiler
+	{
+		@Override
+		public XMLValidationSchema compileSchema(SOAPServiceOperation serviceOperation)
+				throws SOAPValidationException, XMLStreamException
+		{
+			String key = serviceOperation.getRuntimeOperation().getKey();
+			String serviceName = serviceOperation.getService().getName().getLocalPart();
+			int revision = revisionOf(serviceOperation);
+			AtomicInteger inFlight = compilationsInFlight.computeIfAbsent(key, k -> new AtomicInteger());
+			if (inFlight.incrementAndGet() > 1)
+			{
+				failure("concurrent compilations of " + key);
+			}
+			try
+			{
+				if (compilations.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet() > 1)
+				{
+					if (revision < currentRevision(serviceName))
+					{
+						// an operation matched just before its revision was replaced
+						staleCompilations.increment();
+					} else if (!evicting)
+					{
+						failure("schema of " + serviceName + " compiled again: " + key);
+					}
+				}
+				XMLValidationSchema schema = super.compileSchema(serviceOperation);
+				schemaRevisions.put(schema, revision);
+				return schema;
+			} finally
+			{
+				inFlight.decrementAndGet();
+			}
+		}
+
+		/**
+		 * @return the published revision of the API a generated service belongs to
+		 */
+		private int currentRevision(String serviceName)
+		{
+			for (Map.Entry<String, AtomicInteger> api : publishedRevisions.entrySet())
+			{
+				if (serviceName.startsWith(SERVICE_PREFIX + api.getKey().replace('-', '_') + "_r"))
+				{
+					return api.getValue().get();
+				}
+			}
+			return Integer.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * Latency of one phase.
+	 */
+	private static final class Phase
+	{
+		private final LongAdder count = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		void record(long nanos)
+		{
+			count.increment();
+			totalNanos.add(nanos);
+			maxNanos.accumulateAndGet(nanos, Math::max);
+		}
+
+		double meanMicros()
+		{
+			return totalNanos.sum() / 1000.0 / Math.max(count.sum(), 1);
+		}
+
+		long maxMicros()
+		{
+			return maxNanos.get() / 1000;
+		}
+	}
+}